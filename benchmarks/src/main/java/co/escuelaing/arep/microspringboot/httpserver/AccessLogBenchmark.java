@@ -0,0 +1,73 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost seen by request threads for one access log line, with four threads
+ * logging at once: queuing into the ring of {@link AccessLog}, a
+ * synchronous {@code println} on a shared stream, and a logger looked up
+ * on every call (the message is below its level, so only the lookup and
+ * the level check are measured). Output goes to temporary files; entries
+ * the drain thread could not keep up with are reported as dropped.
+ *
+ * @author juan.medina-r
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class AccessLogBenchmark {
+
+    private Path dir;
+    private AccessLog accessLog;
+    private PrintStream printStream;
+
+    @Setup
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("access-log-bench");
+        accessLog = new AccessLog(dir.resolve("access.log").toString(), 1, 64L * 1024 * 1024);
+        printStream = new PrintStream(Files.newOutputStream(dir.resolve("println.log")), true);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        accessLog.close();
+        printStream.close();
+        System.out.println("Access log entries written " + accessLog.written() + ", dropped " + accessLog.dropped());
+    }
+
+    @Benchmark
+    public void ringBuffer() {
+        accessLog.log("GET", "/api/sum", 200, 137, 42_000, "/sum");
+    }
+
+    @Benchmark
+    public void synchronousPrintln() {
+        printStream.println("GET /api/sum 200 137 42us /sum");
+    }
+
+    @Benchmark
+    public void loggerLookupPerCall() {
+        Logger.getLogger(AccessLogBenchmark.class.getName()).finest("GET /api/sum 200 137 42us /sum");
+    }
+}
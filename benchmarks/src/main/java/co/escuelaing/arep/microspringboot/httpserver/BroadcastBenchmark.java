@@ -0,0 +1,129 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Fan-out of one {@link BroadcastHub} message to every subscriber of a
+ * Server-Sent Events endpoint over loopback: each operation publishes a
+ * small JSON event and waits until every client has read it, so it
+ * measures encoding, queuing, the push engine's writes and the clients'
+ * reads. One thread reads all the clients through a selector.
+ *
+ * @author juan.medina-r
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({"1", "100", "1000", "5000"})
+    public int subscribers;
+
+    private final AtomicLong received = new AtomicLong();
+    private HttpServer server;
+    private BroadcastHub hub;
+    private Selector selector;
+    private Thread reader;
+    private List<SocketChannel> clients;
+    private Tick tick;
+    private long eventLength;
+    private long expected;
+
+    public record Tick(String symbol, double price, long sequence) {
+    }
+
+    @Setup
+    public void setUp() throws IOException, InterruptedException {
+        hub = new BroadcastHub(1024);
+        server = HttpServer.builder().port(0).routes(new Routes().stream("/ticks", hub)).build().start();
+        selector = Selector.open();
+        clients = new ArrayList<>(subscribers);
+        byte[] request = "GET /api/ticks HTTP/1.1\r\nHost: localhost\r\nAccept: text/event-stream\r\n\r\n"
+                .getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < subscribers; i++) {
+            SocketChannel client = SocketChannel.open(new InetSocketAddress("localhost", server.getPort()));
+            client.write(ByteBuffer.wrap(request));
+            client.configureBlocking(false);
+            client.register(selector, SelectionKey.OP_READ);
+            clients.add(client);
+        }
+        reader = new Thread(this::readLoop, "broadcast-clients");
+        reader.setDaemon(true);
+        reader.start();
+        while (hub.getSubscriberCount() < subscribers) {
+            Thread.sleep(10);
+        }
+        // Lo que se lea a partir de aqui son eventos
+        Thread.sleep(200);
+        tick = new Tick("ACME", 101.25, 0);
+        eventLength = ("data: " + new String(JsonEncoder.encode(tick), StandardCharsets.UTF_8) + "\n\n").length();
+        expected = received.get();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        reader.interrupt();
+        selector.wakeup();
+        reader.join();
+        for (SocketChannel client : clients) {
+            client.close();
+        }
+        selector.close();
+        server.stop();
+        System.out.println("Published " + hub.getPublishedCount() + ", evicted " + hub.getEvictedCount());
+    }
+
+    @Benchmark
+    public void publishToAll() {
+        expected += hub.publish(tick) * eventLength;
+        while (received.get() < expected) {
+            Thread.yield();
+        }
+    }
+
+    private void readLoop() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    buffer.clear();
+                    int read = ((SocketChannel) key.channel()).read(buffer);
+                    if (read > 0) {
+                        received.addAndGet(read);
+                    } else if (read < 0) {
+                        key.cancel();
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A full API request (parse, route lookup, argument binding, invocation and
+ * response encoding) through {@link HttpServer#handleRequest} of a server
+ * that is never started, writing into a discarding stream.
+ *
+ * @author juan.medina-r
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    private static final String CONTROLLERS = "co.escuelaing.arep.microspringboot";
+
+    @Param({"/api/sum?a=1&b=2", "/api/square/12", "/api/stats?n=1&n=2&n=3", "/api/primes?limit=100",
+        "/api/missing"})
+    public String target;
+
+    private HttpServer server;
+    private byte[] request;
+    private RequestParser parser;
+    private final OutputStream sink = OutputStream.nullOutputStream();
+
+    @Setup
+    public void setUp() {
+        server = HttpServer.builder().routes(new Routes().scan(CONTROLLERS)).build();
+        request = ("GET " + target + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        parser = server.newParser();
+    }
+
+    @Benchmark
+    public void dispatch() throws IOException {
+        parser.parse(request, 0, request.length);
+        server.handleRequest(parser.take(), sink, true);
+    }
+}
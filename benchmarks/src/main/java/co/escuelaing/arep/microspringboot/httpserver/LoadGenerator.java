@@ -0,0 +1,370 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Closed-loop HTTP load generator for loopback runs: each connection sends a
+ * request, reads the whole response and sends the next one. Reports
+ * requests per second and latency percentiles for keep-alive traffic (one
+ * socket per connection, reopened when the server closes it) and for
+ * non-keep-alive traffic (a new socket and {@code Connection: close} on
+ * every request).
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar co.escuelaing.arep.microspringboot.httpserver.LoadGenerator \
+ *     --embedded --engine nio --path /api/sum?a=1&amp;b=2 --connections 32 --seconds 10
+ * </pre>
+ *
+ * {@code --mode h2} runs the same closed loop as concurrent HTTP/2 streams:
+ * every "connection" becomes a stream over a single h2c connection opened
+ * with {@code Upgrade: h2c}, for comparison with the same number of
+ * HTTP/1.1 keep-alive sockets ({@code --mode all} runs the three modes).
+ *
+ * Without {@code --embedded} it targets a server already running on
+ * {@code --host}/{@code --port}.
+ *
+ * @author juan.medina-r
+ */
+public final class LoadGenerator {
+
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int READ_TIMEOUT = 30000;
+
+    private final String host;
+    private final int port;
+    private final byte[] keepAliveRequest;
+    private final byte[] closeRequest;
+    private final int connections;
+
+    private volatile boolean measuring;
+    private volatile boolean stopped;
+    private LatencyHistogram latency;
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+
+    private final URI uri;
+    private HttpClient http2Client;
+
+    private LoadGenerator(String host, int port, String path, int connections) {
+        this.host = host;
+        this.port = port;
+        this.connections = connections;
+        this.uri = URI.create("http://" + host + ":" + port + path);
+        String head = "GET " + path + " HTTP/1.1\r\nHost: " + host + ":" + port + "\r\n";
+        this.keepAliveRequest = (head + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        this.closeRequest = (head + "Connection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        String host = options.getOrDefault("host", "localhost");
+        int port = Integer.parseInt(options.getOrDefault("port", "35003"));
+        String path = options.getOrDefault("path", "/api/sum?a=1&b=2");
+        int connections = Integer.parseInt(options.getOrDefault("connections", "16"));
+        int seconds = Integer.parseInt(options.getOrDefault("seconds", "10"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "3"));
+        String mode = options.getOrDefault("mode", "both");
+
+        HttpServer server = null;
+        if (options.containsKey("embedded")) {
+            server = startEmbedded(port, options);
+        }
+        LoadGenerator generator = new LoadGenerator(host, port, path, connections);
+        System.out.printf("Target http://%s:%d%s, %d connections, %d s (+%d s warm-up)%n",
+                host, port, path, connections, seconds, warmup);
+        try {
+            if (mode.equals("both") || mode.equals("all") || mode.equals("keep-alive")) {
+                generator.run(generator::keepAliveLoop, warmup, seconds).print("keep-alive");
+            }
+            if (mode.equals("both") || mode.equals("all") || mode.equals("close")) {
+                generator.run(generator::closeLoop, warmup, seconds).print("close");
+            }
+            if (mode.equals("all") || mode.equals("h2")) {
+                generator.http2Client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+                generator.run(generator::http2Loop, warmup, seconds).print("h2");
+            }
+        } finally {
+            if (server != null) {
+                server.stop();
+            }
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            }
+            String name = args[i].substring(2);
+            if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                options.put(name, args[++i]);
+            } else {
+                options.put(name, "true");
+            }
+        }
+        return options;
+    }
+
+    private static HttpServer startEmbedded(int port, Map<String, String> options) throws IOException {
+        HttpServer.Builder builder = HttpServer.builder()
+                .port(port)
+                .routes(new Routes().scan("co.escuelaing.arep.microspringboot"))
+                .engine(ServerEngine.parse(options.getOrDefault("engine", "blocking")))
+                .executor(ExecutorStrategy.parse(options.getOrDefault("executor", "fixed")))
+                // Sin limite practico de peticiones por conexion para medir keep-alive
+                .maxKeepAliveRequests(Integer.MAX_VALUE);
+        if (options.containsKey("workers")) {
+            builder.workerPoolSize(Integer.parseInt(options.get("workers")));
+        }
+        return builder.build().start();
+    }
+
+    private Result run(Runnable loop, int warmupSeconds, int seconds) throws InterruptedException {
+        latency = new LatencyHistogram();
+        errors.reset();
+        reconnects.reset();
+        measuring = false;
+        stopped = false;
+        List<Thread> workers = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            Thread worker = new Thread(loop, "load-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+        measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        measuring = false;
+        long elapsed = System.nanoTime() - start;
+        stopped = true;
+        for (Thread worker : workers) {
+            worker.join(READ_TIMEOUT);
+        }
+        return new Result(latency, errors.sum(), reconnects.sum(), elapsed);
+    }
+
+    private void keepAliveLoop() {
+        Client client = null;
+        while (!stopped) {
+            try {
+                if (client == null) {
+                    client = connect();
+                }
+                long start = System.nanoTime();
+                client.out.write(keepAliveRequest);
+                Response response = readResponse(client.in);
+                record(start, response.status);
+                if (response.close) {
+                    client.close();
+                    client = null;
+                    reconnects.increment();
+                }
+            } catch (IOException e) {
+                countError();
+                closeQuietly(client);
+                client = null;
+            }
+        }
+        closeQuietly(client);
+    }
+
+    private void closeLoop() {
+        while (!stopped) {
+            long start = System.nanoTime();
+            try (Client client = connect()) {
+                client.out.write(closeRequest);
+                record(start, readResponse(client.in).status);
+            } catch (IOException e) {
+                countError();
+            }
+        }
+    }
+
+    // Cada hilo es un flujo concurrente de la misma conexion h2c
+    private void http2Loop() {
+        HttpRequest request = HttpRequest.newBuilder(uri).GET().build();
+        while (!stopped) {
+            long start = System.nanoTime();
+            try {
+                HttpResponse<Void> response = http2Client.send(request, HttpResponse.BodyHandlers.discarding());
+                if (response.version() != HttpClient.Version.HTTP_2) {
+                    throw new IOException("Server did not switch to HTTP/2");
+                }
+                record(start, response.statusCode());
+            } catch (IOException e) {
+                countError();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private Client connect() throws IOException {
+        Socket socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(READ_TIMEOUT);
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+        return new Client(socket);
+    }
+
+    private void record(long start, int status) {
+        if (!measuring) {
+            return;
+        }
+        latency.record(System.nanoTime() - start);
+        if (status >= 400) {
+            errors.increment();
+        }
+    }
+
+    private void countError() {
+        if (measuring) {
+            errors.increment();
+        }
+    }
+
+    private static void closeQuietly(Client client) {
+        if (client != null) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // Nada que hacer: el socket ya no se usa
+            }
+        }
+    }
+
+    /**
+     * Reads one response, discarding the body.
+     */
+    static Response readResponse(InputStream in) throws IOException {
+        String statusLine = readLine(in);
+        if (statusLine == null) {
+            throw new EOFException("Connection closed before the response");
+        }
+        int status = Integer.parseInt(statusLine.substring(9, 12));
+        long contentLength = -1;
+        boolean chunked = false;
+        boolean close = statusLine.startsWith("HTTP/1.0");
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = line.substring(colon + 1).trim().toLowerCase(Locale.ROOT);
+            switch (name) {
+                case "content-length" -> contentLength = Long.parseLong(value);
+                case "transfer-encoding" -> chunked = value.contains("chunked");
+                case "connection" -> close = value.contains("close");
+                default -> {
+                }
+            }
+        }
+        if (line == null) {
+            throw new EOFException("Connection closed inside the response head");
+        }
+        if (chunked) {
+            long size;
+            do {
+                String sizeLine = readLine(in);
+                if (sizeLine == null) {
+                    throw new EOFException("Connection closed inside a chunked body");
+                }
+                int semicolon = sizeLine.indexOf(';');
+                size = Long.parseLong((semicolon < 0 ? sizeLine : sizeLine.substring(0, semicolon)).trim(), 16);
+                in.skipNBytes(size);
+                readLine(in);
+            } while (size > 0);
+        } else if (contentLength >= 0) {
+            in.skipNBytes(contentLength);
+        } else if (status != 204 && status != 304) {
+            // Cuerpo delimitado por el cierre de la conexion
+            while (in.read() >= 0) {
+                // descartar
+            }
+            close = true;
+        }
+        return new Response(status, close);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder(64);
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') {
+                int end = sb.length();
+                if (end > 0 && sb.charAt(end - 1) == '\r') {
+                    sb.setLength(end - 1);
+                }
+                return sb.toString();
+            }
+            sb.append((char) b);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    record Response(int status, boolean close) {
+    }
+
+    private record Result(LatencyHistogram latency, long errors, long reconnects, long elapsedNanos) {
+
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999, 1.0};
+
+        void print(String mode) {
+            long requests = latency.count();
+            double perSecond = requests / (elapsedNanos / 1e9);
+            long[] p = latency.percentiles(QUANTILES);
+            System.out.printf(Locale.ROOT,
+                    "%-10s %10d req %11.1f req/s  p50 %8.3f ms  p90 %8.3f ms  p99 %8.3f ms  p99.9 %8.3f ms"
+                            + "  max %8.3f ms  errors %d  reconnects %d%n",
+                    mode, requests, perSecond, p[0] / 1e3, p[1] / 1e3, p[2] / 1e3, p[3] / 1e3, p[4] / 1e3,
+                    errors, reconnects);
+        }
+    }
+
+    /**
+     * One client connection; responses are read byte by byte from a buffer
+     * instead of with a system call per byte.
+     */
+    private static final class Client implements Closeable {
+
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+
+        Client(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+            this.out = socket.getOutputStream();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
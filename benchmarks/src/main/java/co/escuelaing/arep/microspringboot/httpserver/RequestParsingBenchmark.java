@@ -0,0 +1,99 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of turning the bytes of a request into an {@link HttpRequest}, and of
+ * the lazy accessors handlers usually touch afterwards.
+ *
+ * @author juan.medina-r
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParsingBenchmark {
+
+    private static final String BROWSER_HEADERS = "Host: localhost:9000\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:120.0) Gecko/20100101 Firefox/120.0\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+            + "Accept-Language: es-CO,es;q=0.8,en-US;q=0.5,en;q=0.3\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Cookie: session=4f6c2a1e9b; theme=dark\r\n"
+            + "Upgrade-Insecure-Requests: 1\r\n"
+            + "If-None-Match: \"5d8c72a5edda8\"\r\n"
+            + "Cache-Control: max-age=0\r\n";
+
+    @Param({"minimal", "browser", "form", "chunked"})
+    public String shape;
+
+    private byte[] request;
+    private RequestParser parser;
+
+    @Setup
+    public void setUp() {
+        String text = switch (shape) {
+            case "minimal" -> "GET /api/sum?a=1&b=2 HTTP/1.1\r\nHost: localhost\r\n\r\n";
+            case "browser" -> "GET /index.html HTTP/1.1\r\n" + BROWSER_HEADERS + "\r\n";
+            case "form" -> "POST /api/total HTTP/1.1\r\nHost: localhost\r\n"
+                    + "Content-Type: application/x-www-form-urlencoded\r\nContent-Length: 23\r\n\r\n"
+                    + "n=1&n=2&n=3&n=4&n=5&n=6";
+            case "chunked" -> "POST /api/total HTTP/1.1\r\nHost: localhost\r\n"
+                    + "Content-Type: application/x-www-form-urlencoded\r\nTransfer-Encoding: chunked\r\n\r\n"
+                    + "b\r\nn=1&n=2&n=3\r\nc\r\n&n=4&n=5&n=6\r\n0\r\n\r\n";
+            default -> throw new IllegalArgumentException("Unknown shape: " + shape);
+        };
+        request = text.getBytes(StandardCharsets.ISO_8859_1);
+        parser = HttpServer.builder().build().newParser();
+    }
+
+    @Benchmark
+    public HttpRequest parse() {
+        parser.parse(request, 0, request.length);
+        return parser.take();
+    }
+
+    /**
+     * Parsing plus what a typical handler reads: the decoded path, the
+     * parameters and one header.
+     */
+    @Benchmark
+    public void parseAndRead(Blackhole bh) {
+        parser.parse(request, 0, request.length);
+        HttpRequest req = parser.take();
+        bh.consume(req.getPath());
+        bh.consume(req.getParameters());
+        bh.consume(req.getHeader("accept-encoding"));
+        bh.consume(req.isKeepAlive());
+    }
+
+    /**
+     * The request arriving one byte at a time, the worst case for the
+     * incremental parser.
+     */
+    @Benchmark
+    public HttpRequest parseByteByByte() {
+        for (int len = 1; len <= request.length; len++) {
+            if (parser.parse(request, 0, len) > 0) {
+                break;
+            }
+        }
+        return parser.take();
+    }
+}
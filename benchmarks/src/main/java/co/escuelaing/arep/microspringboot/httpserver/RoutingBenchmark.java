@@ -0,0 +1,69 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Route lookup in the prefix tree for each kind of pattern.
+ *
+ * @author juan.medina-r
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingBenchmark {
+
+    private Routes router;
+
+    @Setup
+    public void setUp() {
+        router = new Routes();
+        Service noop = (req, res) -> null;
+        // Tabla de rutas del tamano de una aplicacion pequena
+        for (String resource : new String[] {"users", "orders", "products", "invoices", "reports"}) {
+            for (String pattern : new String[] {"/" + resource, "/" + resource + "/{id}",
+                "/" + resource + "/{id}/items", "/" + resource + "/search/*"}) {
+                router.register("GET", pattern, noop);
+                router.register("POST", pattern, noop);
+            }
+        }
+        router.register("GET", "/static/**", noop);
+    }
+
+    @Benchmark
+    public Router.Match lookupLiteral() {
+        return router.find("GET", "/orders");
+    }
+
+    @Benchmark
+    public Router.Match lookupVariable() {
+        return router.find("GET", "/products/42/items");
+    }
+
+    @Benchmark
+    public Router.Match lookupTail() {
+        return router.find("GET", "/static/css/site/main.css");
+    }
+
+    @Benchmark
+    public Router.Match lookupMiss() {
+        return router.find("GET", "/customers/9");
+    }
+
+    @Benchmark
+    public Router.Match lookupMethodNotAllowed() {
+        return router.find("DELETE", "/users/7");
+    }
+}
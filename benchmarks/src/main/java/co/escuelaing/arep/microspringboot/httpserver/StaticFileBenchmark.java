@@ -0,0 +1,120 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Static file serving from the bundled {@code public} directory: content
+ * type detection, and complete responses (cached, compressed, conditional
+ * and missing) through {@link HttpServer#handleRequest} into a discarding
+ * stream.
+ *
+ * @author juan.medina-r
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StaticFileBenchmark {
+
+    private static final Path[] FILES = {
+        Paths.get("index.html"), Paths.get("css", "styles.css"), Paths.get("script.js"),
+        Paths.get("img", "logo.png"), Paths.get("img", "favicon.ico"), Paths.get("data.bin")
+    };
+
+    @Param({"plain", "gzip", "conditional", "image", "missing"})
+    public String variant;
+
+    private HttpServer server;
+    private byte[] request;
+    private RequestParser parser;
+    private final OutputStream sink = OutputStream.nullOutputStream();
+    private int next;
+
+    @Setup
+    public void setUp() {
+        server = HttpServer.builder().staticFilesFromClasspath("public").build();
+        String head = switch (variant) {
+            case "plain" -> "GET /index.html HTTP/1.1\r\n";
+            case "gzip" -> "GET /styles.css HTTP/1.1\r\nAccept-Encoding: gzip, deflate, br\r\n";
+            case "conditional" -> "GET /index.html HTTP/1.1\r\nIf-None-Match: " + etagOf("/index.html") + "\r\n";
+            case "image" -> "GET /img/logo.png HTTP/1.1\r\n";
+            case "missing" -> "GET /nothing-here.html HTTP/1.1\r\n";
+            default -> throw new IllegalArgumentException("Unknown variant: " + variant);
+        };
+        request = (head + "Host: localhost\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        parser = server.newParser();
+    }
+
+    @Benchmark
+    public String detectContentType() {
+        Path file = FILES[next++ % FILES.length];
+        return HttpServer.detectContentType(file);
+    }
+
+    @Benchmark
+    public void serve() throws IOException {
+        parser.parse(request, 0, request.length);
+        server.handleRequest(parser.take(), sink, true);
+    }
+
+    // Hace una peticion para obtener el ETag que el cache asigna al archivo
+    private String etagOf(String path) {
+        RequestParser probe = server.newParser();
+        byte[] get = ("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        probe.parse(get, 0, get.length);
+        ResponseHead captured = new ResponseHead();
+        try {
+            server.handleRequest(probe.take(), captured, true);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        String etag = captured.header("etag");
+        if (etag == null) {
+            throw new IllegalStateException("No ETag for " + path);
+        }
+        return etag;
+    }
+
+    /**
+     * Keeps the head of a response written to it.
+     */
+    private static final class ResponseHead extends OutputStream {
+
+        private final StringBuilder text = new StringBuilder();
+
+        @Override
+        public void write(int b) {
+            if (text.indexOf("\r\n\r\n") < 0) {
+                text.append((char) (b & 0xff));
+            }
+        }
+
+        String header(String name) {
+            for (String line : text.toString().split("\r\n")) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).equalsIgnoreCase(name)) {
+                    return line.substring(colon + 1).trim();
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -1,9 +1,17 @@
 package co.escuelaing.arep.microspringboot;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.Socket;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 
+import co.escuelaing.arep.microspringboot.httpserver.ExecutorStrategy;
 import co.escuelaing.arep.microspringboot.httpserver.HttpServer;
+import co.escuelaing.arep.microspringboot.httpserver.ServerEngine;
 
 /**
  *
@@ -11,11 +19,135 @@ import co.escuelaing.arep.microspringboot.httpserver.HttpServer;
  */
 public class MicroSpringBoot {
 
-    public static void main(String[] args) throws IOException, URISyntaxException {
+    // Peticiones de la corrida de entrenamiento: cargan las clases de cada tipo de respuesta
+    private static final List<String> TRAINING_PATHS = List.of("/", "/index.html", "/styles.css", "/script.js",
+            "/img/logo.png", "/missing.html", "/api/greeting?name=cds", "/api/sum?a=1&b=2", "/api/stats?n=1&n=2",
+            "/api/primes?limit=100", "/api/square/7", "/api/missing", "/metrics", "/health/ready");
+
+    public static void main(String[] args) throws IOException, URISyntaxException, InterruptedException {
         System.out.println("Starting MicroSpringBoot:");
+        configureEngine();
+        configureExecutor();
+        configureAdmission();
+        configureShutdown();
+        configureAccessLog();
+        if (args.length > 0 && args[0].equals("--training")) {
+            train(getPort());
+            return;
+        }
         HttpServer.runServer(getPort());
     }
 
+    /**
+     * Starts the server, sends it one request of each kind and stops it.
+     * Run with {@code -XX:ArchiveClassesAtExit} it leaves a class data
+     * sharing archive of everything a real start loads.
+     */
+    private static void train(int port) throws IOException, InterruptedException {
+        Thread serving = new Thread(() -> {
+            try {
+                HttpServer.runServer(port);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, "training-server");
+        serving.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!trainingRequest(port, "/health/ready").startsWith("HTTP/1.1 200")) {
+            if (System.currentTimeMillis() > deadline || !serving.isAlive()) {
+                throw new IOException("Training server did not start on port " + port);
+            }
+            Thread.sleep(50);
+        }
+        for (String path : TRAINING_PATHS) {
+            System.out.println(path + " -> " + trainingRequest(port, path));
+        }
+        HttpServer.stopServer();
+        serving.join();
+    }
+
+    // Devuelve la linea de estado, o "" si el servidor aun no acepta conexiones
+    private static String trainingRequest(int port, String path) {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n"
+                    + "Accept-Encoding: gzip\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            in.transferTo(response);
+            String text = response.toString(StandardCharsets.ISO_8859_1);
+            int end = text.indexOf("\r\n");
+            return end < 0 ? text : text.substring(0, end);
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    private static void configureEngine() {
+        if (System.getenv("SERVER_ENGINE") != null) {
+            HttpServer.setEngine(ServerEngine.parse(System.getenv("SERVER_ENGINE")));
+        }
+        if (System.getenv("REACTOR_THREADS") != null) {
+            HttpServer.setReactorThreads(Integer.parseInt(System.getenv("REACTOR_THREADS")));
+        }
+        if (System.getenv("HTTP2") != null) {
+            HttpServer.setHttp2(Boolean.parseBoolean(System.getenv("HTTP2")));
+        }
+    }
+
+    private static void configureExecutor() {
+        if (System.getenv("SERVER_EXECUTOR") != null) {
+            HttpServer.setExecutorStrategy(ExecutorStrategy.parse(System.getenv("SERVER_EXECUTOR")));
+        }
+        if (System.getenv("WORKER_THREADS") != null) {
+            HttpServer.setWorkerPoolSize(Integer.parseInt(System.getenv("WORKER_THREADS")));
+        }
+        if (System.getenv("WORKER_QUEUE") != null) {
+            HttpServer.setWorkerQueueCapacity(Integer.parseInt(System.getenv("WORKER_QUEUE")));
+        }
+    }
+
+    private static void configureAdmission() {
+        if (System.getenv("MAX_CONNECTIONS") != null) {
+            HttpServer.setMaxConnections(Integer.parseInt(System.getenv("MAX_CONNECTIONS")));
+        }
+        if (System.getenv("MAX_STREAMS") != null) {
+            HttpServer.setMaxStreams(Integer.parseInt(System.getenv("MAX_STREAMS")));
+        }
+        if (System.getenv("RATE_LIMIT") != null) {
+            int rate = Integer.parseInt(System.getenv("RATE_LIMIT"));
+            String burst = System.getenv("RATE_LIMIT_BURST");
+            HttpServer.setRateLimit(rate, burst != null ? Integer.parseInt(burst) : rate);
+        }
+        if (System.getenv("RETRY_AFTER") != null) {
+            HttpServer.setRetryAfter(Integer.parseInt(System.getenv("RETRY_AFTER")));
+        }
+        if (System.getenv("ASYNC_TIMEOUT") != null) {
+            HttpServer.setAsyncTimeout(Integer.parseInt(System.getenv("ASYNC_TIMEOUT")));
+        }
+    }
+
+    private static void configureShutdown() {
+        if (System.getenv("DRAIN_DELAY") != null) {
+            HttpServer.setDrainDelay(Integer.parseInt(System.getenv("DRAIN_DELAY")));
+        }
+        if (System.getenv("DRAIN_TIMEOUT") != null) {
+            HttpServer.setDrainTimeout(Integer.parseInt(System.getenv("DRAIN_TIMEOUT")));
+        }
+    }
+
+    private static void configureAccessLog() {
+        if (System.getenv("ACCESS_LOG") != null && !System.getenv("ACCESS_LOG").equalsIgnoreCase("off")) {
+            HttpServer.setAccessLog(System.getenv("ACCESS_LOG"));
+        }
+        if (System.getenv("ACCESS_LOG_SAMPLE") != null) {
+            HttpServer.setAccessLogSampleRate(Double.parseDouble(System.getenv("ACCESS_LOG_SAMPLE")));
+        }
+        if (System.getenv("ACCESS_LOG_MAX_SIZE") != null) {
+            HttpServer.setAccessLogMaxFileSize(Long.parseLong(System.getenv("ACCESS_LOG_MAX_SIZE")));
+        }
+    }
+
     private static int getPort() {
         if (System.getenv("PORT") != null) {
             return Integer.parseInt(System.getenv("PORT"));
@@ -0,0 +1,27 @@
+package co.escuelaing.arep.microspringboot.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+/**
+ * Caches the encoded responses of a {@code @GetMapping} method whose result
+ * depends only on its {@code @RequestParam} and {@code @PathVariable}
+ * values.
+ *
+ * @author juan.medina-r
+ */
+public @interface Cacheable {
+    /**
+     * Seconds a cached response stays valid.
+     */
+    public long ttl() default 60;
+
+    /**
+     * Most responses kept for the route.
+     */
+    public int maxEntries() default 1000;
+}
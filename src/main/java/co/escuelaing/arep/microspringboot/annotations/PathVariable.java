@@ -0,0 +1,18 @@
+package co.escuelaing.arep.microspringboot.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+/**
+ * Binds a {@code {name}} segment of the mapping path, e.g.
+ * {@code @GetMapping("/users/{id}")}.
+ *
+ * @author juan.medina-r
+ */
+public @interface PathVariable {
+    public String value() default "";
+}
@@ -0,0 +1,16 @@
+package co.escuelaing.arep.microspringboot.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+/**
+ *
+ * @author juan.medina-r
+ */
+public @interface PostMapping {
+    public String value();
+}
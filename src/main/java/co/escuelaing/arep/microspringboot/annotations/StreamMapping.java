@@ -0,0 +1,21 @@
+package co.escuelaing.arep.microspringboot.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+/**
+ * Maps GET requests to a push endpoint. The method binds its parameters
+ * like a {@code @GetMapping} one and returns the
+ * {@code BroadcastHub} the client subscribes to, or {@code null} for 404.
+ * The connection then stays open as a Server-Sent Events stream, or as a
+ * WebSocket when the request asks for the upgrade.
+ *
+ * @author juan.medina-r
+ */
+public @interface StreamMapping {
+    public String value();
+}
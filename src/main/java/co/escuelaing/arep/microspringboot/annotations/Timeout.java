@@ -0,0 +1,23 @@
+package co.escuelaing.arep.microspringboot.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+/**
+ * Time limit for a controller method that returns a
+ * {@code CompletionStage}. If the stage has not completed by then the
+ * request is answered with 504 and the stage is cancelled. Without it the
+ * server's default asynchronous timeout applies.
+ *
+ * @author juan.medina-r
+ */
+public @interface Timeout {
+    /**
+     * Milliseconds the stage may take.
+     */
+    public long value();
+}
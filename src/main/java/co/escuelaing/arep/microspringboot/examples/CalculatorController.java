@@ -0,0 +1,84 @@
+package co.escuelaing.arep.microspringboot.examples;
+
+import co.escuelaing.arep.microspringboot.annotations.RestController;
+import co.escuelaing.arep.microspringboot.annotations.Cacheable;
+import co.escuelaing.arep.microspringboot.annotations.GetMapping;
+import co.escuelaing.arep.microspringboot.annotations.PathVariable;
+import co.escuelaing.arep.microspringboot.annotations.PostMapping;
+import co.escuelaing.arep.microspringboot.annotations.RequestParam;
+import co.escuelaing.arep.microspringboot.httpserver.BadRequestException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * @author juan.medina-r
+ */
+@RestController
+public class CalculatorController {
+
+	@GetMapping("/sum")
+	public String sum(@RequestParam("a") int a, @RequestParam(value = "b", defaultValue = "0") long b,
+			@RequestParam(value = "negate", defaultValue = "false") boolean negate) {
+		long result = a + b;
+		return String.valueOf(negate ? -result : result);
+	}
+
+	@GetMapping("/total")
+	public String total(@RequestParam("n") List<Long> n) {
+		long result = 0;
+		for (long value : n) {
+			result += value;
+		}
+		return String.valueOf(result);
+	}
+
+	@PostMapping("/total")
+	public String totalFromForm(@RequestParam("n") List<Long> n) {
+		return total(n);
+	}
+
+	@GetMapping("/stats")
+	public Stats stats(@RequestParam("n") List<Double> n) {
+		double sum = 0;
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for (double value : n) {
+			sum += value;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+		return n.isEmpty() ? new Stats(0, 0, null, null, null)
+				: new Stats(n.size(), sum, min, max, sum / n.size());
+	}
+
+	/**
+	 * Written as JSON by the server.
+	 */
+	public record Stats(int count, double sum, Double min, Double max, Double mean) {
+	}
+
+	@GetMapping("/primes")
+	@Cacheable(ttl = 300, maxEntries = 100)
+	public List<Integer> primes(@RequestParam("limit") int limit) {
+		if (limit < 0 || limit > 10_000_000) {
+			throw new BadRequestException("limit must be between 0 and 10000000");
+		}
+		boolean[] composite = new boolean[limit + 1];
+		List<Integer> primes = new ArrayList<>();
+		for (int i = 2; i <= limit; i++) {
+			if (!composite[i]) {
+				primes.add(i);
+				for (long j = (long) i * i; j <= limit; j += i) {
+					composite[(int) j] = true;
+				}
+			}
+		}
+		return primes;
+	}
+
+	@GetMapping("/square/{n}")
+	public String square(@PathVariable("n") long n) {
+		return String.valueOf(n * n);
+	}
+}
@@ -0,0 +1,50 @@
+package co.escuelaing.arep.microspringboot.examples;
+
+import co.escuelaing.arep.microspringboot.annotations.RestController;
+import co.escuelaing.arep.microspringboot.annotations.StreamMapping;
+import co.escuelaing.arep.microspringboot.httpserver.BroadcastHub;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes the server time once a second to every subscriber, as a dashboard
+ * feed would instead of being polled.
+ *
+ * @author juan.medina-r
+ */
+@RestController
+public class ClockController {
+
+	private static final BroadcastHub CLOCK = new BroadcastHub();
+	private static ScheduledExecutorService ticker;
+
+	private ClockController() {
+		throw new IllegalStateException("Utility class");
+	}
+
+	@StreamMapping("/clock")
+	public static BroadcastHub clock() {
+		startTicker();
+		return CLOCK;
+	}
+
+	// El temporizador arranca con el primer suscriptor y publica solo si hay alguno
+	private static synchronized void startTicker() {
+		if (ticker != null) {
+			return;
+		}
+		ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "clock");
+			thread.setDaemon(true);
+			return thread;
+		});
+		ticker.scheduleAtFixedRate(() -> {
+			if (CLOCK.getSubscriberCount() > 0) {
+				CLOCK.publish("tick", Map.of("time", Instant.now().toString()));
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+	}
+}
@@ -2,7 +2,14 @@ package co.escuelaing.arep.microspringboot.examples;
 
 import co.escuelaing.arep.microspringboot.annotations.RestController;
 import co.escuelaing.arep.microspringboot.annotations.GetMapping;
+import co.escuelaing.arep.microspringboot.annotations.PostMapping;
 import co.escuelaing.arep.microspringboot.annotations.RequestParam;
+import co.escuelaing.arep.microspringboot.annotations.Timeout;
+import co.escuelaing.arep.microspringboot.httpserver.BadRequestException;
+import co.escuelaing.arep.microspringboot.httpserver.HttpRequest;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -21,4 +28,25 @@ public class GreetingController {
 	public static String greeting(@RequestParam(value = "name", defaultValue = "World") String name) {
 		return String.format(TEMPLATE, name);
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Answers after {@code delay} milliseconds without holding a worker
+	 * thread, as a controller waiting on a downstream call would.
+	 */
+	@GetMapping("/greeting/delayed")
+	@Timeout(5000)
+	public static CompletableFuture<String> delayedGreeting(
+			@RequestParam(value = "name", defaultValue = "World") String name,
+			@RequestParam(value = "delay", defaultValue = "1000") long delay) {
+		if (delay < 0) {
+			throw new BadRequestException("delay must not be negative");
+		}
+		return CompletableFuture.supplyAsync(() -> String.format(TEMPLATE, name),
+				CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS));
+	}
+
+	@PostMapping("/greeting")
+	public static String greetingFromBody(HttpRequest req) {
+		return String.format(TEMPLATE, new String(req.getBody(), StandardCharsets.UTF_8));
+	}
+}
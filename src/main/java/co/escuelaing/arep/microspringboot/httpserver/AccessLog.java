@@ -0,0 +1,273 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Asynchronous access log. Request threads claim a slot of a fixed ring
+ * buffer with one compare-and-set and fill it in; nothing is formatted or
+ * written on the request path. A single drain thread turns the filled
+ * slots into JSON lines and writes them in batches, one write and one
+ * flush per batch, to standard output or to a file that is rotated by
+ * size.
+ *
+ * <p>When the ring is full the entry is dropped and counted instead of
+ * making the request wait. A sample rate below 1 keeps only that fraction
+ * of the requests; responses with a 5xx status are always kept.
+ *
+ * @author juan.medina-r
+ */
+final class AccessLog {
+
+    static final String STDOUT = "stdout";
+    // Potencia de dos: el indice de un slot es la secuencia con una mascara
+    static final int CAPACITY = 8192;
+    // Archivos rotados que se conservan: access.log.1 ... access.log.N
+    static final int KEPT_FILES = 5;
+
+    private static final Logger LOGGER = Logger.getLogger(AccessLog.class.getName());
+    private static final int BATCH = 256;
+    // Pausa del vaciado: corta mientras llegan entradas, larga con el servidor ocioso
+    private static final long BUSY_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final Entry[] entries = new Entry[CAPACITY];
+    // Por slot: igual a la posicion cuando esta libre para ella, posicion + 1 cuando esta lleno
+    private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private final AtomicLong tail = new AtomicLong();
+    // Solo lo usa el hilo de vaciado
+    private long head;
+
+    private final double sampleRate;
+    private final Path file;
+    private final long maxFileSize;
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private final Thread drainer;
+    private volatile boolean closed;
+    private OutputStream out;
+    private long fileSize;
+    // Ultima marca de tiempo formateada: bajo carga muchas entradas comparten el milisegundo
+    private long lastTime = -1;
+    private byte[] lastTimeText;
+
+    /**
+     * @param destination {@value #STDOUT} or the path of the log file
+     * @param sampleRate  fraction of the requests to log, in {@code (0, 1]}
+     * @param maxFileSize size at which the log file is rotated
+     */
+    AccessLog(String destination, double sampleRate, long maxFileSize) throws IOException {
+        for (int i = 0; i < CAPACITY; i++) {
+            entries[i] = new Entry();
+            sequences.set(i, i);
+        }
+        this.sampleRate = sampleRate;
+        this.maxFileSize = maxFileSize;
+        if (STDOUT.equalsIgnoreCase(destination)) {
+            this.file = null;
+            this.out = System.out;
+        } else {
+            this.file = Path.of(destination).toAbsolutePath();
+            openFile();
+        }
+        this.drainer = new Thread(this::drainLoop, "access-log");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Queues one entry. Never blocks: a full ring drops the entry.
+     */
+    void log(String method, String path, int status, long bytes, long nanos, String route) {
+        if (status < 500 && sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return;
+        }
+        long position = tail.get();
+        int index;
+        while (true) {
+            index = (int) position & (CAPACITY - 1);
+            long diff = sequences.getAcquire(index) - position;
+            if (diff == 0) {
+                if (tail.weakCompareAndSetVolatile(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (diff < 0) {
+                // El vaciado no ha liberado el slot de hace una vuelta
+                dropped.increment();
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+        Entry entry = entries[index];
+        entry.time = System.currentTimeMillis();
+        entry.method = method;
+        entry.path = path;
+        entry.status = status;
+        entry.bytes = bytes;
+        entry.micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        entry.route = route;
+        sequences.setRelease(index, position + 1);
+    }
+
+    long written() {
+        return written.sum();
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Writes the entries already queued and stops the drain thread.
+     */
+    void close() {
+        closed = true;
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drainLoop() {
+        ByteArrayOutputStream batch = new ByteArrayOutputStream(BATCH * 160);
+        while (true) {
+            // Se lee antes de vaciar: lo encolado antes del cierre sale en esta vuelta
+            boolean last = closed;
+            boolean busy = false;
+            int count;
+            try {
+                while ((count = fill(batch)) > 0) {
+                    flush(batch, count);
+                    busy = true;
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Cannot write access log", e);
+            }
+            if (last) {
+                break;
+            }
+            LockSupport.parkNanos(busy ? BUSY_PARK_NANOS : IDLE_PARK_NANOS);
+        }
+        if (file != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, null, e);
+            }
+        }
+    }
+
+    // Formatea hasta BATCH entradas y libera sus slots
+    private int fill(ByteArrayOutputStream batch) throws IOException {
+        int count = 0;
+        while (count < BATCH) {
+            int index = (int) head & (CAPACITY - 1);
+            if (sequences.getAcquire(index) != head + 1) {
+                break;
+            }
+            Entry entry = entries[index];
+            format(entry, batch);
+            entry.method = null;
+            entry.path = null;
+            entry.route = null;
+            sequences.setRelease(index, head + CAPACITY);
+            head++;
+            count++;
+        }
+        return count;
+    }
+
+    private void format(Entry entry, ByteArrayOutputStream batch) throws IOException {
+        if (entry.time != lastTime) {
+            lastTime = entry.time;
+            lastTimeText = ("{\"time\":\"" + Instant.ofEpochMilli(entry.time) + "\",\"method\":")
+                    .getBytes(StandardCharsets.ISO_8859_1);
+        }
+        batch.write(lastTimeText, 0, lastTimeText.length);
+        JsonEncoder.writeString(entry.method, batch);
+        ascii(batch, ",\"path\":");
+        JsonEncoder.writeString(entry.path, batch);
+        ascii(batch, ",\"status\":" + entry.status + ",\"bytes\":" + entry.bytes + ",\"micros\":" + entry.micros);
+        ascii(batch, ",\"route\":");
+        JsonEncoder.writeString(entry.route, batch);
+        ascii(batch, "}\n");
+    }
+
+    private static void ascii(ByteArrayOutputStream batch, String s) {
+        batch.write(s.getBytes(StandardCharsets.ISO_8859_1), 0, s.length());
+    }
+
+    private void flush(ByteArrayOutputStream batch, int count) {
+        try {
+            if (file != null && fileSize > 0 && fileSize + batch.size() > maxFileSize) {
+                rotate();
+            }
+            batch.writeTo(out);
+            out.flush();
+            fileSize += batch.size();
+            written.add(count);
+        } catch (IOException e) {
+            dropped.add(count);
+            LOGGER.log(Level.WARNING, "Cannot write access log", e);
+        } finally {
+            batch.reset();
+        }
+    }
+
+    // access.log pasa a access.log.1, access.log.1 a access.log.2, ...; el mas viejo se pierde
+    private void rotate() throws IOException {
+        out.close();
+        for (int i = KEPT_FILES - 1; i >= 1; i--) {
+            Path older = rotated(i);
+            if (Files.exists(older)) {
+                Files.move(older, rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        openFile();
+    }
+
+    private Path rotated(int generation) {
+        return file.resolveSibling(file.getFileName() + "." + generation);
+    }
+
+    private void openFile() throws IOException {
+        Path parent = file.getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        out = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        fileSize = Files.size(file);
+    }
+
+    private static final class Entry {
+
+        long time;
+        String method;
+        String path;
+        int status;
+        long bytes;
+        long micros;
+        String route;
+    }
+}
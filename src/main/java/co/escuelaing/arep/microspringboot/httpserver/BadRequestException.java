@@ -0,0 +1,14 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+/**
+ * Thrown while binding a request to a controller method when a parameter is
+ * missing or cannot be converted. Answered with 400.
+ *
+ * @author juan.medina-r
+ */
+public class BadRequestException extends RuntimeException {
+
+    public BadRequestException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,172 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A channel that pushes messages to every client subscribed through a
+ * {@code @StreamMapping} endpoint. Each message is encoded at most once per
+ * wire format, a Server-Sent Event or a WebSocket text frame, the first time
+ * a subscriber of that format needs it, and the same bytes are queued to
+ * every subscriber; the push engine writes them without blocking
+ * the publisher.
+ *
+ * <p>Every subscriber has a bounded queue. A client that falls so far behind
+ * that its queue is full when a message arrives is evicted: its connection
+ * is closed rather than letting it hold memory or slow the others down.
+ * EventSource clients reconnect on their own.
+ *
+ * @author juan.medina-r
+ */
+public final class BroadcastHub {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    private static final byte[] DATA = "data: ".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final int queueCapacity;
+    private final Set<PushEngine.Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final LongAdder published = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    public BroadcastHub() {
+        this(DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param queueCapacity messages a subscriber may have waiting before it
+     *                      is evicted
+     */
+    public BroadcastHub(int queueCapacity) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive: " + queueCapacity);
+        }
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Sends {@code value} to every subscriber: a {@code String} as it is,
+     * anything else as JSON.
+     *
+     * @return the number of subscribers it was queued to
+     */
+    public int publish(Object value) {
+        return publish(null, value);
+    }
+
+    /**
+     * Sends {@code value} as an event named {@code event}. WebSocket clients
+     * receive only the data.
+     *
+     * @return the number of subscribers it was queued to
+     */
+    public int publish(String event, Object value) {
+        if (event != null && (event.indexOf('\n') >= 0 || event.indexOf('\r') >= 0)) {
+            throw new IllegalArgumentException("Event name cannot contain line breaks: " + event);
+        }
+        byte[] data;
+        try {
+            data = value instanceof String s ? s.getBytes(StandardCharsets.UTF_8) : JsonEncoder.encode(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Message message = new Message(event, data);
+        published.increment();
+        int queued = 0;
+        for (PushEngine.Subscriber subscriber : subscribers) {
+            if (subscriber.offer(message)) {
+                queued++;
+            } else if (!subscriber.isClosed() && subscribers.remove(subscriber)) {
+                evicted.increment();
+                subscriber.evict();
+            }
+        }
+        return queued;
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    public long getPublishedCount() {
+        return published.sum();
+    }
+
+    /**
+     * Subscribers disconnected because their queue was full.
+     */
+    public long getEvictedCount() {
+        return evicted.sum();
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    void subscribe(PushEngine.Subscriber subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    void unsubscribe(PushEngine.Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    // event: nombre, una linea data: por cada linea del contenido y una linea vacia
+    private static byte[] eventBytes(String event, byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + 16);
+        if (event != null) {
+            out.writeBytes(("event: " + event + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        int start = 0;
+        for (int i = 0; i <= data.length; i++) {
+            if (i == data.length || data[i] == '\n' || data[i] == '\r') {
+                out.writeBytes(DATA);
+                out.write(data, start, i - start);
+                out.write('\n');
+                if (i < data.length - 1 && data[i] == '\r' && data[i + 1] == '\n') {
+                    i++;
+                }
+                start = i + 1;
+            }
+        }
+        out.write('\n');
+        return out.toByteArray();
+    }
+
+    /**
+     * One published message. Each wire format is encoded the first time a
+     * subscriber asks for it, so a format nobody is subscribed with is never
+     * built; only the publishing thread uses it.
+     */
+    static final class Message {
+
+        private final String name;
+        private final byte[] data;
+        private byte[] event;
+        private byte[] frame;
+
+        Message(String name, byte[] data) {
+            this.name = name;
+            this.data = data;
+        }
+
+        byte[] event() {
+            if (event == null) {
+                event = eventBytes(name, data);
+            }
+            return event;
+        }
+
+        byte[] frame() {
+            if (frame == null) {
+                frame = WebSocket.frame(WebSocket.TEXT, data, data.length);
+            }
+            return frame;
+        }
+    }
+}
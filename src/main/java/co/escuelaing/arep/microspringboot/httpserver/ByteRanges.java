@@ -0,0 +1,135 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Parsing of {@code Range: bytes=...} headers against a representation of
+ * known size (RFC 9110, section 14).
+ *
+ * @author juan.medina-r
+ */
+final class ByteRanges {
+
+    /**
+     * More ranges than this are not worth a multipart response; the whole
+     * representation is sent instead.
+     */
+    static final int MAX_RANGES = 16;
+
+    private ByteRanges() {
+    }
+
+    /**
+     * One satisfiable range, both ends inclusive.
+     */
+    record Range(long first, long last) {
+
+        long length() {
+            return last - first + 1;
+        }
+
+        String contentRange(long size) {
+            return "bytes " + first + "-" + last + "/" + size;
+        }
+    }
+
+    /**
+     * Resolves a {@code Range} header for a representation of {@code size}
+     * bytes. Overlapping and adjacent ranges are merged and the result is
+     * sorted by offset.
+     *
+     * @return the ranges to send, an empty list if none is satisfiable
+     *         (416), or {@code null} if the header must be ignored because
+     *         it is not a valid byte range set or asks for too many ranges
+     */
+    static List<Range> parse(String header, long size) {
+        if (!header.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<Range> ranges = new ArrayList<>(specs.length);
+        boolean any = false;
+        for (String raw : specs) {
+            String spec = raw.trim();
+            if (spec.isEmpty()) {
+                continue;
+            }
+            any = true;
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            long first;
+            long last;
+            if (dash == 0) {
+                // Sufijo: los ultimos N bytes
+                long suffix = number(spec.substring(1));
+                if (suffix < 0) {
+                    return null;
+                }
+                if (suffix == 0 || size == 0) {
+                    continue;
+                }
+                first = Math.max(0, size - suffix);
+                last = size - 1;
+            } else {
+                first = number(spec.substring(0, dash));
+                String end = spec.substring(dash + 1);
+                last = end.isEmpty() ? Long.MAX_VALUE : number(end);
+                if (first < 0 || last < 0 || last < first) {
+                    return null;
+                }
+                if (first >= size) {
+                    continue;
+                }
+                last = Math.min(last, size - 1);
+            }
+            ranges.add(new Range(first, last));
+        }
+        if (!any) {
+            return null;
+        }
+        return merge(ranges);
+    }
+
+    private static List<Range> merge(List<Range> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        ranges.sort(Comparator.comparingLong(Range::first));
+        List<Range> merged = new ArrayList<>(ranges.size());
+        Range current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            Range next = ranges.get(i);
+            if (next.first() <= current.last() + 1) {
+                current = new Range(current.first(), Math.max(current.last(), next.last()));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+
+    // Solo digitos: Long.parseLong aceptaria signos
+    private static long number(String text) {
+        if (text.isEmpty() || text.length() > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
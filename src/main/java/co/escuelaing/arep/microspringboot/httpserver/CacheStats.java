@@ -0,0 +1,10 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+/**
+ * Counters of one {@code @Cacheable} route. {@code coalesced} counts
+ * requests that waited for a response another request was computing.
+ *
+ * @author juan.medina-r
+ */
+public record CacheStats(String route, long hits, long misses, long coalesced, long evictions, int size) {
+}
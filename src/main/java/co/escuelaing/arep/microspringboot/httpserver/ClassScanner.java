@@ -0,0 +1,231 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import co.escuelaing.arep.microspringboot.annotations.RestController;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Finds {@code @RestController} classes. When the build left a controller
+ * index (see {@code RouteIndexProcessor}) that lists classes of the package,
+ * it is used as is; otherwise the package is scanned in directories and
+ * jars, and each class file's constant pool is checked for the annotation
+ * before the class is loaded, so unrelated classes are never loaded or
+ * initialized.
+ *
+ * @author juan.medina-r
+ */
+final class ClassScanner {
+
+    /**
+     * Resource listing one controller class name per line.
+     */
+    static final String CONTROLLER_INDEX = "META-INF/microspringboot/controllers";
+
+    private static final Logger LOGGER = Logger.getLogger(ClassScanner.class.getName());
+    private static final byte[] REST_CONTROLLER_DESCRIPTOR = ("L" + RestController.class.getName().replace('.', '/')
+            + ";").getBytes(StandardCharsets.UTF_8);
+    // A partir de este numero de clases se revisan en paralelo
+    private static final int PARALLEL_THRESHOLD = 64;
+
+    private ClassScanner() {
+    }
+
+    static List<Class<?>> findControllers(String packageName, ClassLoader loader) throws IOException {
+        Set<String> names = readIndex(packageName, loader);
+        if (names == null) {
+            names = scan(packageName, loader);
+        }
+        List<Class<?>> controllers = new ArrayList<>();
+        for (String name : names) {
+            try {
+                Class<?> clazz = Class.forName(name, false, loader);
+                if (clazz.isAnnotationPresent(RestController.class)) {
+                    controllers.add(clazz);
+                }
+            } catch (ClassNotFoundException | LinkageError e) {
+                LOGGER.log(Level.SEVERE, "Cannot load controller " + name, e);
+            }
+        }
+        return controllers;
+    }
+
+    /**
+     * @return the indexed controllers in {@code packageName}, or
+     *         {@code null} if no index on the classpath lists any: an index
+     *         left by another jar says nothing about this package
+     */
+    private static Set<String> readIndex(String packageName, ClassLoader loader) throws IOException {
+        Enumeration<URL> indexes = loader.getResources(CONTROLLER_INDEX);
+        if (!indexes.hasMoreElements()) {
+            return null;
+        }
+        String prefix = packageName + ".";
+        Set<String> names = new LinkedHashSet<>();
+        while (indexes.hasMoreElements()) {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(indexes.nextElement().openStream(), StandardCharsets.UTF_8))) {
+                reader.lines()
+                        .map(String::trim)
+                        .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                        .filter(line -> line.startsWith(prefix))
+                        .forEach(names::add);
+            }
+        }
+        return names.isEmpty() ? null : names;
+    }
+
+    private static Set<String> scan(String packageName, ClassLoader loader) throws IOException {
+        String path = packageName.replace('.', '/');
+        List<ClassFile> candidates = new ArrayList<>();
+        List<JarFile> jars = new ArrayList<>();
+        try {
+            Enumeration<URL> resources = loader.getResources(path);
+            while (resources.hasMoreElements()) {
+                URL resource = resources.nextElement();
+                switch (resource.getProtocol()) {
+                    case "file" -> collectFromDirectory(Paths.get(resource.toURI()), packageName, candidates);
+                    case "jar" -> {
+                        JarURLConnection conn = (JarURLConnection) resource.openConnection();
+                        conn.setUseCaches(false);
+                        JarFile jar = conn.getJarFile();
+                        jars.add(jar);
+                        collectFromJar(jar, path, candidates);
+                    }
+                    default -> LOGGER.log(Level.WARNING, "Cannot scan {0}", resource);
+                }
+            }
+            Stream<ClassFile> stream = candidates.size() >= PARALLEL_THRESHOLD
+                    ? candidates.parallelStream()
+                    : candidates.stream();
+            return stream.filter(ClassFile::isController)
+                    .map(c -> c.className)
+                    .collect(Collectors.toCollection(LinkedHashSet::new));
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            for (JarFile jar : jars) {
+                jar.close();
+            }
+        }
+    }
+
+    private static void collectFromDirectory(Path dir, String packageName, List<ClassFile> candidates)
+            throws IOException {
+        try (Stream<Path> walk = Files.walk(dir)) {
+            walk.filter(p -> p.toString().endsWith(".class")).forEach(p -> {
+                String relative = dir.relativize(p).toString().replace(p.getFileSystem().getSeparator(), ".");
+                String className = packageName + "." + relative.substring(0, relative.length() - 6);
+                candidates.add(new ClassFile(className, () -> Files.readAllBytes(p)));
+            });
+        }
+    }
+
+    private static void collectFromJar(JarFile jar, String path, List<ClassFile> candidates) {
+        String prefix = path + "/";
+        for (JarEntry entry : jar.stream().collect(Collectors.toList())) {
+            String name = entry.getName();
+            if (name.startsWith(prefix) && name.endsWith(".class") && !entry.isDirectory()) {
+                String className = name.substring(0, name.length() - 6).replace('/', '.');
+                candidates.add(new ClassFile(className, () -> {
+                    try (InputStream in = jar.getInputStream(entry)) {
+                        return in.readAllBytes();
+                    }
+                }));
+            }
+        }
+    }
+
+    /**
+     * Whether the class file has a UTF-8 constant equal to the
+     * {@code @RestController} descriptor, which is where annotation types are
+     * recorded. Unknown constant kinds make it answer {@code true} so the
+     * class is checked by loading it.
+     */
+    static boolean referencesRestController(byte[] b) {
+        if (b.length < 10 || (b[0] & 0xFF) != 0xCA || (b[1] & 0xFF) != 0xFE) {
+            return false;
+        }
+        int count = u2(b, 8);
+        int pos = 10;
+        for (int i = 1; i < count; i++) {
+            int tag = b[pos] & 0xFF;
+            switch (tag) {
+                case 1 -> {
+                    int length = u2(b, pos + 1);
+                    if (length == REST_CONTROLLER_DESCRIPTOR.length && Arrays.equals(b, pos + 3, pos + 3 + length,
+                            REST_CONTROLLER_DESCRIPTOR, 0, length)) {
+                        return true;
+                    }
+                    pos += 3 + length;
+                }
+                case 3, 4 -> pos += 5;
+                case 5, 6 -> {
+                    pos += 9;
+                    i++; // long y double ocupan dos entradas
+                }
+                case 7, 8, 16, 19, 20 -> pos += 3;
+                case 9, 10, 11, 12, 17, 18 -> pos += 5;
+                case 15 -> pos += 4;
+                default -> {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static int u2(byte[] b, int pos) {
+        return ((b[pos] & 0xFF) << 8) | (b[pos + 1] & 0xFF);
+    }
+
+    @FunctionalInterface
+    private interface BytesSource {
+        byte[] read() throws IOException;
+    }
+
+    private static final class ClassFile {
+
+        final String className;
+        final BytesSource source;
+
+        ClassFile(String className, BytesSource source) {
+            this.className = className;
+            this.source = source;
+        }
+
+        boolean isController() {
+            try {
+                return referencesRestController(source.read());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (IndexOutOfBoundsException e) {
+                // Archivo de clase truncado: se decide cargandola
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Path;
+
+/**
+ * Counts the bytes of one response on their way to the connection stream,
+ * including file regions handed to a {@link FileSink}, and keeps the
+ * status code from its status line for the access log.
+ *
+ * @author juan.medina-r
+ */
+final class CountingOutputStream extends OutputStream implements FileSink {
+
+    private final OutputStream out;
+    private long count;
+    // "HTTP/1.1 200": el codigo ocupa los bytes 9 a 11
+    private int status;
+
+    CountingOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    long count() {
+        return count;
+    }
+
+    /**
+     * Status code of the response, or {@code 0} if no status line was
+     * written.
+     */
+    int status() {
+        return count >= 12 ? status : 0;
+    }
+
+    private void sniff(byte[] b, int off, int len) {
+        for (int i = (int) Math.max(count, 9); i < Math.min(count + len, 12); i++) {
+            status = status * 10 + (b[off + i - (int) count] - '0');
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        if (count >= 9 && count < 12) {
+            status = status * 10 + (b - '0');
+        }
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        if (count < 12) {
+            sniff(b, off, len);
+        }
+        count += len;
+    }
+
+    @Override
+    public void transferFile(Path file, long position, long length) throws IOException {
+        if (out instanceof FileSink sink) {
+            sink.transferFile(file, position, length);
+        } else {
+            FileSink.copy(file, position, length, out);
+        }
+        count += length;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    // No cierra la conexion: solo envuelve una respuesta
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+}
@@ -0,0 +1,78 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * How accepted connections are dispatched to worker threads.
+ *
+ * @author juan.medina-r
+ */
+public enum ExecutorStrategy {
+
+    /**
+     * One virtual thread per connection. Requires a JDK with virtual threads
+     * (21+); on older runtimes it falls back to {@link #FIXED}.
+     */
+    VIRTUAL,
+
+    /**
+     * Platform thread pool with a bounded queue. When the queue is full the
+     * connection is rejected and answered with 503.
+     */
+    BOUNDED,
+
+    /**
+     * Fixed platform pool with an unbounded queue (original behavior).
+     */
+    FIXED;
+
+    /**
+     * Parses a strategy name such as {@code "virtual"} or {@code "bounded"}.
+     */
+    public static ExecutorStrategy parse(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown executor strategy: " + name, e);
+        }
+    }
+
+    ExecutorService create(int poolSize, int queueCapacity) {
+        switch (this) {
+            case VIRTUAL -> {
+                ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+                if (virtual != null) {
+                    return virtual;
+                }
+                Logger.getLogger(ExecutorStrategy.class.getName()).log(Level.WARNING,
+                        "Virtual threads are not available on Java {0}, using a fixed pool",
+                        System.getProperty("java.specification.version"));
+                return Executors.newFixedThreadPool(poolSize);
+            }
+            case BOUNDED -> {
+                return new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(queueCapacity), new ThreadPoolExecutor.AbortPolicy());
+            }
+            default -> {
+                return Executors.newFixedThreadPool(poolSize);
+            }
+        }
+    }
+
+    // Se invoca por reflexion para seguir compilando con release 17
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Response output that can send a region of a file without copying it
+ * through the Java heap.
+ *
+ * @author juan.medina-r
+ */
+interface FileSink {
+
+    /**
+     * Size of the chunks used when a file cannot be transferred directly,
+     * e.g. entries of the jar filesystem.
+     */
+    int CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * Sends {@code count} bytes of {@code file} starting at
+     * {@code position}, after anything already written to this output.
+     */
+    void transferFile(Path file, long position, long count) throws IOException;
+
+    /**
+     * Copies a file region into {@code out} in {@link #CHUNK_SIZE} pieces
+     * read from a positioned channel, so the file is never fully buffered
+     * and a range does not read the bytes before it.
+     */
+    static void copy(Path file, long position, long count, OutputStream out) throws IOException {
+        try (SeekableByteChannel in = Files.newByteChannel(file, StandardOpenOption.READ)) {
+            in.position(position);
+            byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, Math.max(count, 1))];
+            ByteBuffer buffer = ByteBuffer.wrap(chunk);
+            long remaining = count;
+            while (remaining > 0) {
+                buffer.clear().limit((int) Math.min(chunk.length, remaining));
+                int read = in.read(buffer);
+                if (read < 0) {
+                    throw new IOException("File shrank while sending: " + file);
+                }
+                out.write(chunk, 0, read);
+                remaining -= read;
+            }
+        }
+    }
+}
@@ -0,0 +1,518 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * HPACK header compression for HTTP/2 (RFC 7541): the static table, the
+ * dynamic table each side keeps per connection, prefixed integers and
+ * Huffman-coded strings. A connection owns one {@link Decoder} for the
+ * requests it reads and one {@link Encoder} for the responses it writes;
+ * neither is thread-safe.
+ *
+ * @author juan.medina-r
+ */
+final class Hpack {
+
+    /**
+     * Dynamic table size both sides start with, and the most this server
+     * lets either table grow to.
+     */
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    // Cada entrada cuenta 32 octetos ademas del nombre y el valor (RFC 7541, 4.1)
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private static final String[] STATIC_NAMES = {
+        ":authority", ":method", ":method", ":path", ":path", ":scheme", ":scheme", ":status", ":status",
+        ":status", ":status", ":status", ":status", ":status", "accept-charset", "accept-encoding",
+        "accept-language", "accept-ranges", "accept", "access-control-allow-origin", "age", "allow",
+        "authorization", "cache-control", "content-disposition", "content-encoding", "content-language",
+        "content-length", "content-location", "content-range", "content-type", "cookie", "date", "etag",
+        "expect", "expires", "from", "host", "if-match", "if-modified-since", "if-none-match", "if-range",
+        "if-unmodified-since", "last-modified", "link", "location", "max-forwards", "proxy-authenticate",
+        "proxy-authorization", "range", "referer", "refresh", "retry-after", "server", "set-cookie",
+        "strict-transport-security", "transfer-encoding", "user-agent", "vary", "via", "www-authenticate"
+    };
+    private static final String[] STATIC_VALUES = new String[STATIC_NAMES.length];
+
+    static {
+        STATIC_VALUES[1] = "GET";
+        STATIC_VALUES[2] = "POST";
+        STATIC_VALUES[3] = "/";
+        STATIC_VALUES[4] = "/index.html";
+        STATIC_VALUES[5] = "http";
+        STATIC_VALUES[6] = "https";
+        String[] statuses = {"200", "204", "206", "304", "400", "404", "500"};
+        System.arraycopy(statuses, 0, STATIC_VALUES, 7, statuses.length);
+        STATIC_VALUES[15] = "gzip, deflate";
+        for (int i = 0; i < STATIC_VALUES.length; i++) {
+            if (STATIC_VALUES[i] == null) {
+                STATIC_VALUES[i] = "";
+            }
+        }
+    }
+
+    // Indices (base 1) de la tabla estatica por campo completo y por nombre
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+    private static final Map<String, Integer> STATIC_NAME_INDEX = new HashMap<>();
+
+    static {
+        for (int i = STATIC_NAMES.length - 1; i >= 0; i--) {
+            STATIC_FIELDS.put(STATIC_NAMES[i] + '\0' + STATIC_VALUES[i], i + 1);
+            STATIC_NAME_INDEX.put(STATIC_NAMES[i], i + 1);
+        }
+    }
+
+    /**
+     * Response fields that change on almost every response; adding them to
+     * the decoder's table would only evict entries worth keeping.
+     */
+    private static final Set<String> NOT_INDEXED = Set.of(
+            "content-length", "content-range", "date", "etag", "last-modified", "retry-after", "set-cookie");
+
+    // Longitud en bits del codigo Huffman de cada simbolo (RFC 7541, apendice B); 256 es EOS
+    private static final byte[] HUFFMAN_LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+        28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+        5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+        6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+        24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+        21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+        19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+        26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+        30
+    };
+    private static final int EOS = 256;
+    private static final int MAX_CODE_LENGTH = 30;
+
+    /*
+     * El codigo es canonico: ordenados por longitud y luego por simbolo, los
+     * codigos son consecutivos. Basta con las longitudes para reconstruirlo,
+     * y para decodificar con el primer codigo y la cantidad de cada longitud.
+     */
+    private static final int[] HUFFMAN_CODES = new int[EOS + 1];
+    private static final int[] FIRST_CODE = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] FIRST_SYMBOL = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] CODE_COUNT = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] SORTED_SYMBOLS = new int[EOS + 1];
+
+    static {
+        int code = 0;
+        int position = 0;
+        for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+            FIRST_CODE[length] = code;
+            FIRST_SYMBOL[length] = position;
+            for (int symbol = 0; symbol <= EOS; symbol++) {
+                if (HUFFMAN_LENGTHS[symbol] == length) {
+                    HUFFMAN_CODES[symbol] = code++;
+                    SORTED_SYMBOLS[position++] = symbol;
+                    CODE_COUNT[length]++;
+                }
+            }
+            code <<= 1;
+        }
+    }
+
+    private Hpack() {
+    }
+
+    /**
+     * Decodes the header blocks of one connection's requests, keeping its
+     * dynamic table in step with the peer's encoder.
+     */
+    static final class Decoder {
+
+        private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+        private final int maxTableSize;
+
+        Decoder(int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+        }
+
+        /**
+         * Decodes a complete header block, appending each field to
+         * {@code fields} as a name followed by its value.
+         *
+         * @throws Http2Exception a {@code COMPRESSION_ERROR} if the block
+         *         is not valid HPACK; the connection cannot continue
+         */
+        void decode(byte[] block, int length, List<String> fields) throws Http2Exception {
+            Reader in = new Reader(block, length);
+            boolean first = true;
+            while (in.hasMore()) {
+                int b = in.peek();
+                if ((b & 0x80) != 0) {
+                    int index = in.integer(7);
+                    fields.add(name(index));
+                    fields.add(value(index));
+                } else if ((b & 0xE0) == 0x20) {
+                    // Cambio de tamano de la tabla: solo al inicio del bloque
+                    if (!first) {
+                        throw compression("Table size update after a field");
+                    }
+                    int size = in.integer(5);
+                    if (size > maxTableSize) {
+                        throw compression("Table size " + size + " over the advertised " + maxTableSize);
+                    }
+                    table.resize(size);
+                    continue;
+                } else {
+                    boolean indexing = (b & 0xC0) == 0x40;
+                    int index = in.integer(indexing ? 6 : 4);
+                    String name = index == 0 ? in.string() : name(index);
+                    String value = in.string();
+                    if (indexing) {
+                        table.add(name, value);
+                    }
+                    fields.add(name);
+                    fields.add(value);
+                }
+                first = false;
+            }
+        }
+
+        private String name(int index) throws Http2Exception {
+            if (index == 0) {
+                throw compression("Index 0");
+            }
+            if (index <= STATIC_NAMES.length) {
+                return STATIC_NAMES[index - 1];
+            }
+            int dynamic = index - STATIC_NAMES.length - 1;
+            if (dynamic >= table.count()) {
+                throw compression("Index " + index + " outside the tables");
+            }
+            return table.name(dynamic);
+        }
+
+        private String value(int index) {
+            if (index <= STATIC_NAMES.length) {
+                return STATIC_VALUES[index - 1];
+            }
+            return table.value(index - STATIC_NAMES.length - 1);
+        }
+    }
+
+    /**
+     * Encodes the header blocks of one connection's responses. Fields seen
+     * before are sent as an index into the static or dynamic table.
+     */
+    static final class Encoder {
+
+        private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+        // Menor tamano pedido desde el ultimo bloque, y el vigente; -1 si no cambio
+        private int smallestUpdate = -1;
+        private int pendingUpdate = -1;
+
+        /**
+         * Applies the peer's {@code SETTINGS_HEADER_TABLE_SIZE}; the change
+         * is announced at the start of the next block.
+         */
+        void setMaxTableSize(int size) {
+            int bounded = Math.min(size, DEFAULT_TABLE_SIZE);
+            if (bounded == table.maxSize() && pendingUpdate < 0) {
+                return;
+            }
+            smallestUpdate = smallestUpdate < 0 ? bounded : Math.min(smallestUpdate, bounded);
+            pendingUpdate = bounded;
+        }
+
+        /**
+         * Starts a header block, announcing table size changes first.
+         */
+        void begin(ByteArrayOutputStream out) {
+            if (pendingUpdate < 0) {
+                return;
+            }
+            if (smallestUpdate < pendingUpdate) {
+                writeInteger(out, 0x20, 5, smallestUpdate);
+                table.resize(smallestUpdate);
+            }
+            writeInteger(out, 0x20, 5, pendingUpdate);
+            table.resize(pendingUpdate);
+            smallestUpdate = -1;
+            pendingUpdate = -1;
+        }
+
+        /**
+         * Appends one field; {@code name} must already be lowercase.
+         */
+        void encode(ByteArrayOutputStream out, String name, String value) {
+            Integer exact = STATIC_FIELDS.get(name + '\0' + value);
+            if (exact != null) {
+                writeInteger(out, 0x80, 7, exact);
+                return;
+            }
+            int nameIndex = 0;
+            for (int i = 0; i < table.count(); i++) {
+                if (table.name(i).equals(name)) {
+                    if (table.value(i).equals(value)) {
+                        writeInteger(out, 0x80, 7, STATIC_NAMES.length + 1 + i);
+                        return;
+                    }
+                    if (nameIndex == 0) {
+                        nameIndex = STATIC_NAMES.length + 1 + i;
+                    }
+                }
+            }
+            Integer staticName = STATIC_NAME_INDEX.get(name);
+            if (staticName != null) {
+                nameIndex = staticName;
+            }
+            if (NOT_INDEXED.contains(name)) {
+                writeInteger(out, 0x00, 4, nameIndex);
+            } else {
+                writeInteger(out, 0x40, 6, nameIndex);
+                table.add(name, value);
+            }
+            if (nameIndex == 0) {
+                writeString(out, name);
+            }
+            writeString(out, value);
+        }
+    }
+
+    /**
+     * The entries added by one side, newest first, evicted oldest first
+     * when their size exceeds the maximum.
+     */
+    private static final class DynamicTable {
+
+        private String[] names = new String[16];
+        private String[] values = new String[16];
+        // Posicion de la entrada mas reciente en el arreglo circular
+        private int newest;
+        private int count;
+        private int size;
+        private int maxSize;
+
+        DynamicTable(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        int count() {
+            return count;
+        }
+
+        int maxSize() {
+            return maxSize;
+        }
+
+        String name(int index) {
+            return names[slot(index)];
+        }
+
+        String value(int index) {
+            return values[slot(index)];
+        }
+
+        void add(String name, String value) {
+            int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+            evict(maxSize - entrySize);
+            if (entrySize > maxSize) {
+                // Una entrada mas grande que la tabla solo la vacia (RFC 7541, 4.4)
+                return;
+            }
+            if (count == names.length) {
+                grow();
+            }
+            newest = (newest + 1) % names.length;
+            names[newest] = name;
+            values[newest] = value;
+            count++;
+            size += entrySize;
+        }
+
+        void resize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(maxSize);
+        }
+
+        private void evict(int limit) {
+            while (count > 0 && size > limit) {
+                int oldest = slot(count - 1);
+                size -= names[oldest].length() + values[oldest].length() + ENTRY_OVERHEAD;
+                names[oldest] = null;
+                values[oldest] = null;
+                count--;
+            }
+        }
+
+        private int slot(int index) {
+            return Math.floorMod(newest - index, names.length);
+        }
+
+        private void grow() {
+            String[] grownNames = new String[names.length * 2];
+            String[] grownValues = new String[names.length * 2];
+            for (int i = 0; i < count; i++) {
+                // Mas reciente al final, como si se hubieran agregado en orden
+                grownNames[count - 1 - i] = name(i);
+                grownValues[count - 1 - i] = value(i);
+            }
+            names = grownNames;
+            values = grownValues;
+            newest = count - 1;
+        }
+    }
+
+    /**
+     * Cursor over a header block.
+     */
+    private static final class Reader {
+
+        private final byte[] block;
+        private final int length;
+        private int pos;
+
+        Reader(byte[] block, int length) {
+            this.block = block;
+            this.length = length;
+        }
+
+        boolean hasMore() {
+            return pos < length;
+        }
+
+        int peek() throws Http2Exception {
+            if (pos >= length) {
+                throw compression("Truncated header block");
+            }
+            return block[pos] & 0xFF;
+        }
+
+        private int next() throws Http2Exception {
+            if (pos >= length) {
+                throw compression("Truncated header block");
+            }
+            return block[pos++] & 0xFF;
+        }
+
+        // Entero con prefijo de N bits (RFC 7541, 5.1)
+        int integer(int prefixBits) throws Http2Exception {
+            int max = (1 << prefixBits) - 1;
+            int value = next() & max;
+            if (value < max) {
+                return value;
+            }
+            int shift = 0;
+            int b;
+            do {
+                b = next();
+                if (shift > 21) {
+                    throw compression("Integer too large");
+                }
+                value += (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+
+        String string() throws Http2Exception {
+            boolean huffman = (peek() & 0x80) != 0;
+            int len = integer(7);
+            if (len > length - pos) {
+                throw compression("String longer than the block");
+            }
+            String s = huffman ? huffmanDecode(block, pos, len)
+                    : new String(block, pos, len, StandardCharsets.ISO_8859_1);
+            pos += len;
+            return s;
+        }
+    }
+
+    private static String huffmanDecode(byte[] b, int off, int len) throws Http2Exception {
+        StringBuilder sb = new StringBuilder(len + len / 2);
+        int code = 0;
+        int bits = 0;
+        for (int i = off; i < off + len; i++) {
+            int octet = b[i] & 0xFF;
+            for (int bit = 7; bit >= 0; bit--) {
+                code = (code << 1) | ((octet >> bit) & 1);
+                bits++;
+                int index = code - FIRST_CODE[bits];
+                if (index < CODE_COUNT[bits]) {
+                    int symbol = SORTED_SYMBOLS[FIRST_SYMBOL[bits] + index];
+                    if (symbol == EOS) {
+                        throw compression("EOS in a Huffman string");
+                    }
+                    sb.append((char) symbol);
+                    code = 0;
+                    bits = 0;
+                } else if (bits == MAX_CODE_LENGTH) {
+                    throw compression("Invalid Huffman code");
+                }
+            }
+        }
+        // El relleno son a lo sumo 7 bits en uno, el prefijo de EOS
+        if (bits > 7 || code != (1 << bits) - 1) {
+            throw compression("Invalid Huffman padding");
+        }
+        return sb.toString();
+    }
+
+    static void writeInteger(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    // Huffman solo si acorta la cadena
+    static void writeString(ByteArrayOutputStream out, String s) {
+        long bits = 0;
+        for (int i = 0; i < s.length(); i++) {
+            bits += HUFFMAN_LENGTHS[s.charAt(i) & 0xFF];
+        }
+        int huffmanLength = (int) ((bits + 7) / 8);
+        if (huffmanLength >= s.length()) {
+            writeInteger(out, 0x00, 7, s.length());
+            for (int i = 0; i < s.length(); i++) {
+                out.write(s.charAt(i));
+            }
+            return;
+        }
+        writeInteger(out, 0x80, 7, huffmanLength);
+        long pending = 0;
+        int pendingBits = 0;
+        for (int i = 0; i < s.length(); i++) {
+            int symbol = s.charAt(i) & 0xFF;
+            int length = HUFFMAN_LENGTHS[symbol];
+            pending = (pending << length) | HUFFMAN_CODES[symbol];
+            pendingBits += length;
+            while (pendingBits >= 8) {
+                pendingBits -= 8;
+                out.write((int) (pending >>> pendingBits));
+            }
+            pending &= (1L << pendingBits) - 1;
+        }
+        if (pendingBits > 0) {
+            out.write((int) ((pending << (8 - pendingBits)) | ((1 << (8 - pendingBits)) - 1)));
+        }
+    }
+
+    private static Http2Exception compression(String message) {
+        return new Http2Exception(Http2Exception.COMPRESSION_ERROR, message);
+    }
+}
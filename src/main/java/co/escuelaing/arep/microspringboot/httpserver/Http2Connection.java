@@ -0,0 +1,1258 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One HTTP/2 connection of the blocking engine (RFC 9113), reached with the
+ * prior-knowledge preface or an {@code Upgrade: h2c} request. A dedicated
+ * thread reads frames; every request stream is handed to the worker pool
+ * and answered by {@link HttpServer#handleRequest}, whose HTTP/1.1 response
+ * is translated into HEADERS and DATA frames as it is written. All streams
+ * share the socket under one lock, which also guards the send windows and
+ * the HPACK encoder, so header blocks reach the peer in the order their
+ * table updates were made.
+ *
+ * <p>Flow control is enforced both ways: a stream writing past its window
+ * or the connection's waits for a {@code WINDOW_UPDATE}, and request bodies
+ * are credited back to the peer as they are read. Priorities are ignored
+ * and the server never pushes.
+ *
+ * @author juan.medina-r
+ */
+final class Http2Connection {
+
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    /**
+     * Streams a client may have open at once; more are refused with
+     * {@code REFUSED_STREAM}, which the client can safely retry.
+     */
+    static final int MAX_CONCURRENT_STREAMS = 100;
+
+    private static final Logger LOGGER = Logger.getLogger(Http2Connection.class.getName());
+    private static final CompletableFuture<Void> COMPLETED = CompletableFuture.completedFuture(null);
+    private static final byte[] SWITCHING_PROTOCOLS = ("HTTP/1.1 101 Switching Protocols\r\n"
+            + "connection: Upgrade\r\nupgrade: h2c\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    // Tipos de trama
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private static final int ENHANCE_YOUR_CALM = 0xb;
+    private static final int FRAME_HEADER_LENGTH = 9;
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final int DEFAULT_FRAME_SIZE = 16384;
+    private static final int MAX_FRAME_SIZE = 16777215;
+    private static final long MAX_WINDOW = Integer.MAX_VALUE;
+    // Ventana de recepcion que se anuncia, por flujo y para la conexion
+    private static final int RECEIVE_WINDOW = 1024 * 1024;
+
+    private final HttpServer server;
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final InetAddress address;
+    private final RequestParser parser;
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>();
+    private final HttpRequest upgradeRequest;
+    private final byte[] upgradeSettings;
+    // Tope de un bloque de cabeceras comprimido
+    private final int maxHeaderBlock;
+
+    // Del hilo lector
+    private final byte[] frameHeader = new byte[FRAME_HEADER_LENGTH];
+    private final byte[] payload = new byte[DEFAULT_FRAME_SIZE];
+    private byte[] headerBlock = new byte[DEFAULT_FRAME_SIZE];
+    private int headerBlockLength;
+    private int continuationStream;
+    private boolean continuationEndsStream;
+    private int receiveWindow = RECEIVE_WINDOW;
+    private volatile int lastStreamId;
+    private boolean peerGoingAway;
+
+    // Protegidos por writeLock
+    private final Object writeLock = new Object();
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    private long sendWindow = DEFAULT_WINDOW;
+    private int peerInitialWindow = DEFAULT_WINDOW;
+    private int peerMaxFrameSize = DEFAULT_FRAME_SIZE;
+    private boolean goAwaySent;
+
+    private volatile boolean goingAway;
+    private volatile boolean closed;
+
+    /**
+     * @param in the rest of the connection after the preface, or after the
+     *        upgrade request
+     * @param upgradeRequest the request that asked for {@code Upgrade: h2c},
+     *        answered as stream 1, or {@code null} with prior knowledge
+     * @param upgradeSettings the decoded {@code HTTP2-Settings} of that
+     *        request
+     */
+    Http2Connection(HttpServer server, Socket socket, InputStream in, OutputStream out, HttpRequest upgradeRequest,
+            byte[] upgradeSettings) {
+        this.server = server;
+        this.socket = socket;
+        this.in = in;
+        this.out = out;
+        this.address = socket.getInetAddress();
+        this.parser = server.newParser();
+        this.upgradeRequest = upgradeRequest;
+        this.upgradeSettings = upgradeSettings;
+        this.maxHeaderBlock = Math.max(server.maxHeaderSize(), DEFAULT_FRAME_SIZE) * 2;
+    }
+
+    /**
+     * The decoded {@code HTTP2-Settings} of a request that asks to switch to
+     * h2c, or {@code null} if it does not or the upgrade is malformed, in
+     * which case it is served as HTTP/1.1 (RFC 7540, 3.2).
+     */
+    static byte[] upgradeSettings(HttpRequest req) {
+        String upgrade = req.getHeader("upgrade");
+        String connection = req.getHeader("connection");
+        String settings = req.getHeader("http2-settings");
+        if (upgrade == null || connection == null || settings == null || settings.contains(",")
+                || !hasToken(upgrade, "h2c") || !hasToken(connection, "upgrade")
+                || !hasToken(connection, "http2-settings")) {
+            return null;
+        }
+        try {
+            byte[] decoded = Base64.getUrlDecoder().decode(settings.trim());
+            return decoded.length % 6 == 0 ? decoded : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static boolean hasToken(String header, String token) {
+        for (String part : header.split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The {@code 101} that precedes the server's preface on an upgrade.
+     */
+    static byte[] switchingProtocols() {
+        return SWITCHING_PROTOCOLS.clone();
+    }
+
+    /**
+     * Reads and dispatches frames until the peer closes the connection, a
+     * connection error occurs, or the connection has gone away and its last
+     * stream has finished.
+     */
+    void serve() {
+        try {
+            writeServerPreface();
+            if (upgradeRequest != null) {
+                applySettings(upgradeSettings, upgradeSettings.length);
+                readClientPreface();
+            }
+            // La primera trama del cliente debe ser SETTINGS (RFC 9113, 3.4)
+            if (!readFrame() || frameHeader[3] != SETTINGS || (frameHeader[4] & FLAG_ACK) != 0) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Expected SETTINGS after the preface");
+            }
+            processFrame();
+            if (upgradeRequest != null) {
+                // La peticion del upgrade es el flujo 1, ya medio cerrado por el cliente
+                lastStreamId = 1;
+                Stream stream = new Stream(1, upgradeRequest.getMethod());
+                stream.remoteClosed = true;
+                streams.put(1, stream);
+                dispatch(stream, upgradeRequest, null);
+            }
+            while (!finished() && readFrame()) {
+                try {
+                    processFrame();
+                } catch (Http2Exception e) {
+                    if (e.getStreamId() == 0) {
+                        throw e;
+                    }
+                    resetStream(e.getStreamId(), e.getError());
+                }
+            }
+        } catch (Http2Exception e) {
+            LOGGER.log(Level.FINE, "HTTP/2 connection error: {0}", e.getMessage());
+            goAway(e.getError());
+        } catch (IOException e) {
+            if (!closed) {
+                LOGGER.log(Level.FINE, null, e);
+            }
+        } catch (RuntimeException e) {
+            // Un fallo inesperado cierra la conexion pero no debe dejarla ocupando un cupo
+            LOGGER.log(Level.WARNING, "HTTP/2 connection failed", e);
+            goAway(Http2Exception.INTERNAL_ERROR);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Sends {@code GOAWAY} so the peer opens no more streams; the connection
+     * closes once the streams already open have been answered. Used when
+     * the server drains.
+     */
+    void shutdown() {
+        goingAway = true;
+        goAway(Http2Exception.NO_ERROR);
+        if (streams.isEmpty()) {
+            closeSocket();
+        }
+    }
+
+    /**
+     * Closes the connection at once, resetting its streams.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Stream stream : streams.values()) {
+            stream.cancel();
+        }
+        streams.clear();
+        synchronized (writeLock) {
+            writeLock.notifyAll();
+        }
+        closeSocket();
+        server.http2Closed(this);
+    }
+
+    private boolean finished() {
+        return (goingAway || peerGoingAway) && streams.isEmpty();
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, null, e);
+        }
+    }
+
+    private void writeServerPreface() throws IOException {
+        byte[] settings = new byte[4 * 6];
+        putSetting(settings, 0, SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+        putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, RECEIVE_WINDOW);
+        putSetting(settings, 12, SETTINGS_MAX_HEADER_LIST_SIZE, server.maxHeaderSize());
+        putSetting(settings, 18, SETTINGS_ENABLE_PUSH, 0);
+        synchronized (writeLock) {
+            writeFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+            writeWindowUpdate(0, RECEIVE_WINDOW - DEFAULT_WINDOW);
+            out.flush();
+        }
+    }
+
+    private static void putSetting(byte[] b, int off, int id, int value) {
+        b[off] = (byte) (id >>> 8);
+        b[off + 1] = (byte) id;
+        putInt(b, off + 2, value);
+    }
+
+    private void readClientPreface() throws IOException {
+        byte[] preface = in.readNBytes(PREFACE.length);
+        for (int i = 0; i < PREFACE.length; i++) {
+            if (i >= preface.length || preface[i] != PREFACE[i]) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid connection preface");
+            }
+        }
+    }
+
+    /**
+     * Reads the next frame into {@link #frameHeader} and {@link #payload}.
+     * An idle timeout between frames only ends the connection when no
+     * stream is open.
+     *
+     * @return {@code false} if the peer closed the connection or it idled out
+     */
+    private boolean readFrame() throws IOException {
+        int first;
+        while (true) {
+            try {
+                first = in.read();
+                break;
+            } catch (SocketTimeoutException e) {
+                if (streams.isEmpty()) {
+                    goAway(Http2Exception.NO_ERROR);
+                    return false;
+                }
+            }
+        }
+        if (first < 0) {
+            return false;
+        }
+        frameHeader[0] = (byte) first;
+        readFully(frameHeader, 1, FRAME_HEADER_LENGTH - 1);
+        int length = length();
+        if (length > DEFAULT_FRAME_SIZE) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+        }
+        readFully(payload, 0, length);
+        return true;
+    }
+
+    private void readFully(byte[] b, int off, int len) throws IOException {
+        if (in.readNBytes(b, off, len) < len) {
+            throw new EOFException("Connection closed inside a frame");
+        }
+    }
+
+    private int length() {
+        return (frameHeader[0] & 0xFF) << 16 | (frameHeader[1] & 0xFF) << 8 | (frameHeader[2] & 0xFF);
+    }
+
+    private void processFrame() throws IOException {
+        int length = length();
+        int type = frameHeader[3] & 0xFF;
+        int flags = frameHeader[4] & 0xFF;
+        int streamId = getInt(frameHeader, 5) & 0x7FFFFFFF;
+        if (continuationStream != 0 && (type != CONTINUATION || streamId != continuationStream)) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Expected CONTINUATION");
+        }
+        switch (type) {
+            case DATA -> onData(streamId, flags, length);
+            case HEADERS -> onHeaders(streamId, flags, length);
+            case PRIORITY -> {
+                if (streamId == 0) {
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PRIORITY on stream 0");
+                }
+                if (length != 5) {
+                    throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, streamId, "PRIORITY size");
+                }
+            }
+            case RST_STREAM -> onReset(streamId, length);
+            case SETTINGS -> onSettings(streamId, flags, length);
+            case PUSH_PROMISE -> throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PUSH_PROMISE from client");
+            case PING -> onPing(streamId, flags, length);
+            case GOAWAY -> {
+                if (streamId != 0) {
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "GOAWAY on a stream");
+                }
+                peerGoingAway = true;
+            }
+            case WINDOW_UPDATE -> onWindowUpdate(streamId, length);
+            case CONTINUATION -> {
+                if (continuationStream == 0) {
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Unexpected CONTINUATION");
+                }
+                appendHeaderBlock(0, length);
+                if ((flags & FLAG_END_HEADERS) != 0) {
+                    continuationStream = 0;
+                    onHeaderBlock(streamId, continuationEndsStream);
+                }
+            }
+            default -> {
+                // Tipos desconocidos se ignoran (RFC 9113, 4.1)
+            }
+        }
+    }
+
+    private void onHeaders(int streamId, int flags, int length) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "HEADERS on stream 0");
+        }
+        int start = 0;
+        int end = length;
+        if ((flags & FLAG_PADDED) != 0) {
+            end -= length > 0 ? payload[0] & 0xFF : length + 1;
+            start = 1;
+        }
+        if ((flags & FLAG_PRIORITY) != 0) {
+            start += 5;
+        }
+        if (end < start) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Padding longer than the frame");
+        }
+        headerBlockLength = 0;
+        appendHeaderBlock(start, end - start);
+        boolean endStream = (flags & FLAG_END_STREAM) != 0;
+        if ((flags & FLAG_END_HEADERS) != 0) {
+            onHeaderBlock(streamId, endStream);
+        } else {
+            continuationStream = streamId;
+            continuationEndsStream = endStream;
+        }
+    }
+
+    private void appendHeaderBlock(int off, int len) throws Http2Exception {
+        if (headerBlockLength + len > maxHeaderBlock) {
+            throw new Http2Exception(ENHANCE_YOUR_CALM, "Header block over " + maxHeaderBlock + " bytes");
+        }
+        if (headerBlockLength + len > headerBlock.length) {
+            byte[] grown = new byte[Math.max(headerBlock.length * 2, headerBlockLength + len)];
+            System.arraycopy(headerBlock, 0, grown, 0, headerBlockLength);
+            headerBlock = grown;
+        }
+        System.arraycopy(payload, off, headerBlock, headerBlockLength, len);
+        headerBlockLength += len;
+    }
+
+    private void onHeaderBlock(int streamId, boolean endStream) throws IOException {
+        // Se decodifica siempre, aunque el flujo se rechace, para no desincronizar la tabla dinamica
+        List<String> fields = new ArrayList<>();
+        decoder.decode(headerBlock, headerBlockLength, fields);
+        Stream existing = streams.get(streamId);
+        if (existing != null) {
+            // Trailers: se descartan, pero deben cerrar el flujo
+            if (existing.remoteClosed) {
+                throw new Http2Exception(Http2Exception.STREAM_CLOSED, streamId, "HEADERS after END_STREAM");
+            }
+            if (!endStream) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "Trailers without END_STREAM");
+            }
+            endOfRequest(existing);
+            return;
+        }
+        if ((streamId & 1) == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Even stream id " + streamId);
+        }
+        if (streamId <= lastStreamId) {
+            throw new Http2Exception(Http2Exception.STREAM_CLOSED, "HEADERS on closed stream " + streamId);
+        }
+        lastStreamId = streamId;
+        if (goingAway) {
+            return;
+        }
+        if (streams.size() >= MAX_CONCURRENT_STREAMS) {
+            throw new Http2Exception(Http2Exception.REFUSED_STREAM, streamId, "Too many streams");
+        }
+        Stream stream = new Stream(streamId, null);
+        stream.readHeaders(fields);
+        streams.put(streamId, stream);
+        if (endStream) {
+            endOfRequest(stream);
+        }
+    }
+
+    private void onData(int streamId, int flags, int length) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        // Todo el payload, relleno incluido, cuenta para el control de flujo
+        if (length > receiveWindow) {
+            throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Connection window exceeded");
+        }
+        receiveWindow -= length;
+        if (receiveWindow <= RECEIVE_WINDOW / 2) {
+            writeControl(() -> writeWindowUpdate(0, RECEIVE_WINDOW - receiveWindow));
+            receiveWindow = RECEIVE_WINDOW;
+        }
+        int start = 0;
+        int end = length;
+        if ((flags & FLAG_PADDED) != 0) {
+            end -= length > 0 ? payload[0] & 0xFF : length + 1;
+            start = 1;
+            if (end < start) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Padding longer than the frame");
+            }
+        }
+        Stream stream = streams.get(streamId);
+        if (stream == null || stream.remoteClosed) {
+            if (streamId > lastStreamId) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+            }
+            throw new Http2Exception(Http2Exception.STREAM_CLOSED, streamId, "DATA on closed stream");
+        }
+        if (length > stream.receiveWindow) {
+            throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, streamId, "Stream window exceeded");
+        }
+        stream.receiveWindow -= length;
+        stream.appendBody(payload, start, end - start);
+        if ((flags & FLAG_END_STREAM) != 0) {
+            endOfRequest(stream);
+        } else if (stream.receiveWindow <= RECEIVE_WINDOW / 2) {
+            int credit = RECEIVE_WINDOW - stream.receiveWindow;
+            writeControl(() -> writeWindowUpdate(streamId, credit));
+            stream.receiveWindow = RECEIVE_WINDOW;
+        }
+    }
+
+    private void onReset(int streamId, int length) throws IOException {
+        if (length != 4) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "RST_STREAM size");
+        }
+        if (streamId == 0 || streamId > lastStreamId) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "RST_STREAM on idle stream " + streamId);
+        }
+        discard(streamId);
+    }
+
+    private void onSettings(int streamId, int flags, int length) throws IOException {
+        if (streamId != 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "SETTINGS on a stream");
+        }
+        if ((flags & FLAG_ACK) != 0) {
+            if (length != 0) {
+                throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS ack with payload");
+            }
+            return;
+        }
+        if (length % 6 != 0) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS size");
+        }
+        applySettings(payload, length);
+        writeControl(() -> writeFrame(SETTINGS, FLAG_ACK, 0, payload, 0, 0));
+    }
+
+    private void applySettings(byte[] b, int length) throws Http2Exception {
+        synchronized (writeLock) {
+            for (int off = 0; off < length; off += 6) {
+                int id = (b[off] & 0xFF) << 8 | (b[off + 1] & 0xFF);
+                long value = getInt(b, off + 2) & 0xFFFFFFFFL;
+                switch (id) {
+                    case SETTINGS_HEADER_TABLE_SIZE -> encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                    case SETTINGS_ENABLE_PUSH -> {
+                        if (value > 1) {
+                            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "ENABLE_PUSH " + value);
+                        }
+                    }
+                    case SETTINGS_INITIAL_WINDOW_SIZE -> {
+                        if (value > MAX_WINDOW) {
+                            throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "INITIAL_WINDOW_SIZE " + value);
+                        }
+                        // El cambio se aplica a las ventanas de los flujos ya abiertos (RFC 9113, 6.9.2)
+                        long delta = value - peerInitialWindow;
+                        for (Stream stream : streams.values()) {
+                            stream.sendWindow += delta;
+                            if (stream.sendWindow > MAX_WINDOW) {
+                                throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Stream window overflow");
+                            }
+                        }
+                        peerInitialWindow = (int) value;
+                    }
+                    case SETTINGS_MAX_FRAME_SIZE -> {
+                        if (value < DEFAULT_FRAME_SIZE || value > MAX_FRAME_SIZE) {
+                            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "MAX_FRAME_SIZE " + value);
+                        }
+                        peerMaxFrameSize = (int) value;
+                    }
+                    default -> {
+                        // MAX_CONCURRENT_STREAMS y MAX_HEADER_LIST_SIZE limitan al servidor solo para push
+                    }
+                }
+            }
+            writeLock.notifyAll();
+        }
+    }
+
+    private void onPing(int streamId, int flags, int length) throws IOException {
+        if (streamId != 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PING on a stream");
+        }
+        if (length != 8) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "PING size");
+        }
+        if ((flags & FLAG_ACK) == 0) {
+            writeControl(() -> writeFrame(PING, FLAG_ACK, 0, payload, 0, 8));
+        }
+    }
+
+    private void onWindowUpdate(int streamId, int length) throws IOException {
+        if (length != 4) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "WINDOW_UPDATE size");
+        }
+        int increment = getInt(payload, 0) & 0x7FFFFFFF;
+        if (increment == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, streamId, "WINDOW_UPDATE of 0");
+        }
+        synchronized (writeLock) {
+            if (streamId == 0) {
+                sendWindow += increment;
+                if (sendWindow > MAX_WINDOW) {
+                    throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Connection window overflow");
+                }
+            } else {
+                Stream stream = streams.get(streamId);
+                if (stream != null) {
+                    stream.sendWindow += increment;
+                    if (stream.sendWindow > MAX_WINDOW) {
+                        throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, streamId, "Stream window overflow");
+                    }
+                } else if (streamId > lastStreamId) {
+                    throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream");
+                }
+            }
+            writeLock.notifyAll();
+        }
+    }
+
+    /**
+     * The peer finished sending the request of {@code stream}: builds it and
+     * hands it to a worker.
+     */
+    private void endOfRequest(Stream stream) throws Http2Exception {
+        stream.remoteClosed = true;
+        HttpRequest req = null;
+        MalformedRequestException malformed = null;
+        try {
+            req = stream.toRequest();
+        } catch (MalformedRequestException e) {
+            malformed = e;
+        }
+        dispatch(stream, req, malformed);
+    }
+
+    private void dispatch(Stream stream, HttpRequest req, MalformedRequestException malformed)
+            throws Http2Exception {
+        server.metrics.http2Streams.increment();
+        stream.dispatched = true;
+        try {
+            server.execute(() -> respond(stream, req, malformed));
+        } catch (RejectedExecutionException e) {
+            stream.dispatched = false;
+            throw new Http2Exception(Http2Exception.REFUSED_STREAM, stream.id, "No worker available");
+        }
+    }
+
+    // En un hilo de trabajo
+    private void respond(Stream stream, HttpRequest req, MalformedRequestException malformed) {
+        CompletableFuture<Void> pending;
+        try {
+            if (malformed != null) {
+                server.sendMalformed(stream.output, malformed);
+                pending = COMPLETED;
+            } else {
+                long wait = server.throttle(address);
+                if (wait > 0) {
+                    stream.output.write(HttpServer.tooManyRequests(wait));
+                    pending = COMPLETED;
+                } else {
+                    pending = server.handleRequest(req, stream.output, true);
+                }
+            }
+        } catch (IOException e) {
+            pending = CompletableFuture.failedFuture(e);
+        }
+        stream.pending = pending;
+        if (stream.reset) {
+            pending.cancel(true);
+        }
+        pending.whenComplete((ignored, failure) -> finish(stream, failure));
+    }
+
+    private void finish(Stream stream, Throwable failure) {
+        try {
+            stream.output.finish(failure);
+        } catch (IOException e) {
+            if (!stream.reset && !closed) {
+                LOGGER.log(Level.FINE, null, e);
+            }
+        }
+        streams.remove(stream.id);
+        if (finished()) {
+            // Despierta al lector, bloqueado en el socket
+            closeSocket();
+        }
+    }
+
+    private void resetStream(int streamId, int error) throws IOException {
+        discard(streamId);
+        writeControl(() -> writeFrame(RST_STREAM, 0, streamId, intBytes(error), 0, 4));
+    }
+
+    /**
+     * Cancels a reset stream. One whose handler is already running stays in
+     * {@code streams}, and so counts against {@link #MAX_CONCURRENT_STREAMS},
+     * until {@link #finish} removes it: otherwise resetting each request
+     * right after sending it would start handlers without limit.
+     */
+    private void discard(int streamId) {
+        Stream stream = streams.get(streamId);
+        if (stream != null) {
+            stream.cancel();
+            if (!stream.dispatched) {
+                streams.remove(streamId);
+            }
+        }
+    }
+
+    private void goAway(int error) {
+        try {
+            synchronized (writeLock) {
+                if (goAwaySent || closed) {
+                    return;
+                }
+                goAwaySent = true;
+                byte[] body = new byte[8];
+                putInt(body, 0, lastStreamId);
+                putInt(body, 4, error);
+                writeFrame(GOAWAY, 0, 0, body, 0, body.length);
+                out.flush();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, null, e);
+        }
+    }
+
+    private interface FrameWrite {
+        void write() throws IOException;
+    }
+
+    // Tramas de control del lector: se envian de inmediato
+    private void writeControl(FrameWrite write) throws IOException {
+        synchronized (writeLock) {
+            write.write();
+            out.flush();
+        }
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        writeFrame(WINDOW_UPDATE, 0, streamId, intBytes(increment), 0, 4);
+    }
+
+    // Con writeLock tomado
+    private void writeFrame(int type, int flags, int streamId, byte[] b, int off, int len) throws IOException {
+        byte[] header = new byte[FRAME_HEADER_LENGTH];
+        header[0] = (byte) (len >>> 16);
+        header[1] = (byte) (len >>> 8);
+        header[2] = (byte) len;
+        header[3] = (byte) type;
+        header[4] = (byte) flags;
+        putInt(header, 5, streamId);
+        out.write(header);
+        out.write(b, off, len);
+    }
+
+    private static byte[] intBytes(int value) {
+        byte[] b = new byte[4];
+        putInt(b, 0, value);
+        return b;
+    }
+
+    private static void putInt(byte[] b, int off, int value) {
+        b[off] = (byte) (value >>> 24);
+        b[off + 1] = (byte) (value >>> 16);
+        b[off + 2] = (byte) (value >>> 8);
+        b[off + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return (b[off] & 0xFF) << 24 | (b[off + 1] & 0xFF) << 16 | (b[off + 2] & 0xFF) << 8 | (b[off + 3] & 0xFF);
+    }
+
+    /**
+     * One request stream. The request side is only touched by the reader;
+     * the send window is guarded by {@code writeLock}.
+     */
+    private final class Stream {
+
+        final int id;
+        final StreamOutput output;
+        // Peticion en construccion
+        private String method;
+        private String target;
+        private List<String> fields;
+        private ByteArrayOutputStream body;
+        private boolean bodyTooLarge;
+        private long declaredLength = -1;
+        boolean remoteClosed;
+        int receiveWindow = RECEIVE_WINDOW;
+
+        long sendWindow;
+        volatile boolean reset;
+        // Hay un manejador en curso: solo finish lo saca de streams
+        volatile boolean dispatched;
+        volatile CompletableFuture<Void> pending;
+
+        Stream(int id, String method) {
+            this.id = id;
+            this.method = method;
+            this.output = new StreamOutput(this);
+            synchronized (writeLock) {
+                this.sendWindow = peerInitialWindow;
+            }
+        }
+
+        /**
+         * Validates the decoded header block of a request (RFC 9113, 8.3)
+         * and keeps its regular fields.
+         */
+        void readHeaders(List<String> decoded) throws Http2Exception {
+            String path = null;
+            String authority = null;
+            String scheme = null;
+            boolean regular = false;
+            List<String> kept = new ArrayList<>(decoded.size() + 2);
+            StringBuilder cookie = null;
+            for (int i = 0; i < decoded.size(); i += 2) {
+                String name = decoded.get(i);
+                String value = decoded.get(i + 1);
+                if (!name.equals(name.toLowerCase(Locale.ROOT))) {
+                    throw malformed("Uppercase header name");
+                }
+                if (name.startsWith(":")) {
+                    if (regular) {
+                        throw malformed("Pseudo-header after a regular field");
+                    }
+                    switch (name) {
+                        case ":method" -> method = unique(method, value);
+                        case ":path" -> path = unique(path, value);
+                        case ":authority" -> authority = unique(authority, value);
+                        case ":scheme" -> scheme = unique(scheme, value);
+                        default -> throw malformed("Unknown pseudo-header " + name);
+                    }
+                    continue;
+                }
+                regular = true;
+                switch (name) {
+                    case "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade" ->
+                        throw malformed("Connection-specific field " + name);
+                    case "te" -> {
+                        if (!value.equals("trailers")) {
+                            throw malformed("TE other than trailers");
+                        }
+                    }
+                    case "cookie" -> {
+                        // Las cookies pueden venir partidas en varios campos (RFC 9113, 8.2.3)
+                        cookie = cookie == null ? new StringBuilder(value) : cookie.append("; ").append(value);
+                        continue;
+                    }
+                    case "content-length" -> {
+                        try {
+                            declaredLength = Long.parseLong(value);
+                        } catch (NumberFormatException e) {
+                            throw malformed("Invalid content-length");
+                        }
+                    }
+                    default -> {
+                    }
+                }
+                kept.add(name);
+                kept.add(value);
+            }
+            if (method == null || (!method.equals("CONNECT") && (path == null || scheme == null))) {
+                throw malformed("Missing pseudo-header");
+            }
+            if (cookie != null) {
+                kept.add("cookie");
+                kept.add(cookie.toString());
+            }
+            if (authority != null && !hasField(kept, "host")) {
+                kept.add("host");
+                kept.add(authority);
+            }
+            this.target = path != null ? path : authority != null ? authority : "";
+            this.fields = kept;
+        }
+
+        private String unique(String current, String value) throws Http2Exception {
+            if (current != null) {
+                throw malformed("Repeated pseudo-header");
+            }
+            return value;
+        }
+
+        private Http2Exception malformed(String message) {
+            return new Http2Exception(Http2Exception.PROTOCOL_ERROR, id, message);
+        }
+
+        void appendBody(byte[] b, int off, int len) {
+            if (bodyTooLarge || len == 0) {
+                return;
+            }
+            if (body == null) {
+                body = new ByteArrayOutputStream(Math.max(len, 256));
+            }
+            if (body.size() + (long) len > server.maxBodySize()) {
+                // Se sigue leyendo el flujo, pero el cuerpo ya no se guarda
+                bodyTooLarge = true;
+                body = null;
+                return;
+            }
+            body.write(b, off, len);
+        }
+
+        HttpRequest toRequest() throws Http2Exception {
+            if (bodyTooLarge) {
+                throw new MalformedRequestException(MalformedRequestException.CONTENT_TOO_LARGE,
+                        "Body longer than " + server.maxBodySize() + " bytes");
+            }
+            byte[] bytes = body != null ? body.toByteArray() : new byte[0];
+            if (declaredLength >= 0 && declaredLength != bytes.length) {
+                throw malformed("Content-length does not match the DATA received");
+            }
+            return parser.http2Request(method, target, fields, bytes);
+        }
+
+        void cancel() {
+            reset = true;
+            CompletableFuture<Void> current = pending;
+            if (current != null) {
+                current.cancel(true);
+            }
+            synchronized (writeLock) {
+                writeLock.notifyAll();
+            }
+        }
+    }
+
+    private static boolean hasField(List<String> fields, String name) {
+        for (int i = 0; i < fields.size(); i += 2) {
+            if (fields.get(i).equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Receives the HTTP/1.1 response the handlers write for one stream and
+     * sends it as frames: the head becomes a HEADERS block without the
+     * connection-specific fields, and the body, de-chunked if needed, DATA
+     * frames of up to the peer's frame size. File regions are read into
+     * those frames, since DATA cannot be sent with {@code transferTo}.
+     */
+    private final class StreamOutput extends OutputStream implements FileSink {
+
+        private static final int HEAD = 0;
+        private static final int FIXED = 1;
+        private static final int CHUNKED = 2;
+        private static final int UNTIL_END = 3;
+        private static final int DONE = 4;
+
+        // Estados del cuerpo chunked
+        private static final int CHUNK_SIZE_LINE = 0;
+        private static final int CHUNK_DATA = 1;
+        private static final int CHUNK_DATA_END = 2;
+        private static final int CHUNK_TRAILERS = 3;
+        private static final int HEAD_END = 0x0D0A0D0A;
+
+        private final Stream stream;
+        private final ByteArrayOutputStream head = new ByteArrayOutputStream(256);
+        // Ultimos cuatro bytes de la cabecera recibidos, para hallar el CRLF CRLF que la termina
+        private int headTail;
+        private final byte[] data = new byte[DEFAULT_FRAME_SIZE];
+        private int dataLength;
+        private int mode = HEAD;
+        private long remaining;
+        private int chunkState = CHUNK_SIZE_LINE;
+        private long chunkSize;
+        private final StringBuilder line = new StringBuilder();
+
+        StreamOutput(Stream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (stream.reset) {
+                throw new IOException("Stream " + stream.id + " was reset");
+            }
+            int end = off + len;
+            while (off < end) {
+                switch (mode) {
+                    case HEAD -> off = readHead(b, off, end);
+                    case FIXED -> {
+                        int n = (int) Math.min(end - off, remaining);
+                        data(b, off, n);
+                        off += n;
+                        remaining -= n;
+                        if (remaining == 0) {
+                            endStream();
+                        }
+                    }
+                    case CHUNKED -> off = readChunked(b, off, end);
+                    case UNTIL_END -> {
+                        data(b, off, end - off);
+                        off = end;
+                    }
+                    default -> off = end;
+                }
+            }
+        }
+
+        @Override
+        public void transferFile(Path file, long position, long count) throws IOException {
+            FileSink.copy(file, position, count, this);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (writeLock) {
+                if (dataLength > 0) {
+                    sendData(false);
+                }
+                out.flush();
+            }
+        }
+
+        /**
+         * Ends the stream once its handler has completed: a response with
+         * no declared length ends here, and one cut short is reset.
+         */
+        void finish(Throwable failure) throws IOException {
+            if (stream.reset || closed) {
+                return;
+            }
+            if (mode == UNTIL_END && failure == null) {
+                endStream();
+            } else if (mode != DONE) {
+                if (failure != null && !(unwrap(failure) instanceof CancellationException)) {
+                    LOGGER.log(Level.FINE, "Stream " + stream.id + " failed", failure);
+                }
+                resetStream(stream.id, Http2Exception.INTERNAL_ERROR);
+                return;
+            }
+            synchronized (writeLock) {
+                out.flush();
+            }
+        }
+
+        private int readHead(byte[] b, int off, int end) throws IOException {
+            while (off < end) {
+                byte c = b[off++];
+                head.write(c);
+                headTail = headTail << 8 | (c & 0xFF);
+                if (headTail == HEAD_END) {
+                    headTail = 0;
+                    sendHead();
+                    break;
+                }
+            }
+            return off;
+        }
+
+        private void sendHead() throws IOException {
+            String[] lines = head.toString(StandardCharsets.ISO_8859_1).split("\r\n");
+            head.reset();
+            String status = lines[0].length() >= 12 ? lines[0].substring(9, 12) : "500";
+            int code = Integer.parseInt(status);
+            long contentLength = -1;
+            boolean chunked = false;
+            List<String> fields = new ArrayList<>(lines.length * 2);
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                String value = lines[i].substring(colon + 1).trim();
+                switch (name) {
+                    case "transfer-encoding" -> {
+                        chunked = value.toLowerCase(Locale.ROOT).contains("chunked");
+                        continue;
+                    }
+                    case "connection", "keep-alive", "proxy-connection", "upgrade" -> {
+                        continue;
+                    }
+                    case "content-length" -> contentLength = Long.parseLong(value);
+                    default -> {
+                    }
+                }
+                fields.add(name);
+                fields.add(value);
+            }
+            if (code < 200) {
+                // Respuesta provisional: la definitiva viene despues
+                writeHeaders(status, fields, false);
+                return;
+            }
+            boolean bodyless = "HEAD".equals(stream.method) || code == 204 || code == 304
+                    || (!chunked && contentLength == 0);
+            writeHeaders(status, fields, bodyless);
+            if (bodyless) {
+                mode = DONE;
+            } else if (chunked) {
+                mode = CHUNKED;
+            } else if (contentLength > 0) {
+                mode = FIXED;
+                remaining = contentLength;
+            } else {
+                mode = UNTIL_END;
+            }
+        }
+
+        private int readChunked(byte[] b, int off, int end) throws IOException {
+            while (off < end && mode == CHUNKED) {
+                switch (chunkState) {
+                    case CHUNK_DATA -> {
+                        int n = (int) Math.min(end - off, chunkSize);
+                        data(b, off, n);
+                        off += n;
+                        chunkSize -= n;
+                        if (chunkSize == 0) {
+                            chunkState = CHUNK_DATA_END;
+                        }
+                    }
+                    default -> {
+                        char c = (char) (b[off++] & 0xFF);
+                        if (c != '\n') {
+                            if (c != '\r') {
+                                line.append(c);
+                            }
+                            continue;
+                        }
+                        String text = line.toString();
+                        line.setLength(0);
+                        if (chunkState == CHUNK_SIZE_LINE) {
+                            int semicolon = text.indexOf(';');
+                            chunkSize = Long.parseLong((semicolon < 0 ? text : text.substring(0, semicolon)).trim(), 16);
+                            chunkState = chunkSize == 0 ? CHUNK_TRAILERS : CHUNK_DATA;
+                        } else if (chunkState == CHUNK_DATA_END) {
+                            chunkState = CHUNK_SIZE_LINE;
+                        } else if (text.isEmpty()) {
+                            endStream();
+                        }
+                    }
+                }
+            }
+            return mode == CHUNKED ? off : end;
+        }
+
+        private void data(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, data.length - dataLength);
+                System.arraycopy(b, off, data, dataLength, n);
+                dataLength += n;
+                off += n;
+                len -= n;
+                if (dataLength == data.length) {
+                    synchronized (writeLock) {
+                        sendData(false);
+                    }
+                }
+            }
+        }
+
+        private void endStream() throws IOException {
+            mode = DONE;
+            synchronized (writeLock) {
+                sendData(true);
+            }
+        }
+
+        private void writeHeaders(String status, List<String> fields, boolean endStream) throws IOException {
+            synchronized (writeLock) {
+                checkOpen();
+                ByteArrayOutputStream block = new ByteArrayOutputStream(128);
+                encoder.begin(block);
+                encoder.encode(block, ":status", status);
+                for (int i = 0; i < fields.size(); i += 2) {
+                    encoder.encode(block, fields.get(i), fields.get(i + 1));
+                }
+                byte[] bytes = block.toByteArray();
+                // Un bloque mayor que una trama sigue en CONTINUATION, sin intercalar otras
+                int off = 0;
+                int type = HEADERS;
+                do {
+                    int n = Math.min(bytes.length - off, peerMaxFrameSize);
+                    int flags = off + n == bytes.length ? FLAG_END_HEADERS : 0;
+                    if (type == HEADERS && endStream) {
+                        flags |= FLAG_END_STREAM;
+                    }
+                    writeFrame(type, flags, stream.id, bytes, off, n);
+                    off += n;
+                    type = CONTINUATION;
+                } while (off < bytes.length);
+            }
+        }
+
+        /**
+         * Sends what is buffered as DATA frames, waiting for window when the
+         * stream or the connection has none left. Called with
+         * {@code writeLock} held; waiting releases it.
+         */
+        private void sendData(boolean endStream) throws IOException {
+            int off = 0;
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(server.keepAliveTimeout());
+            while (true) {
+                checkOpen();
+                int pending = dataLength - off;
+                long window = Math.min(sendWindow, stream.sendWindow);
+                if (pending > 0 && window <= 0) {
+                    out.flush();
+                    long wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (wait <= 0) {
+                        // Un cliente que no abre la ventana no retiene el hilo para siempre
+                        resetStream(stream.id, Http2Exception.FLOW_CONTROL_ERROR);
+                        throw new IOException("Flow-control window of stream " + stream.id + " stalled");
+                    }
+                    try {
+                        writeLock.wait(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for flow-control window");
+                    }
+                    continue;
+                }
+                int n = (int) Math.min(Math.min(window, peerMaxFrameSize), pending);
+                boolean last = endStream && n == pending;
+                if (n > 0 || last) {
+                    writeFrame(DATA, last ? FLAG_END_STREAM : 0, stream.id, data, off, n);
+                    sendWindow -= n;
+                    stream.sendWindow -= n;
+                    off += n;
+                }
+                if (off == dataLength) {
+                    break;
+                }
+            }
+            dataLength = 0;
+        }
+
+        private void checkOpen() throws IOException {
+            if (stream.reset || closed) {
+                throw new IOException("Stream " + stream.id + " was reset");
+            }
+        }
+    }
+
+    private static Throwable unwrap(Throwable failure) {
+        return failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+    }
+}
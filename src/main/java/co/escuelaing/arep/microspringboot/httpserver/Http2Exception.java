@@ -0,0 +1,44 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.io.IOException;
+
+/**
+ * An HTTP/2 protocol violation by the peer. With stream {@code 0} it is a
+ * connection error, answered with {@code GOAWAY}; otherwise only that
+ * stream is reset.
+ *
+ * @author juan.medina-r
+ */
+final class Http2Exception extends IOException {
+
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int INTERNAL_ERROR = 0x2;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int STREAM_CLOSED = 0x5;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int CANCEL = 0x8;
+    static final int COMPRESSION_ERROR = 0x9;
+
+    private final int error;
+    private final int streamId;
+
+    Http2Exception(int error, int streamId, String message) {
+        super(message);
+        this.error = error;
+        this.streamId = streamId;
+    }
+
+    Http2Exception(int error, String message) {
+        this(error, 0, message);
+    }
+
+    int getError() {
+        return error;
+    }
+
+    int getStreamId() {
+        return streamId;
+    }
+}
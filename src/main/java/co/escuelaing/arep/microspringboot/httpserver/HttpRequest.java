@@ -1,22 +1,339 @@
 package co.escuelaing.arep.microspringboot.httpserver;
 
-import java.net.URI;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
+ * A parsed request. The request line and headers stay as the bytes received
+ * plus offsets into them (see {@link RequestParser}); the path, query and
+ * header values are decoded into strings only when asked for. Query and
+ * form parameters are parsed and decoded together the first time one of them
+ * is read.
  *
  * @author juan.medina-r
  */
 public class HttpRequest {
 
-    URI requri = null;
+    private static final byte[] EMPTY_BODY = new byte[0];
+    private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+    private static final String[] KNOWN_METHODS = {"GET", "POST", "PUT", "DELETE", "HEAD", "PATCH", "OPTIONS"};
 
-    HttpRequest(URI requri) {
-        this.requri = requri;
+    private final byte[] head;
+    private final String method;
+    private final int targetStart;
+    private final int pathStart;
+    private final int pathEnd;
+    private final int targetEnd;
+    private final String version;
+    // Por cabecera: inicio y fin del nombre, inicio y fin del valor
+    private final int[] fields;
+    private final int fieldCount;
+    private byte[] body = EMPTY_BODY;
+    private Map<String, String> pathVariables = Map.of();
+    private String path;
+    private Map<String, List<String>> parameters;
+    private PushEngine.Subscription subscription;
+
+    HttpRequest(byte[] head, String method, int targetStart, int pathStart, int targetEnd, String version,
+            int[] fields, int fieldCount) {
+        this.head = head;
+        this.method = method;
+        this.targetStart = targetStart;
+        this.pathStart = pathStart;
+        this.targetEnd = targetEnd;
+        int query = targetEnd;
+        for (int i = pathStart; i < targetEnd; i++) {
+            if (head[i] == '?' || head[i] == '#') {
+                query = i;
+                break;
+            }
+        }
+        this.pathEnd = query;
+        this.version = version;
+        this.fields = fields;
+        this.fieldCount = fieldCount;
+    }
+
+    void setBody(byte[] body) {
+        this.body = body;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * The request target exactly as received, e.g.
+     * {@code /app/greeting?name=jhon}.
+     */
+    public String getTarget() {
+        return new String(head, targetStart, targetEnd - targetStart, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * The percent-decoded path, {@code /} when the target has none.
+     */
+    public String getPath() {
+        if (path == null) {
+            path = pathEnd == pathStart ? "/" : decode(head, pathStart, pathEnd, false);
+        }
+        return path;
+    }
+
+    /**
+     * The raw (not decoded) query string, or {@code null} if the target has
+     * no {@code ?}.
+     */
+    public String getQuery() {
+        if (pathEnd == targetEnd || head[pathEnd] != '?') {
+            return null;
+        }
+        int end = targetEnd;
+        for (int i = pathEnd + 1; i < targetEnd; i++) {
+            if (head[i] == '#') {
+                end = i;
+                break;
+            }
+        }
+        return new String(head, pathEnd + 1, end - pathEnd - 1, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Returns the header value, case-insensitively; repeated headers are
+     * joined with {@code ", "}.
+     */
+    public String getHeader(String name) {
+        String value = null;
+        for (int i = 0; i < fieldCount; i++) {
+            int f = i * 4;
+            if (nameEquals(fields[f], fields[f + 1], name)) {
+                String v = new String(head, fields[f + 2], fields[f + 3] - fields[f + 2], StandardCharsets.ISO_8859_1);
+                value = value == null ? v : value + ", " + v;
+            }
+        }
+        return value;
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * The body as a stream, without copying it.
+     */
+    public InputStream getBodyAsStream() {
+        return new ByteArrayInputStream(body);
+    }
+
+    /**
+     * HTTP/1.1 connections are persistent unless the client sends
+     * {@code Connection: close}; HTTP/1.0 ones only with
+     * {@code Connection: keep-alive}.
+     */
+    public boolean isKeepAlive() {
+        boolean http10 = "HTTP/1.0".equals(version);
+        boolean persistent = !http10;
+        for (int i = 0; i < fieldCount; i++) {
+            int f = i * 4;
+            if (nameEquals(fields[f], fields[f + 1], "connection")) {
+                if (containsIgnoreCase(fields[f + 2], fields[f + 3], "close")) {
+                    return false;
+                }
+                if (http10 && containsIgnoreCase(fields[f + 2], fields[f + 3], "keep-alive")) {
+                    persistent = true;
+                }
+            }
+        }
+        return persistent;
+    }
+
+    void setPathVariables(Map<String, String> pathVariables) {
+        this.pathVariables = pathVariables;
     }
 
+    /**
+     * Marks the connection for the push engine once the handshake has been
+     * written.
+     */
+    void setSubscription(PushEngine.Subscription subscription) {
+        this.subscription = subscription;
+    }
+
+    /**
+     * What a push endpoint subscribed this request's connection to, or
+     * {@code null} for an ordinary response.
+     */
+    PushEngine.Subscription getSubscription() {
+        return subscription;
+    }
+
+    /**
+     * Returns the value bound to {@code {name}} in the matched route, or
+     * {@code null}.
+     */
+    public String getPathVariable(String name) {
+        return pathVariables.get(name);
+    }
+
+    /**
+     * Returns the first value of the parameter {@code paramName}, or
+     * {@code null} if it is absent.
+     *
+     * @see #getParameters()
+     */
     public String getValue(String paramName) {
+        List<String> values = getParameters().get(paramName);
+        return values == null ? null : values.get(0);
+    }
+
+    /**
+     * Returns every value of the parameter {@code paramName} in the order
+     * received; empty if it is absent.
+     */
+    public List<String> getValues(String paramName) {
+        return getParameters().getOrDefault(paramName, List.of());
+    }
+
+    /**
+     * Decoded parameters from the query string followed by those of an
+     * {@code application/x-www-form-urlencoded} body. A name without
+     * {@code =} has the value {@code ""}.
+     */
+    public Map<String, List<String>> getParameters() {
+        if (parameters == null) {
+            // Ejemplo: /app/greeting?name=jhon&lang=es
+            Map<String, List<String>> parsed = new LinkedHashMap<>();
+            if (pathEnd < targetEnd && head[pathEnd] == '?') {
+                int end = pathEnd + 1;
+                while (end < targetEnd && head[end] != '#') {
+                    end++;
+                }
+                parseParameters(head, pathEnd + 1, end, parsed);
+            }
+            if (body.length > 0 && isForm()) {
+                parseParameters(body, 0, body.length, parsed);
+            }
+            for (Map.Entry<String, List<String>> entry : parsed.entrySet()) {
+                entry.setValue(Collections.unmodifiableList(entry.getValue()));
+            }
+            parameters = Collections.unmodifiableMap(parsed);
+        }
+        return parameters;
+    }
+
+    private boolean isForm() {
+        String contentType = getHeader("content-type");
+        return contentType != null
+                && contentType.regionMatches(true, 0, FORM_CONTENT_TYPE, 0, FORM_CONTENT_TYPE.length())
+                && (contentType.length() == FORM_CONTENT_TYPE.length()
+                || contentType.charAt(FORM_CONTENT_TYPE.length()) == ';'
+                || contentType.charAt(FORM_CONTENT_TYPE.length()) == ' ');
+    }
+
+    private static void parseParameters(byte[] b, int from, int to, Map<String, List<String>> into) {
+        int pos = from;
+        while (pos < to) {
+            int end = pos;
+            while (end < to && b[end] != '&') {
+                end++;
+            }
+            int eq = pos;
+            while (eq < end && b[eq] != '=') {
+                eq++;
+            }
+            if (eq > pos) {
+                String value = eq == end ? "" : decode(b, eq + 1, end, true);
+                into.computeIfAbsent(decode(b, pos, eq, true), k -> new ArrayList<>(1)).add(value);
+            }
+            pos = end + 1;
+        }
+    }
+
+    private boolean nameEquals(int from, int to, String name) {
+        if (to - from != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (lower(head[from + i]) != lower((byte) name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean containsIgnoreCase(int from, int to, String token) {
+        int n = token.length();
+        for (int i = from; i + n <= to; i++) {
+            int j = 0;
+            while (j < n && lower(head[i + j]) == token.charAt(j)) {
+                j++;
+            }
+            if (j == n) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    /**
+     * Percent-decodes {@code b[from, to)} as UTF-8. Malformed escapes are kept
+     * as they are.
+     */
+    static String decode(byte[] b, int from, int to, boolean plusAsSpace) {
+        boolean plain = true;
+        for (int i = from; i < to && plain; i++) {
+            plain = b[i] != '%' && !(plusAsSpace && b[i] == '+') && b[i] >= 0;
+        }
+        if (plain) {
+            return new String(b, from, to - from, StandardCharsets.ISO_8859_1);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(to - from);
+        for (int i = from; i < to; i++) {
+            byte c = b[i];
+            if (c == '%' && i + 2 < to) {
+                int hi = Character.digit(b[i + 1], 16);
+                int lo = Character.digit(b[i + 2], 16);
+                if (hi >= 0 && lo >= 0) {
+                    out.write((hi << 4) | lo);
+                    i += 2;
+                    continue;
+                }
+            }
+            out.write(plusAsSpace && c == '+' ? ' ' : c);
+        }
+        return out.toString(StandardCharsets.UTF_8);
+    }
 
-        // Extrae el valor de paramName desde el query.
-        return requri.getQuery().split("=")[1]; // Ejemplo: /app/greeting?name=jhon
+    /**
+     * Returns the method name, reusing the constant for the common ones.
+     */
+    static String method(byte[] b, int from, int to) {
+        for (String m : KNOWN_METHODS) {
+            if (m.length() == to - from) {
+                int i = 0;
+                while (i < m.length() && b[from + i] == m.charAt(i)) {
+                    i++;
+                }
+                if (i == m.length()) {
+                    return m;
+                }
+            }
+        }
+        return new String(b, from, to - from, StandardCharsets.ISO_8859_1);
     }
 }
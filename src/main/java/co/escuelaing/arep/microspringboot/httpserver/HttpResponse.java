@@ -1,10 +1,428 @@
 package co.escuelaing.arep.microspringboot.httpserver;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
 /**
+ * The response a controller writes to. Status and headers may be changed
+ * until the first bytes reach the connection. The body is buffered up to
+ * {@link #BUFFER_SIZE} bytes: a body that fits is sent with a
+ * {@code content-length}, a larger one (or an explicit {@code flush()})
+ * commits the headers and streams the rest with chunked transfer encoding,
+ * unless a length was declared with {@link #setContentLength}. HTTP/1.0
+ * clients cannot receive chunks, so their bodies are buffered whole.
  *
  * @author juan.medina-r
  */
 public class HttpResponse {
-    
-}
 
+    /**
+     * Bytes of body held back before the response is committed.
+     */
+    public static final int BUFFER_SIZE = 8 * 1024;
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final OutputStream out;
+    private final boolean keepAlive;
+    private final boolean headOnly;
+    private final boolean chunkingAllowed;
+    private int status = 200;
+    private String reason = "OK";
+    private final Map<String, List<String>> headers = new LinkedHashMap<>();
+    private long contentLength = -1;
+
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int buffered;
+    private long written;
+    private boolean committed;
+    private boolean chunked;
+    private boolean finished;
+    private boolean capturing;
+    private BodyStream stream;
+    private BodyChannel channel;
+
+    HttpResponse(OutputStream out, boolean keepAlive, boolean headOnly, boolean chunkingAllowed) {
+        this.out = out;
+        this.keepAlive = keepAlive;
+        this.headOnly = headOnly;
+        this.chunkingAllowed = chunkingAllowed;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public void setStatus(int status) {
+        setStatus(status, reasonPhrase(status));
+    }
+
+    public void setStatus(int status, String reason) {
+        if (status < 100 || status > 999) {
+            throw new IllegalArgumentException("Invalid status: " + status);
+        }
+        checkNotCommitted();
+        this.status = status;
+        this.reason = reason;
+    }
+
+    /**
+     * Replaces every value of the header {@code name}.
+     */
+    public void setHeader(String name, String value) {
+        checkNotCommitted();
+        List<String> values = new ArrayList<>(1);
+        values.add(value);
+        headers.put(headerName(name), values);
+    }
+
+    /**
+     * Adds a value to the header {@code name}, e.g. a second
+     * {@code set-cookie}.
+     */
+    public void addHeader(String name, String value) {
+        checkNotCommitted();
+        headers.computeIfAbsent(headerName(name), k -> new ArrayList<>(1)).add(value);
+    }
+
+    /**
+     * Returns the first value of the header {@code name}, or {@code null}.
+     */
+    public String getHeader(String name) {
+        List<String> values = headers.get(name.toLowerCase(Locale.ROOT));
+        return values == null ? null : values.get(0);
+    }
+
+    public void setContentType(String contentType) {
+        setHeader("content-type", contentType);
+    }
+
+    /**
+     * Declares the body length, so it is sent as is instead of chunked.
+     * Writing a different number of bytes aborts the connection.
+     */
+    public void setContentLength(long length) {
+        if (length < 0) {
+            throw new IllegalArgumentException("Content length must not be negative: " + length);
+        }
+        checkNotCommitted();
+        contentLength = length;
+    }
+
+    /**
+     * Whether the status line and headers have already been sent.
+     */
+    public boolean isCommitted() {
+        return committed;
+    }
+
+    /**
+     * Body stream. Closing it finishes the response.
+     */
+    public OutputStream getOutputStream() {
+        if (stream == null) {
+            stream = new BodyStream();
+        }
+        return stream;
+    }
+
+    /**
+     * Body as a channel, for writing {@link ByteBuffer}s. Closing it finishes
+     * the response.
+     */
+    public WritableByteChannel getChannel() {
+        if (channel == null) {
+            channel = new BodyChannel();
+        }
+        return channel;
+    }
+
+    public void write(byte[] data) throws IOException {
+        write(data, 0, data.length);
+    }
+
+    public void write(byte[] data, int off, int len) throws IOException {
+        if (finished) {
+            throw new IOException("Response already finished");
+        }
+        written += len;
+        if (headOnly) {
+            return;
+        }
+        if (buffered + len > buffer.length && mustBuffer()) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, buffered + len));
+        }
+        if (buffered + len <= buffer.length) {
+            System.arraycopy(data, off, buffer, buffered, len);
+            buffered += len;
+            return;
+        }
+        commit(false);
+        drainBuffer();
+        if (len >= buffer.length) {
+            // Escrituras grandes van directo a la conexion sin pasar por el buffer
+            writeBody(data, off, len);
+        } else {
+            System.arraycopy(data, off, buffer, 0, len);
+            buffered = len;
+        }
+    }
+
+    public void write(int b) throws IOException {
+        if (!finished && !headOnly && buffered < buffer.length) {
+            buffer[buffered++] = (byte) b;
+            written++;
+            return;
+        }
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    public void write(ByteBuffer data) throws IOException {
+        if (data.hasArray()) {
+            write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            data.position(data.limit());
+            return;
+        }
+        byte[] chunk = new byte[Math.min(data.remaining(), buffer.length)];
+        while (data.hasRemaining()) {
+            int n = Math.min(chunk.length, data.remaining());
+            data.get(chunk, 0, n);
+            write(chunk, 0, n);
+        }
+    }
+
+    /**
+     * Writes {@code text} as UTF-8.
+     */
+    public void write(String text) throws IOException {
+        write(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Sends the headers and what is buffered so far.
+     */
+    public void flush() throws IOException {
+        if (finished || mustBuffer()) {
+            return;
+        }
+        commit(false);
+        drainBuffer();
+        out.flush();
+    }
+
+    private boolean mustBuffer() {
+        return capturing || (!chunkingAllowed && contentLength < 0);
+    }
+
+    /**
+     * Drops status, headers and buffered body so an error can be sent
+     * instead. Only possible before the response is committed.
+     */
+    void reset() {
+        checkNotCommitted();
+        status = 200;
+        reason = "OK";
+        headers.clear();
+        contentLength = -1;
+        buffered = 0;
+        written = 0;
+    }
+
+    boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Completes the response: sends whatever is pending and, for chunked
+     * bodies, the last chunk.
+     */
+    void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        if (!committed) {
+            commit(true);
+        }
+        drainBuffer();
+        finished = true;
+        if (chunked && !headOnly) {
+            out.write(LAST_CHUNK);
+        } else if (contentLength >= 0 && written != contentLength) {
+            throw new IOException("Declared content-length " + contentLength + " but wrote " + written);
+        }
+    }
+
+    private void commit(boolean complete) throws IOException {
+        if (committed) {
+            return;
+        }
+        committed = true;
+        StringBuilder head = statusAndHeaders();
+        if (contentLength >= 0) {
+            head.append("content-length: ").append(contentLength).append("\r\n");
+        } else if (complete) {
+            head.append("content-length: ").append(written).append("\r\n");
+        } else {
+            chunked = true;
+            head.append("transfer-encoding: chunked\r\n");
+        }
+        head.append("connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private StringBuilder statusAndHeaders() {
+        StringBuilder head = new StringBuilder(128);
+        head.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            for (String value : header.getValue()) {
+                head.append(header.getKey()).append(": ").append(value).append("\r\n");
+            }
+        }
+        return head;
+    }
+
+    /**
+     * A response that never reaches a connection: the whole body is kept
+     * so it can be taken with {@link #snapshot()}.
+     */
+    static HttpResponse capturing() {
+        HttpResponse res = new HttpResponse(null, false, false, false);
+        res.capturing = true;
+        return res;
+    }
+
+    /**
+     * Encodes a {@link #capturing()} response for the response cache. Only
+     * successful responses are marked cacheable.
+     */
+    ResponseCache.Cached snapshot() throws IOException {
+        if (contentLength >= 0 && written != contentLength) {
+            throw new IOException("Declared content-length " + contentLength + " but wrote " + written);
+        }
+        finished = true;
+        StringBuilder head = statusAndHeaders();
+        head.append("content-length: ").append(buffered).append("\r\n");
+        return new ResponseCache.Cached(head.toString().getBytes(StandardCharsets.ISO_8859_1),
+                Arrays.copyOf(buffer, buffered), status >= 200 && status < 300 && status != 206);
+    }
+
+    private void drainBuffer() throws IOException {
+        if (buffered > 0) {
+            writeBody(buffer, 0, buffered);
+            buffered = 0;
+        }
+    }
+
+    private void writeBody(byte[] data, int off, int len) throws IOException {
+        if (chunked) {
+            out.write(Integer.toHexString(len).getBytes(StandardCharsets.ISO_8859_1));
+            out.write(CRLF);
+            out.write(data, off, len);
+            out.write(CRLF);
+        } else {
+            out.write(data, off, len);
+        }
+    }
+
+    private void checkNotCommitted() {
+        if (committed) {
+            throw new IllegalStateException("Response already committed");
+        }
+    }
+
+    private static String headerName(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        if (lower.equals("content-length") || lower.equals("transfer-encoding") || lower.equals("connection")) {
+            // Los gestiona el servidor
+            throw new IllegalArgumentException("Header managed by the server: " + name);
+        }
+        return lower;
+    }
+
+    static String reasonPhrase(int status) {
+        return switch (status) {
+            case 200 -> "OK";
+            case 201 -> "Created";
+            case 202 -> "Accepted";
+            case 204 -> "No Content";
+            case 206 -> "Partial Content";
+            case 301 -> "Moved Permanently";
+            case 302 -> "Found";
+            case 303 -> "See Other";
+            case 304 -> "Not Modified";
+            case 307 -> "Temporary Redirect";
+            case 308 -> "Permanent Redirect";
+            case 400 -> "Bad Request";
+            case 401 -> "Unauthorized";
+            case 403 -> "Forbidden";
+            case 404 -> "Not Found";
+            case 405 -> "Method Not Allowed";
+            case 409 -> "Conflict";
+            case 413 -> "Content Too Large";
+            case 415 -> "Unsupported Media Type";
+            case 429 -> "Too Many Requests";
+            case 500 -> "Internal Server Error";
+            case 501 -> "Not Implemented";
+            case 503 -> "Service Unavailable";
+            case 504 -> "Gateway Timeout";
+            default -> "";
+        };
+    }
+
+    private final class BodyStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            HttpResponse.this.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            HttpResponse.this.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            HttpResponse.this.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+        }
+    }
+
+    private final class BodyChannel implements WritableByteChannel {
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (finished) {
+                throw new ClosedChannelException();
+            }
+            int n = src.remaining();
+            HttpResponse.this.write(src);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !finished;
+        }
+
+        @Override
+        public void close() throws IOException {
+            finish();
+        }
+    }
+}
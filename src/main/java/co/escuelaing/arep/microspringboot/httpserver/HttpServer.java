@@ -1,287 +1,2022 @@
 package co.escuelaing.arep.microspringboot.httpserver;
 
-import co.escuelaing.arep.microspringboot.annotations.GetMapping;
-import co.escuelaing.arep.microspringboot.annotations.RequestParam;
-import co.escuelaing.arep.microspringboot.annotations.RestController;
 import java.net.*;
 import java.io.*;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.FileSystem;
-import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * HTTP server listening on one port. Servers are created with
+ * {@link #builder()} and are independent of each other: each one has its own
+ * listener, executor, static root, limits and metrics, while the
+ * {@link Routes} it serves may be shared with other servers. The static
+ * methods ({@link #runServer(int)}, the setters and {@link #stopServer()})
+ * drive a default server for applications that only need one; its settings
+ * take effect on the next call to {@link #runServer(int)}.
  *
  * @author juan.medina-r
  */
 @SuppressWarnings("java:S2189")
 public class HttpServer {
 
-    private HttpServer() {
+    private static final Logger LOGGER = Logger.getLogger(HttpServer.class.getName());
+    private static final byte[] FILE_NOT_FOUND_BODY = "<html><body><h1>404 - File Not Found</h1></body></html>"
+            .getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NOT_FOUND_BODY = "<html><body><h1>404 - Not Found</h1></body></html>"
+            .getBytes(StandardCharsets.UTF_8);
+    private static final byte[] METHOD_NOT_ALLOWED_BODY = "<html><body><h1>405 - Method Not Allowed</h1></body></html>"
+            .getBytes(StandardCharsets.UTF_8);
+    private static final String DEFAULT_PATH = "/index.html";
+    private static final String API_PREFIX = "/api";
+    private static final String METRICS_PATH = "/metrics";
+    private static final String LIVENESS_PATH = "/health/live";
+    private static final String READINESS_PATH = "/health/ready";
+    private static final byte[] UP_BODY = "UP".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] DRAINING_BODY = "DRAINING".getBytes(StandardCharsets.ISO_8859_1);
+    private static final CompletableFuture<Void> COMPLETED = CompletableFuture.completedFuture(null);
+    private static final String CONTROLLER_PACKAGE = "co.escuelaing.arep.microspringboot";
+
+    // Cache de archivos estaticos: tamano total y tamano maximo de un cuerpo en memoria
+    private static final long STATIC_CACHE_MAX_BYTES = 32L * 1024 * 1024;
+    private static final long STATIC_CACHE_MAX_ENTRY_BYTES = 1024L * 1024;
+    private static final byte[] KEEP_ALIVE_END = "connection: keep-alive\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] CLOSE_END = "connection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    // Un flujo SSE no tiene longitud: termina cuando se cierra la conexion
+    private static final byte[] EVENT_STREAM_HEAD = ("HTTP/1.1 200 OK\r\n"
+            + "content-type: text/event-stream; charset=utf-8\r\n"
+            + "cache-control: no-cache\r\n"
+            + "connection: close\r\n"
+            + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    // Servidor por defecto de la API estatica
+    private static final Routes defaultRoutes = new Routes();
+    private static final Builder defaults = new Builder().routes(defaultRoutes);
+    // Tiempo que una conexion rechazada sigue abierta para leer la peticion antes de cerrarse
+    private static final int REFUSED_LINGER_MILLIS = 500;
+    private static volatile HttpServer current;
+    private static boolean shutdownHookInstalled;
+
+    private final int port;
+    private final Routes routes;
+    final ServerMetrics metrics = new ServerMetrics();
+
+    // Conexiones persistentes: tiempo maximo de inactividad y peticiones por socket
+    private final int keepAliveTimeout;
+    private final int maxKeepAliveRequests;
+    // Limites de tamano de las peticiones
+    private final int maxRequestLine;
+    private final int maxHeaderSize;
+    private final int maxBodySize;
+    // Sockets esperando la siguiente peticion; se cierran al detener el servidor
+    private final Set<Socket> idleConnections = ConcurrentHashMap.newKeySet();
+    // Drenado: espera antes de cerrar el puerto y plazo para las peticiones en curso
+    private final int drainDelay;
+    private final int drainTimeout;
+
+    // Control de admision: conexiones abiertas o en cola y limite por cliente
+    private final int maxConnections;
+    private final AtomicInteger admittedConnections = new AtomicInteger();
+    private final RateLimiter rateLimiter;
+    private final int retryAfter;
+    private final byte[] serviceUnavailable;
+    // Flujos SSE y WebSocket abiertos a la vez; no cuentan contra maxConnections
+    private final int maxStreams;
+    // Cierra las conexiones rechazadas; el hilo arranca con el primer rechazo
+    private volatile ScheduledExecutorService refusedCloser;
+
+    // Respuestas de controladores asincronos que aun no se escriben
+    private final int asyncTimeout;
+    private final Set<CompletableFuture<Void>> pendingResponses = ConcurrentHashMap.newKeySet();
+
+    // Despacho de conexiones a hilos de trabajo
+    private final ExecutorStrategy executorStrategy;
+    private final int workerPoolSize;
+    private final int workerQueueCapacity;
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+
+    // Modelo de E/S
+    private final ServerEngine engine;
+    private final int reactorThreads;
+    // HTTP/2 sin TLS (h2c) y sus conexiones abiertas
+    private final boolean http2;
+    private final Set<Http2Connection> http2Connections = ConcurrentHashMap.newKeySet();
+    // Conexiones SSE y WebSocket; el hilo del selector arranca con el primer suscriptor
+    private volatile PushEngine pushEngine;
+
+    // Registro de accesos: destino, muestreo y tamano de rotacion; se abre al enlazar el puerto
+    private final String accessLogDestination;
+    private final double accessLogSampleRate;
+    private final long accessLogMaxFileSize;
+    private volatile AccessLog accessLog;
+
+    // Arranque: desglose de tiempos y primera peticion, medidos desde el inicio del proceso
+    private volatile StartupReport startupReport;
+    private long startNanos;
+    private final AtomicLong firstRequestNanos = new AtomicLong();
+
+    private volatile boolean running = false;
+    private volatile boolean draining = false;
+    private ServerSocket serverSocket;
+    private NioEngine nioEngine;
+    private ExecutorService executorService;
+
+    private volatile Path root;
+    private volatile StaticResourceCache staticCache;
+
+    private HttpServer(Builder builder) {
+        this.port = builder.port;
+        this.routes = builder.routes != null ? builder.routes : new Routes();
+        this.keepAliveTimeout = builder.keepAliveTimeout;
+        this.maxKeepAliveRequests = builder.maxKeepAliveRequests;
+        this.maxRequestLine = builder.maxRequestLine;
+        this.maxHeaderSize = builder.maxHeaderSize;
+        this.maxBodySize = builder.maxBodySize;
+        this.drainDelay = builder.drainDelay;
+        this.drainTimeout = builder.drainTimeout;
+        this.maxConnections = builder.maxConnections;
+        this.rateLimiter = builder.rateLimit > 0 ? new RateLimiter(builder.rateLimit, builder.rateBurst) : null;
+        this.retryAfter = builder.retryAfter;
+        this.serviceUnavailable = rejection("503 Service Unavailable", builder.retryAfter);
+        this.maxStreams = builder.maxStreams;
+        this.asyncTimeout = builder.asyncTimeout;
+        this.executorStrategy = builder.executorStrategy;
+        this.workerPoolSize = builder.workerPoolSize;
+        this.workerQueueCapacity = builder.workerQueueCapacity;
+        this.engine = builder.engine;
+        this.reactorThreads = builder.reactorThreads;
+        this.http2 = builder.http2;
+        this.accessLogDestination = builder.accessLog;
+        this.accessLogSampleRate = builder.accessLogSampleRate;
+        this.accessLogMaxFileSize = builder.accessLogMaxFileSize;
+        // Sin raiz explicita se resuelve "public" del classpath despues de abrir el puerto
+        this.root = builder.root;
+    }
+
+    public static Builder builder() {
+        return new Builder();
     }
 
-    private static volatile boolean running = false;
-    private static ServerSocket serverSocket;
-    private static ExecutorService executorService;
+    /**
+     * Settings of a server. Every setter validates its value and returns the
+     * builder; {@link #build()} can be called several times to create
+     * servers with the same settings.
+     */
+    public static final class Builder {
 
-    private static final String FILE_NOT_FOUND_RESPONSE = """
-            HTTP/1.1 404 Not Found\r
-            Content-Type: text/html; charset=utf-8\r
-            \r
-            <html><body><h1>404 - File Not Found</h1></body></html>
-            """;
-    private static final String DEFAULT_PATH = "/index.html";
+        private int port = 9000;
+        private Routes routes;
+        private Path root;
+        private int keepAliveTimeout = 5000;
+        private int maxKeepAliveRequests = 100;
+        private int maxRequestLine = 8 * 1024;
+        private int maxHeaderSize = 16 * 1024;
+        private int maxBodySize = 10 * 1024 * 1024;
+        private int drainDelay = 0;
+        private int drainTimeout = 5000;
+        private int maxConnections = 1000;
+        private int maxStreams = 10000;
+        private int rateLimit = 0;
+        private int rateBurst = 0;
+        private int retryAfter = 1;
+        private int asyncTimeout = 30000;
+        private ExecutorStrategy executorStrategy = ExecutorStrategy.FIXED;
+        private int workerPoolSize = 10;
+        private int workerQueueCapacity = 100;
+        private ServerEngine engine = ServerEngine.BLOCKING;
+        private int reactorThreads = Runtime.getRuntime().availableProcessors();
+        private boolean http2 = true;
+        private String accessLog;
+        private double accessLogSampleRate = 1;
+        private long accessLogMaxFileSize = 10L * 1024 * 1024;
 
-    private static Map<String, Method> services = new HashMap<>();
-    private static Path root = null; // /
-    private static FileSystem jarFs = null;
+        private Builder() {
+        }
 
-    public static void loadServices(String packageName) {
-        try {
-            ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
-            String path = packageName.replace('.', '/');
+        /**
+         * Sets the listening port; {@code 0} picks a free one, see
+         * {@link HttpServer#getPort()}.
+         */
+        public Builder port(int port) {
+            if (port < 0 || port > 65535) {
+                throw new IllegalArgumentException("Invalid port: " + port);
+            }
+            this.port = port;
+            return this;
+        }
 
-            Enumeration<URL> resources = classLoader.getResources(path);
+        /**
+         * Sets the API routes. Servers given the same {@link Routes} share
+         * them; by default each server gets an empty set of its own.
+         */
+        public Builder routes(Routes routes) {
+            if (routes == null) {
+                throw new IllegalArgumentException("Routes must not be null");
+            }
+            this.routes = routes;
+            return this;
+        }
 
-            while (resources.hasMoreElements()) {
-                URL resource = resources.nextElement();
+        /**
+         * Serves static files from a directory, a {@code file:} URI or a
+         * {@code jar:file:...!/dir} URL. Defaults to {@code public} on the
+         * classpath.
+         */
+        public Builder staticFiles(String route) {
+            this.root = resolveStaticRoot(route);
+            return this;
+        }
 
-                if (resource.getProtocol().equals("file")) {
-                    File file = new File(resource.getFile());
-                    scanDirectory(file, packageName);
-                }
+        /**
+         * Serves static files from a classpath directory, either on disk or
+         * inside a jar.
+         */
+        public Builder staticFilesFromClasspath(String resourceRoot) {
+            this.root = classpathRoot(resourceRoot);
+            return this;
+        }
+
+        /**
+         * Sets how long (in milliseconds) a persistent connection may stay
+         * idle waiting for its next request before the server closes it.
+         */
+        public Builder keepAliveTimeout(int millis) {
+            if (millis <= 0) {
+                throw new IllegalArgumentException("Keep-alive timeout must be positive: " + millis);
             }
-        } catch (IOException e) {
-            Logger.getLogger(HttpServer.class.getName()).log(Level.SEVERE, null, e);
+            this.keepAliveTimeout = millis;
+            return this;
+        }
+
+        /**
+         * Sets how many requests a single connection may serve before the
+         * server answers with {@code Connection: close}.
+         */
+        public Builder maxKeepAliveRequests(int max) {
+            if (max <= 0) {
+                throw new IllegalArgumentException("Max keep-alive requests must be positive: " + max);
+            }
+            this.maxKeepAliveRequests = max;
+            return this;
+        }
+
+        /**
+         * Sets the longest request line accepted; longer ones get a 414.
+         */
+        public Builder maxRequestLine(int bytes) {
+            if (bytes <= 0) {
+                throw new IllegalArgumentException("Max request line must be positive: " + bytes);
+            }
+            this.maxRequestLine = bytes;
+            return this;
+        }
+
+        /**
+         * Sets the largest header section accepted; larger ones get a 431.
+         */
+        public Builder maxHeaderSize(int bytes) {
+            if (bytes <= 0) {
+                throw new IllegalArgumentException("Max header size must be positive: " + bytes);
+            }
+            this.maxHeaderSize = bytes;
+            return this;
+        }
+
+        /**
+         * Sets the largest request body accepted; larger ones get a 413.
+         */
+        public Builder maxBodySize(int bytes) {
+            if (bytes < 0) {
+                throw new IllegalArgumentException("Max body size must not be negative: " + bytes);
+            }
+            this.maxBodySize = bytes;
+            return this;
+        }
+
+        /**
+         * Sets how long (in milliseconds) {@link HttpServer#stop()} keeps
+         * accepting connections after readiness turns to 503, so load
+         * balancers stop sending traffic before the port closes.
+         */
+        public Builder drainDelay(int millis) {
+            if (millis < 0) {
+                throw new IllegalArgumentException("Drain delay must not be negative: " + millis);
+            }
+            this.drainDelay = millis;
+            return this;
+        }
+
+        /**
+         * Sets how long (in milliseconds) {@link HttpServer#stop()} waits for
+         * in-flight requests before aborting them.
+         */
+        public Builder drainTimeout(int millis) {
+            if (millis < 0) {
+                throw new IllegalArgumentException("Drain timeout must not be negative: " + millis);
+            }
+            this.drainTimeout = millis;
+            return this;
+        }
+
+        /**
+         * Sets how many connections may be open or waiting for a worker at
+         * once. Connections beyond it are answered with 503 at the accept
+         * loop, which also bounds the queue of the
+         * {@link ExecutorStrategy#FIXED} pool.
+         */
+        public Builder maxConnections(int connections) {
+            if (connections <= 0) {
+                throw new IllegalArgumentException("Max connections must be positive: " + connections);
+            }
+            this.maxConnections = connections;
+            return this;
+        }
+
+        /**
+         * Sets how many Server-Sent Events and WebSocket subscribers may be
+         * connected at once. Once a handshake is answered the connection
+         * stops counting against {@link #maxConnections(int)}, so streams
+         * cannot lock out ordinary requests; handshakes beyond this limit
+         * get 503 instead.
+         */
+        public Builder maxStreams(int streams) {
+            if (streams <= 0) {
+                throw new IllegalArgumentException("Max streams must be positive: " + streams);
+            }
+            this.maxStreams = streams;
+            return this;
+        }
+
+        /**
+         * Limits every client address to {@code requestsPerSecond} requests
+         * on average, with bursts of up to {@code burst}; requests over the
+         * limit get 429 and new connections from that client are refused
+         * until it has a token again. {@code 0} requests per second turns
+         * the limit off (the default).
+         */
+        public Builder rateLimit(int requestsPerSecond, int burst) {
+            if (requestsPerSecond < 0) {
+                throw new IllegalArgumentException("Rate limit must not be negative: " + requestsPerSecond);
+            }
+            if (requestsPerSecond > 0 && burst <= 0) {
+                throw new IllegalArgumentException("Rate limit burst must be positive: " + burst);
+            }
+            this.rateLimit = requestsPerSecond;
+            this.rateBurst = burst;
+            return this;
+        }
+
+        /**
+         * Sets the {@code Retry-After} (in seconds) sent with 503 responses
+         * when the server is over capacity.
+         */
+        public Builder retryAfter(int seconds) {
+            if (seconds <= 0) {
+                throw new IllegalArgumentException("Retry-After must be positive: " + seconds);
+            }
+            this.retryAfter = seconds;
+            return this;
+        }
+
+        /**
+         * Sets how long (in milliseconds) a controller's
+         * {@code CompletionStage} may take before the request gets a 504;
+         * {@code @Timeout} overrides it per route.
+         */
+        public Builder asyncTimeout(int millis) {
+            if (millis <= 0) {
+                throw new IllegalArgumentException("Async timeout must be positive: " + millis);
+            }
+            this.asyncTimeout = millis;
+            return this;
+        }
+
+        /**
+         * Selects how accepted connections are dispatched.
+         */
+        public Builder executor(ExecutorStrategy strategy) {
+            if (strategy == null) {
+                throw new IllegalArgumentException("Executor strategy must not be null");
+            }
+            this.executorStrategy = strategy;
+            return this;
+        }
+
+        /**
+         * Sets the number of platform worker threads used by the
+         * {@link ExecutorStrategy#FIXED} and {@link ExecutorStrategy#BOUNDED}
+         * strategies.
+         */
+        public Builder workerPoolSize(int size) {
+            if (size <= 0) {
+                throw new IllegalArgumentException("Worker pool size must be positive: " + size);
+            }
+            this.workerPoolSize = size;
+            return this;
+        }
+
+        /**
+         * Sets how many accepted connections may wait for a worker under the
+         * {@link ExecutorStrategy#BOUNDED} strategy before new ones get a 503.
+         */
+        public Builder workerQueueCapacity(int capacity) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("Worker queue capacity must be positive: " + capacity);
+            }
+            this.workerQueueCapacity = capacity;
+            return this;
+        }
+
+        /**
+         * Selects the I/O engine.
+         */
+        public Builder engine(ServerEngine engine) {
+            if (engine == null) {
+                throw new IllegalArgumentException("Engine must not be null");
+            }
+            this.engine = engine;
+            return this;
+        }
+
+        /**
+         * Sets how many selector threads the {@link ServerEngine#NIO} engine
+         * spreads connections over.
+         */
+        public Builder reactorThreads(int threads) {
+            if (threads <= 0) {
+                throw new IllegalArgumentException("Reactor threads must be positive: " + threads);
+            }
+            this.reactorThreads = threads;
+            return this;
+        }
+
+        /**
+         * Enables or disables cleartext HTTP/2 (h2c) on the
+         * {@link ServerEngine#BLOCKING} engine, both with prior knowledge
+         * and through {@code Upgrade: h2c}. Enabled by default; the
+         * {@link ServerEngine#NIO} engine always speaks HTTP/1.1.
+         */
+        public Builder http2(boolean enabled) {
+            this.http2 = enabled;
+            return this;
+        }
+
+        /**
+         * Writes an access log line (JSON) per request to {@code "stdout"}
+         * or to the given file; {@code null} turns it off (the default).
+         * Entries are queued without blocking and written in batches by a
+         * background thread; when the queue is full they are dropped and
+         * counted in {@code /metrics}.
+         */
+        public Builder accessLog(String destination) {
+            if (destination != null && destination.isBlank()) {
+                throw new IllegalArgumentException("Access log destination must not be blank");
+            }
+            this.accessLog = destination;
+            return this;
+        }
+
+        /**
+         * Sets the fraction of requests written to the access log;
+         * responses with a 5xx status are always written.
+         */
+        public Builder accessLogSampleRate(double rate) {
+            if (!(rate > 0 && rate <= 1)) {
+                throw new IllegalArgumentException("Access log sample rate must be in (0, 1]: " + rate);
+            }
+            this.accessLogSampleRate = rate;
+            return this;
+        }
+
+        /**
+         * Sets the size at which the access log file is rotated; the last
+         * {@value AccessLog#KEPT_FILES} rotated files are kept.
+         */
+        public Builder accessLogMaxFileSize(long bytes) {
+            if (bytes <= 0) {
+                throw new IllegalArgumentException("Access log max file size must be positive: " + bytes);
+            }
+            this.accessLogMaxFileSize = bytes;
+            return this;
+        }
+
+        public HttpServer build() {
+            return new HttpServer(this);
         }
     }
 
-    private static void scanDirectory(File directory, String packageName) {
-        if (directory.exists()) {
-            for (File file : directory.listFiles()) {
-                if (file.isDirectory()) {
-                    scanDirectory(file, packageName + "." + file.getName());
-                } else if (file.getName().endsWith(".class")) {
-                    String className = packageName + "." +
-                            file.getName().substring(0, file.getName().length() - 6);
-                    try {
-                        Class<?> clazz = Class.forName(className);
-                        if (clazz.isAnnotationPresent(RestController.class)) {
-                            registerController(clazz);
-                        }
-                    } catch (ClassNotFoundException e) {
-                        Logger.getLogger(HttpServer.class.getName())
-                                .log(Level.SEVERE, null, e);
-                    }
-                }
+    /**
+     * Binds the port and serves on a new thread.
+     *
+     * @return this server, already accepting connections
+     * @throws IOException if the port cannot be bound
+     */
+    public HttpServer start() throws IOException {
+        bind(null);
+        Thread thread = new Thread(this::serve, "http-server-" + getPort());
+        thread.start();
+        return this;
+    }
+
+    /**
+     * Binds the port and serves on the calling thread until {@link #stop()}.
+     */
+    public void run() throws IOException {
+        bind(null);
+        serve();
+    }
+
+    /**
+     * Binds the port, then creates the executor and runs {@code setup} and
+     * the static root setup while connections wait in the listen backlog.
+     */
+    private synchronized void bind(Runnable setup) throws IOException {
+        if (executorService != null) {
+            throw new IllegalStateException("Server already started");
+        }
+        startNanos = System.nanoTime();
+        try {
+            if (engine == ServerEngine.NIO) {
+                nioEngine = NioEngine.open(this, port, reactorThreads);
+            } else {
+                // Socket respaldado por un canal para poder usar transferTo
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                serverSocket = channel.socket();
+                serverSocket.setReuseAddress(true);
+                serverSocket.bind(new InetSocketAddress(port));
             }
+            System.out.println("Ready on: http://localhost:" + getPort() + " (" + engine + " engine)");
+        } catch (IOException e) {
+            System.err.println("Could not listen on port: " + port);
+            throw e;
+        }
+
+        long bound = System.nanoTime();
+
+        executorService = executorStrategy.create(workerPoolSize, workerQueueCapacity);
+        System.out.println("Executor strategy: " + executorStrategy);
+        if (accessLogDestination != null) {
+            accessLog = new AccessLog(accessLogDestination, accessLogSampleRate, accessLogMaxFileSize);
+        }
+        long executorReady = System.nanoTime();
+        // Con el puerto ya abierto: las conexiones esperan en el backlog
+        if (setup != null) {
+            setup.run();
+        }
+        System.out.println("Services loaded. Number of services: " + routes.size());
+        long controllersReady = System.nanoTime();
+        staticCache();
+        long ready = System.nanoTime();
+        running = true;
+
+        // El tiempo desde el inicio de la JVM se consulta en otro hilo: cargar la API de gestion tarda
+        Thread reporter = new Thread(() -> reportStartup(bound, executorReady, controllersReady, ready),
+                "startup-report");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    private void reportStartup(long bound, long executorReady, long controllersReady, long ready) {
+        long uptimeMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+        long processMicros = Math.max(0, uptimeMillis * 1000 - micros(System.nanoTime() - startNanos));
+        StartupReport report = new StartupReport(processMicros, micros(bound - startNanos),
+                micros(executorReady - bound), micros(controllersReady - executorReady),
+                micros(ready - controllersReady), processMicros + micros(ready - startNanos));
+        startupReport = report;
+        metrics.startupMicros = report.readyMicros();
+        System.out.println("Startup: " + report);
+        reportFirstRequest();
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    /**
+     * The startup time breakdown, or {@code null} before the server starts.
+     */
+    public StartupReport getStartupReport() {
+        return startupReport;
+    }
+
+    /**
+     * Microseconds from JVM start until this server received its first
+     * request; {@code -1} until then or until the startup report is ready.
+     */
+    public long getTimeToFirstRequestMicros() {
+        long first = firstRequestNanos.get();
+        StartupReport report = startupReport;
+        if (first == 0 || report == null) {
+            return -1;
+        }
+        return report.processMicros() + micros(first - startNanos);
+    }
+
+    private void firstRequest() {
+        if (firstRequestNanos.compareAndSet(0, System.nanoTime())) {
+            reportFirstRequest();
         }
     }
 
-    private static void registerController(Class<?> controllerClass) {
-        Method[] methods = controllerClass.getDeclaredMethods();
-        for (Method method : methods) {
-            if (method.isAnnotationPresent(GetMapping.class)) {
-                String mapping = method.getAnnotation(GetMapping.class).value();
-                services.put(mapping, method);
+    // La primera peticion puede llegar antes de que el informe de arranque este listo
+    private void reportFirstRequest() {
+        synchronized (firstRequestNanos) {
+            long micros = getTimeToFirstRequestMicros();
+            if (micros >= 0 && metrics.firstRequestMicros < 0) {
+                metrics.firstRequestMicros = micros;
+                System.out.println("First request " + StartupReport.millis(micros) + " after JVM start");
             }
         }
     }
 
-    public static void stopServer() {
-        running = false;
-        if (serverSocket != null && !serverSocket.isClosed()) {
+    private void serve() {
+        if (nioEngine != null) {
+            nioEngine.run(executorService);
+            return;
+        }
+        while (running && !serverSocket.isClosed()) {
+            Socket clientSocket = null;
             try {
-                serverSocket.close();
-                System.out.println("Server socket closed. No new connections will be accepted.");
+                clientSocket = serverSocket.accept();
+                dispatch(clientSocket);
             } catch (IOException e) {
-                Logger.getLogger(HttpServer.class.getName()).log(Level.SEVERE, "Error closing server socket", e);
+                if (!running || serverSocket.isClosed()) {
+                    break;
+                }
+                LOGGER.log(Level.WARNING, "Accept failed", e);
+            }
+        }
+    }
+
+    /**
+     * Drains and stops the server. Readiness turns to 503 and new requests
+     * are answered with {@code Connection: close}; after the drain delay the
+     * port is closed, idle connections are dropped and in-flight requests get
+     * until the drain timeout to finish. Requests still running then are
+     * aborted.
+     *
+     * @return how many requests were in flight when the port closed and how
+     *         many of them were aborted
+     */
+    public ShutdownReport stop() {
+        synchronized (this) {
+            if (draining) {
+                return new ShutdownReport(0, 0, 0);
             }
+            draining = true;
+        }
+        long start = System.nanoTime();
+        if (running && drainDelay > 0) {
+            System.out.println("Draining: not ready, closing the port in " + drainDelay + " ms");
+            sleep(drainDelay);
+        }
+
+        int active = (int) metrics.inFlightRequests();
+        closeListener();
+        closeIdleConnections();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainTimeout);
+        while (metrics.activeConnections() > 0 && System.nanoTime() - deadline < 0) {
+            sleep(10);
+        }
+        int aborted = (int) metrics.inFlightRequests();
+        running = false;
+        for (Http2Connection connection : http2Connections) {
+            connection.close();
         }
 
         if (executorService != null) {
             executorService.shutdown();
             try {
-                if (!executorService.awaitTermination(5, TimeUnit.SECONDS)) {
+                long remaining = Math.max(0, deadline - System.nanoTime());
+                if (!executorService.awaitTermination(remaining, TimeUnit.NANOSECONDS)) {
                     System.out.println("Forcing shutdown of remaining tasks...");
                     executorService.shutdownNow();
                 }
             } catch (InterruptedException e) {
                 executorService.shutdownNow();
-                Logger.getLogger(HttpServer.class.getName()).log(Level.SEVERE, "Interrupted during shutdown", e);
+                Thread.currentThread().interrupt();
+                LOGGER.log(Level.SEVERE, "Interrupted during shutdown", e);
             }
         }
+        // Respuestas asincronas que no terminaron a tiempo
+        for (CompletableFuture<Void> pending : pendingResponses) {
+            pending.cancel(true);
+        }
+        if (nioEngine != null) {
+            nioEngine.close();
+        }
+        PushEngine push = pushEngine;
+        if (push != null) {
+            push.close();
+        }
+        ScheduledExecutorService closer = refusedCloser;
+        if (closer != null) {
+            // Las conexiones que aun esperan se cierran ya
+            closer.shutdownNow().forEach(Runnable::run);
+        }
+        closeStaticCache();
+        AccessLog log = accessLog;
+        if (log != null) {
+            log.close();
+        }
+        ShutdownReport report = new ShutdownReport(active, aborted,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        System.out.println("Server stopped: " + report);
+        return report;
     }
 
-    public static void runServer(int port) throws IOException {
-        if (root == null) {
-            staticfilesFromClasspath("public");
+    private void closeListener() {
+        if (serverSocket != null && !serverSocket.isClosed()) {
+            try {
+                serverSocket.close();
+                System.out.println("Server socket closed. No new connections will be accepted.");
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Error closing server socket", e);
+            }
+        }
+        if (nioEngine != null) {
+            nioEngine.drain();
         }
-        loadServices("co.escuelaing.arep.microspringboot");
-        System.out.println("Services loaded. Number of services: " + services.size());
+    }
+
+    private static void sleep(long millis) {
         try {
-            serverSocket = new ServerSocket(port);
-            System.out.println("Ready on: http://localhost:" + port);
-        } catch (IOException e) {
-            System.err.println("Could not listen on port: " + port);
-            throw e;
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Whether {@link #stop()} has begun; readiness reports 503 from then on.
+     */
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * The bound port, or the configured one before the server starts.
+     */
+    public int getPort() {
+        if (serverSocket != null) {
+            return serverSocket.getLocalPort();
+        }
+        if (nioEngine != null) {
+            return nioEngine.port();
         }
+        return port;
+    }
 
-        executorService = Executors.newFixedThreadPool(10);
+    public Routes getRoutes() {
+        return routes;
+    }
+
+    /**
+     * Number of connections (blocking engine) or requests (NIO engine)
+     * currently being served by a worker of this server.
+     */
+    public int getActiveWorkerCount() {
+        return activeWorkers.get();
+    }
+
+    /**
+     * Number of accepted connections waiting for a worker of this server.
+     * Always 0 for virtual threads, which never queue.
+     */
+    public int getQueuedConnectionCount() {
+        if (executorService instanceof ThreadPoolExecutor pool) {
+            return pool.getQueue().size();
+        }
+        return 0;
+    }
+
+    int keepAliveTimeout() {
+        return keepAliveTimeout;
+    }
 
+    int maxKeepAliveRequests() {
+        return maxKeepAliveRequests;
+    }
+
+    int maxHeaderSize() {
+        return maxHeaderSize;
+    }
+
+    int maxBodySize() {
+        return maxBodySize;
+    }
+
+    RequestParser newParser() {
+        return new RequestParser(maxRequestLine, maxHeaderSize, maxBodySize);
+    }
+
+    /**
+     * Serves static files from {@code staticRoot}; the cache of the previous
+     * root is closed and a new one is created on the next request.
+     */
+    private synchronized void useStaticRoot(Path staticRoot) {
+        closeStaticCache();
+        root = staticRoot;
+    }
+
+    private synchronized void closeStaticCache() {
+        if (staticCache != null) {
+            staticCache.close();
+            staticCache = null;
+        }
+    }
+
+    private StaticResourceCache staticCache() {
+        StaticResourceCache cache = staticCache;
+        if (cache == null) {
+            synchronized (this) {
+                if (staticCache == null) {
+                    if (root == null) {
+                        root = classpathRoot("public");
+                    }
+                    staticCache = new StaticResourceCache(root, STATIC_CACHE_MAX_BYTES, STATIC_CACHE_MAX_ENTRY_BYTES);
+                }
+                cache = staticCache;
+            }
+        }
+        return cache;
+    }
+
+    // API estatica: un servidor por defecto configurado con las mismas opciones del builder
+
+    /**
+     * Builds the default server with the current settings, registers the
+     * controllers of the application package and serves on the calling
+     * thread until {@link #stopServer()}.
+     */
+    public static void runServer(int port) throws IOException {
+        HttpServer server = defaults.port(port).build();
+        current = server;
+        installShutdownHook();
+        // El escaneo del classpath se hace con el puerto ya abierto
+        server.bind(() -> defaultRoutes.scan(CONTROLLER_PACKAGE));
+        server.serve();
+    }
+
+    private static synchronized void installShutdownHook() {
+        if (shutdownHookInstalled) {
+            return;
+        }
+        shutdownHookInstalled = true;
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.out.println("Shutdown hook triggered. Stopping server...");
             stopServer();
             System.out.println("Server stopped gracefully.");
         }));
+    }
 
-        running = true;
-        while (running && !serverSocket.isClosed()) {
-            Socket clientSocket = null;
+    /**
+     * Drains and stops the default server.
+     *
+     * @return the drain report, or {@code null} if no server was started
+     */
+    public static ShutdownReport stopServer() {
+        HttpServer server = current;
+        return server != null ? server.stop() : null;
+    }
+
+    /**
+     * Registers the controllers of {@code packageName} on the default
+     * server.
+     */
+    public static void loadServices(String packageName) {
+        defaultRoutes.scan(packageName);
+    }
+
+    /**
+     * Registers {@code service} for {@code method} requests to
+     * {@code /api} followed by {@code path} on the default server.
+     *
+     * @see Routes#register(String, String, Service)
+     */
+    public static void registerService(String method, String path, Service service) {
+        defaultRoutes.register(method, path, service);
+    }
+
+    /**
+     * @see Builder#keepAliveTimeout(int)
+     */
+    public static void setKeepAliveTimeout(int millis) {
+        defaults.keepAliveTimeout(millis);
+    }
+
+    /**
+     * @see Builder#maxKeepAliveRequests(int)
+     */
+    public static void setMaxKeepAliveRequests(int max) {
+        defaults.maxKeepAliveRequests(max);
+    }
+
+    /**
+     * @see Builder#maxRequestLine(int)
+     */
+    public static void setMaxRequestLine(int bytes) {
+        defaults.maxRequestLine(bytes);
+    }
+
+    /**
+     * @see Builder#maxHeaderSize(int)
+     */
+    public static void setMaxHeaderSize(int bytes) {
+        defaults.maxHeaderSize(bytes);
+    }
+
+    /**
+     * @see Builder#maxBodySize(int)
+     */
+    public static void setMaxBodySize(int bytes) {
+        defaults.maxBodySize(bytes);
+    }
+
+    /**
+     * @see Builder#drainDelay(int)
+     */
+    public static void setDrainDelay(int millis) {
+        defaults.drainDelay(millis);
+    }
+
+    /**
+     * @see Builder#drainTimeout(int)
+     */
+    public static void setDrainTimeout(int millis) {
+        defaults.drainTimeout(millis);
+    }
+
+    /**
+     * @see Builder#maxConnections(int)
+     */
+    public static void setMaxConnections(int connections) {
+        defaults.maxConnections(connections);
+    }
+
+    /**
+     * @see Builder#maxStreams(int)
+     */
+    public static void setMaxStreams(int streams) {
+        defaults.maxStreams(streams);
+    }
+
+    /**
+     * @see Builder#rateLimit(int, int)
+     */
+    public static void setRateLimit(int requestsPerSecond, int burst) {
+        defaults.rateLimit(requestsPerSecond, burst);
+    }
+
+    /**
+     * @see Builder#retryAfter(int)
+     */
+    public static void setRetryAfter(int seconds) {
+        defaults.retryAfter(seconds);
+    }
+
+    /**
+     * @see Builder#asyncTimeout(int)
+     */
+    public static void setAsyncTimeout(int millis) {
+        defaults.asyncTimeout(millis);
+    }
+
+    /**
+     * @see Builder#executor(ExecutorStrategy)
+     */
+    public static void setExecutorStrategy(ExecutorStrategy strategy) {
+        defaults.executor(strategy);
+    }
+
+    /**
+     * @see Builder#workerPoolSize(int)
+     */
+    public static void setWorkerPoolSize(int size) {
+        defaults.workerPoolSize(size);
+    }
+
+    /**
+     * @see Builder#workerQueueCapacity(int)
+     */
+    public static void setWorkerQueueCapacity(int capacity) {
+        defaults.workerQueueCapacity(capacity);
+    }
+
+    /**
+     * @see Builder#engine(ServerEngine)
+     */
+    public static void setEngine(ServerEngine serverEngine) {
+        defaults.engine(serverEngine);
+    }
+
+    /**
+     * @see Builder#reactorThreads(int)
+     */
+    public static void setReactorThreads(int threads) {
+        defaults.reactorThreads(threads);
+    }
+
+    /**
+     * @see Builder#http2(boolean)
+     */
+    public static void setHttp2(boolean enabled) {
+        defaults.http2(enabled);
+    }
+
+    /**
+     * @see Builder#accessLog(String)
+     */
+    public static void setAccessLog(String destination) {
+        defaults.accessLog(destination);
+    }
+
+    /**
+     * @see Builder#accessLogSampleRate(double)
+     */
+    public static void setAccessLogSampleRate(double rate) {
+        defaults.accessLogSampleRate(rate);
+    }
+
+    /**
+     * @see Builder#accessLogMaxFileSize(long)
+     */
+    public static void setAccessLogMaxFileSize(long bytes) {
+        defaults.accessLogMaxFileSize(bytes);
+    }
+
+    /**
+     * Hit and miss counters of every {@code @Cacheable} route of the
+     * default server.
+     */
+    public static List<CacheStats> getCacheStats() {
+        return defaultRoutes.getCacheStats();
+    }
+
+    /**
+     * Workers of the default server currently serving.
+     */
+    public static int getActiveWorkers() {
+        HttpServer server = current;
+        return server != null ? server.getActiveWorkerCount() : 0;
+    }
+
+    /**
+     * Connections waiting for a worker of the default server.
+     */
+    public static int getQueuedConnections() {
+        HttpServer server = current;
+        return server != null ? server.getQueuedConnectionCount() : 0;
+    }
+
+    /**
+     * Sets the static root of the default server, also for the running one.
+     */
+    public static void staticfiles(String route) {
+        defaults.staticFiles(route);
+        HttpServer server = current;
+        if (server != null) {
+            server.useStaticRoot(defaults.root);
+        }
+    }
+
+    /**
+     * @see #staticfiles(String)
+     * @see Builder#staticFilesFromClasspath(String)
+     */
+    public static void staticfilesFromClasspath(String resourceRoot) {
+        defaults.staticFilesFromClasspath(resourceRoot);
+        HttpServer server = current;
+        if (server != null) {
+            server.useStaticRoot(defaults.root);
+        }
+    }
+
+    private void dispatch(Socket clientSocket) {
+        if (!admit()) {
+            rejectConnection(clientSocket, serviceUnavailable);
+            return;
+        }
+        long wait = throttleConnection(clientSocket.getInetAddress());
+        if (wait > 0) {
+            release();
+            rejectConnection(clientSocket, tooManyRequests(wait));
+            return;
+        }
+        try {
+            executorService.execute(tracked(() -> handleClient(clientSocket)));
+        } catch (RejectedExecutionException e) {
+            release();
+            metrics.connectionsRejected.increment();
+            rejectConnection(clientSocket, serviceUnavailable);
+        }
+    }
+
+    /**
+     * Reserves a connection slot, or counts a rejection when all
+     * {@code maxConnections} are taken. Every successful call is paired with
+     * {@link #release()}.
+     */
+    boolean admit() {
+        int open;
+        do {
+            open = admittedConnections.get();
+            if (open >= maxConnections) {
+                metrics.connectionsRejected.increment();
+                return false;
+            }
+        } while (!admittedConnections.compareAndSet(open, open + 1));
+        return true;
+    }
+
+    void release() {
+        admittedConnections.decrementAndGet();
+    }
+
+    /**
+     * Takes a rate limit token for a request from {@code client}.
+     *
+     * @return {@code 0}, or the nanoseconds to wait if it must get a 429
+     */
+    long throttle(InetAddress client) {
+        if (rateLimiter == null) {
+            return 0;
+        }
+        long wait = rateLimiter.acquire(client);
+        if (wait > 0) {
+            metrics.rateLimited.increment();
+        }
+        return wait;
+    }
+
+    /**
+     * Checks, without taking a token, whether a new connection from
+     * {@code client} would only get 429s.
+     */
+    long throttleConnection(InetAddress client) {
+        if (rateLimiter == null) {
+            return 0;
+        }
+        long wait = rateLimiter.peek(client);
+        if (wait > 0) {
+            metrics.rateLimited.increment();
+        }
+        return wait;
+    }
+
+    byte[] serviceUnavailable() {
+        return serviceUnavailable;
+    }
+
+    static byte[] tooManyRequests(long waitNanos) {
+        // Redondeado hacia arriba: antes de ese tiempo el cliente seguiria sin turno
+        int seconds = (int) Math.max(1, (waitNanos + 999_999_999) / 1_000_000_000);
+        return rejection("429 Too Many Requests", seconds);
+    }
+
+    // Respuesta completa que cierra la conexion; se escribe sin pasar por un hilo de trabajo
+    private static byte[] rejection(String status, int retryAfter) {
+        String body = "<html><body><h1>" + status.replaceFirst(" ", " - ") + "</h1></body></html>";
+        return ("HTTP/1.1 " + status + "\r\n"
+                + "content-type: text/html; charset=utf-8\r\n"
+                + "content-length: " + body.length() + "\r\n"
+                + "retry-after: " + retryAfter + "\r\n"
+                + "connection: close\r\n"
+                + "\r\n"
+                + body)
+                .getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Runs {@code task} on a worker of this server.
+     *
+     * @throws RejectedExecutionException if the pool is shut down or its
+     *         queue is full
+     */
+    void execute(Runnable task) {
+        executorService.execute(tracked(task));
+    }
+
+    /**
+     * Called once by an HTTP/2 connection after it has closed its socket.
+     */
+    void http2Closed(Http2Connection connection) {
+        if (http2Connections.remove(connection)) {
+            metrics.connectionClosed();
+            release();
+        }
+    }
+
+    /**
+     * Wraps a worker task so it is counted in {@link #getActiveWorkerCount()}.
+     */
+    Runnable tracked(Runnable task) {
+        return () -> {
+            activeWorkers.incrementAndGet();
             try {
-                System.out.println("Ready to listen ...");
-                clientSocket = serverSocket.accept();
-                Socket finalClientSocket = clientSocket;
-                executorService.submit(() -> handleClient(finalClientSocket));
+                task.run();
+            } finally {
+                activeWorkers.decrementAndGet();
+            }
+        };
+    }
+
+    private void rejectConnection(Socket clientSocket, byte[] response) {
+        try {
+            clientSocket.setSoTimeout(1000);
+            OutputStream out = clientSocket.getOutputStream();
+            out.write(response);
+            out.flush();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, null, e);
+        }
+        closeRefused(clientSocket);
+    }
+
+    /**
+     * Closes a refused connection once its response has been written,
+     * without the client losing it: the write side is shut down at once,
+     * and the socket is closed {@value #REFUSED_LINGER_MILLIS} ms later,
+     * after discarding the request the client sent meanwhile. Closing with
+     * that request unread would make the kernel answer with RST, and the
+     * client could drop the 503 or 429 before reading it.
+     */
+    void closeRefused(Socket socket) {
+        try {
+            socket.shutdownOutput();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, null, e);
+            closeQuietly(socket);
+            return;
+        }
+        try {
+            refusedCloser().schedule(() -> discardInputAndClose(socket), REFUSED_LINGER_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // El servidor se detuvo
+            closeQuietly(socket);
+        }
+    }
+
+    private ScheduledExecutorService refusedCloser() {
+        ScheduledExecutorService closer = refusedCloser;
+        if (closer == null) {
+            synchronized (this) {
+                closer = refusedCloser;
+                if (closer == null) {
+                    closer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                        Thread thread = new Thread(runnable, "http-refused-" + getPort());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    refusedCloser = closer;
+                }
+            }
+        }
+        return closer;
+    }
+
+    private static void discardInputAndClose(Socket socket) {
+        try (socket) {
+            SocketChannel channel = socket.getChannel();
+            if (channel != null) {
+                channel.configureBlocking(true);
+            }
+            InputStream in = socket.getInputStream();
+            int available;
+            while ((available = in.available()) > 0 && in.skip(available) > 0) {
+                // Solo se descarta lo que ya llego: nunca se bloquea
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, null, e);
+        }
+    }
+
+    private void closeIdleConnections() {
+        for (Socket socket : idleConnections) {
+            try {
+                socket.close();
             } catch (IOException e) {
-                if (!running || serverSocket.isClosed()) {
-                    System.out.println("Server is shutting down, ignoring accept failure.");
-                    break;
+                LOGGER.log(Level.FINE, null, e);
+            }
+        }
+        idleConnections.clear();
+        // En HTTP/2 se anuncia GOAWAY y la conexion se cierra al terminar sus flujos
+        for (Http2Connection connection : http2Connections) {
+            connection.shutdown();
+        }
+        // Los flujos no terminan solos: se cierran y los clientes reconectan a otra instancia
+        PushEngine push = pushEngine;
+        if (push != null) {
+            push.shutdown();
+        }
+    }
+
+    /**
+     * The engine that takes over push connections, started on first use.
+     */
+    PushEngine pushEngine() throws IOException {
+        PushEngine push = pushEngine;
+        if (push == null) {
+            synchronized (this) {
+                push = pushEngine;
+                if (push == null) {
+                    push = new PushEngine(this);
+                    pushEngine = push;
                 }
-                System.err.println("Accept failed: " + e.getMessage());
             }
         }
+        return push;
     }
 
-    private static void handleClient(Socket clientSocket) {
-        try (OutputStream rawOut = clientSocket.getOutputStream();
-                PrintWriter out = new PrintWriter(rawOut, true);
-                BufferedReader in = new BufferedReader(
-                        new InputStreamReader(clientSocket.getInputStream()))) {
+    private void handleClient(Socket clientSocket) {
+        metrics.connectionOpened();
+        ClientConnection connection;
+        try {
+            connection = new ClientConnection(clientSocket);
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, null, e);
+            metrics.connectionClosed();
+            release();
+            closeQuietly(clientSocket);
+            return;
+        }
+        connection.serve();
+    }
 
-            String inputLine;
-            String outputLine;
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, null, e);
+        }
+    }
+
+    /**
+     * A connection of the blocking engine. A worker reads and answers its
+     * requests in a loop. When a controller answers asynchronously the loop
+     * returns, freeing the worker, and once that response has been written
+     * the connection goes back to the pool to read the next request.
+     */
+    private final class ClientConnection {
+
+        private final Socket socket;
+        private final OutputStream out;
+        private final RequestReader reader;
+        private int served;
+
+        ClientConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = socket.getChannel() != null
+                    ? new SocketChannelOutputStream(socket.getChannel())
+                    : new BufferedOutputStream(socket.getOutputStream());
+            socket.setSoTimeout(keepAliveTimeout);
+            this.reader = new RequestReader(socket.getInputStream(), newParser());
+        }
+
+        void serve() {
+            try {
+                boolean keepAlive = true;
+                while (keepAlive) {
+                    HttpRequest req;
+                    boolean preface;
+                    idleConnections.add(socket);
+                    try {
+                        // Al drenar no se espera otra peticion en una conexion ya usada
+                        if (draining && served > 0) {
+                            break;
+                        }
+                        // Solo la primera peticion puede ser el prefacio de HTTP/2 (prior knowledge)
+                        preface = served == 0 && http2 && reader.consumePrefix(Http2Connection.PREFACE);
+                        req = preface ? null : reader.next();
+                    } catch (SocketTimeoutException | EOFException e) {
+                        // Conexion inactiva o cerrada a mitad de peticion: se libera el hilo
+                        break;
+                    } catch (MalformedRequestException e) {
+                        sendMalformed(out, e);
+                        break;
+                    } finally {
+                        idleConnections.remove(socket);
+                    }
+                    if (preface) {
+                        startHttp2(null, null);
+                        return;
+                    }
+                    if (req == null) {
+                        break;
+                    }
+                    served++;
+                    long wait = throttle(socket.getInetAddress());
+                    if (wait > 0) {
+                        out.write(tooManyRequests(wait));
+                        break;
+                    }
+                    byte[] settings = http2 && !draining ? Http2Connection.upgradeSettings(req) : null;
+                    // Un flujo de eventos no puede ir en HTTP/2: se ignora la oferta y sigue en HTTP/1.1
+                    if (settings != null && !isStream(req)) {
+                        out.write(Http2Connection.switchingProtocols());
+                        out.flush();
+                        startHttp2(req, settings);
+                        return;
+                    }
+                    keepAlive = req.isKeepAlive() && served < maxKeepAliveRequests && !draining;
 
-            boolean isFirstLine = true;
-            URI requesturi = null;
+                    CompletableFuture<Void> pending = handleRequest(req, out, keepAlive);
+                    PushEngine.Subscription subscription = req.getSubscription();
+                    if (subscription != null) {
+                        out.flush();
+                        startStream(subscription);
+                        return;
+                    }
+                    if (!pending.isDone()) {
+                        out.flush();
+                        boolean next = keepAlive;
+                        pending.whenComplete((ignored, failure) -> resume(next && failure == null));
+                        return;
+                    }
+                    if (pending.isCompletedExceptionally()) {
+                        break;
+                    }
 
-            while ((inputLine = in.readLine()) != null) {
-                if (isFirstLine) {
-                    requesturi = new URI(inputLine.split(" ")[1]);
-                    System.out.println("Received: " + inputLine);
-                    System.out.println("Path: " + requesturi.getPath());
-                    isFirstLine = false;
+                    // Con pipelining se agrupan las respuestas mientras haya peticiones en el buffer
+                    if (!reader.hasBuffered()) {
+                        out.flush();
+                    }
                 }
-                // System.out.println("Received: " + inputLine);
-                if (!in.ready()) {
-                    break;
+                out.flush();
+            } catch (IOException e) {
+                // Al detener el servidor se cierran los sockets inactivos
+                if (!draining) {
+                    LOGGER.log(Level.SEVERE, null, e);
+                }
+            }
+            close();
+        }
+
+        /**
+         * Hands the socket to an HTTP/2 connection with a reader thread of
+         * its own, so this worker goes back to the pool and is free to run
+         * the connection's streams.
+         */
+        private void startHttp2(HttpRequest upgrade, byte[] settings) throws IOException {
+            Http2Connection connection = new Http2Connection(HttpServer.this, socket, reader.remaining(), out,
+                    upgrade, settings);
+            http2Connections.add(connection);
+            metrics.http2Connections.increment();
+            Thread thread = new Thread(connection::serve, "http2-" + socket.getRemoteSocketAddress());
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Hands the socket, whose handshake has been written, to the push
+         * engine, which from then on closes and releases it.
+         */
+        private void startStream(PushEngine.Subscription subscription) throws IOException {
+            SocketChannel channel = socket.getChannel();
+            if (channel == null) {
+                throw new IOException("Push endpoints need a channel-backed socket");
+            }
+            pushEngine().register(channel, subscription);
+        }
+
+        // Tras una respuesta asincrona la lectura sigue en otra tarea del pool
+        private void resume(boolean keepAlive) {
+            try {
+                out.flush();
+                if (keepAlive && !draining) {
+                    executorService.execute(tracked(this::serve));
+                    return;
                 }
+            } catch (IOException | RejectedExecutionException e) {
+                LOGGER.log(Level.FINE, null, e);
             }
+            close();
+        }
+
+        private void close() {
+            metrics.connectionClosed();
+            release();
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Answers a request the parser rejected and closes the connection, since
+     * the rest of the stream cannot be framed.
+     */
+    void sendMalformed(OutputStream out, MalformedRequestException e) throws IOException {
+        metrics.malformedRequests.increment();
+        String status = e.getStatus();
+        byte[] body = ("<html><body><h1>" + status.replaceFirst(" ", " - ") + "</h1></body></html>")
+                .getBytes(StandardCharsets.UTF_8);
+        sendResponse(out, status, "text/html; charset=utf-8", body, false, false);
+    }
 
-            if (requesturi == null) {
-                outputLine = FILE_NOT_FOUND_RESPONSE;
-                // System.out.println("Response: " + outputLine);
-                out.println(outputLine);
-            } else if (requesturi.getPath().startsWith("/api")) {
-                outputLine = invokeService(requesturi);
-                // System.out.println("Response: " + outputLine);
-                out.println(outputLine);
+    /**
+     * Writes the complete response for {@code req} to {@code out}. Shared by
+     * both engines.
+     *
+     * @return a completed future, or, for a controller that returned a
+     *         {@link CompletionStage}, one that completes once the response
+     *         has been written; cancelling it cancels the controller's stage
+     */
+    CompletableFuture<Void> handleRequest(HttpRequest req, OutputStream connection, boolean keepAlive)
+            throws IOException {
+        long start = System.nanoTime();
+        metrics.requestStarted();
+        if (firstRequestNanos.get() == 0) {
+            firstRequest();
+        }
+        CountingOutputStream out = new CountingOutputStream(connection);
+        boolean head = "HEAD".equals(req.getMethod());
+        String path = req.getPath();
+        if (path.equals(API_PREFIX) || path.startsWith(API_PREFIX + "/")) {
+            return invokeService(req, out, keepAlive, head, start);
+        }
+        ServerMetrics.RouteStats stats = metrics.staticFiles();
+        try {
+            if (!head && !"GET".equals(req.getMethod())) {
+                sendResponse(out, "405 Method Not Allowed", "text/html; charset=utf-8", METHOD_NOT_ALLOWED_BODY,
+                        "allow: GET, HEAD\r\n", keepAlive, false);
+            } else if (path.equals(METRICS_PATH)) {
+                stats = metrics.metricsScrapes();
+                byte[] body = metrics.scrape(routes.routeStats(), routes.getCacheStats(),
+                        getActiveWorkerCount(), getQueuedConnectionCount(), draining, accessLog)
+                        .getBytes(StandardCharsets.UTF_8);
+                sendResponse(out, "200 OK", ServerMetrics.CONTENT_TYPE, body, keepAlive, head);
+            } else if (path.equals(LIVENESS_PATH) || path.equals(READINESS_PATH)) {
+                stats = metrics.healthChecks();
+                // Vivo mientras responda; listo solo si no esta drenando
+                boolean up = path.equals(LIVENESS_PATH) || (running && !draining);
+                sendResponse(out, up ? "200 OK" : "503 Service Unavailable", "text/plain; charset=utf-8",
+                        up ? UP_BODY : DRAINING_BODY, keepAlive, head);
             } else {
-                Path file = mapToStaticFiles(requesturi.getPath());
-                if (Files.exists(file) && !Files.isDirectory(file)) {
-                    String contentType = detectContentType(file);
-                    if (isTextContentType(contentType)) {
-                        outputLine = fileRequestService(file);
-                        // System.out.println("Response: " + outputLine);
-                        out.println(outputLine);
-                    } else {
-                        serveBinaryFile(rawOut, file, contentType);
-                    }
+                serveStaticFile(req, out, keepAlive, head);
+            }
+        } finally {
+            finished(req, out, start, stats);
+        }
+        stats.record(start);
+        return COMPLETED;
+    }
+
+    private void finished(HttpRequest req, CountingOutputStream out, long start, ServerMetrics.RouteStats stats) {
+        metrics.requestFinished();
+        metrics.bytesSent.add(out.count());
+        AccessLog log = accessLog;
+        if (log != null) {
+            log.log(req.getMethod(), req.getPath(), out.status(), out.count(), System.nanoTime() - start, stats.route);
+        }
+    }
+
+    private void serveStaticFile(HttpRequest req, OutputStream out, boolean keepAlive, boolean head)
+            throws IOException {
+        String key = req.getPath();
+        StaticResourceCache cache = staticCache();
+        StaticResourceCache.Resource resource = cache.get(key);
+        if (resource == null) {
+            Path file = mapToStaticFiles(key);
+            if (file == null || !Files.isRegularFile(file)) {
+                sendResponse(out, "404 Not Found", "text/html; charset=utf-8", FILE_NOT_FOUND_BODY, keepAlive, head);
+                return;
+            }
+            String contentType = detectContentType(file);
+            resource = cache.load(key, file, contentType, isTextContentType(contentType));
+        }
+        StaticResourceCache.Variant variant = resource.select(req);
+        byte[] end = keepAlive ? KEEP_ALIVE_END : CLOSE_END;
+        if (variant.isNotModified(req)) {
+            out.write(variant.notModifiedHeader);
+            out.write(end);
+            return;
+        }
+        String range = head ? null : req.getHeader("range");
+        if (range != null && variant.matchesIfRange(req.getHeader("if-range"))) {
+            List<ByteRanges.Range> ranges = ByteRanges.parse(range, variant.size);
+            if (ranges != null) {
+                sendRanges(out, variant, ranges, end);
+                return;
+            }
+        }
+        out.write(variant.header);
+        out.write(end);
+        if (head) {
+            return;
+        }
+        sendSlice(out, variant, 0, variant.size);
+    }
+
+    /**
+     * Answers a satisfiable range with a single-part 206, several with a
+     * {@code multipart/byteranges} body, and none with a 416.
+     */
+    private static void sendRanges(OutputStream out, StaticResourceCache.Variant variant,
+            List<ByteRanges.Range> ranges, byte[] end) throws IOException {
+        if (ranges.isEmpty()) {
+            out.write(variant.unsatisfiableHeader());
+            out.write(end);
+            return;
+        }
+        if (ranges.size() == 1) {
+            ByteRanges.Range range = ranges.get(0);
+            out.write(variant.partialHeader(variant.contentType, range.length(), range.contentRange(variant.size)));
+            out.write(end);
+            sendSlice(out, variant, range.first(), range.length());
+            return;
+        }
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+        byte[][] partHeads = new byte[ranges.size()][];
+        byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        // La longitud total se conoce antes de escribir: cabeceras de cada parte mas sus bytes
+        long length = closing.length;
+        for (int i = 0; i < partHeads.length; i++) {
+            ByteRanges.Range range = ranges.get(i);
+            partHeads[i] = ("\r\n--" + boundary + "\r\n"
+                    + "content-type: " + variant.contentType + "\r\n"
+                    + "content-range: " + range.contentRange(variant.size) + "\r\n"
+                    + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            length += partHeads[i].length + range.length();
+        }
+        out.write(variant.partialHeader("multipart/byteranges; boundary=" + boundary, length, null));
+        out.write(end);
+        for (int i = 0; i < partHeads.length; i++) {
+            ByteRanges.Range range = ranges.get(i);
+            out.write(partHeads[i]);
+            sendSlice(out, variant, range.first(), range.length());
+        }
+        out.write(closing);
+    }
+
+    // Del cuerpo en memoria o con una lectura posicionada del archivo
+    private static void sendSlice(OutputStream out, StaticResourceCache.Variant variant, long position, long count)
+            throws IOException {
+        if (variant.body != null) {
+            out.write(variant.body, (int) position, (int) count);
+        } else if (out instanceof FileSink sink) {
+            sink.transferFile(variant.file, position, count);
+        } else {
+            FileSink.copy(variant.file, position, count, out);
+        }
+    }
+
+    private CompletableFuture<Void> invokeService(HttpRequest req, CountingOutputStream out, boolean keepAlive,
+            boolean head, long start) throws IOException {
+        String key = req.getPath().substring(API_PREFIX.length());
+        Router.Match match = routes.find(req.getMethod(), key);
+        if (match == null || match.handler == null) {
+            try {
+                if (match == null) {
+                    sendResponse(out, "404 Not Found", "text/html; charset=utf-8", NOT_FOUND_BODY, keepAlive, head);
                 } else {
-                    outputLine = FILE_NOT_FOUND_RESPONSE;
-                    // System.out.println("Response: " + outputLine);
-                    out.println(outputLine);
+                    sendResponse(out, "405 Method Not Allowed", "text/html; charset=utf-8", METHOD_NOT_ALLOWED_BODY,
+                            "allow: " + String.join(", ", match.allowed) + "\r\n", keepAlive, head);
                 }
+            } finally {
+                finished(req, out, start, metrics.unmatched());
             }
-        } catch (IOException | URISyntaxException e) {
-            Logger.getLogger(HttpServer.class.getName()).log(Level.SEVERE, null, e);
-        } finally {
+            metrics.unmatched().record(start);
+            return COMPLETED;
+        }
+        RouteHandler handler = match.handler;
+        req.setPathVariables(match.variables);
+        if (handler.isStream()) {
+            return openStream(req, handler, out, keepAlive, head, start);
+        }
+        HttpResponse res = new HttpResponse(out, keepAlive, head, "HTTP/1.1".equals(req.getVersion()));
+        boolean async = false;
+        try {
             try {
-                clientSocket.close();
-            } catch (IOException e) {
-                Logger.getLogger(HttpServer.class.getName()).log(Level.SEVERE, null, e);
+                ResponseCache cache = handler.cache();
+                if (cache != null) {
+                    Object[] args = handler.bind(req, null);
+                    ResponseCache.Cached cached = cache.get(Arrays.asList(args), () -> {
+                        HttpResponse capture = HttpResponse.capturing();
+                        writeResult(capture, handler.call(args));
+                        return capture.snapshot();
+                    });
+                    cached.writeTo(out, keepAlive ? KEEP_ALIVE_END : CLOSE_END, head);
+                    handler.stats().record(start);
+                    return COMPLETED;
+                }
+                Object result = handler.invoke(req, res);
+                if (result instanceof CompletionStage<?> stage) {
+                    CompletableFuture<Void> pending = completeLater(stage, handler, req, res, out, start);
+                    async = true;
+                    return pending;
+                }
+                writeResult(res, result);
+            } catch (BadRequestException e) {
+                sendError(res, 400, e.getMessage(), e);
+            } catch (Exception e) {
+                LOGGER.log(Level.SEVERE, "Error in " + handler, e);
+                handler.stats().errors.increment();
+                sendError(res, 500, "ERROR!", e);
+            }
+            res.finish();
+        } finally {
+            if (!async) {
+                finished(req, out, start, handler.stats());
             }
         }
+        handler.stats().record(start);
+        return COMPLETED;
     }
 
-    private static String invokeService(URI requesturi) {
-        String header = generalService("text/html");
+    /**
+     * Answers the handshake of a push endpoint: the head of a Server-Sent
+     * Events stream, or the {@code 101} of a WebSocket upgrade. The request
+     * is then marked with its subscription and the engine hands the
+     * connection to the {@link PushEngine} after writing the head. A failed
+     * handshake, or a hub of {@code null}, is an ordinary response.
+     */
+    private CompletableFuture<Void> openStream(HttpRequest req, RouteHandler handler, CountingOutputStream out,
+            boolean keepAlive, boolean head, long start) throws IOException {
         try {
-            HttpRequest req = new HttpRequest(requesturi);
-            // HttpResponse res = new HttpResponse();
-            String key = requesturi.getPath().substring(4);
+            boolean webSocket = WebSocket.isUpgrade(req);
+            String status = null;
+            String message = null;
+            BroadcastHub hub = null;
+            if ("HTTP/2.0".equals(req.getVersion())) {
+                status = "505 HTTP Version Not Supported";
+                message = "Event streams are served over HTTP/1.1";
+            } else if (webSocket && (status = WebSocket.rejection(req)) != null) {
+                message = "Invalid WebSocket handshake";
+            } else if (draining) {
+                status = "503 Service Unavailable";
+                message = "DRAINING";
+            } else if (!head && metrics.streamSubscribers.sum() >= maxStreams) {
+                // Tope aproximado: varios saludos simultaneos pueden pasarlo por poco
+                status = "503 Service Unavailable";
+                message = "Too many streams";
+            } else {
+                try {
+                    hub = (BroadcastHub) handler.invoke(req, null);
+                    if (hub == null) {
+                        status = "404 Not Found";
+                        message = "No such stream";
+                    }
+                } catch (BadRequestException e) {
+                    status = "400 Bad Request";
+                    message = e.getMessage();
+                } catch (Exception e) {
+                    LOGGER.log(Level.SEVERE, "Error in " + handler, e);
+                    handler.stats().errors.increment();
+                    status = "500 Internal Server Error";
+                    message = "ERROR!";
+                }
+            }
+            if (status != null) {
+                String headers = webSocket ? WebSocket.rejectionHeaders() : "";
+                if (status.startsWith("503")) {
+                    headers += "retry-after: " + retryAfter + "\r\n";
+                }
+                sendResponse(out, status, "text/plain; charset=utf-8", message.getBytes(StandardCharsets.UTF_8),
+                        headers, keepAlive, head);
+            } else if (head) {
+                sendResponse(out, "200 OK", "text/event-stream; charset=utf-8", new byte[0], keepAlive, true);
+            } else if (webSocket) {
+                out.write(WebSocket.switchingProtocols(req));
+                req.setSubscription(new PushEngine.Subscription(hub, true));
+            } else {
+                out.write(EVENT_STREAM_HEAD);
+                req.setSubscription(new PushEngine.Subscription(hub, false));
+            }
+        } finally {
+            finished(req, out, start, handler.stats());
+        }
+        handler.stats().record(start);
+        return COMPLETED;
+    }
 
-            System.out.println("Key: " + key);
-            Method m = services.get(key);
-            String[] argsValues = null;
-            RequestParam rp = (RequestParam) m.getParameterAnnotations()[0][0];
+    // Solo se consulta cuando la peticion ofrece pasar a h2c
+    private boolean isStream(HttpRequest req) {
+        String path = req.getPath();
+        if (!path.startsWith(API_PREFIX + "/")) {
+            return false;
+        }
+        Router.Match match = routes.find(req.getMethod(), path.substring(API_PREFIX.length()));
+        return match != null && match.handler != null && match.handler.isStream();
+    }
 
-            if (requesturi.getQuery() == null) {
-                argsValues = new String[] { rp.defaultValue() };
+    /**
+     * Takes over the response of a controller that returned a
+     * {@link CompletionStage}, so the calling worker is free at once. When
+     * the stage completes, fails or runs out of time (504, and the stage is
+     * cancelled) the response is written on a worker thread and the returned
+     * future completes. Cancelling that future, as the engines do when the
+     * client goes away or the server stops, cancels the stage.
+     */
+    private CompletableFuture<Void> completeLater(CompletionStage<?> stage, RouteHandler handler, HttpRequest req,
+            HttpResponse res, CountingOutputStream out, long start) {
+        CompletableFuture<?> source = stage.toCompletableFuture();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        pendingResponses.add(done);
+        done.whenComplete((ignored, failure) -> {
+            pendingResponses.remove(done);
+            if (done.isCancelled()) {
+                source.cancel(true);
+            }
+        });
+        // Copia con plazo: el futuro del controlador solo se cancela, nunca se completa desde aqui
+        CompletableFuture<Object> timed = new CompletableFuture<>();
+        source.whenComplete((value, failure) -> {
+            if (failure != null) {
+                timed.completeExceptionally(failure);
             } else {
-                String queryParamName = rp.value();
-                argsValues = new String[] { req.getValue(queryParamName) };
+                timed.complete(value);
             }
-            return header + m.invoke(null, argsValues);
-        } catch (IllegalAccessException | InvocationTargetException ex) {
-            Logger.getLogger(HttpServer.class.getName()).log(Level.SEVERE, null, ex);
+        });
+        long timeout = handler.timeout() > 0 ? handler.timeout() : asyncTimeout;
+        timed.orTimeout(timeout, TimeUnit.MILLISECONDS).whenCompleteAsync((value, failure) -> {
+            Exception error = null;
+            try {
+                if (!done.isDone()) {
+                    writeAsyncResult(handler, res, source, value, failure);
+                    handler.stats().record(start);
+                }
+            } catch (IOException | RuntimeException e) {
+                error = e;
+            }
+            finished(req, out, start, handler.stats());
+            if (error != null) {
+                done.completeExceptionally(error);
+            } else {
+                done.complete(null);
+            }
+        }, this::runOnWorker);
+        return done;
+    }
+
+    private void writeAsyncResult(RouteHandler handler, HttpResponse res, CompletableFuture<?> source, Object value,
+            Throwable failure) throws IOException {
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+                ? failure.getCause()
+                : failure;
+        if (cause == null) {
+            try {
+                writeResult(res, value);
+                res.finish();
+                return;
+            } catch (RuntimeException e) {
+                cause = e;
+            }
+        }
+        if (cause instanceof TimeoutException) {
+            source.cancel(true);
+            handler.stats().errors.increment();
+            sendError(res, 504, "Gateway Timeout", cause);
+        } else if (cause instanceof BadRequestException) {
+            sendError(res, 400, cause.getMessage(), cause);
+        } else {
+            LOGGER.log(Level.SEVERE, "Error in " + handler, cause);
+            handler.stats().errors.increment();
+            sendError(res, 500, "ERROR!", cause);
         }
-        return header + "ERROR!";
+        res.finish();
+    }
 
+    // En el pool de trabajo; si no acepta la tarea (lleno o detenido) en el hilo actual
+    private void runOnWorker(Runnable task) {
+        ExecutorService workers = executorService;
+        if (workers != null) {
+            try {
+                workers.execute(tracked(task));
+                return;
+            } catch (RejectedExecutionException e) {
+                // Se escribe igual: la respuesta ya esta calculada
+            }
+        }
+        task.run();
     }
 
-    private static Path mapToStaticFiles(String path) {
+    /**
+     * Writes a controller's return value after whatever it wrote itself:
+     * strings as text, bytes as they are and anything else as JSON. The
+     * content type follows the value unless the controller set one.
+     */
+    private static void writeResult(HttpResponse res, Object result) throws IOException {
+        if (result == null) {
+            return;
+        }
+        if (result instanceof byte[]) {
+            defaultContentType(res, "application/octet-stream");
+            res.write((byte[]) result);
+        } else if (result instanceof ByteBuffer) {
+            defaultContentType(res, "application/octet-stream");
+            res.write((ByteBuffer) result);
+        } else if (result instanceof CharSequence) {
+            defaultContentType(res, "text/plain; charset=utf-8");
+            res.write(result.toString());
+        } else {
+            defaultContentType(res, "application/json");
+            JsonEncoder.write(result, res.getOutputStream());
+        }
+    }
+
+    private static void defaultContentType(HttpResponse res, String contentType) {
+        if (!res.isCommitted() && res.getHeader("content-type") == null) {
+            res.setContentType(contentType);
+        }
+    }
+
+    private static void sendError(HttpResponse res, int status, String message, Throwable cause) throws IOException {
+        if (res.isCommitted()) {
+            // Las cabeceras ya salieron: solo queda cortar la conexion
+            throw new IOException("Request failed after the response was committed", cause);
+        }
+        res.reset();
+        res.setStatus(status);
+        res.setContentType("text/plain; charset=utf-8");
+        res.write(message);
+    }
+
+    /**
+     * The file under the static root for a decoded request path, or
+     * {@code null} if the path is absolute once decoded (e.g.
+     * {@code //etc/passwd} or {@code /%2Fetc}) or resolves outside the
+     * root.
+     */
+    private Path mapToStaticFiles(String path) {
         if (path == null || path.equals("/")) {
             path = DEFAULT_PATH;
         }
-        String normalized = path.replace("..", "");
-        return root.resolve(normalized.substring(1)).normalize();
+        if (!path.startsWith("/")) {
+            return null;
+        }
+        String relative = path.substring(1);
+        if (relative.startsWith("/") || relative.startsWith("\\") || relative.indexOf('\0') >= 0) {
+            return null;
+        }
+        Path base = root.normalize();
+        Path resolved;
+        try {
+            Path candidate = base.getFileSystem().getPath(relative);
+            if (candidate.isAbsolute() || candidate.getRoot() != null) {
+                return null;
+            }
+            resolved = base.resolve(candidate).normalize();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        // La ruta normalizada debe seguir dentro de la raiz: ".." no puede salir de ella
+        return resolved.startsWith(base) ? resolved : null;
     }
 
-    private static String generalService(String contentType) {
-        return "HTTP/1.1 200 OK\r\n"
+    private static String generalService(String status, String contentType, long contentLength, boolean keepAlive) {
+        return "HTTP/1.1 " + status + "\r\n"
                 + "content-type: " + contentType + "\r\n"
+                + "content-length: " + contentLength + "\r\n"
+                + "connection: " + (keepAlive ? "keep-alive" : "close") + "\r\n"
                 + "\r\n";
     }
 
-    private static String fileRequestService(Path file) throws IOException {
-        String response = generalService(detectContentType(file));
-        response = response + Files.readString(file, StandardCharsets.UTF_8);
-        return response;
-
+    private static void sendResponse(OutputStream out, String status, String contentType, byte[] body,
+            boolean keepAlive, boolean headOnly) throws IOException {
+        sendResponse(out, status, contentType, body, "", keepAlive, headOnly);
     }
 
-    private static void serveBinaryFile(OutputStream rawOut, Path file, String contentType) throws IOException {
-        byte[] fileBytes = Files.readAllBytes(file);
-        String header = "HTTP/1.1 200 OK\r\n"
-                + "content-type: " + contentType + "\r\n"
-                + "content-length: " + fileBytes.length + "\r\n"
-                + "\r\n";
-        rawOut.write(header.getBytes(StandardCharsets.UTF_8));
-        rawOut.write(fileBytes);
-        rawOut.flush();
+    private static void sendResponse(OutputStream out, String status, String contentType, byte[] body,
+            String extraHeaders, boolean keepAlive, boolean headOnly) throws IOException {
+        String header = generalService(status, contentType, body.length, keepAlive);
+        if (!extraHeaders.isEmpty()) {
+            // Se insertan antes de la linea vacia final
+            header = header.substring(0, header.length() - 2) + extraHeaders + "\r\n";
+        }
+        out.write(header.getBytes(StandardCharsets.ISO_8859_1));
+        if (!headOnly) {
+            out.write(body);
+        }
     }
 
-    private static String detectContentType(Path file) {
+    static String detectContentType(Path file) {
         String name = file.getFileName().toString().toLowerCase();
         if (name.endsWith(".html")) {
             return "text/html; charset=utf-8";
@@ -310,12 +2045,12 @@ public class HttpServer {
         return "application/octet-stream";
     }
 
-    private static boolean isTextContentType(String contentType) {
+    static boolean isTextContentType(String contentType) {
         return contentType.startsWith("text/") || contentType.startsWith("application/javascript")
                 || contentType.startsWith("application/json");
     }
 
-    public static void staticfiles(String route) {
+    private static Path resolveStaticRoot(String route) {
         try {
             if (route.startsWith("jar:")) {
                 // jar:file:/.../app.jar!/public
@@ -323,25 +2058,21 @@ public class HttpServer {
                 if (bang < 0)
                     throw new IllegalArgumentException("URL jar sin '!/': " + route);
                 URI fsUri = URI.create(route.substring(0, bang)); // jar:file:/.../app.jar
-                try {
-                    jarFs = FileSystems.getFileSystem(fsUri);
-                } catch (FileSystemNotFoundException e) {
-                    jarFs = FileSystems.newFileSystem(fsUri, Map.of());
-                }
+                FileSystem jarFs = jarFileSystem(fsUri);
                 String inside = route.substring(bang + 1); // "public" o "public/..."
-                root = jarFs.getPath("/" + (inside.startsWith("/") ? inside.substring(1) : inside))
+                return jarFs.getPath("/" + (inside.startsWith("/") ? inside.substring(1) : inside))
                         .toAbsolutePath().normalize();
             } else if (route.startsWith("file:")) {
-                root = Paths.get(URI.create(route)).toAbsolutePath().normalize();
+                return Paths.get(URI.create(route)).toAbsolutePath().normalize();
             } else {
-                root = Paths.get(route).toAbsolutePath().normalize();
+                return Paths.get(route).toAbsolutePath().normalize();
             }
         } catch (Exception e) {
             throw new IllegalArgumentException("Invalid static root: " + route, e);
         }
     }
 
-    public static void staticfilesFromClasspath(String resourceRoot) {
+    private static Path classpathRoot(String resourceRoot) {
         try {
             URL url = HttpServer.class.getClassLoader().getResource(resourceRoot);
             if (url == null) {
@@ -350,20 +2081,16 @@ public class HttpServer {
             switch (url.getProtocol()) {
                 case "file" -> {
                     // IDE / clases sueltas
-                    root = Paths.get(url.toURI()).toAbsolutePath().normalize();
+                    return Paths.get(url.toURI()).toAbsolutePath().normalize();
                 }
                 case "jar" -> {
                     // Empaquetado: jar:file:/.../app.jar!/public
                     JarURLConnection conn = (JarURLConnection) url.openConnection();
                     URI jarUri = conn.getJarFileURL().toURI(); // file:/.../app.jar
                     URI fsUri = URI.create("jar:" + jarUri.toString()); // jar:file:/.../app.jar
-                    try {
-                        jarFs = FileSystems.getFileSystem(fsUri);
-                    } catch (FileSystemNotFoundException e) {
-                        jarFs = FileSystems.newFileSystem(fsUri, Map.of());
-                    }
+                    FileSystem jarFs = jarFileSystem(fsUri);
                     String entry = conn.getEntryName(); // "public"
-                    root = jarFs.getPath("/" + entry).toAbsolutePath().normalize();
+                    return jarFs.getPath("/" + entry).toAbsolutePath().normalize();
                 }
                 default -> throw new IllegalStateException("Protocolo no soportado: " + url.getProtocol());
             }
@@ -371,4 +2098,13 @@ public class HttpServer {
             throw new IllegalStateException("No se pudo inicializar staticfiles desde classpath", e);
         }
     }
+
+    // El sistema de archivos del jar queda abierto mientras viva la JVM
+    private static FileSystem jarFileSystem(URI fsUri) throws IOException {
+        try {
+            return FileSystems.getFileSystem(fsUri);
+        } catch (FileSystemNotFoundException e) {
+            return FileSystems.newFileSystem(fsUri, Map.of());
+        }
+    }
 }
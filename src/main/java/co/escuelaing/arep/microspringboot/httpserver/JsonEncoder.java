@@ -0,0 +1,368 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.RecordComponent;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Streams controller return values as JSON. Each class gets a writer the
+ * first time it is seen (controllers' return types are prepared when they
+ * are registered); for records and beans that writer holds one
+ * {@link MethodHandle} per property, so encoding does no reflection. Bytes
+ * go straight to the target stream, which for responses is the response
+ * buffer.
+ *
+ * <p>Records are written with their components in declaration order, other
+ * classes with their public getters and public fields sorted by name.
+ * Maps become objects, collections and arrays become arrays, and other JDK
+ * types (dates, UUIDs, URIs...) are written as their {@code toString()}.
+ *
+ * @author juan.medina-r
+ */
+final class JsonEncoder {
+
+    // Limita la profundidad para cortar referencias circulares
+    private static final int MAX_DEPTH = 64;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+
+    private static final ClassValue<TypeWriter> WRITERS = new ClassValue<>() {
+        @Override
+        protected TypeWriter computeValue(Class<?> type) {
+            return writerFor(type);
+        }
+    };
+
+    private JsonEncoder() {
+    }
+
+    /**
+     * Builds the writers for {@code type} and the types it is declared to
+     * contain (type arguments, array components, property types).
+     */
+    static void prepare(Type type) {
+        prepare(type, new HashSet<>());
+    }
+
+    private static void prepare(Type type, Set<Type> seen) {
+        if (!seen.add(type)) {
+            return;
+        }
+        if (type instanceof ParameterizedType) {
+            ParameterizedType parameterized = (ParameterizedType) type;
+            prepare(parameterized.getRawType(), seen);
+            for (Type argument : parameterized.getActualTypeArguments()) {
+                prepare(argument, seen);
+            }
+        } else if (type instanceof GenericArrayType) {
+            prepare(((GenericArrayType) type).getGenericComponentType(), seen);
+        } else if (type instanceof Class) {
+            Class<?> clazz = (Class<?>) type;
+            if (clazz == void.class || clazz == Void.class || clazz == Object.class) {
+                return;
+            }
+            TypeWriter writer = WRITERS.get(clazz);
+            if (writer instanceof ObjectWriter) {
+                for (Property property : ((ObjectWriter) writer).properties) {
+                    prepare(property.type, seen);
+                }
+            } else if (clazz.isArray()) {
+                prepare(clazz.getComponentType(), seen);
+            }
+        }
+    }
+
+    /**
+     * Writes {@code value} as UTF-8 JSON to {@code out}.
+     */
+    static void write(Object value, OutputStream out) throws IOException {
+        write(value, out, 0);
+    }
+
+    static byte[] encode(Object value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(value, out);
+        return out.toByteArray();
+    }
+
+    private static void write(Object value, OutputStream out, int depth) throws IOException {
+        if (value == null) {
+            out.write(NULL);
+            return;
+        }
+        if (depth > MAX_DEPTH) {
+            throw new IllegalStateException("JSON nesting deeper than " + MAX_DEPTH + "; circular reference?");
+        }
+        WRITERS.get(value.getClass()).write(value, out, depth);
+    }
+
+    private static TypeWriter writerFor(Class<?> type) {
+        if (CharSequence.class.isAssignableFrom(type) || type == Character.class || type.isEnum()
+                || (type.getSuperclass() != null && type.getSuperclass().isEnum())) {
+            return (value, out, depth) -> writeString(value instanceof Enum ? ((Enum<?>) value).name()
+                    : value.toString(), out);
+        }
+        if (type == Boolean.class) {
+            return (value, out, depth) -> out.write((Boolean) value ? TRUE : FALSE);
+        }
+        if (type == Double.class || type == Float.class) {
+            return (value, out, depth) -> {
+                double d = ((Number) value).doubleValue();
+                writeAscii(Double.isFinite(d) ? value.toString() : "null", out);
+            };
+        }
+        if (type == Integer.class || type == Long.class || type == Short.class || type == Byte.class
+                || type == BigInteger.class || type == BigDecimal.class) {
+            return (value, out, depth) -> writeAscii(value.toString(), out);
+        }
+        if (type == Optional.class) {
+            return (value, out, depth) -> write(((Optional<?>) value).orElse(null), out, depth);
+        }
+        if (Map.class.isAssignableFrom(type)) {
+            return JsonEncoder::writeMap;
+        }
+        if (Iterable.class.isAssignableFrom(type)) {
+            return JsonEncoder::writeIterable;
+        }
+        if (type.isArray()) {
+            return JsonEncoder::writeArray;
+        }
+        if (type.isRecord()) {
+            return new ObjectWriter(recordProperties(type));
+        }
+        if (type.getName().startsWith("java.") || type.getName().startsWith("javax.")) {
+            return (value, out, depth) -> writeString(value.toString(), out);
+        }
+        return new ObjectWriter(beanProperties(type));
+    }
+
+    private static void writeMap(Object value, OutputStream out, int depth) throws IOException {
+        out.write('{');
+        boolean first = true;
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            writeString(String.valueOf(entry.getKey()), out);
+            out.write(':');
+            write(entry.getValue(), out, depth + 1);
+        }
+        out.write('}');
+    }
+
+    private static void writeIterable(Object value, OutputStream out, int depth) throws IOException {
+        out.write('[');
+        boolean first = true;
+        for (Object element : (Iterable<?>) value) {
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            write(element, out, depth + 1);
+        }
+        out.write(']');
+    }
+
+    private static void writeArray(Object value, OutputStream out, int depth) throws IOException {
+        out.write('[');
+        int length = Array.getLength(value);
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            write(Array.get(value, i), out, depth + 1);
+        }
+        out.write(']');
+    }
+
+    private static Property[] recordProperties(Class<?> type) {
+        RecordComponent[] components = type.getRecordComponents();
+        Property[] properties = new Property[components.length];
+        for (int i = 0; i < components.length; i++) {
+            RecordComponent component = components[i];
+            properties[i] = new Property(component.getName(), component.getGenericType(),
+                    unreflect(component.getAccessor()));
+        }
+        return properties;
+    }
+
+    private static Property[] beanProperties(Class<?> type) {
+        Map<String, Property> properties = new TreeMap<>();
+        for (Method method : type.getMethods()) {
+            if (Modifier.isStatic(method.getModifiers()) || method.getParameterCount() != 0
+                    || method.getDeclaringClass() == Object.class) {
+                continue;
+            }
+            String name = method.getName();
+            String property = null;
+            if (name.startsWith("get") && name.length() > 3 && method.getReturnType() != void.class) {
+                property = decapitalize(name.substring(3));
+            } else if (name.startsWith("is") && name.length() > 2 && method.getReturnType() == boolean.class) {
+                property = decapitalize(name.substring(2));
+            }
+            if (property != null) {
+                properties.put(property, new Property(property, method.getGenericReturnType(), unreflect(method)));
+            }
+        }
+        for (Field field : type.getFields()) {
+            if (!Modifier.isStatic(field.getModifiers()) && !properties.containsKey(field.getName())) {
+                try {
+                    MethodHandle getter = MethodHandles.lookup().unreflectGetter(field)
+                            .asType(MethodType.methodType(Object.class, Object.class));
+                    properties.put(field.getName(), new Property(field.getName(), field.getGenericType(), getter));
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException("Cannot access " + field, e);
+                }
+            }
+        }
+        return properties.values().toArray(new Property[0]);
+    }
+
+    private static MethodHandle unreflect(Method accessor) {
+        try {
+            accessor.setAccessible(true);
+            return MethodHandles.lookup().unreflect(accessor)
+                    .asType(MethodType.methodType(Object.class, Object.class));
+        } catch (IllegalAccessException | RuntimeException e) {
+            throw new IllegalStateException("Cannot access " + accessor, e);
+        }
+    }
+
+    private static String decapitalize(String name) {
+        if (name.length() > 1 && Character.isUpperCase(name.charAt(1)) && Character.isUpperCase(name.charAt(0))) {
+            return name; // "URL" se conserva, como en java.beans
+        }
+        return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+    }
+
+    private static void writeAscii(String s, OutputStream out) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            out.write(s.charAt(i));
+        }
+    }
+
+    static void writeString(String s, OutputStream out) throws IOException {
+        out.write('"');
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c < 0x80) {
+                if (c == '"' || c == '\\') {
+                    out.write('\\');
+                }
+                out.write(c);
+            } else if (c < 0x20) {
+                out.write('\\');
+                switch (c) {
+                    case '\n' -> out.write('n');
+                    case '\r' -> out.write('r');
+                    case '\t' -> out.write('t');
+                    case '\b' -> out.write('b');
+                    case '\f' -> out.write('f');
+                    default -> {
+                        out.write('u');
+                        out.write('0');
+                        out.write('0');
+                        out.write(HEX[c >> 4]);
+                        out.write(HEX[c & 0xF]);
+                    }
+                }
+            } else if (c < 0x800) {
+                out.write(0xC0 | (c >> 6));
+                out.write(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.write(0xF0 | (cp >> 18));
+                out.write(0x80 | ((cp >> 12) & 0x3F));
+                out.write(0x80 | ((cp >> 6) & 0x3F));
+                out.write(0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                out.write('?'); // sustituto sin pareja
+            } else {
+                out.write(0xE0 | (c >> 12));
+                out.write(0x80 | ((c >> 6) & 0x3F));
+                out.write(0x80 | (c & 0x3F));
+            }
+        }
+        out.write('"');
+    }
+
+    @FunctionalInterface
+    private interface TypeWriter {
+        void write(Object value, OutputStream out, int depth) throws IOException;
+    }
+
+    private static final class Property {
+
+        final Type type;
+        final MethodHandle getter;
+        // Nombre ya codificado: "nombre":
+        final byte[] key;
+
+        Property(String name, Type type, MethodHandle getter) {
+            this.type = type;
+            this.getter = getter;
+            ByteArrayOutputStream key = new ByteArrayOutputStream(name.length() + 3);
+            try {
+                writeString(name, key);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            key.write(':');
+            this.key = key.toByteArray();
+        }
+    }
+
+    private static final class ObjectWriter implements TypeWriter {
+
+        final Property[] properties;
+
+        ObjectWriter(Property[] properties) {
+            this.properties = properties;
+        }
+
+        @Override
+        public void write(Object value, OutputStream out, int depth) throws IOException {
+            out.write('{');
+            for (int i = 0; i < properties.length; i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                Property property = properties[i];
+                out.write(property.key);
+                Object propertyValue;
+                try {
+                    propertyValue = (Object) property.getter.invokeExact(value);
+                } catch (RuntimeException | Error e) {
+                    throw e;
+                } catch (Throwable t) {
+                    throw new IllegalStateException(t);
+                }
+                JsonEncoder.write(propertyValue, out, depth + 1);
+            }
+            out.write('}');
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+/**
+ * Thrown by {@link RequestParser} when the bytes received are not a valid
+ * request or exceed one of the configured limits. Carries the status line
+ * the connection is answered with before it is closed.
+ *
+ * @author juan.medina-r
+ */
+final class MalformedRequestException extends IllegalArgumentException {
+
+    static final String BAD_REQUEST = "400 Bad Request";
+    static final String CONTENT_TOO_LARGE = "413 Content Too Large";
+    static final String URI_TOO_LONG = "414 URI Too Long";
+    static final String HEADERS_TOO_LARGE = "431 Request Header Fields Too Large";
+    static final String NOT_IMPLEMENTED = "501 Not Implemented";
+    static final String VERSION_NOT_SUPPORTED = "505 HTTP Version Not Supported";
+
+    private final String status;
+
+    MalformedRequestException(String status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    MalformedRequestException(String message) {
+        this(BAD_REQUEST, message);
+    }
+
+    String getStatus() {
+        return status;
+    }
+}
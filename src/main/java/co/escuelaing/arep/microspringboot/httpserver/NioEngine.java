@@ -0,0 +1,667 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Event-driven engine. The calling thread accepts sockets and hands them
+ * round-robin to a set of reactor threads, each owning a {@link Selector} and
+ * a reused read buffer. Reactors frame requests incrementally and pass each
+ * complete one to the worker pool; the encoded response is handed back to the
+ * reactor, which writes it without blocking. Requests on a connection are
+ * processed one at a time, so pipelined responses keep their order. Static
+ * files are queued as file regions and sent with
+ * {@link FileChannel#transferTo} as the socket becomes writable. A
+ * connection subscribed to a push endpoint leaves its reactor once the
+ * handshake is out and is served by the {@link PushEngine}.
+ *
+ * @author juan.medina-r
+ */
+class NioEngine {
+
+    private static final Logger LOGGER = Logger.getLogger(NioEngine.class.getName());
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_PENDING_BYTES = 1024 * 1024;
+    private static final long SELECT_TIMEOUT = 1000;
+
+    private final HttpServer server;
+    private final ServerSocketChannel serverChannel;
+    private final Reactor[] reactors;
+    private ExecutorService workers;
+    private volatile boolean open = true;
+    private volatile boolean draining;
+
+    private NioEngine(HttpServer server, ServerSocketChannel serverChannel, int reactorThreads) throws IOException {
+        this.server = server;
+        this.serverChannel = serverChannel;
+        this.reactors = new Reactor[reactorThreads];
+        for (int i = 0; i < reactorThreads; i++) {
+            reactors[i] = new Reactor(i);
+        }
+    }
+
+    /**
+     * Binds the listening channel; reactors start with {@link #run}.
+     */
+    static NioEngine open(HttpServer server, int port, int reactorThreads) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(new InetSocketAddress(port));
+            return new NioEngine(server, channel, reactorThreads);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    int port() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Starts the reactors and runs the accept loop on the calling thread
+     * until {@link #close()} is called.
+     */
+    void run(ExecutorService workerPool) {
+        this.workers = workerPool;
+        for (Reactor reactor : reactors) {
+            reactor.thread.start();
+        }
+        int next = 0;
+        while (open && serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                if (admit(channel)) {
+                    reactors[next].register(channel);
+                    next = (next + 1) % reactors.length;
+                }
+            } catch (IOException e) {
+                if (!open || !serverChannel.isOpen()) {
+                    break;
+                }
+                LOGGER.log(Level.WARNING, "Accept failed", e);
+            }
+        }
+    }
+
+    /**
+     * Applies the connection limit and the per-client rate limit to a new
+     * connection and prepares it for its reactor; a refused connection gets
+     * its 503 or 429 and is closed without a reset.
+     */
+    private boolean admit(SocketChannel channel) {
+        if (!server.admit()) {
+            refuse(channel, server.serviceUnavailable());
+            return false;
+        }
+        try {
+            InetAddress address = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+            long wait = server.throttleConnection(address);
+            if (wait > 0) {
+                server.release();
+                refuse(channel, HttpServer.tooManyRequests(wait));
+                return false;
+            }
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            return true;
+        } catch (IOException e) {
+            server.release();
+            closeQuietly(channel);
+            return false;
+        }
+    }
+
+    // Una sola escritura sin bloquear: la respuesta cabe en el buffer del socket
+    private void refuse(SocketChannel channel, byte[] response) {
+        try {
+            channel.configureBlocking(false);
+            channel.write(ByteBuffer.wrap(response));
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, null, e);
+            closeQuietly(channel);
+            return;
+        }
+        server.closeRefused(channel.socket());
+    }
+
+    /**
+     * Stops accepting. Reactors keep serving the requests already received
+     * and close each connection as soon as it has nothing left to write.
+     */
+    void drain() {
+        draining = true;
+        closeServerChannel();
+        for (Reactor reactor : reactors) {
+            reactor.selector.wakeup();
+        }
+    }
+
+    /**
+     * Stops accepting and closes every connection owned by the reactors.
+     */
+    void close() {
+        open = false;
+        closeServerChannel();
+        for (Reactor reactor : reactors) {
+            reactor.selector.wakeup();
+        }
+    }
+
+    private void closeServerChannel() {
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Error closing server channel", e);
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, null, e);
+        }
+    }
+
+    private final class Reactor implements Runnable {
+
+        private final Selector selector;
+        private final Thread thread;
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private long lastSweep = System.currentTimeMillis();
+
+        Reactor(int id) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "nio-reactor-" + id);
+            this.thread.setDaemon(true);
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new Connection(this, channel, key));
+                } catch (ClosedChannelException e) {
+                    server.release();
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        /**
+         * Runs the task on this reactor's thread.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (open) {
+                    selector.select(SELECT_TIMEOUT);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handle(key);
+                    }
+                    expireIdleConnections();
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Reactor failed", e);
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, null, e);
+                }
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            Connection connection = (Connection) key.attachment();
+            try {
+                if (key.isValid() && key.isReadable()) {
+                    connection.onReadable(readBuffer);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.onWritable();
+                }
+            } catch (IOException e) {
+                connection.close();
+            }
+        }
+
+        // Al drenar se revisa en cada vuelta y se cierra toda conexion sin trabajo pendiente
+        private void expireIdleConnections() {
+            long now = System.currentTimeMillis();
+            if (!draining && now - lastSweep < SELECT_TIMEOUT) {
+                return;
+            }
+            lastSweep = now;
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection.isIdle() && (draining || now - connection.lastActive > server.keepAliveTimeout())) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private final class Connection {
+
+        private final Reactor reactor;
+        private final SocketChannel channel;
+        private final InetAddress address;
+        private final SelectionKey key;
+        private final ArrayDeque<Segment> outbound = new ArrayDeque<>();
+        private final RequestParser parser = server.newParser();
+        private byte[] inbound = new byte[1024];
+        private int length;
+        private int served;
+        private boolean processing;
+        private boolean closeAfterWrite;
+        private volatile boolean closed;
+        private volatile CompletableFuture<Void> pending;
+        // Suscripcion de un endpoint push: al terminar de escribir la conexion pasa al PushEngine
+        private PushEngine.Subscription subscription;
+        private long lastActive = System.currentTimeMillis();
+
+        Connection(Reactor reactor, SocketChannel channel, SelectionKey key) {
+            this.reactor = reactor;
+            this.channel = channel;
+            this.address = channel.socket().getInetAddress();
+            this.key = key;
+            server.metrics.connectionOpened();
+        }
+
+        boolean isIdle() {
+            return !processing && outbound.isEmpty();
+        }
+
+        void onReadable(ByteBuffer buffer) throws IOException {
+            buffer.clear();
+            int read = channel.read(buffer);
+            if (read < 0) {
+                close();
+                return;
+            }
+            buffer.flip();
+            if (length + read > inbound.length) {
+                inbound = Arrays.copyOf(inbound, Math.max(inbound.length * 2, length + read));
+            }
+            buffer.get(inbound, length, read);
+            length += read;
+            lastActive = System.currentTimeMillis();
+            dispatchNext();
+        }
+
+        private void dispatchNext() throws IOException {
+            if (processing || closeAfterWrite || length == 0) {
+                updateInterest();
+                return;
+            }
+            int consumed;
+            try {
+                consumed = parser.parse(inbound, 0, length);
+            } catch (MalformedRequestException e) {
+                reject(e);
+                return;
+            }
+            if (consumed == 0) {
+                // Peticion incompleta: se espera a la siguiente lectura
+                updateInterest();
+                return;
+            }
+            HttpRequest req = parser.take();
+            System.arraycopy(inbound, consumed, inbound, 0, length - consumed);
+            length -= consumed;
+
+            served++;
+            long wait = server.throttle(address);
+            if (wait > 0) {
+                length = 0;
+                closeAfterWrite = true;
+                enqueue(HttpServer.tooManyRequests(wait));
+                return;
+            }
+            boolean keepAlive = req.isKeepAlive() && served < server.maxKeepAliveRequests()
+                    && !server.isDraining();
+            processing = true;
+            try {
+                workers.execute(server.tracked(() -> process(req, keepAlive)));
+            } catch (RejectedExecutionException e) {
+                server.metrics.connectionsRejected.increment();
+                processing = false;
+                closeAfterWrite = true;
+                enqueue(server.serviceUnavailable());
+            }
+            updateInterest();
+        }
+
+        // Se ejecuta en un hilo del pool de trabajo
+        private void process(HttpRequest req, boolean keepAlive) {
+            ResponseBuffer out = new ResponseBuffer();
+            CompletableFuture<Void> done;
+            try {
+                done = server.handleRequest(req, out, keepAlive);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.SEVERE, null, e);
+                reactor.execute(this::close);
+                return;
+            }
+            if (!done.isDone()) {
+                // Respuesta asincrona: el hilo queda libre y se cancela si el cliente se va antes
+                pending = done;
+                if (closed) {
+                    done.cancel(true);
+                }
+            }
+            done.whenComplete((ignored, failure) -> {
+                pending = null;
+                if (failure != null) {
+                    if (!(failure instanceof CancellationException)) {
+                        LOGGER.log(Level.SEVERE, null, failure);
+                    }
+                    reactor.execute(this::close);
+                    return;
+                }
+                List<Segment> response = out.segments();
+                PushEngine.Subscription stream = req.getSubscription();
+                if (stream != null) {
+                    reactor.execute(() -> onStream(response, stream));
+                    return;
+                }
+                reactor.execute(() -> onResponse(response, keepAlive));
+            });
+        }
+
+        private void onResponse(List<Segment> response, boolean keepAlive) {
+            processing = false;
+            closeAfterWrite = !keepAlive;
+            outbound.addAll(response);
+            try {
+                onWritable();
+                dispatchNext();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        // El handshake sale como cualquier respuesta; no se leen mas peticiones
+        private void onStream(List<Segment> response, PushEngine.Subscription stream) {
+            processing = false;
+            closeAfterWrite = true;
+            subscription = stream;
+            outbound.addAll(response);
+            try {
+                onWritable();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void reject(MalformedRequestException e) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            server.sendMalformed(out, e);
+            length = 0;
+            closeAfterWrite = true;
+            enqueue(out.toByteArray());
+        }
+
+        private void enqueue(byte[] data) throws IOException {
+            outbound.add(new BufferSegment(ByteBuffer.wrap(data)));
+            onWritable();
+        }
+
+        void onWritable() throws IOException {
+            while (!outbound.isEmpty()) {
+                Segment head = outbound.peek();
+                if (!head.writeTo(channel)) {
+                    updateInterest();
+                    return;
+                }
+                outbound.poll().release();
+            }
+            lastActive = System.currentTimeMillis();
+            if (closeAfterWrite && !processing) {
+                if (subscription != null) {
+                    handOff();
+                } else {
+                    close();
+                }
+                return;
+            }
+            updateInterest();
+        }
+
+        /**
+         * Leaves the reactor without closing the channel; the push engine
+         * releases its admission slot and closes it from now on.
+         */
+        private void handOff() {
+            closed = true;
+            key.cancel();
+            try {
+                server.pushEngine().register(channel, subscription);
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, null, e);
+                server.metrics.connectionClosed();
+                server.release();
+                closeQuietly(channel);
+            }
+        }
+
+        private void updateInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            int ops = 0;
+            // Sin leer mientras se acumulan demasiadas peticiones sin procesar; una
+            // peticion incompleta se sigue leyendo, el parser limita su tamano
+            if (!closeAfterWrite && (!processing || length < MAX_PENDING_BYTES)) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (!outbound.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            CompletableFuture<Void> response = pending;
+            if (response != null) {
+                response.cancel(true);
+            }
+            server.metrics.connectionClosed();
+            server.release();
+            key.cancel();
+            closeQuietly(channel);
+            Segment segment;
+            while ((segment = outbound.poll()) != null) {
+                segment.release();
+            }
+        }
+    }
+
+    /**
+     * Part of a response waiting to be written to a non-blocking channel.
+     */
+    private interface Segment {
+
+        /**
+         * Writes as much as the channel accepts.
+         *
+         * @return {@code true} once the whole segment has been written
+         */
+        boolean writeTo(SocketChannel channel) throws IOException;
+
+        default void release() {
+        }
+    }
+
+    private static final class BufferSegment implements Segment {
+
+        private final ByteBuffer data;
+
+        BufferSegment(ByteBuffer data) {
+            this.data = data;
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            channel.write(data);
+            return !data.hasRemaining();
+        }
+    }
+
+    /**
+     * File region opened lazily by the reactor. Files on the default
+     * filesystem go out with {@code transferTo}; other filesystems (the jar
+     * one) are streamed through a small chunk buffer.
+     */
+    private static final class FileSegment implements Segment {
+
+        private final Path file;
+        private long position;
+        private long remaining;
+        private SeekableByteChannel source;
+        private ByteBuffer chunk;
+
+        FileSegment(Path file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            this.remaining = count;
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            if (source == null) {
+                open();
+            }
+            if (source instanceof FileChannel fileChannel) {
+                while (remaining > 0) {
+                    long sent = fileChannel.transferTo(position, remaining, channel);
+                    if (sent <= 0) {
+                        if (position >= fileChannel.size()) {
+                            throw new IOException("File shrank while sending: " + file);
+                        }
+                        return false;
+                    }
+                    position += sent;
+                    remaining -= sent;
+                }
+                return true;
+            }
+            while (remaining > 0 || chunk.hasRemaining()) {
+                if (!chunk.hasRemaining()) {
+                    chunk.clear();
+                    chunk.limit((int) Math.min(chunk.capacity(), remaining));
+                    if (source.read(chunk) < 0) {
+                        throw new IOException("File shrank while sending: " + file);
+                    }
+                    chunk.flip();
+                    remaining -= chunk.remaining();
+                }
+                channel.write(chunk);
+                if (chunk.hasRemaining()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void open() throws IOException {
+            if (file.getFileSystem() == FileSystems.getDefault()) {
+                source = FileChannel.open(file, StandardOpenOption.READ);
+            } else {
+                source = Files.newByteChannel(file, StandardOpenOption.READ);
+                source.position(position);
+                chunk = ByteBuffer.allocate(FileSink.CHUNK_SIZE);
+                chunk.limit(0);
+            }
+        }
+
+        @Override
+        public void release() {
+            if (source != null) {
+                try {
+                    source.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, null, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects a response produced on a worker thread: bytes written to the
+     * stream and file regions, in order, for the reactor to send.
+     */
+    private static final class ResponseBuffer extends ByteArrayOutputStream implements FileSink {
+
+        private final List<Segment> segments = new ArrayList<>(2);
+
+        @Override
+        public void transferFile(Path file, long position, long count) {
+            cut();
+            segments.add(new FileSegment(file, position, count));
+        }
+
+        private void cut() {
+            if (count > 0) {
+                segments.add(new BufferSegment(ByteBuffer.wrap(toByteArray())));
+                reset();
+            }
+        }
+
+        List<Segment> segments() {
+            cut();
+            return segments;
+        }
+    }
+}
@@ -0,0 +1,459 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves the connections of {@code @StreamMapping} endpoints once their
+ * handshake has been written. Both engines hand such a connection over
+ * here, so a server holds thousands of subscribers on one selector thread
+ * instead of one worker each.
+ *
+ * <p>Publishers only add the encoded message to each subscriber's bounded
+ * queue; a subscriber that goes from idle to having data is scheduled once,
+ * and the selector is woken at most once per batch of schedules. The
+ * selector thread then writes up to {@value #GATHER} queued messages per
+ * gathering write, and waits for {@code OP_WRITE} when the socket is full.
+ * It also answers WebSocket pings and close frames, and sends a heartbeat on
+ * streams that have been quiet, so dead peers are noticed and proxies do
+ * not time the stream out.
+ *
+ * @author juan.medina-r
+ */
+final class PushEngine implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(PushEngine.class.getName());
+    private static final int GATHER = 16;
+    // Los mensajes de datos del cliente se descartan, pero no pueden ser enormes
+    private static final long MAX_INCOMING_MESSAGE = 64 * 1024;
+    private static final long HEARTBEAT_MILLIS = TimeUnit.SECONDS.toMillis(15);
+    private static final byte[] EVENT_HEARTBEAT = ":\n\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] FRAME_HEARTBEAT = WebSocket.frame(WebSocket.PING, new byte[0], 0);
+    private static final ByteBuffer[] NO_BUFFERS = new ByteBuffer[0];
+
+    private final HttpServer server;
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Queue<Subscriber> ready = new ConcurrentLinkedQueue<>();
+    // Evita despertar el selector por cada suscriptor listo
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+    private volatile boolean open = true;
+
+    PushEngine(HttpServer server) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, "push");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * What a handshake subscribed the connection to.
+     */
+    record Subscription(BroadcastHub hub, boolean webSocket) {
+    }
+
+    /**
+     * Takes over {@code channel}, whose handshake has been sent. Its
+     * admission slot is given back at once; from here on the connection is
+     * closed by this engine.
+     */
+    void register(SocketChannel channel, Subscription subscription) {
+        // Desde aqui la conexion cuenta contra maxStreams y no contra maxConnections
+        server.release();
+        Subscriber subscriber = new Subscriber(channel, subscription);
+        execute(subscriber::start);
+        if (!open) {
+            // Se detuvo mientras se entregaba la conexion
+            subscriber.close();
+        }
+    }
+
+    /**
+     * Closes every stream, WebSockets with a going-away close frame; called
+     * when the server starts draining.
+     */
+    void shutdown() {
+        execute(() -> {
+            for (Subscriber subscriber : subscribers()) {
+                subscriber.goAway();
+            }
+        });
+    }
+
+    /**
+     * Stops the selector thread, closing whatever is still open.
+     */
+    void close() {
+        open = false;
+        selector.wakeup();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    private void schedule(Subscriber subscriber) {
+        ready.add(subscriber);
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        long nextHeartbeat = System.currentTimeMillis() + HEARTBEAT_MILLIS;
+        while (open) {
+            try {
+                selector.select(HEARTBEAT_MILLIS);
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, null, e);
+                break;
+            }
+            // Lo programado antes de esto se atiende en esta vuelta
+            wakeupPending.set(false);
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            for (SelectionKey key : selector.selectedKeys()) {
+                Subscriber subscriber = (Subscriber) key.attachment();
+                if (key.isValid() && key.isReadable()) {
+                    subscriber.onReadable(readBuffer);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    subscriber.flush();
+                }
+            }
+            selector.selectedKeys().clear();
+            Subscriber subscriber;
+            while ((subscriber = ready.poll()) != null) {
+                subscriber.scheduled.set(false);
+                subscriber.flush();
+            }
+            long now = System.currentTimeMillis();
+            if (now >= nextHeartbeat) {
+                for (Subscriber quiet : subscribers()) {
+                    quiet.heartbeat(now);
+                }
+                nextHeartbeat = now + HEARTBEAT_MILLIS;
+            }
+        }
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+        for (Subscriber subscriber : subscribers()) {
+            subscriber.close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, null, e);
+        }
+    }
+
+    private List<Subscriber> subscribers() {
+        List<Subscriber> subscribers = new ArrayList<>();
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid()) {
+                subscribers.add((Subscriber) key.attachment());
+            }
+        }
+        return subscribers;
+    }
+
+    /**
+     * One push connection. The queue is filled by publishers; everything
+     * else belongs to the selector thread.
+     */
+    final class Subscriber {
+
+        private final SocketChannel channel;
+        private final BroadcastHub hub;
+        private final boolean webSocket;
+        private final ArrayBlockingQueue<byte[]> queue;
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        // Mensajes tomados de la cola y tramas de control, en orden de envio
+        private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<>();
+        private SelectionKey key;
+        private volatile boolean closed;
+        private boolean subscribed;
+        private boolean closeAfterWrite;
+        private long lastWrite = System.currentTimeMillis();
+
+        // Estado del lector de tramas WebSocket
+        private final byte[] header = new byte[14];
+        private final byte[] mask = new byte[4];
+        private int headerLength;
+        private long payloadRemaining;
+        private int opcode;
+        private byte[] control;
+        private int controlLength;
+
+        Subscriber(SocketChannel channel, Subscription subscription) {
+            this.channel = channel;
+            this.hub = subscription.hub();
+            this.webSocket = subscription.webSocket();
+            this.queue = new ArrayBlockingQueue<>(hub.getQueueCapacity());
+            server.metrics.streamSubscribers.increment();
+        }
+
+        boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * Queues a message; called by publishers.
+         *
+         * @return {@code false} if it was not queued: the subscriber is
+         *         closed or its queue is full
+         */
+        boolean offer(BroadcastHub.Message message) {
+            if (closed || !queue.offer(webSocket ? message.frame() : message.event())) {
+                return false;
+            }
+            if (scheduled.compareAndSet(false, true)) {
+                schedule(this);
+            }
+            return true;
+        }
+
+        /**
+         * Disconnects a subscriber that could not keep up; the hub has
+         * already dropped it.
+         */
+        void evict() {
+            server.metrics.streamEvictions.increment();
+            execute(this::close);
+        }
+
+        private void start() {
+            if (closed) {
+                return;
+            }
+            try {
+                channel.configureBlocking(false);
+                key = channel.register(selector, SelectionKey.OP_READ, this);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, null, e);
+                close();
+                return;
+            }
+            hub.subscribe(this);
+            subscribed = true;
+            flush();
+        }
+
+        private void onReadable(ByteBuffer buffer) {
+            try {
+                buffer.clear();
+                if (channel.read(buffer) < 0) {
+                    close();
+                    return;
+                }
+                buffer.flip();
+                // Un cliente SSE no envia nada despues de la peticion
+                if (webSocket && !closeAfterWrite) {
+                    readFrames(buffer);
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void readFrames(ByteBuffer buffer) {
+            while (buffer.hasRemaining() && !closeAfterWrite) {
+                if (payloadRemaining == 0 && control == null) {
+                    header[headerLength++] = buffer.get();
+                    if (headerLength == 2 && (header[1] & 0x80) == 0) {
+                        // Las tramas del cliente siempre van enmascaradas (RFC 6455, 5.1)
+                        fail(WebSocket.PROTOCOL_ERROR);
+                        return;
+                    }
+                    if (headerLength < 2 || headerLength < headerSize()) {
+                        continue;
+                    }
+                    startFrame();
+                    continue;
+                }
+                int take = (int) Math.min(buffer.remaining(), payloadRemaining);
+                if (control != null) {
+                    buffer.get(control, controlLength, take);
+                    controlLength += take;
+                } else {
+                    buffer.position(buffer.position() + take);
+                }
+                payloadRemaining -= take;
+                if (payloadRemaining == 0 && control != null) {
+                    onControl();
+                }
+            }
+        }
+
+        private int headerSize() {
+            int length = header[1] & 0x7F;
+            return 2 + (length == 126 ? 2 : length == 127 ? 8 : 0) + 4;
+        }
+
+        private void startFrame() {
+            boolean fin = (header[0] & 0x80) != 0;
+            opcode = header[0] & 0x0F;
+            long length = header[1] & 0x7F;
+            if (length == 126) {
+                length = ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+            } else if (length == 127) {
+                length = 0;
+                for (int i = 2; i < 10; i++) {
+                    length = (length << 8) | (header[i] & 0xFF);
+                }
+            }
+            System.arraycopy(header, headerSize() - 4, mask, 0, 4);
+            headerLength = 0;
+            boolean isControl = opcode >= WebSocket.CLOSE;
+            if ((opcode > WebSocket.BINARY && !isControl) || opcode > WebSocket.PONG) {
+                fail(WebSocket.PROTOCOL_ERROR);
+                return;
+            }
+            if (isControl && (!fin || length > 125)) {
+                fail(WebSocket.PROTOCOL_ERROR);
+                return;
+            }
+            if (length < 0 || length > MAX_INCOMING_MESSAGE) {
+                fail(WebSocket.TOO_BIG);
+                return;
+            }
+            payloadRemaining = length;
+            if (isControl) {
+                control = new byte[(int) length];
+                controlLength = 0;
+                if (length == 0) {
+                    onControl();
+                }
+            }
+        }
+
+        private void onControl() {
+            byte[] payload = control;
+            control = null;
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] ^= mask[i & 3];
+            }
+            if (opcode == WebSocket.PING) {
+                send(WebSocket.frame(WebSocket.PONG, payload, payload.length));
+            } else if (opcode == WebSocket.CLOSE) {
+                // Se devuelve el codigo recibido y se cierra al terminar de escribir
+                send(WebSocket.frame(WebSocket.CLOSE, payload, Math.min(payload.length, 2)));
+                closeAfterWrite = true;
+                flush();
+            }
+        }
+
+        private void fail(int code) {
+            send(WebSocket.close(code));
+            closeAfterWrite = true;
+            flush();
+        }
+
+        private void send(byte[] frame) {
+            writing.add(ByteBuffer.wrap(frame));
+            flush();
+        }
+
+        private void heartbeat(long now) {
+            if (now - lastWrite >= HEARTBEAT_MILLIS && writing.isEmpty() && queue.isEmpty()) {
+                send(webSocket ? FRAME_HEARTBEAT : EVENT_HEARTBEAT);
+            }
+        }
+
+        private void goAway() {
+            if (webSocket && !closeAfterWrite) {
+                writing.add(ByteBuffer.wrap(WebSocket.close(WebSocket.GOING_AWAY)));
+            }
+            closeAfterWrite = true;
+            flush();
+            // Al drenar no se espera a un cliente lento
+            close();
+        }
+
+        private void flush() {
+            if (closed || key == null) {
+                return;
+            }
+            try {
+                while (true) {
+                    byte[] next;
+                    while (writing.size() < GATHER && !closeAfterWrite && (next = queue.poll()) != null) {
+                        writing.add(ByteBuffer.wrap(next));
+                    }
+                    if (writing.isEmpty()) {
+                        break;
+                    }
+                    channel.write(writing.toArray(NO_BUFFERS));
+                    while (!writing.isEmpty() && !writing.peek().hasRemaining()) {
+                        writing.poll();
+                    }
+                    lastWrite = System.currentTimeMillis();
+                    if (!writing.isEmpty()) {
+                        // Socket lleno: se sigue cuando vuelva a admitir datos
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (closeAfterWrite) {
+                close();
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (subscribed) {
+                hub.unsubscribe(this);
+            }
+            // Antes de cerrar: quien vea el cierre ya encuentra libre su lugar en maxStreams
+            server.metrics.streamSubscribers.decrement();
+            server.metrics.connectionClosed();
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, null, e);
+            }
+            queue.clear();
+            writing.clear();
+        }
+    }
+}
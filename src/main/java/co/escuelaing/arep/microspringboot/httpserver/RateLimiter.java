@@ -0,0 +1,130 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-client token buckets. Each address may make {@code burst} requests at
+ * once and then one more every {@code 1 / rate} seconds. Buckets live in a
+ * fixed number of stripes, each a plain map behind its own lock, so clients
+ * hashed to different stripes never contend; refilling and taking a token
+ * is a few arithmetic operations under that lock.
+ *
+ * <p>A bucket left alone long enough to be full again holds no more state
+ * than a missing one, so each stripe drops those when it is touched after
+ * that interval has passed. Memory stays proportional to the clients seen
+ * recently.
+ *
+ * @author juan.medina-r
+ */
+final class RateLimiter {
+
+    private static final int STRIPES = 64;
+
+    private final double tokensPerNano;
+    private final double burst;
+    // Tiempo en que un balde vacio se vuelve a llenar; despues se puede olvidar
+    private final long refillNanos;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    RateLimiter(int requestsPerSecond, int burst) {
+        if (requestsPerSecond <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("Rate and burst must be positive: " + requestsPerSecond + ", " + burst);
+        }
+        this.tokensPerNano = requestsPerSecond / (double) TimeUnit.SECONDS.toNanos(1);
+        this.burst = burst;
+        this.refillNanos = (long) Math.ceil(burst / tokensPerNano);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Takes a token for {@code client}.
+     *
+     * @return {@code 0} if the request may proceed, otherwise the nanoseconds
+     *         until the client has a token again
+     */
+    long acquire(InetAddress client) {
+        return stripe(client).acquire(client, System.nanoTime(), true);
+    }
+
+    /**
+     * Like {@link #acquire} but without taking the token; used to turn away
+     * a new connection from a client that could not send a request anyway.
+     */
+    long peek(InetAddress client) {
+        return stripe(client).acquire(client, System.nanoTime(), false);
+    }
+
+    /**
+     * Number of clients with a bucket that is not full.
+     */
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.buckets.size();
+            }
+        }
+        return size;
+    }
+
+    private Stripe stripe(InetAddress client) {
+        int h = client.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+
+    private final class Stripe {
+
+        private final Map<InetAddress, Bucket> buckets = new HashMap<>();
+        private long lastSweep = System.nanoTime();
+
+        synchronized long acquire(InetAddress client, long now, boolean take) {
+            if (now - lastSweep > refillNanos) {
+                sweep(now);
+            }
+            Bucket bucket = buckets.get(client);
+            if (bucket == null) {
+                if (!take) {
+                    return 0;
+                }
+                bucket = new Bucket(burst, now);
+                buckets.put(client, bucket);
+            }
+            bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.updated) * tokensPerNano);
+            bucket.updated = now;
+            if (bucket.tokens < 1) {
+                return Math.max(1, (long) Math.ceil((1 - bucket.tokens) / tokensPerNano));
+            }
+            if (take) {
+                bucket.tokens -= 1;
+            }
+            return 0;
+        }
+
+        private void sweep(long now) {
+            lastSweep = now;
+            Iterator<Bucket> it = buckets.values().iterator();
+            while (it.hasNext()) {
+                if (now - it.next().updated >= refillNanos) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private static final class Bucket {
+
+        double tokens;
+        long updated;
+
+        Bucket(double tokens, long updated) {
+            this.tokens = tokens;
+            this.updated = updated;
+        }
+    }
+}
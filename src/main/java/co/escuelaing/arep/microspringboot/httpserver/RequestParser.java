@@ -0,0 +1,530 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Incremental HTTP/1.x request parser working directly on the bytes of a
+ * connection's read buffer. It is fed the unconsumed window of the buffer
+ * after every read and remembers how far it got, so bytes are scanned once
+ * however the request is split across reads. No strings are built while
+ * parsing: the request keeps a copy of its head and offsets into it, and
+ * decodes method, path and headers only when asked.
+ *
+ * <p>One parser is owned by one connection and is not thread-safe.
+ *
+ * @author juan.medina-r
+ */
+final class RequestParser {
+
+    private static final int MAX_HEADERS = 100;
+    private static final int MAX_CHUNK_LINE = 1024;
+    private static final int[] NO_CHUNKS = new int[0];
+
+    private static final int BODY_NONE = 0;
+    private static final int BODY_FIXED = 1;
+    private static final int BODY_CHUNKED = 2;
+
+    private final int maxRequestLine;
+    private final int maxHeaderBytes;
+    private final int maxBodyBytes;
+
+    // Posiciones relativas al inicio de la ventana recibida en parse()
+    private int scan;
+    private int lineStart = -1;
+    private int requestLineEnd = -1;
+    private int lastLineStart;
+    private int headEnd = -1;
+
+    private HttpRequest pending;
+    private int bodyMode;
+    private int contentLength;
+    private int chunkPos;
+    private boolean inTrailers;
+    private int[] chunks = NO_CHUNKS;
+    private int chunkCount;
+    private int bodyLength;
+
+    private HttpRequest ready;
+
+    RequestParser(int maxRequestLine, int maxHeaderBytes, int maxBodyBytes) {
+        this.maxRequestLine = maxRequestLine;
+        this.maxHeaderBytes = maxHeaderBytes;
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    /**
+     * Continues parsing {@code buf[off, off + len)}, which must start with the
+     * same bytes passed in the previous call that returned {@code 0}.
+     *
+     * @return the number of bytes of a complete request, which is then
+     *         available from {@link #take()}, or {@code 0} if more bytes are
+     *         needed
+     * @throws MalformedRequestException if the request is invalid or exceeds
+     *         a limit
+     */
+    int parse(byte[] buf, int off, int len) {
+        if (headEnd < 0 && !parseHead(buf, off, len)) {
+            return 0;
+        }
+        switch (bodyMode) {
+            case BODY_FIXED -> {
+                int total = headEnd + contentLength;
+                if (len < total) {
+                    return 0;
+                }
+                pending.setBody(Arrays.copyOfRange(buf, off + headEnd, off + total));
+                return complete(total);
+            }
+            case BODY_CHUNKED -> {
+                return parseChunks(buf, off, len);
+            }
+            default -> {
+                return complete(headEnd);
+            }
+        }
+    }
+
+    /**
+     * Returns the request completed by the last call to {@link #parse}.
+     */
+    HttpRequest take() {
+        HttpRequest req = ready;
+        ready = null;
+        return req;
+    }
+
+    /**
+     * Whether part of a request has been received; bytes before the request
+     * line (empty lines) do not count.
+     */
+    boolean inProgress() {
+        return lineStart >= 0;
+    }
+
+    private boolean parseHead(byte[] buf, int off, int len) {
+        while (scan < len) {
+            byte c = buf[off + scan];
+            if (lineStart < 0) {
+                // Se toleran lineas vacias entre peticiones (RFC 9112, 2.2)
+                if (c == '\r' || c == '\n') {
+                    if (++scan > maxRequestLine) {
+                        throw new MalformedRequestException("Too many empty lines");
+                    }
+                    continue;
+                }
+                lineStart = scan;
+            }
+            if (c == '\n') {
+                if (requestLineEnd < 0) {
+                    requestLineEnd = scan;
+                } else if (scan == lastLineStart || (scan == lastLineStart + 1 && buf[off + lastLineStart] == '\r')) {
+                    headEnd = scan + 1;
+                    buildRequest(buf, off);
+                    return true;
+                }
+                lastLineStart = scan + 1;
+            }
+            scan++;
+            if (requestLineEnd < 0) {
+                if (scan - lineStart > maxRequestLine) {
+                    throw new MalformedRequestException(MalformedRequestException.URI_TOO_LONG,
+                            "Request line longer than " + maxRequestLine + " bytes");
+                }
+            } else if (scan - requestLineEnd > maxHeaderBytes) {
+                throw new MalformedRequestException(MalformedRequestException.HEADERS_TOO_LARGE,
+                        "Headers longer than " + maxHeaderBytes + " bytes");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Builds the request of an HTTP/2 stream from its decoded header block,
+     * under the same validation and limits as an HTTP/1.x request. The
+     * fields are laid out as an HTTP/1.x head with version
+     * {@code HTTP/2.0}, so the request reads them the same way.
+     *
+     * @param fields names (already lowercase, pseudo-headers removed)
+     *        alternating with their values
+     * @throws MalformedRequestException if the request is invalid or exceeds
+     *         a limit
+     */
+    HttpRequest http2Request(String method, String target, List<String> fields, byte[] body) {
+        if (target.length() > maxRequestLine) {
+            throw new MalformedRequestException(MalformedRequestException.URI_TOO_LONG,
+                    "Request target longer than " + maxRequestLine + " bytes");
+        }
+        if (fields.size() / 2 > MAX_HEADERS) {
+            throw new MalformedRequestException(MalformedRequestException.HEADERS_TOO_LARGE, "Too many headers");
+        }
+        if (body.length > maxBodyBytes) {
+            throw new MalformedRequestException(MalformedRequestException.CONTENT_TOO_LARGE,
+                    "Body longer than " + maxBodyBytes + " bytes");
+        }
+        int headerBytes = 0;
+        for (int i = 0; i < fields.size(); i += 2) {
+            headerBytes += fields.get(i).length() + fields.get(i + 1).length() + 4;
+        }
+        if (headerBytes > maxHeaderBytes) {
+            throw new MalformedRequestException(MalformedRequestException.HEADERS_TOO_LARGE,
+                    "Headers longer than " + maxHeaderBytes + " bytes");
+        }
+        String requestLine = method + ' ' + target + " HTTP/2.0\r\n";
+        byte[] head = new byte[requestLine.length() + headerBytes + 2];
+        int pos = put(head, 0, requestLine);
+        int sp1 = method.length();
+        int sp2 = sp1 + 1 + target.length();
+        if (sp1 == 0 || target.isEmpty()) {
+            throw new MalformedRequestException("Malformed request line");
+        }
+        for (int i = 0; i < sp1; i++) {
+            if (!isTokenChar(head[i])) {
+                throw new MalformedRequestException("Invalid method");
+            }
+        }
+        int pathStart = pathStart(head, sp1 + 1, sp2);
+
+        int[] offsets = new int[Math.max(fields.size() * 2, 4)];
+        int count = 0;
+        for (int i = 0; i < fields.size(); i += 2) {
+            int nameStart = pos;
+            pos = put(head, pos, fields.get(i));
+            int colon = pos;
+            for (int j = nameStart; j < colon; j++) {
+                if (!isTokenChar(head[j])) {
+                    throw new MalformedRequestException("Invalid header name");
+                }
+            }
+            head[pos++] = ':';
+            head[pos++] = ' ';
+            int valueStart = pos;
+            pos = put(head, pos, fields.get(i + 1));
+            for (int j = valueStart; j < pos; j++) {
+                // HPACK admite cualquier octeto; estos partirian la cabecera
+                if (head[j] == '\r' || head[j] == '\n' || head[j] == 0) {
+                    throw new MalformedRequestException("Invalid header value");
+                }
+            }
+            head[pos++] = '\r';
+            head[pos++] = '\n';
+            offsets[count * 4] = nameStart;
+            offsets[count * 4 + 1] = colon;
+            offsets[count * 4 + 2] = valueStart;
+            offsets[count * 4 + 3] = pos - 2;
+            count++;
+        }
+        head[pos++] = '\r';
+        head[pos] = '\n';
+
+        HttpRequest req = new HttpRequest(head, HttpRequest.method(head, 0, sp1), sp1 + 1, pathStart, sp2,
+                "HTTP/2.0", offsets, count);
+        if (body.length > 0) {
+            req.setBody(body);
+        }
+        return req;
+    }
+
+    private static int put(byte[] b, int pos, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            b[pos++] = (byte) s.charAt(i);
+        }
+        return pos;
+    }
+
+    private void buildRequest(byte[] buf, int off) {
+        byte[] head = Arrays.copyOfRange(buf, off + lineStart, off + headEnd);
+        int lineEnd = trimCr(head, 0, requestLineEnd - lineStart);
+
+        int sp1 = indexOf(head, (byte) ' ', 0, lineEnd);
+        int sp2 = sp1 < 0 ? -1 : indexOf(head, (byte) ' ', sp1 + 1, lineEnd);
+        if (sp1 <= 0 || sp2 <= sp1 + 1 || indexOf(head, (byte) ' ', sp2 + 1, lineEnd) >= 0) {
+            throw new MalformedRequestException("Malformed request line");
+        }
+        for (int i = 0; i < sp1; i++) {
+            if (!isTokenChar(head[i])) {
+                throw new MalformedRequestException("Invalid method");
+            }
+        }
+        String version = version(head, sp2 + 1, lineEnd);
+        int pathStart = pathStart(head, sp1 + 1, sp2);
+
+        int[] fields = new int[16];
+        int count = 0;
+        int pos = requestLineEnd - lineStart + 1;
+        int end = head.length;
+        while (true) {
+            int nl = indexOf(head, (byte) '\n', pos, end);
+            int le = trimCr(head, pos, nl);
+            if (le == pos) {
+                break;
+            }
+            if (count == MAX_HEADERS) {
+                throw new MalformedRequestException(MalformedRequestException.HEADERS_TOO_LARGE, "Too many headers");
+            }
+            int colon = indexOf(head, (byte) ':', pos, le);
+            if (colon <= pos) {
+                // Incluye el plegado obsoleto de lineas (RFC 9112, 5.2)
+                throw new MalformedRequestException("Malformed header");
+            }
+            for (int i = pos; i < colon; i++) {
+                if (!isTokenChar(head[i])) {
+                    throw new MalformedRequestException("Invalid header name");
+                }
+            }
+            int vs = colon + 1;
+            int ve = le;
+            while (vs < ve && (head[vs] == ' ' || head[vs] == '\t')) {
+                vs++;
+            }
+            while (ve > vs && (head[ve - 1] == ' ' || head[ve - 1] == '\t')) {
+                ve--;
+            }
+            if (count * 4 == fields.length) {
+                fields = Arrays.copyOf(fields, fields.length * 2);
+            }
+            fields[count * 4] = pos;
+            fields[count * 4 + 1] = colon;
+            fields[count * 4 + 2] = vs;
+            fields[count * 4 + 3] = ve;
+            count++;
+            pos = nl + 1;
+        }
+
+        pending = new HttpRequest(head, HttpRequest.method(head, 0, sp1), sp1 + 1, pathStart, sp2, version,
+                fields, count);
+        framing();
+    }
+
+    private void framing() {
+        String transferEncoding = pending.getHeader("transfer-encoding");
+        String length = pending.getHeader("content-length");
+        if (transferEncoding != null) {
+            if (length != null) {
+                // Ambas cabeceras: posible contrabando de peticiones
+                throw new MalformedRequestException("Both transfer-encoding and content-length");
+            }
+            // Solo se entiende chunked sin otras codificaciones: decodificar solo esa parte
+            // le entregaria al controlador un cuerpo aun codificado (RFC 9112, 6.1)
+            if (!transferEncoding.trim().equalsIgnoreCase("chunked")) {
+                throw new MalformedRequestException(MalformedRequestException.NOT_IMPLEMENTED,
+                        "Unsupported transfer-encoding: " + transferEncoding);
+            }
+            bodyMode = BODY_CHUNKED;
+            chunkPos = headEnd;
+        } else if (length != null) {
+            contentLength = contentLength(length);
+            bodyMode = contentLength == 0 ? BODY_NONE : BODY_FIXED;
+        } else {
+            bodyMode = BODY_NONE;
+        }
+    }
+
+    private int contentLength(String value) {
+        // Valores repetidos ("10, 10") se aceptan si coinciden
+        long result = -1;
+        for (String part : value.split(",")) {
+            String digits = part.trim();
+            if (digits.isEmpty() || digits.length() > 18) {
+                throw new MalformedRequestException("Invalid content-length: " + value);
+            }
+            long parsed = 0;
+            for (int i = 0; i < digits.length(); i++) {
+                char c = digits.charAt(i);
+                if (c < '0' || c > '9') {
+                    throw new MalformedRequestException("Invalid content-length: " + value);
+                }
+                parsed = parsed * 10 + (c - '0');
+            }
+            if (result >= 0 && result != parsed) {
+                throw new MalformedRequestException("Conflicting content-length: " + value);
+            }
+            result = parsed;
+        }
+        if (result > maxBodyBytes) {
+            throw new MalformedRequestException(MalformedRequestException.CONTENT_TOO_LARGE,
+                    "Body larger than " + maxBodyBytes + " bytes");
+        }
+        return (int) result;
+    }
+
+    private int parseChunks(byte[] buf, int off, int len) {
+        while (true) {
+            int nl = indexOf(buf, (byte) '\n', off + chunkPos, off + len);
+            if (nl < 0) {
+                int limit = inTrailers ? maxHeaderBytes : MAX_CHUNK_LINE;
+                if (len - chunkPos > limit) {
+                    throw new MalformedRequestException("Chunk line too long");
+                }
+                return 0;
+            }
+            int lineEnd = trimCr(buf, off + chunkPos, nl);
+            if (inTrailers) {
+                // Los trailers se ignoran hasta la linea vacia
+                boolean blank = lineEnd == off + chunkPos;
+                chunkPos = nl + 1 - off;
+                if (blank) {
+                    return finishChunked(buf, off);
+                }
+                continue;
+            }
+            int size = chunkSize(buf, off + chunkPos, lineEnd);
+            int dataStart = nl + 1 - off;
+            if (size == 0) {
+                inTrailers = true;
+                chunkPos = dataStart;
+                continue;
+            }
+            if ((long) bodyLength + size > maxBodyBytes) {
+                throw new MalformedRequestException(MalformedRequestException.CONTENT_TOO_LARGE,
+                        "Body larger than " + maxBodyBytes + " bytes");
+            }
+            int dataEnd = dataStart + size;
+            if (len < dataEnd + 1) {
+                return 0;
+            }
+            int next;
+            if (buf[off + dataEnd] == '\n') {
+                next = dataEnd + 1;
+            } else if (buf[off + dataEnd] == '\r') {
+                if (len < dataEnd + 2) {
+                    return 0;
+                }
+                if (buf[off + dataEnd + 1] != '\n') {
+                    throw new MalformedRequestException("Missing CRLF after chunk");
+                }
+                next = dataEnd + 2;
+            } else {
+                throw new MalformedRequestException("Missing CRLF after chunk");
+            }
+            if (chunkCount * 2 == chunks.length) {
+                chunks = Arrays.copyOf(chunks, Math.max(8, chunks.length * 2));
+            }
+            chunks[chunkCount * 2] = dataStart;
+            chunks[chunkCount * 2 + 1] = size;
+            chunkCount++;
+            bodyLength += size;
+            chunkPos = next;
+        }
+    }
+
+    private int finishChunked(byte[] buf, int off) {
+        byte[] body = new byte[bodyLength];
+        int at = 0;
+        for (int i = 0; i < chunkCount; i++) {
+            int size = chunks[i * 2 + 1];
+            System.arraycopy(buf, off + chunks[i * 2], body, at, size);
+            at += size;
+        }
+        pending.setBody(body);
+        return complete(chunkPos);
+    }
+
+    private static int chunkSize(byte[] buf, int from, int to) {
+        int size = 0;
+        int digits = 0;
+        int i = from;
+        for (; i < to; i++) {
+            int d = Character.digit(buf[i], 16);
+            if (d < 0) {
+                break;
+            }
+            if (++digits > 7) {
+                throw new MalformedRequestException(MalformedRequestException.CONTENT_TOO_LARGE, "Chunk too large");
+            }
+            size = (size << 4) | d;
+        }
+        while (i < to && (buf[i] == ' ' || buf[i] == '\t')) {
+            i++;
+        }
+        if (digits == 0 || (i < to && buf[i] != ';')) {
+            throw new MalformedRequestException("Invalid chunk size");
+        }
+        return size;
+    }
+
+    private int complete(int consumed) {
+        ready = pending;
+        pending = null;
+        scan = 0;
+        lineStart = -1;
+        requestLineEnd = -1;
+        lastLineStart = 0;
+        headEnd = -1;
+        bodyMode = BODY_NONE;
+        contentLength = 0;
+        chunkPos = 0;
+        inTrailers = false;
+        chunkCount = 0;
+        bodyLength = 0;
+        return consumed;
+    }
+
+    private static String version(byte[] head, int from, int to) {
+        if (to - from == 8 && head[from] == 'H' && head[from + 1] == 'T' && head[from + 2] == 'T'
+                && head[from + 3] == 'P' && head[from + 4] == '/' && head[from + 5] == '1' && head[from + 6] == '.') {
+            if (head[from + 7] == '1') {
+                return "HTTP/1.1";
+            }
+            if (head[from + 7] == '0') {
+                return "HTTP/1.0";
+            }
+        }
+        if (to - from > 5 && head[from] == 'H' && head[from + 1] == 'T' && head[from + 2] == 'T'
+                && head[from + 3] == 'P' && head[from + 4] == '/') {
+            throw new MalformedRequestException(MalformedRequestException.VERSION_NOT_SUPPORTED,
+                    "Unsupported version");
+        }
+        throw new MalformedRequestException("Malformed request line");
+    }
+
+    /**
+     * Validates the request target and returns where its path starts. The
+     * absolute form ({@code http://host/path}) is reduced to its path.
+     */
+    private static int pathStart(byte[] head, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int c = head[i] & 0xFF;
+            if (c <= ' ' || c == 0x7F) {
+                throw new MalformedRequestException("Invalid request target");
+            }
+        }
+        if (head[from] == '/' || (to - from == 1 && head[from] == '*')) {
+            return from;
+        }
+        int scheme = indexOf(head, (byte) ':', from, to);
+        if (scheme > from && scheme + 2 < to && head[scheme + 1] == '/' && head[scheme + 2] == '/') {
+            int slash = indexOf(head, (byte) '/', scheme + 3, to);
+            int query = indexOf(head, (byte) '?', scheme + 3, to);
+            if (slash < 0 || (query >= 0 && query < slash)) {
+                // Sin ruta: equivale a "/"
+                return query >= 0 ? query : to;
+            }
+            return slash;
+        }
+        throw new MalformedRequestException("Invalid request target");
+    }
+
+    private static boolean isTokenChar(byte b) {
+        if (b <= ' ' || b >= 0x7F) {
+            return false;
+        }
+        return switch (b) {
+            case '(', ')', ',', '/', ':', ';', '<', '=', '>', '?', '@', '[', '\\', ']', '{', '}', '"' -> false;
+            default -> true;
+        };
+    }
+
+    private static int trimCr(byte[] b, int from, int nl) {
+        return nl > from && b[nl - 1] == '\r' ? nl - 1 : nl;
+    }
+
+    private static int indexOf(byte[] b, byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (b[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
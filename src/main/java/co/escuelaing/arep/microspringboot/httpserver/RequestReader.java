@@ -0,0 +1,121 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+
+/**
+ * Reads requests from a blocking stream into one buffer reused for the whole
+ * connection, and lets a {@link RequestParser} frame them in place. Bytes of
+ * pipelined requests stay in the buffer for the next call.
+ *
+ * @author juan.medina-r
+ */
+final class RequestReader {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final InputStream in;
+    private final RequestParser parser;
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int start;
+    private int end;
+
+    RequestReader(InputStream in, RequestParser parser) {
+        this.in = in;
+        this.parser = parser;
+    }
+
+    /**
+     * @return the next request, or {@code null} if the peer closed the
+     *         connection between requests
+     * @throws EOFException if the peer closed the connection inside a request
+     * @throws MalformedRequestException if the request is invalid
+     */
+    HttpRequest next() throws IOException {
+        while (true) {
+            if (end > start) {
+                int consumed = parser.parse(buffer, start, end - start);
+                if (consumed > 0) {
+                    start += consumed;
+                    if (start == end) {
+                        start = 0;
+                        end = 0;
+                    }
+                    return parser.take();
+                }
+            }
+            if (end == buffer.length) {
+                makeRoom();
+            }
+            int read = in.read(buffer, end, buffer.length - end);
+            if (read < 0) {
+                if (parser.inProgress()) {
+                    throw new EOFException("Connection closed inside a request");
+                }
+                return null;
+            }
+            end += read;
+        }
+    }
+
+    /**
+     * Consumes {@code prefix} if the connection starts with it. Reads only
+     * until the bytes received differ from it; otherwise they stay buffered
+     * for {@link #next()}.
+     */
+    boolean consumePrefix(byte[] prefix) throws IOException {
+        while (end - start < prefix.length) {
+            if (!Arrays.equals(buffer, start, end, prefix, 0, end - start)) {
+                return false;
+            }
+            if (end == buffer.length) {
+                makeRoom();
+            }
+            int read = in.read(buffer, end, buffer.length - end);
+            if (read < 0) {
+                return false;
+            }
+            end += read;
+        }
+        if (!Arrays.equals(buffer, start, start + prefix.length, prefix, 0, prefix.length)) {
+            return false;
+        }
+        start += prefix.length;
+        return true;
+    }
+
+    /**
+     * The rest of the connection: the bytes already buffered followed by the
+     * stream. The reader must not be used afterwards.
+     */
+    InputStream remaining() {
+        InputStream buffered = new ByteArrayInputStream(buffer, start, end - start);
+        return new BufferedInputStream(new SequenceInputStream(buffered, in), BUFFER_SIZE);
+    }
+
+    /**
+     * Whether bytes of a further request are already buffered.
+     */
+    boolean hasBuffered() throws IOException {
+        return end > start || in.available() > 0;
+    }
+
+    private void makeRoom() {
+        int pending = end - start;
+        if (start > 0 && pending < buffer.length / 2) {
+            System.arraycopy(buffer, start, buffer, 0, pending);
+        } else {
+            // El parser limita el tamano de la peticion, y con ello el del buffer
+            byte[] grown = new byte[buffer.length * 2];
+            System.arraycopy(buffer, start, grown, 0, pending);
+            buffer = grown;
+        }
+        start = 0;
+        end = pending;
+    }
+}
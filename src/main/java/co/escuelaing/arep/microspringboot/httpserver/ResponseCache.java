@@ -0,0 +1,174 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Encoded responses of one {@code @Cacheable} route, keyed by the values
+ * bound to its parameters. Concurrent misses on the same key are coalesced:
+ * the first caller computes the response and the others wait for it. Entries
+ * expire after the route's TTL; when the cache grows past its bound the
+ * expired entries and then the oldest ones are evicted.
+ *
+ * @author juan.medina-r
+ */
+final class ResponseCache {
+
+    private final String route;
+    private final long ttlNanos;
+    private final int maxEntries;
+    private final ConcurrentHashMap<Object, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    ResponseCache(String route, long ttlSeconds, int maxEntries) {
+        if (ttlSeconds <= 0 || maxEntries <= 0) {
+            throw new IllegalArgumentException("@Cacheable needs a positive ttl and maxEntries: " + route);
+        }
+        this.route = route;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the cached response for {@code key}, computing it with
+     * {@code loader} on a miss. Responses the loader marks as not cacheable
+     * are handed to the callers waiting for them and then dropped.
+     */
+    Cached get(Object key, Callable<Cached> loader) throws Exception {
+        long now = System.nanoTime();
+        Entry created = new Entry();
+        Entry entry = entries.compute(key, (k, current) ->
+                current != null && !current.isExpired(now) ? current : created);
+        if (entry != created) {
+            if (entry.future.isDone()) {
+                hits.increment();
+            } else {
+                coalesced.increment();
+            }
+            return await(entry);
+        }
+        misses.increment();
+        Cached cached;
+        try {
+            cached = loader.call();
+        } catch (Exception | Error e) {
+            entries.remove(key, created);
+            created.future.completeExceptionally(e);
+            throw e;
+        }
+        created.expiresAt = System.nanoTime() + ttlNanos;
+        created.future.complete(cached);
+        if (!cached.cacheable) {
+            entries.remove(key, created);
+        } else if (entries.size() > maxEntries) {
+            evict();
+        }
+        return cached;
+    }
+
+    private static Cached await(Entry entry) throws Exception {
+        try {
+            return entry.future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw e;
+        }
+    }
+
+    /**
+     * Brings the cache back to 90% of its bound, dropping expired entries
+     * first and then those that expire soonest (the oldest, as every entry
+     * has the same TTL). Only one thread evicts at a time.
+     */
+    private void evict() {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long now = System.nanoTime();
+            List<Map.Entry<Object, Entry>> live = new ArrayList<>(entries.size());
+            for (Map.Entry<Object, Entry> e : entries.entrySet()) {
+                if (e.getValue().isExpired(now)) {
+                    if (entries.remove(e.getKey(), e.getValue())) {
+                        evictions.increment();
+                    }
+                } else if (e.getValue().future.isDone()) {
+                    live.add(e);
+                }
+            }
+            int excess = entries.size() - maxEntries * 9 / 10;
+            if (excess <= 0) {
+                return;
+            }
+            live.sort((a, b) -> Long.compare(a.getValue().expiresAt - now, b.getValue().expiresAt - now));
+            for (int i = 0; i < live.size() && excess > 0; i++) {
+                if (entries.remove(live.get(i).getKey(), live.get(i).getValue())) {
+                    evictions.increment();
+                    excess--;
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    CacheStats stats() {
+        return new CacheStats(route, hits.sum(), misses.sum(), coalesced.sum(), evictions.sum(), entries.size());
+    }
+
+    private static final class Entry {
+
+        final CompletableFuture<Cached> future = new CompletableFuture<>();
+        // Se fija al completar; mientras tanto la entrada no expira
+        volatile long expiresAt;
+
+        boolean isExpired(long now) {
+            return future.isDone() && expiresAt - now <= 0;
+        }
+    }
+
+    /**
+     * A complete encoded response except for its {@code connection} header,
+     * which depends on the connection it is written to.
+     */
+    static final class Cached {
+
+        private final byte[] head;
+        private final byte[] body;
+        final boolean cacheable;
+
+        Cached(byte[] head, byte[] body, boolean cacheable) {
+            this.head = head;
+            this.body = body;
+            this.cacheable = cacheable;
+        }
+
+        void writeTo(OutputStream out, byte[] end, boolean headOnly) throws IOException {
+            out.write(head);
+            out.write(end);
+            if (!headOnly) {
+                out.write(body);
+            }
+        }
+    }
+}
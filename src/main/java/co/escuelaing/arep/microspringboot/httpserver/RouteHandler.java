@@ -0,0 +1,367 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import co.escuelaing.arep.microspringboot.annotations.Cacheable;
+import co.escuelaing.arep.microspringboot.annotations.GetMapping;
+import co.escuelaing.arep.microspringboot.annotations.PathVariable;
+import co.escuelaing.arep.microspringboot.annotations.RequestParam;
+import co.escuelaing.arep.microspringboot.annotations.StreamMapping;
+import co.escuelaing.arep.microspringboot.annotations.Timeout;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Function;
+
+/**
+ * A route's target. Controller methods are compiled at registration time
+ * into a {@link MethodHandle} spread over an argument array, plus one binder
+ * per parameter that knows where its value comes from and how to convert it,
+ * so invoking a route does no reflection. Routes registered in code wrap a
+ * {@link Service} directly. A {@code @Cacheable} method also gets its
+ * {@link ResponseCache}, and a method returning a {@link CompletionStage}
+ * may declare its own {@code @Timeout}. A {@code @StreamMapping} method
+ * returns the {@link BroadcastHub} its clients subscribe to.
+ *
+ * @author juan.medina-r
+ */
+final class RouteHandler {
+
+    // Valor por defecto de RequestParam: indica que no se declaro uno
+    private static final String UNSET = "Default";
+
+    private final String description;
+    private final Service service;
+    private final MethodHandle invoker;
+    private final ParamBinder[] binders;
+    private final ResponseCache cache;
+    private final long timeout;
+    private final boolean stream;
+    private final ServerMetrics.RouteStats stats;
+
+    private RouteHandler(String description, Service service, MethodHandle invoker, ParamBinder[] binders,
+            ResponseCache cache, long timeout, boolean stream, ServerMetrics.RouteStats stats) {
+        this.description = description;
+        this.service = service;
+        this.invoker = invoker;
+        this.binders = binders;
+        this.cache = cache;
+        this.timeout = timeout;
+        this.stream = stream;
+        this.stats = stats;
+    }
+
+    /**
+     * Wraps a service registered in code.
+     */
+    static RouteHandler of(String description, Service service, ServerMetrics.RouteStats stats) {
+        return new RouteHandler(description, service, null, null, null, 0, false, stats);
+    }
+
+    /**
+     * Wraps a push endpoint registered in code; {@code service} returns the
+     * hub to subscribe to.
+     */
+    static RouteHandler stream(String description, Service service, ServerMetrics.RouteStats stats) {
+        return new RouteHandler(description, service, null, null, null, 0, true, stats);
+    }
+
+    /**
+     * Compiles {@code method}. Instance methods are bound to
+     * {@code controller}, which must be non-null for them.
+     */
+    static RouteHandler compile(Method method, Object controller, ServerMetrics.RouteStats stats) {
+        try {
+            method.setAccessible(true);
+            MethodHandle handle = MethodHandles.lookup().unreflect(method);
+            if (!Modifier.isStatic(method.getModifiers())) {
+                handle = handle.bindTo(controller);
+            }
+            Parameter[] parameters = method.getParameters();
+            MethodHandle invoker = handle
+                    .asSpreader(Object[].class, parameters.length)
+                    .asType(MethodType.methodType(Object.class, Object[].class));
+
+            boolean stream = streamFor(method);
+            if (!stream) {
+                // El codificador JSON del tipo de retorno se arma al registrar la ruta
+                JsonEncoder.prepare(resultType(method));
+            }
+
+            ParamBinder[] binders = new ParamBinder[parameters.length];
+            for (int i = 0; i < parameters.length; i++) {
+                binders[i] = binderFor(method, parameters[i]);
+            }
+            return new RouteHandler(method.toString(), null, invoker, binders, cacheFor(method), timeoutFor(method),
+                    stream, stats);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Cannot access controller method " + method, e);
+        }
+    }
+
+    /**
+     * Binds the request to the parameters and calls the target.
+     *
+     * @return the body to send, or {@code null} if the target wrote it to
+     *         {@code res}
+     * @throws BadRequestException if a parameter is missing or malformed
+     */
+    Object invoke(HttpRequest req, HttpResponse res) throws Exception {
+        if (service != null) {
+            return service.invoke(req, res);
+        }
+        return call(bind(req, res));
+    }
+
+    /**
+     * The arguments for a controller method, which for a cacheable route are
+     * also its cache key.
+     */
+    Object[] bind(HttpRequest req, HttpResponse res) {
+        Object[] args = new Object[binders.length];
+        for (int i = 0; i < binders.length; i++) {
+            args[i] = binders[i].bind(req, res);
+        }
+        return args;
+    }
+
+    Object call(Object[] args) throws Exception {
+        try {
+            return (Object) invoker.invokeExact(args);
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    ServerMetrics.RouteStats stats() {
+        return stats;
+    }
+
+    /**
+     * The route's response cache, or {@code null} if it is not cacheable.
+     */
+    ResponseCache cache() {
+        return cache;
+    }
+
+    /**
+     * Milliseconds an asynchronous result may take, or {@code 0} for the
+     * server's default.
+     */
+    long timeout() {
+        return timeout;
+    }
+
+    /**
+     * Whether the target is a push endpoint returning a {@link BroadcastHub}.
+     */
+    boolean isStream() {
+        return stream;
+    }
+
+    // Para un CompletionStage<T> lo que se escribe es T
+    private static Type resultType(Method method) {
+        if (!CompletionStage.class.isAssignableFrom(method.getReturnType())) {
+            return method.getGenericReturnType();
+        }
+        Type generic = method.getGenericReturnType();
+        if (generic instanceof ParameterizedType parameterized) {
+            return parameterized.getActualTypeArguments()[0];
+        }
+        return Object.class;
+    }
+
+    private static boolean streamFor(Method method) {
+        if (!method.isAnnotationPresent(StreamMapping.class)) {
+            return false;
+        }
+        if (method.getReturnType() != BroadcastHub.class) {
+            throw new IllegalArgumentException("@StreamMapping methods must return BroadcastHub: " + method);
+        }
+        for (Class<?> type : method.getParameterTypes()) {
+            if (type == HttpResponse.class) {
+                // La respuesta es el propio flujo
+                throw new IllegalArgumentException("@StreamMapping methods cannot take HttpResponse: " + method);
+            }
+        }
+        return true;
+    }
+
+    private static long timeoutFor(Method method) {
+        Timeout timeout = method.getAnnotation(Timeout.class);
+        if (timeout == null) {
+            return 0;
+        }
+        if (!CompletionStage.class.isAssignableFrom(method.getReturnType())) {
+            throw new IllegalArgumentException("@Timeout is only supported on methods returning CompletionStage: "
+                    + method);
+        }
+        if (timeout.value() <= 0) {
+            throw new IllegalArgumentException("@Timeout must be positive: " + method);
+        }
+        return timeout.value();
+    }
+
+    private static ResponseCache cacheFor(Method method) {
+        Cacheable cacheable = method.getAnnotation(Cacheable.class);
+        if (cacheable == null) {
+            return null;
+        }
+        if (!method.isAnnotationPresent(GetMapping.class)) {
+            throw new IllegalArgumentException("@Cacheable is only supported on @GetMapping methods: " + method);
+        }
+        if (CompletionStage.class.isAssignableFrom(method.getReturnType())) {
+            throw new IllegalArgumentException("@Cacheable methods cannot return CompletionStage: " + method);
+        }
+        for (Class<?> type : method.getParameterTypes()) {
+            if (type == HttpRequest.class || type == HttpResponse.class) {
+                // La respuesta debe depender solo de los parametros enlazados
+                throw new IllegalArgumentException("@Cacheable methods cannot take " + type.getSimpleName()
+                        + ": " + method);
+            }
+        }
+        return new ResponseCache(method.getDeclaringClass().getSimpleName() + "." + method.getName(),
+                cacheable.ttl(), cacheable.maxEntries());
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+
+    private static ParamBinder binderFor(Method method, Parameter parameter) {
+        Class<?> type = parameter.getType();
+        if (type == HttpRequest.class) {
+            return (req, res) -> req;
+        }
+        if (type == HttpResponse.class) {
+            return (req, res) -> res;
+        }
+        PathVariable pv = parameter.getAnnotation(PathVariable.class);
+        if (pv != null) {
+            String name = pv.value().isEmpty() ? parameter.getName() : pv.value();
+            Function<String, Object> converter = converterFor(type, method);
+            return (req, res) -> {
+                String value = req.getPathVariable(name);
+                if (value == null) {
+                    throw new BadRequestException("Missing path variable: " + name);
+                }
+                return convert(converter, name, value);
+            };
+        }
+        RequestParam rp = parameter.getAnnotation(RequestParam.class);
+        if (rp == null) {
+            throw new IllegalArgumentException("Parameter " + parameter.getName() + " of " + method
+                    + " needs @RequestParam or @PathVariable");
+        }
+        String name = UNSET.equals(rp.value()) ? parameter.getName() : rp.value();
+        if (type == List.class) {
+            return listBinder(method, parameter, rp, name);
+        }
+        Function<String, Object> converter = converterFor(type, method);
+        boolean hasDefault = !UNSET.equals(rp.defaultValue()) || type == String.class;
+        Object defaultValue = hasDefault ? converter.apply(rp.defaultValue()) : null;
+        if (!hasDefault && type.isPrimitive()) {
+            // Sin valor por defecto un primitivo es obligatorio
+            return (req, res) -> {
+                String value = req.getValue(name);
+                if (value == null) {
+                    throw new BadRequestException("Missing request parameter: " + name);
+                }
+                return convert(converter, name, value);
+            };
+        }
+        return (req, res) -> {
+            String value = req.getValue(name);
+            return value == null ? defaultValue : convert(converter, name, value);
+        };
+    }
+
+    /**
+     * Binds every value of a repeated parameter, e.g. {@code ?n=1&n=2} to
+     * {@code List<Long>}. A {@code List<String>} is the request's own list.
+     */
+    private static ParamBinder listBinder(Method method, Parameter parameter, RequestParam rp, String name) {
+        Class<?> element = String.class;
+        Type generic = parameter.getParameterizedType();
+        if (generic instanceof ParameterizedType) {
+            Type argument = ((ParameterizedType) generic).getActualTypeArguments()[0];
+            if (!(argument instanceof Class)) {
+                throw new IllegalArgumentException("Unsupported @RequestParam type " + generic + " in " + method);
+            }
+            element = (Class<?>) argument;
+        }
+        Function<String, Object> converter = converterFor(element, method);
+        List<Object> defaults = UNSET.equals(rp.defaultValue())
+                ? List.of()
+                : List.of(converter.apply(rp.defaultValue()));
+        boolean strings = element == String.class;
+        return (req, res) -> {
+            List<String> values = req.getValues(name);
+            if (values.isEmpty()) {
+                return defaults;
+            }
+            if (strings) {
+                return values;
+            }
+            List<Object> converted = new ArrayList<>(values.size());
+            for (String value : values) {
+                converted.add(convert(converter, name, value));
+            }
+            return converted;
+        };
+    }
+
+    private static Object convert(Function<String, Object> converter, String name, String value) {
+        try {
+            return converter.apply(value);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Invalid value for parameter " + name + ": " + value);
+        }
+    }
+
+    private static Function<String, Object> converterFor(Class<?> type, Method method) {
+        if (type == String.class) {
+            return s -> s;
+        }
+        if (type == int.class || type == Integer.class) {
+            return Integer::valueOf;
+        }
+        if (type == long.class || type == Long.class) {
+            return Long::valueOf;
+        }
+        if (type == double.class || type == Double.class) {
+            return Double::valueOf;
+        }
+        if (type == boolean.class || type == Boolean.class) {
+            return RouteHandler::parseBoolean;
+        }
+        throw new IllegalArgumentException("Unsupported @RequestParam type " + type.getName() + " in " + method);
+    }
+
+    private static Boolean parseBoolean(String value) {
+        if ("true".equalsIgnoreCase(value)) {
+            return Boolean.TRUE;
+        }
+        if ("false".equalsIgnoreCase(value)) {
+            return Boolean.FALSE;
+        }
+        throw new IllegalArgumentException("Not a boolean: " + value);
+    }
+
+    /**
+     * Produces the argument for one parameter from the request.
+     */
+    @FunctionalInterface
+    interface ParamBinder {
+        Object bind(HttpRequest req, HttpResponse res);
+    }
+}
@@ -0,0 +1,209 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Prefix tree of routes keyed by path segment. Each node can have literal
+ * children (looked up by hash), one {@code {variable}} child, one {@code *}
+ * child matching a single segment and one {@code **} child matching the
+ * rest of the path; handlers hang from nodes per HTTP method. A lookup walks
+ * the path once, so its cost depends on the path length and not on how many
+ * routes are registered. Literal segments win over variables, and variables
+ * over wildcards.
+ *
+ * <p>Routes may be added while servers look them up. {@link #add} is
+ * serialized, the node maps are concurrent and the child links are volatile,
+ * so a lookup sees each node fully built; one running at the same time as
+ * an {@code add} may or may not see the new route.
+ *
+ * @author juan.medina-r
+ */
+final class Router {
+
+    private final Node root = new Node();
+    private volatile int size;
+
+    /**
+     * Registers {@code handler} for {@code method} and a pattern such as
+     * {@code /users/{id}}, {@code /files/*} or {@code /static/**}. A later
+     * registration of the same method and pattern replaces the earlier one.
+     */
+    synchronized void add(String method, String pattern, RouteHandler handler) {
+        Node node = root;
+        List<String> segments = split(pattern);
+        for (int i = 0; i < segments.size(); i++) {
+            String segment = segments.get(i);
+            if (segment.equals("**")) {
+                if (i != segments.size() - 1) {
+                    throw new IllegalArgumentException("'**' must be the last segment: " + pattern);
+                }
+                if (node.tail == null) {
+                    node.tail = new Node();
+                }
+                node = node.tail;
+            } else if (segment.equals("*")) {
+                if (node.wildcard == null) {
+                    node.wildcard = new Node();
+                }
+                node = node.wildcard;
+            } else if (segment.startsWith("{") && segment.endsWith("}")) {
+                String name = segment.substring(1, segment.length() - 1);
+                if (node.variable == null) {
+                    // El nombre se escribe antes que el enlace volatil que lo publica
+                    node.variableName = name;
+                    node.variable = new Node();
+                } else if (!node.variableName.equals(name)) {
+                    throw new IllegalArgumentException("Path variable {" + name + "} in " + pattern
+                            + " conflicts with {" + node.variableName + "}");
+                }
+                node = node.variable;
+            } else {
+                node = node.children.computeIfAbsent(segment, s -> new Node());
+            }
+        }
+        if (node.handlers.put(method, handler) == null) {
+            size++;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Looks up the route for a request. {@code HEAD} falls back to the
+     * {@code GET} handler.
+     *
+     * @return the match, or {@code null} when no route has this path
+     */
+    Match find(String method, String path) {
+        List<String> segments = split(path);
+        List<String> captured = new ArrayList<>(4);
+        Node node = match(root, segments, 0, captured, method);
+        if (node == null && "HEAD".equals(method)) {
+            node = match(root, segments, 0, captured, "GET");
+            method = "GET";
+        }
+        if (node != null) {
+            return new Match(node.handlers.get(method), variables(captured), null);
+        }
+        // Sin handler para el metodo: 405 si la ruta existe con otros metodos
+        node = match(root, segments, 0, captured, null);
+        if (node == null) {
+            return null;
+        }
+        Set<String> allowed = new TreeSet<>(node.handlers.keySet());
+        if (allowed.contains("GET")) {
+            allowed.add("HEAD");
+        }
+        return new Match(null, Map.of(), allowed);
+    }
+
+    /**
+     * Depth-first match. With {@code method == null} any node holding a
+     * handler is accepted. Variables are pushed on {@code captured} as
+     * name/value pairs in path order.
+     */
+    private static Node match(Node node, List<String> segments, int index, List<String> captured, String method) {
+        if (index == segments.size()) {
+            if (accepts(node, method)) {
+                return node;
+            }
+            return node.tail != null && accepts(node.tail, method) ? node.tail : null;
+        }
+        String segment = segments.get(index);
+        Node child = node.children.get(segment);
+        if (child != null) {
+            Node found = match(child, segments, index + 1, captured, method);
+            if (found != null) {
+                return found;
+            }
+        }
+        Node variable = node.variable;
+        if (variable != null) {
+            captured.add(node.variableName);
+            captured.add(segment);
+            Node found = match(variable, segments, index + 1, captured, method);
+            if (found != null) {
+                return found;
+            }
+            captured.remove(captured.size() - 1);
+            captured.remove(captured.size() - 1);
+        }
+        if (node.wildcard != null) {
+            Node found = match(node.wildcard, segments, index + 1, captured, method);
+            if (found != null) {
+                return found;
+            }
+        }
+        if (node.tail != null && accepts(node.tail, method)) {
+            return node.tail;
+        }
+        return null;
+    }
+
+    private static boolean accepts(Node node, String method) {
+        return method == null ? !node.handlers.isEmpty() : node.handlers.containsKey(method);
+    }
+
+    private static Map<String, String> variables(List<String> captured) {
+        if (captured.isEmpty()) {
+            return Map.of();
+        }
+        Map<String, String> variables = new LinkedHashMap<>();
+        for (int i = 0; i < captured.size(); i += 2) {
+            variables.put(captured.get(i), captured.get(i + 1));
+        }
+        return Collections.unmodifiableMap(variables);
+    }
+
+    private static List<String> split(String path) {
+        List<String> segments = new ArrayList<>();
+        int start = 0;
+        int length = path.length();
+        while (start < length) {
+            int end = path.indexOf('/', start);
+            if (end < 0) {
+                end = length;
+            }
+            if (end > start) {
+                segments.add(path.substring(start, end));
+            }
+            start = end + 1;
+        }
+        return segments;
+    }
+
+    /**
+     * Result of a lookup: either a handler with its path variables, or the
+     * set of methods the path does support.
+     */
+    static final class Match {
+
+        final RouteHandler handler;
+        final Map<String, String> variables;
+        final Set<String> allowed;
+
+        Match(RouteHandler handler, Map<String, String> variables, Set<String> allowed) {
+            this.handler = handler;
+            this.variables = variables;
+            this.allowed = allowed;
+        }
+    }
+
+    private static final class Node {
+        final Map<String, Node> children = new ConcurrentHashMap<>();
+        final Map<String, RouteHandler> handlers = new ConcurrentHashMap<>(4);
+        volatile Node variable;
+        String variableName;
+        volatile Node wildcard;
+        volatile Node tail;
+    }
+}
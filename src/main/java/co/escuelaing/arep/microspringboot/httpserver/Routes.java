@@ -0,0 +1,163 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import co.escuelaing.arep.microspringboot.annotations.DeleteMapping;
+import co.escuelaing.arep.microspringboot.annotations.GetMapping;
+import co.escuelaing.arep.microspringboot.annotations.PatchMapping;
+import co.escuelaing.arep.microspringboot.annotations.PostMapping;
+import co.escuelaing.arep.microspringboot.annotations.PutMapping;
+import co.escuelaing.arep.microspringboot.annotations.StreamMapping;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The API routes served under {@code /api}: controllers found by package
+ * scanning plus services registered in code, with their response caches and
+ * per-route counters. A route set can be given to several servers, which
+ * then share handlers, caches and route metrics; servers built with their
+ * own {@code Routes} are isolated from each other.
+ *
+ * <p>A route set is thread-safe: routes may be registered while servers
+ * that use it are running, and every request that starts after a
+ * registration returns sees the new route.
+ *
+ * @author juan.medina-r
+ */
+public final class Routes {
+
+    private final Router router = new Router();
+    private final Map<String, ResponseCache> responseCaches = new ConcurrentHashMap<>();
+    private final Map<String, ServerMetrics.RouteStats> stats = new ConcurrentHashMap<>();
+
+    /**
+     * Registers every controller found in {@code packageName} and its
+     * subpackages.
+     */
+    public Routes scan(String packageName) {
+        try {
+            ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+            for (Class<?> controller : ClassScanner.findControllers(packageName, classLoader)) {
+                controller(controller);
+            }
+        } catch (IOException e) {
+            Logger.getLogger(Routes.class.getName()).log(Level.SEVERE, null, e);
+        }
+        return this;
+    }
+
+    /**
+     * Registers the mapped methods of one controller class.
+     */
+    public Routes controller(Class<?> controllerClass) {
+        Method[] methods = controllerClass.getDeclaredMethods();
+        Object controller = null;
+        for (Method method : methods) {
+            String httpMethod = null;
+            String mapping = null;
+            if (method.isAnnotationPresent(GetMapping.class)) {
+                httpMethod = "GET";
+                mapping = method.getAnnotation(GetMapping.class).value();
+            } else if (method.isAnnotationPresent(PostMapping.class)) {
+                httpMethod = "POST";
+                mapping = method.getAnnotation(PostMapping.class).value();
+            } else if (method.isAnnotationPresent(PutMapping.class)) {
+                httpMethod = "PUT";
+                mapping = method.getAnnotation(PutMapping.class).value();
+            } else if (method.isAnnotationPresent(DeleteMapping.class)) {
+                httpMethod = "DELETE";
+                mapping = method.getAnnotation(DeleteMapping.class).value();
+            } else if (method.isAnnotationPresent(PatchMapping.class)) {
+                httpMethod = "PATCH";
+                mapping = method.getAnnotation(PatchMapping.class).value();
+            } else if (method.isAnnotationPresent(StreamMapping.class)) {
+                httpMethod = "GET";
+                mapping = method.getAnnotation(StreamMapping.class).value();
+            }
+            if (httpMethod == null) {
+                continue;
+            }
+            if (controller == null && !Modifier.isStatic(method.getModifiers())) {
+                controller = instantiate(controllerClass);
+            }
+            RouteHandler handler = RouteHandler.compile(method, controller, stats(httpMethod + " " + mapping));
+            router.add(httpMethod, mapping, handler);
+            if (handler.cache() != null) {
+                responseCaches.put(handler.toString(), handler.cache());
+            }
+        }
+        return this;
+    }
+
+    private static Object instantiate(Class<?> controllerClass) {
+        try {
+            Constructor<?> constructor = controllerClass.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return constructor.newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Controller needs a no-argument constructor: " + controllerClass, e);
+        }
+    }
+
+    /**
+     * Registers {@code service} for {@code method} requests to
+     * {@code /api} followed by {@code path}, which may use the same patterns
+     * as the mapping annotations.
+     */
+    public Routes register(String method, String path, Service service) {
+        String httpMethod = method.toUpperCase(Locale.ROOT);
+        String route = httpMethod + " " + path;
+        router.add(httpMethod, path, RouteHandler.of(route, service, stats(route)));
+        return this;
+    }
+
+    /**
+     * Registers a push endpoint at {@code /api} followed by {@code path}:
+     * GET requests there subscribe to {@code hub} as Server-Sent Events, or
+     * as a WebSocket when they ask for the upgrade.
+     */
+    public Routes stream(String path, BroadcastHub hub) {
+        String route = "GET " + path;
+        router.add("GET", path, RouteHandler.stream(route, (req, res) -> hub, stats(route)));
+        return this;
+    }
+
+    /**
+     * Number of registered method and pattern pairs.
+     */
+    public int size() {
+        return router.size();
+    }
+
+    /**
+     * Hit and miss counters of every {@code @Cacheable} route.
+     */
+    public List<CacheStats> getCacheStats() {
+        List<CacheStats> result = new ArrayList<>();
+        for (ResponseCache cache : responseCaches.values()) {
+            result.add(cache.stats());
+        }
+        return result;
+    }
+
+    Router.Match find(String method, String path) {
+        return router.find(method, path);
+    }
+
+    Collection<ServerMetrics.RouteStats> routeStats() {
+        return stats.values();
+    }
+
+    // Registrar otra vez la misma ruta conserva su historial
+    private ServerMetrics.RouteStats stats(String route) {
+        return stats.computeIfAbsent(route, r -> new ServerMetrics.RouteStats("api", r));
+    }
+}
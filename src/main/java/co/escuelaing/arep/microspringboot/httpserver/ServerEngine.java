@@ -0,0 +1,32 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.util.Locale;
+
+/**
+ * I/O model used to accept and serve connections.
+ *
+ * @author juan.medina-r
+ */
+public enum ServerEngine {
+
+    /**
+     * {@code ServerSocket.accept()} loop with one worker per connection.
+     */
+    BLOCKING,
+
+    /**
+     * {@code Selector}-based reactors; workers only run request handlers.
+     */
+    NIO;
+
+    /**
+     * Parses an engine name such as {@code "nio"} or {@code "blocking"}.
+     */
+    public static ServerEngine parse(String name) {
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown server engine: " + name, e);
+        }
+    }
+}
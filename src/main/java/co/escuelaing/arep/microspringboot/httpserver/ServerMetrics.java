@@ -0,0 +1,242 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of one server's request pipeline. Everything on the request path is a
+ * {@link LongAdder} or a {@link LatencyHistogram}, so recording never takes
+ * a lock; the text exposition is built only when {@code /metrics} is
+ * scraped.
+ *
+ * @author juan.medina-r
+ */
+final class ServerMetrics {
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String PREFIX = "microspringboot_";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    final LongAdder bytesSent = new LongAdder();
+    final LongAdder connectionsAccepted = new LongAdder();
+    final LongAdder connectionsRejected = new LongAdder();
+    final LongAdder rateLimited = new LongAdder();
+    final LongAdder malformedRequests = new LongAdder();
+    final LongAdder http2Connections = new LongAdder();
+    final LongAdder http2Streams = new LongAdder();
+    final LongAdder streamSubscribers = new LongAdder();
+    final LongAdder streamEvictions = new LongAdder();
+    // Arranque del servidor y primera peticion desde el inicio del proceso, -1 hasta que ocurren
+    volatile long startupMicros = -1;
+    volatile long firstRequestMicros = -1;
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder inFlightRequests = new LongAdder();
+
+    private final RouteStats staticFiles = new RouteStats("static", "static");
+    private final RouteStats unmatched = new RouteStats("api", "unmatched");
+    private final RouteStats metricsScrapes = new RouteStats("metrics", "/metrics");
+    private final RouteStats healthChecks = new RouteStats("health", "/health");
+
+    RouteStats staticFiles() {
+        return staticFiles;
+    }
+
+    RouteStats unmatched() {
+        return unmatched;
+    }
+
+    RouteStats metricsScrapes() {
+        return metricsScrapes;
+    }
+
+    RouteStats healthChecks() {
+        return healthChecks;
+    }
+
+    void connectionOpened() {
+        connectionsAccepted.increment();
+        activeConnections.increment();
+    }
+
+    void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    long activeConnections() {
+        return activeConnections.sum();
+    }
+
+    void requestStarted() {
+        inFlightRequests.increment();
+    }
+
+    void requestFinished() {
+        inFlightRequests.decrement();
+    }
+
+    long inFlightRequests() {
+        return inFlightRequests.sum();
+    }
+
+    /**
+     * Prometheus text exposition (format 0.0.4) of these counters plus the
+     * per-route counters and caches of the server's route set.
+     */
+    String scrape(Collection<RouteStats> routes, List<CacheStats> caches, int activeWorkers,
+            int queuedConnections, boolean draining, AccessLog accessLog) {
+        StringBuilder sb = new StringBuilder(4096);
+        List<RouteStats> all = new ArrayList<>(routes.size() + 4);
+        all.add(staticFiles);
+        all.add(unmatched);
+        all.add(metricsScrapes);
+        all.add(healthChecks);
+        all.addAll(routes);
+
+        header(sb, "requests_total", "counter", "Requests served, by kind (static, api, metrics, health).");
+        long staticTotal = 0;
+        long apiTotal = 0;
+        for (RouteStats stats : all) {
+            if (stats.kind.equals("static")) {
+                staticTotal += stats.latency.count();
+            } else if (stats.kind.equals("api")) {
+                apiTotal += stats.latency.count();
+            }
+        }
+        sample(sb, "requests_total", "kind=\"static\"", staticTotal);
+        sample(sb, "requests_total", "kind=\"api\"", apiTotal);
+        sample(sb, "requests_total", "kind=\"metrics\"", metricsScrapes.latency.count());
+        sample(sb, "requests_total", "kind=\"health\"", healthChecks.latency.count());
+
+        header(sb, "route_requests_total", "counter", "Requests served per route.");
+        for (RouteStats stats : all) {
+            sample(sb, "route_requests_total", stats.labels, stats.latency.count());
+        }
+        header(sb, "route_errors_total", "counter", "Responses with a 5xx status per route.");
+        for (RouteStats stats : all) {
+            sample(sb, "route_errors_total", stats.labels, stats.errors.sum());
+        }
+        header(sb, "request_duration_seconds", "summary", "Time to produce each response, per route.");
+        for (RouteStats stats : all) {
+            long[] values = stats.latency.percentiles(QUANTILES);
+            for (int i = 0; i < QUANTILES.length; i++) {
+                sb.append(PREFIX).append("request_duration_seconds{").append(stats.labels)
+                        .append(",quantile=\"").append(QUANTILES[i]).append("\"} ")
+                        .append(values[i] / 1e6).append('\n');
+            }
+            sb.append(PREFIX).append("request_duration_seconds_sum{").append(stats.labels).append("} ")
+                    .append(stats.latency.sumMicros() / 1e6).append('\n');
+            sample(sb, "request_duration_seconds_count", stats.labels, stats.latency.count());
+        }
+
+        header(sb, "response_bytes_total", "counter", "Bytes of responses written, headers included.");
+        sample(sb, "response_bytes_total", null, bytesSent.sum());
+        header(sb, "connections_accepted_total", "counter", "Connections accepted.");
+        sample(sb, "connections_accepted_total", null, connectionsAccepted.sum());
+        header(sb, "connections_rejected_total", "counter",
+                "Connections answered with 503 for exceeding the connection limit or the dispatcher queue.");
+        sample(sb, "connections_rejected_total", null, connectionsRejected.sum());
+        header(sb, "rate_limited_total", "counter", "Requests and connections answered with 429.");
+        sample(sb, "rate_limited_total", null, rateLimited.sum());
+        header(sb, "malformed_requests_total", "counter", "Requests the parser rejected.");
+        sample(sb, "malformed_requests_total", null, malformedRequests.sum());
+        header(sb, "http2_connections_total", "counter", "Connections switched to HTTP/2.");
+        sample(sb, "http2_connections_total", null, http2Connections.sum());
+        header(sb, "http2_streams_total", "counter", "HTTP/2 request streams dispatched to a handler.");
+        sample(sb, "http2_streams_total", null, http2Streams.sum());
+        header(sb, "stream_evictions_total", "counter",
+                "Push subscribers disconnected because their queue was full.");
+        sample(sb, "stream_evictions_total", null, streamEvictions.sum());
+        if (accessLog != null) {
+            header(sb, "access_log_entries_total", "counter", "Access log entries written.");
+            sample(sb, "access_log_entries_total", null, accessLog.written());
+            header(sb, "access_log_dropped_total", "counter",
+                    "Access log entries dropped because the buffer was full or the write failed.");
+            sample(sb, "access_log_dropped_total", null, accessLog.dropped());
+        }
+        if (startupMicros >= 0) {
+            header(sb, "startup_seconds", "gauge", "Time from process start until the server accepted connections.");
+            sb.append(PREFIX).append("startup_seconds ").append(startupMicros / 1e6).append('\n');
+        }
+        if (firstRequestMicros >= 0) {
+            header(sb, "first_request_seconds", "gauge", "Time from process start until the first request arrived.");
+            sb.append(PREFIX).append("first_request_seconds ").append(firstRequestMicros / 1e6).append('\n');
+        }
+        header(sb, "active_connections", "gauge", "Open client connections.");
+        sample(sb, "active_connections", null, activeConnections.sum());
+        header(sb, "stream_subscribers", "gauge", "Open Server-Sent Events and WebSocket connections.");
+        sample(sb, "stream_subscribers", null, streamSubscribers.sum());
+        header(sb, "in_flight_requests", "gauge", "Requests being handled.");
+        sample(sb, "in_flight_requests", null, inFlightRequests.sum());
+        header(sb, "draining", "gauge", "1 while the server drains before stopping.");
+        sample(sb, "draining", null, draining ? 1 : 0);
+        header(sb, "active_workers", "gauge", "Worker threads currently serving.");
+        sample(sb, "active_workers", null, activeWorkers);
+        header(sb, "executor_queue_depth", "gauge", "Tasks waiting for a worker thread.");
+        sample(sb, "executor_queue_depth", null, queuedConnections);
+
+        if (!caches.isEmpty()) {
+            header(sb, "cache_hits_total", "counter", "Response cache hits per route.");
+            for (CacheStats cache : caches) {
+                sample(sb, "cache_hits_total", routeLabel(cache.route()), cache.hits());
+            }
+            header(sb, "cache_misses_total", "counter", "Response cache misses per route.");
+            for (CacheStats cache : caches) {
+                sample(sb, "cache_misses_total", routeLabel(cache.route()), cache.misses());
+            }
+            header(sb, "cache_coalesced_total", "counter", "Requests that waited for another's cache miss.");
+            for (CacheStats cache : caches) {
+                sample(sb, "cache_coalesced_total", routeLabel(cache.route()), cache.coalesced());
+            }
+            header(sb, "cache_evictions_total", "counter", "Response cache evictions per route.");
+            for (CacheStats cache : caches) {
+                sample(sb, "cache_evictions_total", routeLabel(cache.route()), cache.evictions());
+            }
+            header(sb, "cache_entries", "gauge", "Responses currently cached per route.");
+            for (CacheStats cache : caches) {
+                sample(sb, "cache_entries", routeLabel(cache.route()), cache.size());
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, long value) {
+        sb.append(PREFIX).append(name);
+        if (labels != null) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static String routeLabel(String route) {
+        return "route=\"" + route.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * Counters of one route (or of all static files together).
+     */
+    static final class RouteStats {
+
+        final String kind;
+        final String route;
+        final String labels;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+
+        RouteStats(String kind, String route) {
+            this.kind = kind;
+            this.route = route;
+            this.labels = "kind=\"" + kind + "\"," + routeLabel(route);
+        }
+
+        void record(long startNanos) {
+            latency.record(System.nanoTime() - startNanos);
+        }
+    }
+}
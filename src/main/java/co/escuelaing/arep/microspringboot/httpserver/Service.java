@@ -1,11 +1,16 @@
 package co.escuelaing.arep.microspringboot.httpserver;
 
 /**
+ * A route handler registered in code with
+ * {@link HttpServer#registerService(String, String, Service)}. It may write
+ * the body through {@code res} and return {@code null}, or return the body
+ * the same way a controller method does.
  *
  * @author juan.medina-r
  */
+@FunctionalInterface
 public interface Service {
-    
-    public String invoke(HttpRequest req, HttpResponse res);
-    
+
+    public Object invoke(HttpRequest req, HttpResponse res) throws Exception;
+
 }
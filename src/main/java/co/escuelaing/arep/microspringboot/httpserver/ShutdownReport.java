@@ -0,0 +1,11 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+/**
+ * Outcome of draining a server: requests in flight when it stopped
+ * accepting connections, how many of them were still running at the drain
+ * deadline and were aborted, and how long the drain took.
+ *
+ * @author juan.medina-r
+ */
+public record ShutdownReport(int activeRequests, int abortedRequests, long drainMillis) {
+}
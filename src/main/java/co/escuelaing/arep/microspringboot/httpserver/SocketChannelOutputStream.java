@@ -0,0 +1,45 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Buffered output for a blocking {@link SocketChannel}. Files on the default
+ * filesystem are sent with {@link FileChannel#transferTo}, which the JDK maps
+ * to {@code sendfile} where available.
+ *
+ * @author juan.medina-r
+ */
+class SocketChannelOutputStream extends BufferedOutputStream implements FileSink {
+
+    private final SocketChannel channel;
+
+    SocketChannelOutputStream(SocketChannel channel) throws IOException {
+        super(channel.socket().getOutputStream(), 8192);
+        this.channel = channel;
+    }
+
+    @Override
+    public void transferFile(Path file, long position, long count) throws IOException {
+        if (file.getFileSystem() != FileSystems.getDefault()) {
+            FileSink.copy(file, position, count, this);
+            return;
+        }
+        flush();
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ)) {
+            long sent = 0;
+            while (sent < count) {
+                long n = source.transferTo(position + sent, count - sent, channel);
+                if (n <= 0 && position + sent >= source.size()) {
+                    throw new IOException("File shrank while sending: " + file);
+                }
+                sent += n;
+            }
+        }
+    }
+}
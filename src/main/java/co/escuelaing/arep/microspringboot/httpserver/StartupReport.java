@@ -0,0 +1,25 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+/**
+ * Where a server's startup time went, in microseconds: from JVM start until
+ * the server was started (JVM boot and the application's {@code main}),
+ * binding the port, creating the executor, the setup deferred until the
+ * port was bound (registering controllers, then opening the static root),
+ * and the total from JVM start until it was ready to accept connections.
+ *
+ * @author juan.medina-r
+ */
+public record StartupReport(long processMicros, long bindMicros, long executorMicros, long controllersMicros,
+        long staticRootMicros, long readyMicros) {
+
+    @Override
+    public String toString() {
+        return String.format("ready in %s (jvm %s, bind %s, executor %s, controllers %s, static root %s)",
+                millis(readyMicros), millis(processMicros), millis(bindMicros),
+                millis(executorMicros), millis(controllersMicros), millis(staticRootMicros));
+    }
+
+    static String millis(long micros) {
+        return String.format("%.1f ms", micros / 1000.0);
+    }
+}
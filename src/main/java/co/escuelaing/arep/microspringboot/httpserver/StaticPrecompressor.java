@@ -0,0 +1,60 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Build step that writes a {@code .gz} sibling next to every compressible
+ * static file, so the server never compresses them at runtime. Run by Maven
+ * in the {@code process-classes} phase over {@code target/classes/public}.
+ *
+ * @author juan.medina-r
+ */
+public class StaticPrecompressor {
+
+    private StaticPrecompressor() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        for (String dir : args) {
+            Path root = Paths.get(dir);
+            if (Files.isDirectory(root)) {
+                int written = precompress(root);
+                System.out.println("Precompressed " + written + " static files under " + root);
+            }
+        }
+    }
+
+    /**
+     * Writes or refreshes the gzip siblings under {@code root}.
+     *
+     * @return how many {@code .gz} files were written
+     */
+    static int precompress(Path root) throws IOException {
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(Files::isRegularFile)
+                    .filter(f -> HttpServer.isTextContentType(HttpServer.detectContentType(f)))
+                    .collect(Collectors.toList());
+        }
+        int written = 0;
+        for (Path file : files) {
+            Path gz = file.resolveSibling(file.getFileName() + ".gz");
+            if (Files.size(file) < StaticResourceCache.MIN_COMPRESS_BYTES
+                    || (Files.exists(gz) && Files.getLastModifiedTime(gz).compareTo(Files.getLastModifiedTime(file)) >= 0)) {
+                continue;
+            }
+            byte[] compressed = StaticResourceCache.gzip(Files.readAllBytes(file));
+            if (compressed.length < Files.size(file)) {
+                Files.write(gz, compressed);
+                written++;
+            }
+        }
+        return written;
+    }
+}
@@ -0,0 +1,452 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * LRU cache of static resources under the static root, bounded by total
+ * bytes. Each entry keeps its response header already encoded and, for small
+ * files, the body too; larger files keep only the header and are sent from
+ * disk. Text resources also keep their compressed variants. Exploded
+ * directories are watched and changed files are evicted; the jar filesystem
+ * is immutable and is never watched.
+ *
+ * @author juan.medina-r
+ */
+class StaticResourceCache {
+
+    private static final Logger LOGGER = Logger.getLogger(StaticResourceCache.class.getName());
+    // IMF-fixdate (RFC 9110, 5.6.7): dia con dos digitos, siempre en GMT
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+            .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+    // Al leer se acepta tambien el dia de un digito de RFC 1123
+    private static final DateTimeFormatter HTTP_DATE_PARSER = DateTimeFormatter.RFC_1123_DATE_TIME;
+    // Por debajo de este tamano gzip no compensa sus cabeceras
+    static final int MIN_COMPRESS_BYTES = 256;
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final Map<String, Resource> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long usedBytes;
+    // Se incrementa con cada invalidacion para descartar cargas concurrentes obsoletas
+    private long generation;
+    private WatchService watcher;
+    private boolean enabled;
+
+    StaticResourceCache(Path root, long maxBytes, long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        if (root.getFileSystem() == FileSystems.getDefault()) {
+            enabled = watch(root);
+        } else {
+            enabled = true;
+        }
+    }
+
+    /**
+     * Returns the cached resource for a request path, or {@code null}.
+     */
+    synchronized Resource get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Reads the file metadata (and the body if it is small), encodes the
+     * headers and caches the result under {@code key}. Compressible files
+     * also get their {@code .gz}/{@code .br} siblings when present and not
+     * older than the file; small ones without a current gzip sibling are
+     * compressed here, once.
+     */
+    Resource load(String key, Path file, String contentType, boolean compressible) throws IOException {
+        long loadGeneration;
+        synchronized (this) {
+            loadGeneration = generation;
+        }
+        Variant identity = readVariant(file, contentType, null, compressible);
+        Variant gzip = null;
+        Variant brotli = null;
+        if (compressible) {
+            Path gzipFile = sibling(file, ".gz");
+            if (isCurrent(gzipFile, identity.lastModified)) {
+                gzip = readVariant(gzipFile, contentType, "gzip", true);
+            } else if (identity.body != null && identity.size >= MIN_COMPRESS_BYTES) {
+                byte[] compressed = gzip(identity.body);
+                if (compressed.length < identity.size) {
+                    gzip = new Variant(file, contentType, "gzip", true, compressed.length,
+                            identity.lastModified, compressed);
+                }
+            }
+            Path brotliFile = sibling(file, ".br");
+            if (isCurrent(brotliFile, identity.lastModified)) {
+                brotli = readVariant(brotliFile, contentType, "br", true);
+            }
+        }
+        Resource resource = new Resource(file, identity, gzip, brotli);
+        synchronized (this) {
+            if (!enabled || loadGeneration != generation) {
+                return resource;
+            }
+            Resource previous = entries.put(key, resource);
+            if (previous != null) {
+                usedBytes -= previous.weight();
+            }
+            usedBytes += resource.weight();
+            Iterator<Resource> eldest = entries.values().iterator();
+            while (usedBytes > maxBytes && eldest.hasNext()) {
+                Resource evicted = eldest.next();
+                if (evicted != resource) {
+                    usedBytes -= evicted.weight();
+                    eldest.remove();
+                }
+            }
+        }
+        return resource;
+    }
+
+    private Variant readVariant(Path file, String contentType, String encoding, boolean vary) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        byte[] body = attrs.size() <= maxEntryBytes ? Files.readAllBytes(file) : null;
+        return new Variant(file, contentType, encoding, vary, attrs.size(), attrs.lastModifiedTime().toMillis(),
+                body);
+    }
+
+    private static Path sibling(Path file, String suffix) {
+        return file.resolveSibling(file.getFileName().toString() + suffix);
+    }
+
+    // Un hermano mas viejo que el original se genero de una version anterior
+    private static boolean isCurrent(Path sibling, long sourceModified) throws IOException {
+        return Files.isRegularFile(sibling) && Files.getLastModifiedTime(sibling).toMillis() >= sourceModified;
+    }
+
+    /**
+     * Compresses with the highest gzip level; only run once per file.
+     */
+    static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(data.length / 2 + 64);
+        try (GZIPOutputStream out = new GZIPOutputStream(buffer, 8192) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            out.write(data);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Drops every entry whose file is {@code changed} or lies below it.
+     */
+    synchronized void invalidate(Path changed) {
+        generation++;
+        Iterator<Resource> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Resource resource = it.next();
+            if (resource.dependsOn(changed)) {
+                usedBytes -= resource.weight();
+                it.remove();
+            }
+        }
+    }
+
+    synchronized void clear() {
+        generation++;
+        entries.clear();
+        usedBytes = 0;
+    }
+
+    /**
+     * Stops watching the static root.
+     */
+    void close() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, null, e);
+            }
+        }
+    }
+
+    private boolean watch(Path root) {
+        try {
+            watcher = root.getFileSystem().newWatchService();
+            Files.walkFileTree(root, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    register(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            Thread thread = new Thread(this::processEvents, "static-cache-watcher");
+            thread.setDaemon(true);
+            thread.start();
+            return true;
+        } catch (IOException e) {
+            // Sin notificaciones no se puede garantizar frescura: no se cachea
+            LOGGER.log(Level.WARNING, "Cannot watch static root, caching disabled", e);
+            close();
+            return false;
+        }
+    }
+
+    private void register(Path dir) throws IOException {
+        dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    private void processEvents() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        clear();
+                        continue;
+                    }
+                    Path changed = dir.resolve((Path) event.context()).toAbsolutePath().normalize();
+                    invalidate(changed);
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) {
+                        register(changed);
+                    }
+                }
+                key.reset();
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Cache cerrada
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Static root watcher stopped, caching disabled", e);
+            synchronized (this) {
+                enabled = false;
+                clear();
+            }
+        }
+    }
+
+    /**
+     * A cached static file: its identity representation plus the gzip and
+     * brotli variants available for it.
+     */
+    static final class Resource {
+
+        final Path file;
+        final Variant identity;
+        final Variant gzip;
+        final Variant brotli;
+
+        Resource(Path file, Variant identity, Variant gzip, Variant brotli) {
+            this.file = file;
+            this.identity = identity;
+            this.gzip = gzip;
+            this.brotli = brotli;
+        }
+
+        long weight() {
+            return identity.weight() + (gzip == null ? 0 : gzip.weight()) + (brotli == null ? 0 : brotli.weight());
+        }
+
+        /**
+         * Whether a change to {@code changed} affects this entry, including
+         * the creation or removal of a {@code .gz}/{@code .br} sibling.
+         */
+        boolean dependsOn(Path changed) {
+            return file.startsWith(changed) || changed.toString().startsWith(file.toString());
+        }
+
+        /**
+         * Picks the representation to send according to
+         * {@code Accept-Encoding}, preferring brotli over gzip on equal
+         * quality.
+         */
+        Variant select(HttpRequest req) {
+            if (gzip == null && brotli == null) {
+                return identity;
+            }
+            String acceptEncoding = req.getHeader("accept-encoding");
+            if (acceptEncoding == null) {
+                return identity;
+            }
+            double br = brotli == null ? 0 : quality(acceptEncoding, "br");
+            double gz = gzip == null ? 0 : quality(acceptEncoding, "gzip");
+            if (br > 0 && br >= gz) {
+                return brotli;
+            }
+            return gz > 0 ? gzip : identity;
+        }
+
+        private static double quality(String acceptEncoding, String coding) {
+            double wildcard = 0;
+            for (String token : acceptEncoding.split(",")) {
+                String[] parts = token.split(";");
+                String name = parts[0].trim();
+                double q = 1;
+                for (int i = 1; i < parts.length; i++) {
+                    String param = parts[i].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            q = Double.parseDouble(param.substring(2));
+                        } catch (NumberFormatException e) {
+                            q = 0;
+                        }
+                    }
+                }
+                if (name.equalsIgnoreCase(coding)) {
+                    return q;
+                }
+                if (name.equals("*")) {
+                    wildcard = q;
+                }
+            }
+            return wildcard;
+        }
+    }
+
+    /**
+     * One representation of a static file with its headers encoded up to,
+     * but not including, the {@code connection} header. The body is kept in
+     * memory when small; otherwise {@link #file} is sent from disk.
+     */
+    static final class Variant {
+
+        final Path file;
+        final String contentType;
+        final long size;
+        final String etag;
+        final long lastModified;
+        final byte[] body;
+        final byte[] header;
+        final byte[] notModifiedHeader;
+        // Cabeceras comunes a 200 y 206: codificacion, validadores y accept-ranges
+        private final String representation;
+
+        Variant(Path file, String contentType, String encoding, boolean vary, long size, long lastModified,
+                byte[] body) {
+            this.file = file;
+            this.contentType = contentType;
+            this.size = size;
+            this.lastModified = lastModified / 1000 * 1000;
+            this.body = body;
+            String tag = Long.toHexString(size) + "-" + Long.toHexString(lastModified);
+            this.etag = "\"" + (encoding == null ? tag : tag + "-" + encoding) + "\"";
+            String validators = "etag: " + etag + "\r\n"
+                    + "last-modified: " + formatDate(this.lastModified) + "\r\n"
+                    + (vary ? "vary: accept-encoding\r\n" : "");
+            this.representation = (encoding == null ? "" : "content-encoding: " + encoding + "\r\n")
+                    + validators
+                    + "accept-ranges: bytes\r\n";
+            this.header = ("HTTP/1.1 200 OK\r\n"
+                    + "content-type: " + contentType + "\r\n"
+                    + "content-length: " + size + "\r\n"
+                    + representation).getBytes(StandardCharsets.ISO_8859_1);
+            this.notModifiedHeader = ("HTTP/1.1 304 Not Modified\r\n" + validators)
+                    .getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        long weight() {
+            return header.length + notModifiedHeader.length + (body == null ? 0 : body.length);
+        }
+
+        /**
+         * Evaluates {@code If-None-Match}, falling back to
+         * {@code If-Modified-Since} when no entity tag was sent.
+         */
+        boolean isNotModified(HttpRequest req) {
+            String ifNoneMatch = req.getHeader("if-none-match");
+            if (ifNoneMatch != null) {
+                for (String tag : ifNoneMatch.split(",")) {
+                    String candidate = tag.trim();
+                    if (candidate.startsWith("W/")) {
+                        candidate = candidate.substring(2);
+                    }
+                    if (candidate.equals("*") || candidate.equals(etag)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            String ifModifiedSince = req.getHeader("if-modified-since");
+            if (ifModifiedSince != null) {
+                try {
+                    long since = ZonedDateTime.parse(ifModifiedSince, HTTP_DATE_PARSER).toInstant().toEpochMilli();
+                    return lastModified <= since;
+                } catch (DateTimeParseException e) {
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Evaluates {@code If-Range}: a range may only be served from this
+         * representation if it is the one the client already holds part of.
+         * Entity tags are compared strongly and dates must match exactly.
+         */
+        boolean matchesIfRange(String ifRange) {
+            if (ifRange == null) {
+                return true;
+            }
+            String validator = ifRange.trim();
+            if (validator.startsWith("\"")) {
+                return validator.equals(etag);
+            }
+            if (validator.startsWith("W/")) {
+                return false;
+            }
+            try {
+                return ZonedDateTime.parse(validator, HTTP_DATE_PARSER).toInstant().toEpochMilli() == lastModified;
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Head of a 206 response with this representation's validators;
+         * {@code contentRange} is {@code null} for multipart responses.
+         */
+        byte[] partialHeader(String partType, long length, String contentRange) {
+            return ("HTTP/1.1 206 Partial Content\r\n"
+                    + "content-type: " + partType + "\r\n"
+                    + (contentRange == null ? "" : "content-range: " + contentRange + "\r\n")
+                    + "content-length: " + length + "\r\n"
+                    + representation).getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        byte[] unsatisfiableHeader() {
+            return ("HTTP/1.1 416 Range Not Satisfiable\r\n"
+                    + "content-range: bytes */" + size + "\r\n"
+                    + "content-length: 0\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        private static String formatDate(long millis) {
+            return HTTP_DATE.format(Instant.ofEpochMilli(millis));
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package co.escuelaing.arep.microspringboot.httpserver;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * The parts of RFC 6455 a push endpoint needs: validating the opening
+ * handshake, computing {@code Sec-WebSocket-Accept} and encoding the
+ * unmasked frames a server sends. Incoming frames are read by
+ * {@link PushEngine}.
+ *
+ * @author juan.medina-r
+ */
+final class WebSocket {
+
+    static final int TEXT = 0x1;
+    static final int BINARY = 0x2;
+    static final int CLOSE = 0x8;
+    static final int PING = 0x9;
+    static final int PONG = 0xA;
+
+    static final int GOING_AWAY = 1001;
+    static final int PROTOCOL_ERROR = 1002;
+    static final int TOO_BIG = 1009;
+
+    private static final String VERSION = "13";
+    private static final byte[] GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11".getBytes(StandardCharsets.ISO_8859_1);
+
+    private WebSocket() {
+    }
+
+    /**
+     * Whether {@code req} asks to switch to the WebSocket protocol.
+     */
+    static boolean isUpgrade(HttpRequest req) {
+        String upgrade = req.getHeader("upgrade");
+        return upgrade != null && hasToken(upgrade, "websocket");
+    }
+
+    /**
+     * Checks an upgrade request.
+     *
+     * @return {@code null} if it is valid, otherwise the status to answer
+     */
+    static String rejection(HttpRequest req) {
+        String connection = req.getHeader("connection");
+        if (!"HTTP/1.1".equals(req.getVersion()) || connection == null || !hasToken(connection, "upgrade")) {
+            return "400 Bad Request";
+        }
+        if (!VERSION.equals(trim(req.getHeader("sec-websocket-version")))) {
+            return "426 Upgrade Required";
+        }
+        String key = trim(req.getHeader("sec-websocket-key"));
+        try {
+            if (key == null || Base64.getDecoder().decode(key).length != 16) {
+                return "400 Bad Request";
+            }
+        } catch (IllegalArgumentException e) {
+            return "400 Bad Request";
+        }
+        return null;
+    }
+
+    /**
+     * Headers that go with a rejection, so the client knows which version
+     * to retry with.
+     */
+    static String rejectionHeaders() {
+        return "sec-websocket-version: " + VERSION + "\r\n";
+    }
+
+    /**
+     * The {@code 101} that completes the handshake of a valid request.
+     */
+    static byte[] switchingProtocols(HttpRequest req) {
+        return ("HTTP/1.1 101 Switching Protocols\r\n"
+                + "upgrade: websocket\r\n"
+                + "connection: Upgrade\r\n"
+                + "sec-websocket-accept: " + accept(trim(req.getHeader("sec-websocket-key"))) + "\r\n"
+                + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    static String accept(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            sha1.update(key.getBytes(StandardCharsets.ISO_8859_1));
+            sha1.update(GUID);
+            return Base64.getEncoder().encodeToString(sha1.digest());
+        } catch (NoSuchAlgorithmException e) {
+            // Toda JVM debe traer SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A final, unmasked frame carrying the first {@code length} bytes of
+     * {@code payload}.
+     */
+    static byte[] frame(int opcode, byte[] payload, int length) {
+        int header = length < 126 ? 2 : length <= 0xFFFF ? 4 : 10;
+        byte[] frame = new byte[header + length];
+        frame[0] = (byte) (0x80 | opcode);
+        if (length < 126) {
+            frame[1] = (byte) length;
+        } else if (length <= 0xFFFF) {
+            frame[1] = 126;
+            frame[2] = (byte) (length >>> 8);
+            frame[3] = (byte) length;
+        } else {
+            frame[1] = 127;
+            for (int i = 0; i < 8; i++) {
+                frame[2 + i] = (byte) ((long) length >>> (56 - 8 * i));
+            }
+        }
+        System.arraycopy(payload, 0, frame, header, length);
+        return frame;
+    }
+
+    /**
+     * A close frame with a status code and no reason.
+     */
+    static byte[] close(int code) {
+        return frame(CLOSE, new byte[] {(byte) (code >>> 8), (byte) code}, 2);
+    }
+
+    private static String trim(String value) {
+        return value == null ? null : value.trim();
+    }
+
+    private static boolean hasToken(String header, String token) {
+        for (String part : header.split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
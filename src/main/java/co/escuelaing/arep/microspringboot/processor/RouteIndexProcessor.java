@@ -0,0 +1,89 @@
+package co.escuelaing.arep.microspringboot.processor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.TreeSet;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Writes {@code META-INF/microspringboot/controllers} with the binary name of
+ * every {@code @RestController} in the compilation, so the server can
+ * register routes at startup without scanning the classpath. Entries from a
+ * previous incremental build are kept.
+ *
+ * @author juan.medina-r
+ */
+@SupportedAnnotationTypes(RouteIndexProcessor.REST_CONTROLLER)
+public class RouteIndexProcessor extends AbstractProcessor {
+
+    static final String REST_CONTROLLER = "co.escuelaing.arep.microspringboot.annotations.RestController";
+    static final String INDEX = "META-INF/microspringboot/controllers";
+
+    private final Set<String> controllers = new TreeSet<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() == ElementKind.CLASS) {
+                    controllers.add(processingEnv.getElementUtils().getBinaryName((TypeElement) element).toString());
+                }
+            }
+        }
+        if (roundEnv.processingOver() && !controllers.isEmpty()) {
+            writeIndex();
+        }
+        return false;
+    }
+
+    private void writeIndex() {
+        try {
+            FileObject previous = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", INDEX);
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(previous.openInputStream(), StandardCharsets.UTF_8))) {
+                reader.lines().map(String::trim).filter(l -> !l.isEmpty() && !l.startsWith("#"))
+                        .filter(this::stillExists)
+                        .forEach(controllers::add);
+            }
+        } catch (IOException e) {
+            // Primera compilacion: no hay indice previo
+        }
+        try {
+            FileObject index = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", INDEX);
+            try (Writer writer = index.openWriter()) {
+                writer.write("# Generated by RouteIndexProcessor\n");
+                for (String controller : controllers) {
+                    writer.write(controller);
+                    writer.write('\n');
+                }
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                    "Cannot write controller index: " + e.getMessage());
+        }
+    }
+
+    private boolean stillExists(String binaryName) {
+        TypeElement type = processingEnv.getElementUtils().getTypeElement(binaryName.replace('$', '.'));
+        return type != null && type.getAnnotationMirrors().stream()
+                .anyMatch(m -> m.getAnnotationType().toString().equals(REST_CONTROLLER));
+    }
+}
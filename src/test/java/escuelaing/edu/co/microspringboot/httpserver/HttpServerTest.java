@@ -4,14 +4,53 @@ import static org.junit.jupiter.api.Assertions.*;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
 import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import javax.tools.ToolProvider;
+import co.escuelaing.arep.microspringboot.annotations.GetMapping;
+import co.escuelaing.arep.microspringboot.annotations.PathVariable;
+import co.escuelaing.arep.microspringboot.annotations.RestController;
+import co.escuelaing.arep.microspringboot.annotations.StreamMapping;
+import co.escuelaing.arep.microspringboot.annotations.Timeout;
+import co.escuelaing.arep.microspringboot.httpserver.BroadcastHub;
+import co.escuelaing.arep.microspringboot.httpserver.CacheStats;
+import co.escuelaing.arep.microspringboot.httpserver.ExecutorStrategy;
 import co.escuelaing.arep.microspringboot.httpserver.HttpServer;
+import co.escuelaing.arep.microspringboot.httpserver.Routes;
+import co.escuelaing.arep.microspringboot.httpserver.ServerEngine;
+import co.escuelaing.arep.microspringboot.httpserver.StartupReport;
+import co.escuelaing.arep.microspringboot.httpserver.ShutdownReport;
 
 class HttpServerTest {
     private static final int TEST_PORT = 35001;
@@ -113,6 +152,343 @@ class HttpServerTest {
         assertTrue(response.body().contains("Hello, TestUser!"));
     }
 
+    @Test
+    void testTypedRequestParams() throws Exception {
+        HttpClient client = HttpClient.newHttpClient();
+        HttpResponse<String> sum = client.send(HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + TEST_PORT + "/api/sum?a=2&b=40&negate=true"))
+                .GET()
+                .build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, sum.statusCode());
+        assertEquals("-42", sum.body());
+
+        HttpResponse<String> invalid = client.send(HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + TEST_PORT + "/api/sum?a=dos"))
+                .GET()
+                .build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(400, invalid.statusCode());
+    }
+
+    @Test
+    void testMultiValueAndFormParams() throws Exception {
+        HttpClient client = HttpClient.newHttpClient();
+        String base = "http://localhost:" + TEST_PORT + "/api";
+
+        HttpResponse<String> query = client.send(HttpRequest.newBuilder(URI.create(base + "/total?n=1&n=2&n=%2D10"))
+                .GET().build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals("-7", query.body());
+
+        HttpResponse<String> form = client.send(HttpRequest.newBuilder(URI.create(base + "/total?n=5"))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString("n=10&n=20")).build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals("35", form.body());
+
+        HttpResponse<String> greeting = client.send(HttpRequest.newBuilder(
+                URI.create(base + "/greeting?lang=es&name=Ana+Mar%C3%ADa")).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals("Hello, Ana María!", greeting.body());
+    }
+
+    @Test
+    void testJsonResponse() throws Exception {
+        HttpClient client = HttpClient.newHttpClient();
+        HttpResponse<String> stats = client.send(HttpRequest.newBuilder(
+                URI.create("http://localhost:" + TEST_PORT + "/api/stats?n=1&n=2&n=6")).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, stats.statusCode());
+        assertEquals("application/json", stats.headers().firstValue("content-type").orElse(""));
+        assertEquals("{\"count\":3,\"sum\":9.0,\"min\":1.0,\"max\":6.0,\"mean\":3.0}", stats.body());
+
+        HttpServer.registerService("GET", "/test/json", (req, res) -> Map.of("text", List.of("a\"b", "ñ\n")));
+        HttpResponse<String> map = client.send(HttpRequest.newBuilder(
+                URI.create("http://localhost:" + TEST_PORT + "/api/test/json")).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals("{\"text\":[\"a\\\"b\",\"ñ\\n\"]}", map.body());
+    }
+
+    @Test
+    void testCacheableRoute() throws Exception {
+        HttpClient client = HttpClient.newHttpClient();
+        String base = "http://localhost:" + TEST_PORT + "/api/primes?limit=";
+
+        HttpResponse<String> first = client.send(HttpRequest.newBuilder(URI.create(base + "30")).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        HttpResponse<String> second = client.send(HttpRequest.newBuilder(URI.create(base + "30")).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals("[2,3,5,7,11,13,17,19,23,29]", first.body());
+        assertEquals(first.body(), second.body());
+        assertEquals("application/json", second.headers().firstValue("content-type").orElse(""));
+
+        // Peticiones simultaneas a una clave nueva: un solo calculo
+        List<CompletableFuture<HttpResponse<String>>> concurrent = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            concurrent.add(client.sendAsync(HttpRequest.newBuilder(URI.create(base + "5000000")).GET().build(),
+                    HttpResponse.BodyHandlers.ofString()));
+        }
+        for (CompletableFuture<HttpResponse<String>> response : concurrent) {
+            assertEquals(200, response.get().statusCode());
+        }
+
+        CacheStats stats = HttpServer.getCacheStats().stream()
+                .filter(s -> s.route().equals("CalculatorController.primes"))
+                .findFirst().orElseThrow();
+        assertEquals(2, stats.misses());
+        assertEquals(8, stats.hits() + stats.coalesced());
+        assertEquals(2, stats.size());
+    }
+
+    @Test
+    void testMetricsEndpoint() throws Exception {
+        HttpClient client = HttpClient.newHttpClient();
+        String base = "http://localhost:" + TEST_PORT;
+        for (int i = 0; i < 3; i++) {
+            client.send(HttpRequest.newBuilder(URI.create(base + "/api/sum?a=1&b=2")).GET().build(),
+                    HttpResponse.BodyHandlers.ofString());
+        }
+        client.send(HttpRequest.newBuilder(URI.create(base + "/index.html")).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(base + "/metrics")).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, response.statusCode());
+        assertTrue(response.headers().firstValue("content-type").orElse("").startsWith("text/plain; version=0.0.4"));
+
+        String body = response.body();
+        assertTrue(body.contains("# TYPE microspringboot_request_duration_seconds summary"));
+        assertTrue(body.contains("microspringboot_request_duration_seconds{kind=\"api\",route=\"GET /sum\",quantile=\"0.99\"}"));
+        assertTrue(body.contains("microspringboot_response_bytes_total "));
+        // Las metricas son globales: otras pruebas pueden haber sumado peticiones
+        assertTrue(sample(body, "microspringboot_route_requests_total{kind=\"api\",route=\"GET /sum\"}") >= 3);
+        assertTrue(sample(body, "microspringboot_requests_total{kind=\"static\"}") >= 1);
+        assertTrue(sample(body, "microspringboot_active_connections") >= 1);
+    }
+
+    private static double sample(String exposition, String series) {
+        for (String line : exposition.split("\n")) {
+            if (line.startsWith(series + " ")) {
+                return Double.parseDouble(line.substring(series.length() + 1));
+            }
+        }
+        throw new AssertionError("Missing series " + series);
+    }
+
+    @Test
+    void testIndependentServerInstances() throws Exception {
+        Routes shared = new Routes().register("GET", "/who", (req, res) -> "shared");
+        Routes admin = new Routes().register("GET", "/who", (req, res) -> "admin");
+        HttpServer first = HttpServer.builder().port(0).routes(shared).build().start();
+        HttpServer second = HttpServer.builder().port(0).routes(shared).engine(ServerEngine.NIO)
+                .reactorThreads(1).build().start();
+        HttpServer isolated = HttpServer.builder().port(0).routes(admin).executor(ExecutorStrategy.BOUNDED)
+                .workerPoolSize(2).staticFiles("src/main/resources/public").build().start();
+        try {
+            assertNotEquals(first.getPort(), second.getPort());
+            HttpClient client = HttpClient.newHttpClient();
+            for (HttpServer server : List.of(first, second, isolated)) {
+                HttpResponse<String> response = client.send(HttpRequest.newBuilder(
+                        URI.create("http://localhost:" + server.getPort() + "/api/who")).GET().build(),
+                        HttpResponse.BodyHandlers.ofString());
+                assertEquals(server == isolated ? "admin" : "shared", response.body());
+            }
+
+            // Las rutas registradas despues del arranque se ven en los servidores que las comparten
+            shared.register("GET", "/late", (req, res) -> "late");
+            assertEquals(200, client.send(HttpRequest.newBuilder(
+                    URI.create("http://localhost:" + second.getPort() + "/api/late")).GET().build(),
+                    HttpResponse.BodyHandlers.ofString()).statusCode());
+            assertEquals(404, client.send(HttpRequest.newBuilder(
+                    URI.create("http://localhost:" + isolated.getPort() + "/api/late")).GET().build(),
+                    HttpResponse.BodyHandlers.ofString()).statusCode());
+            assertEquals(404, client.send(HttpRequest.newBuilder(
+                    URI.create("http://localhost:" + TEST_PORT + "/api/who")).GET().build(),
+                    HttpResponse.BodyHandlers.ofString()).statusCode());
+            assertEquals(200, client.send(HttpRequest.newBuilder(
+                    URI.create("http://localhost:" + isolated.getPort() + "/index.html")).GET().build(),
+                    HttpResponse.BodyHandlers.ofString()).statusCode());
+        } finally {
+            first.stop();
+            second.stop();
+            isolated.stop();
+        }
+        assertFalse(first.isRunning());
+        assertThrows(IllegalArgumentException.class, () -> HttpServer.builder().port(-1));
+    }
+
+    @Test
+    void testGracefulDrain() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Routes routes = new Routes().register("GET", "/slow", (req, res) -> {
+            entered.countDown();
+            release.await();
+            return "done";
+        });
+        HttpServer server = HttpServer.builder().port(0).routes(routes).drainDelay(1000).drainTimeout(5000)
+                .build().start();
+        String base = "http://localhost:" + server.getPort();
+        HttpClient client = HttpClient.newHttpClient();
+        assertEquals(200, client.send(HttpRequest.newBuilder(URI.create(base + "/health/ready")).GET().build(),
+                HttpResponse.BodyHandlers.ofString()).statusCode());
+
+        CompletableFuture<HttpResponse<String>> slow = client.sendAsync(
+                HttpRequest.newBuilder(URI.create(base + "/api/slow")).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        CompletableFuture<ShutdownReport> stopped = CompletableFuture.supplyAsync(server::stop);
+        while (!server.isDraining()) {
+            Thread.sleep(10);
+        }
+
+        // Durante el retardo de drenado el servidor sigue atendiendo pero ya no esta listo
+        HttpResponse<String> ready = client.send(HttpRequest.newBuilder(URI.create(base + "/health/ready")).GET()
+                .build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(503, ready.statusCode());
+        assertEquals("DRAINING", ready.body());
+        assertEquals(200, client.send(HttpRequest.newBuilder(URI.create(base + "/health/live")).GET().build(),
+                HttpResponse.BodyHandlers.ofString()).statusCode());
+
+        release.countDown();
+        assertEquals("done", slow.get(5, TimeUnit.SECONDS).body());
+        ShutdownReport report = stopped.get(10, TimeUnit.SECONDS);
+        assertEquals(0, report.abortedRequests());
+        assertFalse(server.isRunning());
+    }
+
+    @Test
+    void testDrainDeadlineAbortsRequests() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch never = new CountDownLatch(1);
+        Routes routes = new Routes().register("GET", "/stuck", (req, res) -> {
+            entered.countDown();
+            never.await();
+            return "unreachable";
+        });
+        HttpServer server = HttpServer.builder().port(0).routes(routes).drainTimeout(200).build().start();
+        HttpClient.newHttpClient().sendAsync(HttpRequest.newBuilder(
+                URI.create("http://localhost:" + server.getPort() + "/api/stuck")).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+        ShutdownReport report = server.stop();
+        assertEquals(1, report.activeRequests());
+        assertEquals(1, report.abortedRequests());
+        assertTrue(report.drainMillis() >= 200);
+    }
+
+    @Test
+    void testStreamingResponse() throws Exception {
+        HttpServer.registerService("GET", "/test/stream", (req, res) -> {
+            res.setContentType("text/plain; charset=utf-8");
+            OutputStream body = res.getOutputStream();
+            for (int i = 0; i < 10000; i++) {
+                body.write("line\n".getBytes(StandardCharsets.US_ASCII));
+            }
+            return null;
+        });
+        HttpServer.registerService("POST", "/test/created", (req, res) -> {
+            res.setStatus(201);
+            res.setHeader("Location", "/api/test/created/1");
+            return new byte[]{1, 2, 3};
+        });
+        // Chunked es el encuadre de HTTP/1.1; en HTTP/2 el cuerpo va en tramas DATA
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        String base = "http://localhost:" + TEST_PORT + "/api/test";
+
+        HttpResponse<String> stream = client.send(HttpRequest.newBuilder(URI.create(base + "/stream")).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, stream.statusCode());
+        assertEquals("chunked", stream.headers().firstValue("transfer-encoding").orElse(""));
+        assertEquals(50000, stream.body().length());
+
+        HttpResponse<byte[]> created = client.send(HttpRequest.newBuilder(URI.create(base + "/created"))
+                .POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(201, created.statusCode());
+        assertEquals("/api/test/created/1", created.headers().firstValue("location").orElse(""));
+        assertEquals("application/octet-stream", created.headers().firstValue("content-type").orElse(""));
+        assertArrayEquals(new byte[]{1, 2, 3}, created.body());
+    }
+
+    @Test
+    void testRoutingByMethodAndPathVariable() throws Exception {
+        HttpClient client = HttpClient.newHttpClient();
+        String base = "http://localhost:" + TEST_PORT + "/api";
+
+        HttpResponse<String> square = client.send(HttpRequest.newBuilder(URI.create(base + "/square/12")).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals("144", square.body());
+
+        HttpResponse<String> post = client.send(HttpRequest.newBuilder(URI.create(base + "/greeting"))
+                .POST(HttpRequest.BodyPublishers.ofString("Post")).build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals("Hello, Post!", post.body());
+
+        HttpResponse<String> put = client.send(HttpRequest.newBuilder(URI.create(base + "/greeting"))
+                .PUT(HttpRequest.BodyPublishers.ofString("x")).build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(405, put.statusCode());
+        assertEquals("GET, HEAD, POST", put.headers().firstValue("allow").orElse(""));
+
+        HttpResponse<String> missing = client.send(HttpRequest.newBuilder(URI.create(base + "/nothing/here")).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(404, missing.statusCode());
+    }
+
+    @Test
+    void testControllerIndexAndJarScanning(@TempDir Path dir) throws Exception {
+        // El classpath de la prueba ya trae un indice, de co.escuelaing: no debe ocultar otros paquetes
+        Path scanned = controllerJar(dir, "scanned", null, "ScannedController", "OtherController");
+        // Con un indice que lista el paquete se usa solo el indice
+        Path indexed = controllerJar(dir, "indexed", "com.example.indexed.ListedController\n",
+                "ListedController", "UnlistedController");
+        ClassLoader original = Thread.currentThread().getContextClassLoader();
+        try (URLClassLoader loader = new URLClassLoader(new URL[] {scanned.toUri().toURL(), indexed.toUri().toURL()},
+                HttpServerTest.class.getClassLoader())) {
+            Thread.currentThread().setContextClassLoader(loader);
+            assertEquals(2, new Routes().scan("com.example.scanned").size());
+            assertEquals(1, new Routes().scan("com.example.indexed").size());
+        } finally {
+            Thread.currentThread().setContextClassLoader(original);
+        }
+    }
+
+    // Compila un controlador por nombre en com.example.<pkg> y los empaqueta con el indice dado
+    private static Path controllerJar(Path dir, String pkg, String index, String... controllers) throws IOException {
+        Path sources = Files.createDirectories(dir.resolve(pkg + "-src"));
+        Path classes = Files.createDirectories(dir.resolve(pkg + "-classes"));
+        List<String> args = new ArrayList<>(List.of("-proc:none", "-d", classes.toString(), "-cp",
+                Path.of(URI.create(RestController.class.getProtectionDomain().getCodeSource().getLocation()
+                        .toString())).toString()));
+        for (String controller : controllers) {
+            Path source = sources.resolve(controller + ".java");
+            Files.writeString(source, "package com.example." + pkg + ";\n"
+                    + "@co.escuelaing.arep.microspringboot.annotations.RestController\n"
+                    + "public class " + controller + " {\n"
+                    + "    @co.escuelaing.arep.microspringboot.annotations.GetMapping(\"/" + controller + "\")\n"
+                    + "    public static String get() { return \"" + controller + "\"; }\n"
+                    + "}\n");
+            args.add(source.toString());
+        }
+        assertEquals(0, ToolProvider.getSystemJavaCompiler().run(null, null, null, args.toArray(new String[0])));
+        Path jar = dir.resolve(pkg + ".jar");
+        try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar))) {
+            for (String entry : new String[] {"com/", "com/example/", "com/example/" + pkg + "/"}) {
+                out.putNextEntry(new JarEntry(entry));
+                out.closeEntry();
+            }
+            for (String controller : controllers) {
+                String entry = "com/example/" + pkg + "/" + controller + ".class";
+                out.putNextEntry(new JarEntry(entry));
+                out.write(Files.readAllBytes(classes.resolve(entry)));
+                out.closeEntry();
+            }
+            if (index != null) {
+                out.putNextEntry(new JarEntry("META-INF/microspringboot/controllers"));
+                out.write(index.getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+        }
+        return jar;
+    }
+
     @Test
     void test404NotFound() throws Exception {
         HttpClient client = HttpClient.newHttpClient();
@@ -125,4 +501,1014 @@ class HttpServerTest {
         assertEquals(404, response.statusCode());
         assertTrue(response.body().contains("<html><body><h1>404 - File Not Found</h1></body></html>"));
     }
+
+    @Test
+    void testPathTraversalIsRejected() throws Exception {
+        // HttpClient normaliza la ruta, asi que se envian tal cual por un socket
+        String[] targets = {"//etc/passwd", "/%2Fetc/hostname", "/%2F..", "/../", "/../../../../etc/passwd",
+            "/%2e%2e/%2e%2e/etc/passwd", "/img/../../pom.xml", "/..%5c..%5cpom.xml"};
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            for (String target : targets) {
+                out.write(("GET " + target + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                String response = readRawResponse(in);
+                assertTrue(response.startsWith("HTTP/1.1 404"), target + " -> " + response);
+                assertFalse(response.contains("root:"), target);
+            }
+            // Una ruta con .. que sigue dentro de la raiz se sirve
+            out.write("GET /img/../index.html HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            assertTrue(readRawResponse(in).startsWith("HTTP/1.1 200"));
+        }
+    }
+
+    @Test
+    void testBinaryFileServing() throws Exception {
+        HttpClient client = HttpClient.newHttpClient();
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + TEST_PORT + "/img/logo.png"))
+                .GET()
+                .build();
+
+        HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(200, response.statusCode());
+        assertEquals("image/png", response.headers().firstValue("content-type").orElse(""));
+        assertArrayEquals(Files.readAllBytes(Path.of("src/main/resources/public/img/logo.png")), response.body());
+    }
+
+    @Test
+    void testConditionalRequestReturnsNotModified() throws Exception {
+        HttpClient client = HttpClient.newHttpClient();
+        URI uri = URI.create("http://localhost:" + TEST_PORT + "/styles.css");
+        HttpResponse<String> first = client.send(HttpRequest.newBuilder().uri(uri).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        String etag = first.headers().firstValue("etag").orElseThrow();
+        assertTrue(first.headers().firstValue("last-modified").isPresent());
+
+        HttpResponse<String> second = client.send(HttpRequest.newBuilder().uri(uri)
+                .header("If-None-Match", etag).GET().build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(304, second.statusCode());
+        assertEquals("", second.body());
+    }
+
+    @Test
+    void testLastModifiedIsImfFixdate(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("early.txt");
+        Files.writeString(file, "early in the month");
+        Files.setLastModifiedTime(file, FileTime.from(Instant.parse("2024-03-05T08:09:07Z")));
+        HttpServer.staticfiles(dir.toString());
+        HttpClient client = HttpClient.newHttpClient();
+        URI uri = URI.create("http://localhost:" + TEST_PORT + "/early.txt");
+        HttpResponse<String> first = client.send(HttpRequest.newBuilder().uri(uri).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        // El dia lleva dos digitos aunque sea menor que 10
+        String lastModified = first.headers().firstValue("last-modified").orElseThrow();
+        assertEquals("Tue, 05 Mar 2024 08:09:07 GMT", lastModified);
+
+        HttpResponse<String> second = client.send(HttpRequest.newBuilder().uri(uri)
+                .header("If-Modified-Since", lastModified).GET().build(), HttpResponse.BodyHandlers.ofString());
+        assertEquals(304, second.statusCode());
+    }
+
+    @Test
+    void testChangedStaticFileIsReloaded(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("note.txt");
+        Files.writeString(file, "first");
+        HttpServer.staticfiles(dir.toString());
+        HttpClient client = HttpClient.newHttpClient();
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + TEST_PORT + "/note.txt"))
+                .GET()
+                .build();
+        assertEquals("first", client.send(request, HttpResponse.BodyHandlers.ofString()).body());
+
+        Files.writeString(file, "second version");
+        String body = "";
+        for (int attempt = 0; attempt < 50 && !body.equals("second version"); attempt++) {
+            Thread.sleep(100);
+            body = client.send(request, HttpResponse.BodyHandlers.ofString()).body();
+        }
+        assertEquals("second version", body);
+    }
+
+    @Test
+    void testStalePrecompressedSiblingIsIgnored(@TempDir Path dir) throws Exception {
+        String current = "body { color: green; }\n".repeat(20);
+        String old = "body { color: red; }\n".repeat(20);
+        Instant modified = Instant.parse("2024-03-05T08:09:07Z");
+        // stale.css.gz se genero de una version anterior; fresh.css.gz es posterior a su original
+        for (String name : new String[] {"stale.css", "fresh.css"}) {
+            Path file = dir.resolve(name);
+            Files.writeString(file, current);
+            Files.setLastModifiedTime(file, FileTime.from(modified));
+            Path gz = dir.resolve(name + ".gz");
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+                out.write(old.getBytes(StandardCharsets.UTF_8));
+            }
+            Files.write(gz, compressed.toByteArray());
+            Instant gzModified = name.startsWith("stale") ? modified.minusSeconds(60) : modified.plusSeconds(60);
+            Files.setLastModifiedTime(gz, FileTime.from(gzModified));
+        }
+        HttpServer.staticfiles(dir.toString());
+        HttpClient client = HttpClient.newHttpClient();
+        for (String name : new String[] {"stale.css", "fresh.css"}) {
+            HttpResponse<byte[]> response = client.send(HttpRequest.newBuilder()
+                    .uri(URI.create("http://localhost:" + TEST_PORT + "/" + name))
+                    .header("Accept-Encoding", "gzip")
+                    .GET()
+                    .build(), HttpResponse.BodyHandlers.ofByteArray());
+            assertEquals("gzip", response.headers().firstValue("content-encoding").orElse(""));
+            try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(response.body()))) {
+                String expected = name.startsWith("stale") ? current : old;
+                assertEquals(expected, new String(in.readAllBytes(), StandardCharsets.UTF_8), name);
+            }
+        }
+    }
+
+    @Test
+    void testGzipNegotiation() throws Exception {
+        HttpClient client = HttpClient.newHttpClient();
+        HttpResponse<byte[]> css = client.send(HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + TEST_PORT + "/styles.css"))
+                .header("Accept-Encoding", "br;q=0, gzip")
+                .GET()
+                .build(), HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals("gzip", css.headers().firstValue("content-encoding").orElse(""));
+        assertEquals("accept-encoding", css.headers().firstValue("vary").orElse(""));
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(css.body()))) {
+            assertArrayEquals(Files.readAllBytes(Path.of("src/main/resources/public/styles.css")), in.readAllBytes());
+        }
+
+        HttpResponse<byte[]> png = client.send(HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + TEST_PORT + "/img/logo.png"))
+                .header("Accept-Encoding", "gzip")
+                .GET()
+                .build(), HttpResponse.BodyHandlers.ofByteArray());
+        assertTrue(png.headers().firstValue("content-encoding").isEmpty());
+    }
+
+    @Test
+    void testKeepAlivePipelining() throws Exception {
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            String requests = "GET /api/greeting?name=Uno HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    + "GET /api/greeting?name=Dos HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    + "GET /nonexistent.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n";
+            out.write(requests.getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+
+            assertTrue(readRawResponse(in).endsWith("Hello, Uno!"));
+            assertTrue(readRawResponse(in).endsWith("Hello, Dos!"));
+            String last = readRawResponse(in);
+            assertTrue(last.startsWith("HTTP/1.1 404"));
+            assertTrue(last.toLowerCase().contains("connection: close"));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    void testRequestParsingAndLimits() throws Exception {
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            // Peticion partida en varias escrituras, con cuerpo chunked
+            out.write("GET /api/greeting?name=Juan%20Esteban HT".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            Thread.sleep(50);
+            out.write(("TP/1.1\r\nHost: localhost\r\n\r\n"
+                    + "POST /api/greeting HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n"
+                    + "3\r\nChu\r\n4\r\nnked\r\n0\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(("GET /" + "a".repeat(9000) + " HTTP/1.1\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+
+            assertTrue(readRawResponse(in).endsWith("Hello, Juan Esteban!"));
+            assertTrue(readRawResponse(in).endsWith("Hello, Chunked!"));
+            String tooLong = readRawResponse(in);
+            assertTrue(tooLong.startsWith("HTTP/1.1 414"));
+            assertEquals(-1, in.read());
+        }
+
+        // Otra codificacion ademas de chunked no se decodifica a medias: 501
+        for (String coding : new String[] {"gzip, chunked", "gzip"}) {
+            try (Socket socket = new Socket("localhost", TEST_PORT)) {
+                socket.setSoTimeout(5000);
+                socket.getOutputStream().write(("POST /api/greeting HTTP/1.1\r\nHost: localhost\r\n"
+                        + "Transfer-Encoding: " + coding + "\r\n\r\n0\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                String response = readRawResponse(in);
+                assertTrue(response.startsWith("HTTP/1.1 501"), coding + " -> " + response);
+            }
+        }
+    }
+
+    @Test
+    void testAsyncControllers() throws Exception {
+        assertAsyncControllers(ServerEngine.BLOCKING);
+    }
+
+    /**
+     * Asynchronous controller, used by {@link #assertAsyncControllers}.
+     */
+    @RestController
+    public static class AsyncController {
+
+        static volatile CompletableFuture<String> never;
+
+        @GetMapping("/never")
+        @Timeout(200)
+        public CompletableFuture<String> never() {
+            return never;
+        }
+    }
+
+    static void assertAsyncControllers(ServerEngine engine) throws Exception {
+        CompletableFuture<String> slow = new CompletableFuture<>();
+        AsyncController.never = new CompletableFuture<>();
+        Routes routes = new Routes()
+                .controller(AsyncController.class)
+                .register("GET", "/slow", (req, res) -> slow)
+                .register("GET", "/fast", (req, res) -> "fast")
+                .register("GET", "/stats", (req, res) -> CompletableFuture.supplyAsync(() -> Map.of("n", 3)));
+        // Un solo hilo de trabajo: la peticion lenta no debe ocuparlo mientras espera
+        HttpServer server = HttpServer.builder().port(0).engine(engine).routes(routes).workerPoolSize(1)
+                .build().start();
+        try {
+            String base = "http://localhost:" + server.getPort() + "/api";
+            HttpClient client = HttpClient.newHttpClient();
+            CompletableFuture<HttpResponse<String>> waiting = client.sendAsync(
+                    HttpRequest.newBuilder(URI.create(base + "/slow")).GET().build(),
+                    HttpResponse.BodyHandlers.ofString());
+            Thread.sleep(200);
+            // Sin keep-alive: en el motor bloqueante una conexion inactiva tambien ocupa un hilo
+            try (Socket socket = new Socket("localhost", server.getPort())) {
+                socket.setSoTimeout(5000);
+                socket.getOutputStream().write("GET /api/fast HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+                        .getBytes(StandardCharsets.US_ASCII));
+                assertTrue(readRawResponse(new BufferedInputStream(socket.getInputStream())).endsWith("fast"));
+            }
+            assertFalse(waiting.isDone());
+            slow.complete("slow");
+            assertEquals("slow", waiting.get(5, TimeUnit.SECONDS).body());
+
+            HttpResponse<String> json = client.send(HttpRequest.newBuilder(URI.create(base + "/stats")).GET()
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals("application/json", json.headers().firstValue("content-type").orElse(null));
+            assertEquals("{\"n\":3}", json.body());
+
+            HttpResponse<String> timedOut = client.send(HttpRequest.newBuilder(URI.create(base + "/never")).GET()
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(504, timedOut.statusCode());
+            assertTrue(AsyncController.never.isCancelled());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testRangeRequests(@TempDir Path dir) throws Exception {
+        assertRangeRequests(ServerEngine.BLOCKING, dir);
+    }
+
+    static void assertRangeRequests(ServerEngine engine, Path dir) throws Exception {
+        byte[] small = "0123456789abcdefghij".getBytes(StandardCharsets.US_ASCII);
+        byte[] large = new byte[3 * 1024 * 1024];
+        new Random(7).nextBytes(large);
+        Files.write(dir.resolve("small.txt"), small);
+        Files.write(dir.resolve("large.bin"), large);
+        HttpServer server = HttpServer.builder().port(0).engine(engine).staticFiles(dir.toString()).build().start();
+        try {
+            String base = "http://localhost:" + server.getPort();
+            HttpClient client = HttpClient.newHttpClient();
+
+            HttpResponse<byte[]> whole = client.send(HttpRequest.newBuilder(URI.create(base + "/large.bin")).GET()
+                    .build(), HttpResponse.BodyHandlers.ofByteArray());
+            assertEquals("bytes", whole.headers().firstValue("accept-ranges").orElse(null));
+            String etag = whole.headers().firstValue("etag").orElseThrow();
+
+            // Archivo grande: se envia desde disco a partir del desplazamiento pedido
+            HttpResponse<byte[]> tail = client.send(HttpRequest.newBuilder(URI.create(base + "/large.bin"))
+                    .header("Range", "bytes=2000000-2000099").header("If-Range", etag).GET().build(),
+                    HttpResponse.BodyHandlers.ofByteArray());
+            assertEquals(206, tail.statusCode());
+            assertEquals("bytes 2000000-2000099/" + large.length, tail.headers().firstValue("content-range").orElse(null));
+            assertArrayEquals(Arrays.copyOfRange(large, 2000000, 2000100), tail.body());
+
+            HttpResponse<String> suffix = client.send(HttpRequest.newBuilder(URI.create(base + "/small.txt"))
+                    .header("Range", "bytes=-5").GET().build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(206, suffix.statusCode());
+            assertEquals("fghij", suffix.body());
+
+            HttpResponse<String> multi = client.send(HttpRequest.newBuilder(URI.create(base + "/small.txt"))
+                    .header("Range", "bytes=0-1,15-,1-2").GET().build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(206, multi.statusCode());
+            String type = multi.headers().firstValue("content-type").orElseThrow();
+            assertTrue(type.startsWith("multipart/byteranges; boundary="), type);
+            String boundary = type.substring(type.indexOf('=') + 1);
+            assertEquals("\r\n--" + boundary + "\r\ncontent-type: text/plain; charset=utf-8\r\n"
+                    + "content-range: bytes 0-2/20\r\n\r\n012"
+                    + "\r\n--" + boundary + "\r\ncontent-type: text/plain; charset=utf-8\r\n"
+                    + "content-range: bytes 15-19/20\r\n\r\nfghij"
+                    + "\r\n--" + boundary + "--\r\n", multi.body());
+
+            HttpResponse<String> unsatisfiable = client.send(HttpRequest.newBuilder(URI.create(base + "/small.txt"))
+                    .header("Range", "bytes=20-").GET().build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(416, unsatisfiable.statusCode());
+            assertEquals("bytes */20", unsatisfiable.headers().firstValue("content-range").orElse(null));
+
+            // Un validador distinto en If-Range devuelve el archivo completo
+            HttpResponse<String> stale = client.send(HttpRequest.newBuilder(URI.create(base + "/small.txt"))
+                    .header("Range", "bytes=0-3").header("If-Range", "\"stale\"").GET().build(),
+                    HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, stale.statusCode());
+            assertEquals("0123456789abcdefghij", stale.body());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testAdmissionControl() throws Exception {
+        assertAdmissionControl(ServerEngine.BLOCKING);
+    }
+
+    @Test
+    void testExecutorStrategies() throws Exception {
+        String request = "GET /api/slow HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n";
+        for (ExecutorStrategy strategy : ExecutorStrategy.values()) {
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            Routes routes = new Routes().register("GET", "/slow", (req, res) -> {
+                started.countDown();
+                return release.await(10, TimeUnit.SECONDS) ? "done" : "timed out";
+            });
+            // Un hilo y un lugar en la cola: la tercera conexion ya no cabe en BOUNDED
+            HttpServer server = HttpServer.builder().port(0).routes(routes).executor(strategy)
+                    .workerPoolSize(1).workerQueueCapacity(1).build().start();
+            try (Socket running = new Socket("localhost", server.getPort());
+                    Socket queued = new Socket("localhost", server.getPort())) {
+                running.setSoTimeout(5000);
+                queued.setSoTimeout(5000);
+                running.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+                assertTrue(started.await(5, TimeUnit.SECONDS), strategy.name());
+                queued.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+                try (Socket overflow = new Socket("localhost", server.getPort())) {
+                    overflow.setSoTimeout(5000);
+                    overflow.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+                    InputStream in = new BufferedInputStream(overflow.getInputStream());
+                    if (strategy == ExecutorStrategy.BOUNDED) {
+                        // Se rechaza sin esperar a que se libere el hilo
+                        String rejected = readRawResponse(in);
+                        assertTrue(rejected.startsWith("HTTP/1.1 503"), rejected);
+                        assertTrue(rejected.contains("retry-after: "), rejected);
+                        release.countDown();
+                    } else {
+                        // Las colas sin limite esperan su turno
+                        release.countDown();
+                        assertTrue(readRawResponse(in).endsWith("done"), strategy.name());
+                    }
+                }
+                assertTrue(readRawResponse(new BufferedInputStream(running.getInputStream())).endsWith("done"));
+                assertTrue(readRawResponse(new BufferedInputStream(queued.getInputStream())).endsWith("done"));
+            } finally {
+                release.countDown();
+                server.stop();
+            }
+        }
+    }
+
+    static void assertAdmissionControl(ServerEngine engine) throws Exception {
+        HttpServer limited = HttpServer.builder().port(0).engine(engine).maxConnections(1).retryAfter(7).build().start();
+        try (Socket first = new Socket("localhost", limited.getPort());
+                Socket second = new Socket("localhost", limited.getPort())) {
+            first.setSoTimeout(5000);
+            first.getOutputStream().write("GET /health/live HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            assertTrue(readRawResponse(new BufferedInputStream(first.getInputStream())).startsWith("HTTP/1.1 200"));
+            // La primera conexion sigue abierta y ocupa el unico cupo; la peticion de la segunda
+            // queda sin leer, y aun asi el cliente debe recibir el 503 y no un RST
+            second.setSoTimeout(5000);
+            second.getOutputStream().write("GET /health/live HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            Thread.sleep(100);
+            String refused = readRawResponse(new BufferedInputStream(second.getInputStream()));
+            assertTrue(refused.startsWith("HTTP/1.1 503"), refused);
+            assertTrue(refused.contains("retry-after: 7"), refused);
+        } finally {
+            limited.stop();
+        }
+
+        HttpServer throttled = HttpServer.builder().port(0).engine(engine).rateLimit(1, 2).build().start();
+        try (Socket socket = new Socket("localhost", throttled.getPort())) {
+            socket.setSoTimeout(5000);
+            String request = "GET /health/live HTTP/1.1\r\nHost: localhost\r\n\r\n";
+            socket.getOutputStream().write(request.repeat(3).getBytes(StandardCharsets.US_ASCII));
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            assertTrue(readRawResponse(in).startsWith("HTTP/1.1 200"));
+            assertTrue(readRawResponse(in).startsWith("HTTP/1.1 200"));
+            String limitedResponse = readRawResponse(in);
+            assertTrue(limitedResponse.startsWith("HTTP/1.1 429"), limitedResponse);
+            assertTrue(limitedResponse.contains("retry-after: 1"), limitedResponse);
+            assertEquals(-1, in.read());
+
+            // Sin fichas, una conexion nueva se rechaza al aceptarla
+            try (Socket again = new Socket("localhost", throttled.getPort())) {
+                again.setSoTimeout(5000);
+                again.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+                Thread.sleep(100);
+                InputStream refused = new BufferedInputStream(again.getInputStream());
+                assertTrue(readRawResponse(refused).startsWith("HTTP/1.1 429"));
+                assertEquals(-1, refused.read());
+            }
+        } finally {
+            throttled.stop();
+        }
+    }
+
+    @Test
+    void testStartupReport() throws Exception {
+        HttpServer server = HttpServer.builder().port(0).build().start();
+        try {
+            // El informe se arma en segundo plano
+            long deadline = System.currentTimeMillis() + 5000;
+            while (server.getStartupReport() == null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            StartupReport report = server.getStartupReport();
+            assertNotNull(report);
+            assertTrue(report.readyMicros() >= report.processMicros() + report.bindMicros(), report.toString());
+            assertEquals(-1, server.getTimeToFirstRequestMicros());
+
+            HttpClient client = HttpClient.newHttpClient();
+            String metrics = client.send(HttpRequest.newBuilder(
+                    URI.create("http://localhost:" + server.getPort() + "/metrics")).GET().build(),
+                    HttpResponse.BodyHandlers.ofString()).body();
+            assertTrue(server.getTimeToFirstRequestMicros() > report.processMicros());
+            assertTrue(metrics.contains("microspringboot_startup_seconds "), metrics);
+            assertTrue(metrics.contains("microspringboot_first_request_seconds "), metrics);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testAccessLog(@TempDir Path dir) throws Exception {
+        Routes routes = new Routes()
+                .register("GET", "/ok", (req, res) -> "ok")
+                .register("GET", "/fail", (req, res) -> {
+                    throw new IllegalStateException("boom");
+                });
+        Path log = dir.resolve("logs/access.log");
+        HttpServer server = HttpServer.builder().port(0).routes(routes).accessLog(log.toString())
+                .accessLogMaxFileSize(400).build().start();
+        HttpClient client = HttpClient.newHttpClient();
+        String base = "http://localhost:" + server.getPort();
+        try {
+            for (String path : List.of("/api/ok?x=%22", "/api/missing", "/api/fail", "/index.html")) {
+                client.send(HttpRequest.newBuilder(URI.create(base + path)).GET().build(),
+                        HttpResponse.BodyHandlers.discarding());
+            }
+            String metrics = client.send(HttpRequest.newBuilder(URI.create(base + "/metrics")).GET().build(),
+                    HttpResponse.BodyHandlers.ofString()).body();
+            assertTrue(metrics.contains("microspringboot_access_log_dropped_total 0"), metrics);
+        } finally {
+            server.stop();
+        }
+        // Al detenerse se escribe lo pendiente; los archivos rotados guardan las primeras lineas
+        assertTrue(Files.exists(dir.resolve("logs/access.log.1")));
+        StringBuilder lines = new StringBuilder();
+        for (String name : List.of("access.log.3", "access.log.2", "access.log.1", "access.log")) {
+            Path file = dir.resolve("logs").resolve(name);
+            if (Files.exists(file)) {
+                lines.append(Files.readString(file));
+            }
+        }
+        String all = lines.toString();
+        assertTrue(all.contains("\"method\":\"GET\",\"path\":\"/api/ok\",\"status\":200,\"bytes\":"), all);
+        assertTrue(all.contains("\"path\":\"/api/missing\",\"status\":404"), all);
+        assertTrue(all.contains("\"route\":\"unmatched\""), all);
+        assertTrue(all.contains("\"path\":\"/api/fail\",\"status\":500"), all);
+        assertTrue(all.contains("\"path\":\"/index.html\",\"status\":200"), all);
+        assertEquals(5, all.lines().count(), all);
+
+        // Con muestreo casi nulo solo quedan los errores 5xx
+        Path sampled = dir.resolve("sampled.log");
+        HttpServer sampling = HttpServer.builder().port(0).routes(routes).accessLog(sampled.toString())
+                .accessLogSampleRate(1e-9).build().start();
+        try {
+            for (int i = 0; i < 20; i++) {
+                client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + sampling.getPort() + "/api/ok"))
+                        .GET().build(), HttpResponse.BodyHandlers.discarding());
+            }
+            client.send(HttpRequest.newBuilder(URI.create("http://localhost:" + sampling.getPort() + "/api/fail"))
+                    .GET().build(), HttpResponse.BodyHandlers.discarding());
+        } finally {
+            sampling.stop();
+        }
+        List<String> kept = Files.readAllLines(sampled);
+        assertEquals(1, kept.size(), kept.toString());
+        assertTrue(kept.get(0).contains("\"status\":500"), kept.get(0));
+        assertThrows(IllegalArgumentException.class, () -> HttpServer.builder().accessLogSampleRate(0));
+    }
+
+    @Test
+    void testHttp2Upgrade() throws Exception {
+        Routes routes = new Routes()
+                .register("GET", "/version", (req, res) -> req.getVersion())
+                .register("POST", "/echo", (req, res) -> req.getBody());
+        HttpServer server = HttpServer.builder().port(0).routes(routes).build().start();
+        try {
+            String base = "http://localhost:" + server.getPort();
+            byte[] logo = Files.readAllBytes(Path.of("src/main/resources/public/img/logo.png"));
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+            // La primera peticion hace el upgrade; las demas van como flujos de la misma conexion
+            HttpResponse<String> first = client.send(HttpRequest.newBuilder(URI.create(base + "/api/version")).GET()
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(HttpClient.Version.HTTP_2, first.version());
+            assertEquals("HTTP/1.1", first.body());
+
+            List<CompletableFuture<HttpResponse<byte[]>>> images = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                images.add(client.sendAsync(HttpRequest.newBuilder(URI.create(base + "/img/logo.png")).GET().build(),
+                        HttpResponse.BodyHandlers.ofByteArray()));
+            }
+            byte[] body = new byte[100_000];
+            new Random(3).nextBytes(body);
+            HttpResponse<byte[]> echo = client.send(HttpRequest.newBuilder(URI.create(base + "/api/echo"))
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(body)).build(), HttpResponse.BodyHandlers.ofByteArray());
+            assertEquals(HttpClient.Version.HTTP_2, echo.version());
+            assertArrayEquals(body, echo.body());
+            for (CompletableFuture<HttpResponse<byte[]>> image : images) {
+                HttpResponse<byte[]> response = image.get(10, TimeUnit.SECONDS);
+                assertEquals(200, response.statusCode());
+                assertEquals("image/png", response.headers().firstValue("content-type").orElse(null));
+                assertArrayEquals(logo, response.body());
+            }
+            assertEquals("HTTP/2.0", client.send(HttpRequest.newBuilder(URI.create(base + "/api/version")).GET()
+                    .build(), HttpResponse.BodyHandlers.ofString()).body());
+
+            HttpResponse<String> metrics = client.send(HttpRequest.newBuilder(URI.create(base + "/metrics")).GET()
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            assertTrue(metrics.body().contains("microspringboot_http2_connections_total 1"), metrics.body());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testHttp2PriorKnowledgeFlowControl() throws Exception {
+        Routes routes = new Routes().register("GET", "/version", (req, res) -> req.getVersion());
+        HttpServer server = HttpServer.builder().port(0).routes(routes).build().start();
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            out.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            // Ventana inicial de 100 bytes por flujo
+            writeFrame(out, 0x4, 0, 0, new byte[] {0, 4, 0, 0, 0, 100});
+            writeFrame(out, 0x1, 0x5, 1, headerBlock("GET", "/img/logo.png"));
+            writeFrame(out, 0x1, 0x5, 3, headerBlock("GET", "/api/version"));
+            writeFrame(out, 0x6, 0, 0, "12345678".getBytes(StandardCharsets.US_ASCII));
+
+            // El flujo 3 termina aunque el 1 este detenido por el control de flujo
+            ByteArrayOutputStream logo = new ByteArrayOutputStream();
+            ByteArrayOutputStream version = new ByteArrayOutputStream();
+            boolean pinged = false;
+            boolean versionDone = false;
+            while (!versionDone || !pinged) {
+                Frame frame = readFrame(in);
+                if (frame.type == 0x6) {
+                    assertEquals(1, frame.flags);
+                    assertEquals("12345678", new String(frame.payload, StandardCharsets.US_ASCII));
+                    pinged = true;
+                } else if (frame.type == 0x1) {
+                    // :status 200 como indice de la tabla estatica
+                    assertEquals((byte) 0x88, frame.payload[0]);
+                } else if (frame.type == 0x0) {
+                    (frame.stream == 1 ? logo : version).write(frame.payload);
+                    versionDone |= frame.stream == 3 && (frame.flags & 1) != 0;
+                }
+            }
+            assertEquals("HTTP/2.0", version.toString(StandardCharsets.US_ASCII));
+            assertTrue(logo.size() <= 100, "Sent " + logo.size() + " bytes past the window");
+
+            writeFrame(out, 0x8, 0, 1, new byte[] {0, 1, 0, 0});
+            boolean logoDone = false;
+            while (!logoDone) {
+                Frame frame = readFrame(in);
+                if (frame.type == 0x0 && frame.stream == 1) {
+                    logo.write(frame.payload);
+                    logoDone = (frame.flags & 1) != 0;
+                }
+            }
+            assertArrayEquals(Files.readAllBytes(Path.of("src/main/resources/public/img/logo.png")),
+                    logo.toByteArray());
+
+            // Un flujo con id par es un error de conexion: GOAWAY con PROTOCOL_ERROR
+            writeFrame(out, 0x1, 0x5, 4, headerBlock("GET", "/api/version"));
+            Frame frame;
+            do {
+                frame = readFrame(in);
+            } while (frame.type != 0x7);
+            assertEquals(1, frame.payload[7]);
+            assertEquals(-1, in.read());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testHttp2RapidResetIsBounded() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Routes routes = new Routes().register("GET", "/slow", (req, res) -> release.await(10, TimeUnit.SECONDS));
+        // La cola no rechaza nada: solo el limite de flujos puede frenar el ataque
+        HttpServer server = HttpServer.builder().port(0).routes(routes)
+                .workerPoolSize(4).workerQueueCapacity(1000).build().start();
+        try (Socket socket = new Socket("localhost", server.getPort())) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            out.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            writeFrame(out, 0x4, 0, 0, new byte[0]);
+            // Cada peticion se cancela con RST_STREAM (CANCEL) justo despues de enviarla
+            int requests = 150;
+            for (int i = 0; i < requests; i++) {
+                int stream = 2 * i + 1;
+                writeFrame(out, 0x1, 0x5, stream, headerBlock("GET", "/api/slow"));
+                writeFrame(out, 0x3, 0, stream, new byte[] {0, 0, 0, 0x8});
+            }
+            // Los flujos cancelados siguen contando mientras su manejador corre: pasan 100 (MAX_CONCURRENT_STREAMS)
+            int refused = 0;
+            while (refused < requests - 100) {
+                Frame frame = readFrame(in);
+                if (frame.type == 0x3 && frame.payload[3] == 0x7) {
+                    refused++;
+                }
+            }
+            assertEquals(requests - 100, refused);
+        } finally {
+            release.countDown();
+            server.stop();
+        }
+    }
+
+    @Test
+    void testHttp2TruncatedHeaderBlock() throws Exception {
+        HttpServer server = HttpServer.builder().port(0).maxConnections(1).build().start();
+        try {
+            try (Socket socket = new Socket("localhost", server.getPort())) {
+                socket.setSoTimeout(5000);
+                OutputStream out = socket.getOutputStream();
+                InputStream in = new BufferedInputStream(socket.getInputStream());
+                out.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                writeFrame(out, 0x4, 0, 0, new byte[0]);
+                // Un bloque de 16384 bytes que termina en un literal con nombre nuevo sin su cadena
+                byte[] block = new byte[16384];
+                Arrays.fill(block, (byte) 0x82);
+                block[block.length - 1] = 0x40;
+                writeFrame(out, 0x1, 0x5, 1, block);
+                Frame frame;
+                do {
+                    frame = readFrame(in);
+                } while (frame.type != 0x7);
+                // GOAWAY con COMPRESSION_ERROR
+                assertEquals(0x9, frame.payload[7]);
+                assertEquals(-1, in.read());
+            }
+            // El cupo de la conexion se libero: con maxConnections(1) la siguiente es atendida
+            String response = "";
+            for (int attempt = 0; attempt < 50 && !response.startsWith("HTTP/1.1 200"); attempt++) {
+                try (Socket socket = new Socket("localhost", server.getPort())) {
+                    socket.setSoTimeout(5000);
+                    socket.getOutputStream().write("GET /index.html HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+                            .getBytes(StandardCharsets.US_ASCII));
+                    response = readRawResponse(new BufferedInputStream(socket.getInputStream()));
+                } catch (IOException e) {
+                    response = "";
+                }
+                if (!response.startsWith("HTTP/1.1 200")) {
+                    Thread.sleep(20);
+                }
+            }
+            assertTrue(response.startsWith("HTTP/1.1 200"), response);
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testPushEndpoints() throws Exception {
+        assertPushEndpoints(ServerEngine.BLOCKING);
+    }
+
+    /**
+     * Push endpoint, used by {@link #assertPushEndpoints}.
+     */
+    @RestController
+    public static class TickController {
+
+        static volatile BroadcastHub prices;
+
+        @StreamMapping("/ticks/{topic}")
+        public BroadcastHub ticks(@PathVariable("topic") String topic) {
+            return "prices".equals(topic) ? prices : null;
+        }
+    }
+
+    static void assertPushEndpoints(ServerEngine engine) throws Exception {
+        BroadcastHub hub = new BroadcastHub(4);
+        TickController.prices = hub;
+        Routes routes = new Routes().controller(TickController.class);
+        HttpServer server = HttpServer.builder().port(0).engine(engine).routes(routes).build().start();
+        try (Socket sse = new Socket("localhost", server.getPort());
+                Socket ws = new Socket("localhost", server.getPort())) {
+            sse.setSoTimeout(5000);
+            ws.setSoTimeout(5000);
+            sse.getOutputStream().write("GET /api/ticks/prices HTTP/1.1\r\nHost: localhost\r\nAccept: text/event-stream\r\n\r\n"
+                    .getBytes(StandardCharsets.US_ASCII));
+            InputStream events = new BufferedInputStream(sse.getInputStream());
+            assertEquals("HTTP/1.1 200 OK", readRawLine(events));
+            assertEquals("content-type: text/event-stream; charset=utf-8", readRawLine(events));
+            while (!readRawLine(events).isEmpty()) {
+                // resto de la cabecera
+            }
+
+            // Ejemplo de la RFC 6455, 1.3
+            OutputStream wsOut = ws.getOutputStream();
+            wsOut.write(("GET /api/ticks/prices HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\n"
+                    + "Connection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+                    + "Sec-WebSocket-Version: 13\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            InputStream frames = new BufferedInputStream(ws.getInputStream());
+            String handshake = readRawResponse(frames);
+            assertTrue(handshake.startsWith("HTTP/1.1 101 Switching Protocols"), handshake);
+            assertTrue(handshake.contains("sec-websocket-accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo="), handshake);
+            awaitSubscribers(hub, 2);
+
+            assertEquals(2, hub.publish("tick", Map.of("price", 10)));
+            hub.publish("a\nb");
+            assertEquals("event: tick", readRawLine(events));
+            assertEquals("data: {\"price\":10}", readRawLine(events));
+            assertEquals("", readRawLine(events));
+            assertEquals("data: a", readRawLine(events));
+            assertEquals("data: b", readRawLine(events));
+            assertEquals("", readRawLine(events));
+            assertArrayEquals(textFrame("{\"price\":10}"), frames.readNBytes(textFrame("{\"price\":10}").length));
+            assertArrayEquals(textFrame("a\nb"), frames.readNBytes(5));
+
+            // Las tramas del cliente van enmascaradas; el ping se contesta con el mismo contenido
+            wsOut.write(maskedFrame(0x9, "hi".getBytes(StandardCharsets.US_ASCII)));
+            assertArrayEquals(new byte[] {(byte) 0x8A, 2, 'h', 'i'}, frames.readNBytes(4));
+            wsOut.write(maskedFrame(0x8, new byte[] {0x03, (byte) 0xE8}));
+            assertArrayEquals(new byte[] {(byte) 0x88, 2, 0x03, (byte) 0xE8}, frames.readNBytes(4));
+            assertEquals(-1, frames.read());
+            awaitSubscribers(hub, 1);
+
+            // El cliente SSE deja de leer: su cola se llena y se desaloja sin frenar al publicador
+            String payload = "x".repeat(64 * 1024);
+            for (int i = 0; i < 2000 && hub.getEvictedCount() == 0; i++) {
+                hub.publish(payload);
+            }
+            assertEquals(1, hub.getEvictedCount());
+            awaitSubscribers(hub, 0);
+            while (events.read(new byte[8192]) != -1) {
+                // lo que quedo en el socket antes del cierre
+            }
+            String metrics = readRawResponse(rawGet(server.getPort(), "/metrics"));
+            assertEquals(1.0, sample(metrics, "microspringboot_stream_evictions_total"), metrics);
+
+            assertTrue(readRawResponse(rawGet(server.getPort(), "/api/ticks/other")).startsWith("HTTP/1.1 404"));
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testPushEvictionAndLimits() throws Exception {
+        assertPushEvictionAndLimits(ServerEngine.BLOCKING);
+    }
+
+    static void assertPushEvictionAndLimits(ServerEngine engine) throws Exception {
+        BroadcastHub hub = new BroadcastHub(4);
+        Routes routes = new Routes().stream("/feed", hub);
+        // Los flujos no ocupan cupos de maxConnections: tienen su propio tope
+        HttpServer server = HttpServer.builder().port(0).engine(engine).routes(routes)
+                .maxConnections(2).maxStreams(2).build().start();
+        String sseRequest = "GET /api/feed HTTP/1.1\r\nHost: localhost\r\nAccept: text/event-stream\r\n\r\n";
+        try (Socket stalled = new Socket("localhost", server.getPort());
+                Socket reader = new Socket("localhost", server.getPort())) {
+            stalled.setSoTimeout(5000);
+            reader.setSoTimeout(5000);
+            stalled.getOutputStream().write(sseRequest.getBytes(StandardCharsets.US_ASCII));
+            reader.getOutputStream().write(sseRequest.getBytes(StandardCharsets.US_ASCII));
+            InputStream stalledEvents = new BufferedInputStream(stalled.getInputStream());
+            InputStream events = new BufferedInputStream(reader.getInputStream());
+            assertTrue(readRawResponse(stalledEvents).startsWith("HTTP/1.1 200"));
+            assertTrue(readRawResponse(events).startsWith("HTTP/1.1 200"));
+            awaitSubscribers(hub, 2);
+
+            assertTrue(readRawResponse(rawGet(server.getPort(), "/health/live")).startsWith("HTTP/1.1 200"));
+            try (Socket third = new Socket("localhost", server.getPort())) {
+                String refused = readRawResponse(webSocketHandshake(third));
+                assertTrue(refused.startsWith("HTTP/1.1 503"), refused);
+                assertTrue(refused.contains("retry-after: "), refused);
+                assertTrue(refused.endsWith("Too many streams"), refused);
+            }
+
+            // El cliente detenido se desaloja; el que lee recibe todos los mensajes, en orden
+            String padding = "x".repeat(64 * 1024);
+            int sent = 0;
+            while (hub.getEvictedCount() == 0 && sent < 2000) {
+                hub.publish(sent + " " + padding);
+                assertTrue(readRawLine(events).startsWith("data: " + sent + " "), "message " + sent);
+                assertEquals("", readRawLine(events));
+                sent++;
+            }
+            assertEquals(1, hub.getEvictedCount());
+            for (int i = 0; i < 10; i++, sent++) {
+                assertEquals(1, hub.publish(sent + " " + padding));
+                assertTrue(readRawLine(events).startsWith("data: " + sent + " "), "message " + sent);
+                assertEquals("", readRawLine(events));
+            }
+            awaitSubscribers(hub, 1);
+            while (stalledEvents.read(new byte[8192]) != -1) {
+                // lo que quedo en el socket antes del cierre
+            }
+
+            // Trama sin mascara: 1002
+            try (Socket ws = new Socket("localhost", server.getPort())) {
+                InputStream frames = webSocketHandshake(ws);
+                assertTrue(readRawResponse(frames).startsWith("HTTP/1.1 101"));
+                ws.getOutputStream().write(new byte[] {(byte) 0x81, 2, 'h', 'i'});
+                assertArrayEquals(new byte[] {(byte) 0x88, 2, 0x03, (byte) 0xEA}, frames.readNBytes(4));
+                assertEquals(-1, frames.read());
+            }
+            // Mensaje de mas de 64 KB: 1009 sin esperar el contenido
+            try (Socket ws = new Socket("localhost", server.getPort())) {
+                InputStream frames = webSocketHandshake(ws);
+                assertTrue(readRawResponse(frames).startsWith("HTTP/1.1 101"));
+                ws.getOutputStream().write(new byte[] {(byte) 0x82, (byte) 0xFF, 0, 0, 0, 0, 0, 1, (byte) 0x86,
+                    (byte) 0xA0, 0x11, 0x22, 0x33, 0x44});
+                assertArrayEquals(new byte[] {(byte) 0x88, 2, 0x03, (byte) 0xF1}, frames.readNBytes(4));
+                assertEquals(-1, frames.read());
+            }
+            // Ping y cierre vacios: pong vacio y el cierre devuelto tal cual
+            try (Socket ws = new Socket("localhost", server.getPort())) {
+                InputStream frames = webSocketHandshake(ws);
+                assertTrue(readRawResponse(frames).startsWith("HTTP/1.1 101"));
+                ws.getOutputStream().write(maskedFrame(0x9, new byte[0]));
+                assertArrayEquals(new byte[] {(byte) 0x8A, 0}, frames.readNBytes(2));
+                ws.getOutputStream().write(maskedFrame(0x8, new byte[0]));
+                assertArrayEquals(new byte[] {(byte) 0x88, 0}, frames.readNBytes(2));
+                assertEquals(-1, frames.read());
+            }
+            awaitSubscribers(hub, 1);
+        } finally {
+            server.stop();
+        }
+    }
+
+    // Envia el saludo WebSocket a /api/feed; la respuesta queda sin leer
+    private static InputStream webSocketHandshake(Socket socket) throws IOException {
+        socket.setSoTimeout(5000);
+        socket.getOutputStream().write(("GET /api/feed HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\n"
+                + "Connection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+                + "Sec-WebSocket-Version: 13\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        return new BufferedInputStream(socket.getInputStream());
+    }
+
+    @Test
+    void testPushHandshakeErrorsAndDrain() throws Exception {
+        BroadcastHub hub = new BroadcastHub();
+        Routes routes = new Routes().stream("/feed", hub);
+        HttpServer server = HttpServer.builder().port(0).routes(routes).drainTimeout(5000).build().start();
+        try (Socket ws = new Socket("localhost", server.getPort())) {
+            ws.setSoTimeout(5000);
+            String request = "GET /api/feed HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\n"
+                    + "Connection: Upgrade\r\nSec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n";
+            try (Socket old = new Socket("localhost", server.getPort())) {
+                old.setSoTimeout(5000);
+                old.getOutputStream().write((request + "Sec-WebSocket-Version: 8\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII));
+                String rejected = readRawResponse(new BufferedInputStream(old.getInputStream()));
+                assertTrue(rejected.startsWith("HTTP/1.1 426"), rejected);
+                assertTrue(rejected.contains("sec-websocket-version: 13"), rejected);
+            }
+            ws.getOutputStream().write((request + "Sec-WebSocket-Version: 13\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            InputStream frames = new BufferedInputStream(ws.getInputStream());
+            assertTrue(readRawResponse(frames).startsWith("HTTP/1.1 101"));
+            awaitSubscribers(hub, 1);
+
+            // Los flujos no retrasan la parada: se cierran con 1001 al empezar a drenar
+            ShutdownReport report = server.stop();
+            assertTrue(report.drainMillis() < 2000, report.toString());
+            assertArrayEquals(new byte[] {(byte) 0x88, 2, 0x03, (byte) 0xE9}, frames.readNBytes(4));
+            assertEquals(-1, frames.read());
+            assertEquals(0, hub.getSubscriberCount());
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void awaitSubscribers(BroadcastHub hub, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (hub.getSubscriberCount() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, hub.getSubscriberCount());
+    }
+
+    private static InputStream rawGet(int port, String path) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        socket.setSoTimeout(5000);
+        socket.getOutputStream().write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII));
+        return new BufferedInputStream(socket.getInputStream());
+    }
+
+    private static byte[] textFrame(String text) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        byte[] frame = new byte[payload.length + 2];
+        frame[0] = (byte) 0x81;
+        frame[1] = (byte) payload.length;
+        System.arraycopy(payload, 0, frame, 2, payload.length);
+        return frame;
+    }
+
+    private static byte[] maskedFrame(int opcode, byte[] payload) {
+        byte[] mask = {0x11, 0x22, 0x33, 0x44};
+        byte[] frame = new byte[payload.length + 6];
+        frame[0] = (byte) (0x80 | opcode);
+        frame[1] = (byte) (0x80 | payload.length);
+        System.arraycopy(mask, 0, frame, 2, 4);
+        for (int i = 0; i < payload.length; i++) {
+            frame[6 + i] = (byte) (payload[i] ^ mask[i & 3]);
+        }
+        return frame;
+    }
+
+    private record Frame(int type, int flags, int stream, byte[] payload) {
+    }
+
+    private static void writeFrame(OutputStream out, int type, int flags, int stream, byte[] payload)
+            throws IOException {
+        int length = payload.length;
+        out.write(new byte[] {(byte) (length >>> 16), (byte) (length >>> 8), (byte) length, (byte) type,
+            (byte) flags, (byte) (stream >>> 24), (byte) (stream >>> 16), (byte) (stream >>> 8), (byte) stream});
+        out.write(payload);
+        out.flush();
+    }
+
+    private static Frame readFrame(InputStream in) throws IOException {
+        byte[] header = in.readNBytes(9);
+        assertEquals(9, header.length, "Connection closed");
+        int length = (header[0] & 0xFF) << 16 | (header[1] & 0xFF) << 8 | (header[2] & 0xFF);
+        int stream = (header[5] & 0x7F) << 24 | (header[6] & 0xFF) << 16 | (header[7] & 0xFF) << 8 | (header[8] & 0xFF);
+        return new Frame(header[3], header[4] & 0xFF, stream, in.readNBytes(length));
+    }
+
+    // Campos literales sin indexar ni Huffman (RFC 7541, 6.2.2)
+    private static byte[] headerBlock(String method, String path) {
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        String[] fields = {":method", method, ":scheme", "http", ":path", path, ":authority", "localhost"};
+        for (int i = 0; i < fields.length; i += 2) {
+            block.write(0);
+            block.write(fields[i].length());
+            block.writeBytes(fields[i].getBytes(StandardCharsets.US_ASCII));
+            block.write(fields[i + 1].length());
+            block.writeBytes(fields[i + 1].getBytes(StandardCharsets.US_ASCII));
+        }
+        return block.toByteArray();
+    }
+
+    static String readRawResponse(InputStream in) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int contentLength = 0;
+        String line;
+        while (!(line = readRawLine(in)).isEmpty()) {
+            head.write((line + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            if (line.toLowerCase().startsWith("content-length:")) {
+                contentLength = Integer.parseInt(line.substring(15).trim());
+            }
+        }
+        byte[] body = in.readNBytes(contentLength);
+        return head.toString(StandardCharsets.ISO_8859_1) + "\r\n" + new String(body, StandardCharsets.UTF_8);
+    }
+
+    static String readRawLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                sb.append((char) b);
+            }
+        }
+        return sb.toString();
+    }
 }
@@ -0,0 +1,155 @@
+package escuelaing.edu.co.microspringboot.httpserver;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.io.TempDir;
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import co.escuelaing.arep.microspringboot.httpserver.HttpServer;
+import co.escuelaing.arep.microspringboot.httpserver.Routes;
+import co.escuelaing.arep.microspringboot.httpserver.ServerEngine;
+
+class NioEngineTest {
+    private static final int TEST_PORT = 35002;
+    private Thread serverThread;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        HttpServer.staticfiles("src/main/resources/public");
+        HttpServer.setEngine(ServerEngine.NIO);
+        HttpServer.setReactorThreads(2);
+        serverThread = new Thread(() -> {
+            try {
+                HttpServer.runServer(TEST_PORT);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+        waitForServerToStart();
+    }
+
+    @AfterEach
+    void tearDown() {
+        HttpServer.stopServer();
+        HttpServer.setEngine(ServerEngine.BLOCKING);
+    }
+
+    private void waitForServerToStart() throws InterruptedException {
+        for (int attempt = 0; attempt < 10; attempt++) {
+            try (Socket socket = new Socket("localhost", TEST_PORT)) {
+                return;
+            } catch (Exception e) {
+                Thread.sleep(500);
+            }
+        }
+        throw new IllegalStateException("Server failed to start");
+    }
+
+    @Test
+    void testStaticAndRestEndpoints() throws Exception {
+        HttpClient client = HttpClient.newHttpClient();
+        HttpResponse<String> page = client.send(HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + TEST_PORT + "/index.html")).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, page.statusCode());
+        assertTrue(page.body().contains("Bienvenido"));
+
+        HttpResponse<String> greeting = client.send(HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + TEST_PORT + "/api/greeting?name=Nio")).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, greeting.statusCode());
+        assertEquals("Hello, Nio!", greeting.body());
+    }
+
+    @Test
+    void testBinaryFileServing() throws Exception {
+        HttpClient client = HttpClient.newHttpClient();
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create("http://localhost:" + TEST_PORT + "/img/logo.png"))
+                .GET()
+                .build();
+
+        HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(200, response.statusCode());
+        assertEquals("image/png", response.headers().firstValue("content-type").orElse(""));
+        assertArrayEquals(Files.readAllBytes(Path.of("src/main/resources/public/img/logo.png")), response.body());
+    }
+
+    @Test
+    void testPipelinedRequestsSplitAcrossWrites() throws Exception {
+        try (Socket socket = new Socket("localhost", TEST_PORT)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            out.write("GET /api/greeting?name=Uno HTTP/1.1\r\nHost: loc".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            Thread.sleep(100);
+            out.write(("alhost\r\n\r\nGET /api/greeting?name=Dos HTTP/1.1\r\nHost: localhost\r\n"
+                    + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+
+            assertTrue(HttpServerTest.readRawResponse(in).endsWith("Hello, Uno!"));
+            assertTrue(HttpServerTest.readRawResponse(in).endsWith("Hello, Dos!"));
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    void testAsyncControllers() throws Exception {
+        HttpServerTest.assertAsyncControllers(ServerEngine.NIO);
+    }
+
+    @Test
+    void testClientDisconnectCancelsAsyncResponse() throws Exception {
+        CompletableFuture<String> abandoned = new CompletableFuture<>();
+        Routes routes = new Routes().register("GET", "/abandoned", (req, res) -> abandoned);
+        HttpServer server = HttpServer.builder().port(0).engine(ServerEngine.NIO).routes(routes).build().start();
+        try {
+            try (Socket socket = new Socket("localhost", server.getPort())) {
+                socket.getOutputStream().write("GET /api/abandoned HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                        .getBytes(StandardCharsets.US_ASCII));
+                Thread.sleep(200);
+            }
+            for (int i = 0; i < 50 && !abandoned.isCancelled(); i++) {
+                Thread.sleep(20);
+            }
+            assertTrue(abandoned.isCancelled());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testRangeRequests(@TempDir Path dir) throws Exception {
+        HttpServerTest.assertRangeRequests(ServerEngine.NIO, dir);
+    }
+
+    @Test
+    void testAdmissionControl() throws Exception {
+        HttpServerTest.assertAdmissionControl(ServerEngine.NIO);
+    }
+
+    @Test
+    void testPushEndpoints() throws Exception {
+        HttpServerTest.assertPushEndpoints(ServerEngine.NIO);
+    }
+
+    @Test
+    void testPushEvictionAndLimits() throws Exception {
+        HttpServerTest.assertPushEvictionAndLimits(ServerEngine.NIO);
+    }
+}